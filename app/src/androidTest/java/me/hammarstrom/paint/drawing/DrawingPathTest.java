@@ -0,0 +1,35 @@
+package me.hammarstrom.paint.drawing;
+
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+
+/**
+ * Hit testing distance of a {@link DrawingPath}, which needs a real Paint.
+ */
+public class DrawingPathTest extends AndroidTestCase {
+
+    private static final float DELTA = 0.01f;
+
+    public void testDistance_toSegmentsLessHalfTheWidth() {
+        Paint paint = new Paint();
+        paint.setStrokeWidth(4);
+        Stroke stroke = new Stroke(1, 0, 4);
+        stroke.addPoint(0f, 0f);
+        stroke.addPoint(0.5f, 0f);
+        stroke.addPoint(0.5f, 0.5f);
+        DrawingPath path = new DrawingPath(stroke, paint, new Viewport(100, 100));
+
+        // Above the middle of the first segment
+        assertEquals(8f, path.distance(25, -10), DELTA);
+        // Past the end of the last one
+        assertEquals(8f, path.distance(50, 60), DELTA);
+        // On the stroke itself
+        assertEquals(0f, path.distance(51, 25), DELTA);
+    }
+
+    public void testDistance_emptyStrokeIsNeverHit() {
+        DrawingPath path = new DrawingPath(new Stroke(1, 0, 1), new Paint(), new Viewport(100, 100));
+
+        assertEquals(Float.POSITIVE_INFINITY, path.distance(0, 0));
+    }
+}
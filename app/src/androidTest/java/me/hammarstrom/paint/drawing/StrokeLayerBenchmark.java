@@ -0,0 +1,114 @@
+package me.hammarstrom.paint.drawing;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Frame cost of the {@link StrokeLayer} as the number of committed strokes grows,
+ * compared with drawing every path on each frame. Run on a device, the numbers are
+ * written to the log.
+ */
+public class StrokeLayerBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "StrokeLayerBenchmark";
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int[] STROKE_COUNTS = {100, 1000, 10000, 100000};
+    /** Drawing every path gets too slow to measure beyond this **/
+    private static final int MAX_VECTOR_STROKES = 10000;
+    private static final int FRAMES = 30;
+
+    private final Random random = new Random(1);
+    private final Paint paint = new Paint();
+    private final Viewport viewport = new Viewport(WIDTH, HEIGHT);
+
+    public void testFrameCost_flatAsStrokesGrow() {
+        paint.setColor(Color.YELLOW);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(3);
+        paint.setAntiAlias(true);
+
+        Bitmap target = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+        Rect frame = new Rect(0, 0, WIDTH, HEIGHT);
+        StrokeLayer layer = new StrokeLayer(Color.BLACK);
+        layer.resize(WIDTH, HEIGHT);
+        List<DrawingPath> strokes = new ArrayList<>();
+        DrawingPath active = stroke();
+
+        long[] layered = new long[STROKE_COUNTS.length];
+        for (int c = 0; c < STROKE_COUNTS.length; c++) {
+            while (strokes.size() < STROKE_COUNTS[c]) {
+                DrawingPath dp = stroke();
+                strokes.add(dp);
+                layer.commit(dp);
+            }
+            layer.rasterizePending();
+
+            long[] times = new long[FRAMES];
+            for (int f = 0; f < FRAMES; f++) {
+                long start = System.nanoTime();
+                layer.draw(canvas, frame);
+                active.draw(canvas);
+                times[f] = System.nanoTime() - start;
+            }
+            layered[c] = median(times);
+
+            String vector = "-";
+            if (strokes.size() <= MAX_VECTOR_STROKES) {
+                long[] vectorTimes = new long[5];
+                for (int f = 0; f < vectorTimes.length; f++) {
+                    long start = System.nanoTime();
+                    canvas.drawColor(Color.BLACK);
+                    for (int i = 0; i < strokes.size(); i++) {
+                        strokes.get(i).draw(canvas);
+                    }
+                    vectorTimes[f] = System.nanoTime() - start;
+                }
+                vector = median(vectorTimes) / 1000 + "us";
+            }
+            Log.i(TAG, strokes.size() + " strokes: layered frame " + layered[c] / 1000
+                    + "us, all paths " + vector);
+        }
+        layer.release();
+        target.recycle();
+
+        // Full screen frames, the cost is the bitmap copy whatever the stroke count
+        assertTrue(layered[layered.length - 1] < layered[0] * 2 + 2000000L);
+    }
+
+    /**
+     * A short random scribble somewhere on the screen.
+     */
+    private DrawingPath stroke() {
+        Stroke stroke = new Stroke(0, paint.getColor(), paint.getStrokeWidth());
+        DrawingPath dp = new DrawingPath(stroke, paint, viewport);
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        stroke.addPoint(x, y);
+        for (int i = 0; i < 20; i++) {
+            x += (random.nextFloat() * 20 - 10) / WIDTH;
+            y += (random.nextFloat() * 20 - 10) / HEIGHT;
+            stroke.addPoint(x, y);
+        }
+        dp.computeBounds();
+        return dp;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -1,37 +1,138 @@
 package me.hammarstrom.paint;
 
+import android.content.SharedPreferences;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Point;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.ToggleButton;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
+import me.hammarstrom.paint.connections.Chunk;
+import me.hammarstrom.paint.connections.Clock;
 import me.hammarstrom.paint.connections.ConnectionsHandler;
+import me.hammarstrom.paint.connections.LatencyTracer;
 import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeAssembler;
+import me.hammarstrom.paint.connections.StrokeStreamer;
+import me.hammarstrom.paint.connections.Transport;
 import me.hammarstrom.paint.drawing.DrawingPath;
 import me.hammarstrom.paint.drawing.DrawingSurfaceView;
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.drawing.Viewport;
+import me.hammarstrom.paint.input.PointSimplifier;
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsDumper;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+import me.hammarstrom.paint.metrics.MetricsSnapshot;
+import me.hammarstrom.paint.storage.StrokeJournal;
+import me.hammarstrom.paint.sync.BoardOp;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
+import me.hammarstrom.paint.sync.StrokeIdGenerator;
 
-public class MainActivity extends AppCompatActivity implements View.OnTouchListener, View.OnClickListener, ConnectionsHandler.OnRemoteDrawingReceivedListener {
+public class MainActivity extends AppCompatActivity implements View.OnTouchListener, View.OnClickListener, ConnectionsHandler.OnRemoteDrawingReceivedListener, StrokeStreamer.SegmentSink, StrokeAssembler.Listener, PointSimplifier.Sink {
 
     private final String TAG = MainActivity.this.getClass().getName();
 
+    private static final long METRICS_DUMP_PERIOD_MILLIS = 10000L;
+
+    /** Directory of the stroke journal, in the app's files directory **/
+    private static final String JOURNAL_DIRECTORY = "journal";
+
+    /** Preferences keeping the stroke id generator's state across runs **/
+    private static final String PREF_STROKE_PEER = "stroke_peer";
+    private static final String PREF_STROKE_COUNTER = "stroke_counter";
+
+    /** Draw strokes as curves through their points, remote strokes arrive thinned out **/
+    private static final boolean SMOOTH_STROKES = true;
+
+    /** How far from a touch a stroke is erased, in pixels **/
+    private static final float ERASE_RADIUS = 24f;
+
     private DrawingSurfaceView drawingSurfaceView;
     private DrawingPath currentDrawingPath;
     private Paint currentPaint;
     private ConnectionsHandler connectionsHandler;
-    private PathMessage pm;
+    private StrokeStreamer strokeStreamer;
+    /** Touches erase the strokes under them while checked **/
+    private ToggleButton eraseButton;
+    /** Whether the touch going on erases, the button may change in the middle of it **/
+    private boolean erasing;
+    /** Keeps the board on disk across restarts **/
+    private StrokeJournal strokeJournal;
+    /** Drops the touch points the streamer does not need to send, in pixels **/
+    private final PointSimplifier pointSimplifier = new PointSimplifier(PointSimplifier.DEFAULT_TOLERANCE,
+            PointSimplifier.DEFAULT_MAX_HOLD_NANOS, this);
+    /** Ids made of this device's peer number and a stroke counter, kept across runs **/
+    private StrokeIdGenerator strokeIds;
+    private SharedPreferences preferences;
+
+    /** Sends the pending points of the active stroke when its time budget runs out **/
+    private final Handler flushHandler = new Handler();
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            pointSimplifier.flushIfDue(SystemClock.uptimeMillis() * 1000000L);
+            strokeStreamer.flushIfDue();
+            scheduleFlush();
+        }
+    };
+    private boolean flushScheduled;
+
+    /** Erases the strokes found under a touch, told on the draw thread **/
+    private final DrawingSurfaceView.HitListener eraseListener = new DrawingSurfaceView.HitListener() {
+        @Override
+        public void onHit(final List<DrawingPath> paths) {
+            if(paths.isEmpty()) {
+                return;
+            }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (DrawingPath path : paths) {
+                        eraseStroke(path.stroke.getId());
+                    }
+                }
+            });
+        }
+    };
 
-    private DrawingPath remoteDrawing;
+    private final Histogram touchLagNanos = MetricsRegistry.getDefault().histogram(MetricNames.TOUCH_LAG_NANOS);
+    private final Histogram touchHandleNanos = MetricsRegistry.getDefault().histogram(MetricNames.TOUCH_HANDLE_NANOS);
+    /** Writes the metrics to the log in debug builds **/
+    private final MetricsDumper metricsDumper = new MetricsDumper(MetricsRegistry.getDefault(),
+            METRICS_DUMP_PERIOD_MILLIS, new MetricsDumper.Sink() {
+        @Override
+        public void onSnapshot(MetricsSnapshot snapshot) {
+            Log.i(TAG, "Metrics\n" + snapshot);
+        }
+    });
+
+    /** Maps normalized coordinates to the screen, set when the size is known **/
+    private volatile Viewport viewport;
+
+    // Used on the connections handler's receive thread
+    /** Remote strokes still being drawn, by stroke id **/
+    private final SparseArray<Stroke> remoteStrokes = new SparseArray<>();
+    /** Their paths on the surface, whose strokes belong to the draw thread **/
+    private final SparseArray<DrawingPath> remoteDrawings = new SparseArray<>();
+    private final StrokeAssembler strokeAssembler = new StrokeAssembler(this);
     private Paint remotePaint = null;
+    /** Paint of the last snapshot or replayed stroke, used on the anti-entropy worker once connected **/
+    private Paint snapshotPaint = null;
     float currentPosX, currentPosY, relativeX, relativeY;
 
     @Override
@@ -39,29 +140,82 @@ public class MainActivity extends AppCompatActivity implements View.OnTouchListe
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         setCurrentPaint();
+        // A new size recreates the activity
+        Point size = getScreenSize();
+        viewport = new Viewport(size.x, size.y);
         drawingSurfaceView = (DrawingSurfaceView) findViewById(R.id.drawingSurface);
         drawingSurfaceView.setOnTouchListener(this);
 
         connectionsHandler = new ConnectionsHandler(this, this);
+        final LatencyTracer latencyTracer = connectionsHandler.getLatencyTracer();
+        drawingSurfaceView.setFrameListener(new DrawingSurfaceView.FrameListener() {
+            @Override
+            public void onFrameDrawn(long drainedNanos, long shownNanos) {
+                latencyTracer.onFrameDrawn(drainedNanos, shownNanos);
+            }
+        });
+        preferences = getPreferences(MODE_PRIVATE);
+        if(preferences.contains(PREF_STROKE_PEER)) {
+            strokeIds = new StrokeIdGenerator(new Random(), preferences.getInt(PREF_STROKE_PEER, 0),
+                    preferences.getInt(PREF_STROKE_COUNTER, 0));
+        } else {
+            strokeIds = new StrokeIdGenerator(new Random());
+        }
+
+        // Bring back the board from disk before any stroke comes in
+        strokeJournal = new StrokeJournal(new File(getFilesDir(), JOURNAL_DIRECTORY),
+                connectionsHandler.getBoard());
+        try {
+            long replayed = strokeJournal.open();
+            for (int id : connectionsHandler.getBoard().getIds()) {
+                // In case the saved counter is behind the journal
+                strokeIds.advancePast(id);
+            }
+            for (Stroke stroke : connectionsHandler.getBoard().getStrokes()) {
+                commitStroke(stroke);
+            }
+            strokeJournal.start();
+            Log.d(TAG, "Replayed " + replayed + " strokes from the journal");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the stroke journal", e);
+        }
+
+        strokeStreamer = new StrokeStreamer(connectionsHandler.getCodec(),
+                connectionsHandler.getChunkPool(), this, Clock.SYSTEM,
+                StrokeStreamer.DEFAULT_MAX_DELAY_NANOS, Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+        // Live segments go over the unreliable channel, the whole stroke is committed on ACTION_UP
+        strokeStreamer.enablePreviews(StrokeStreamer.DEFAULT_PREVIEW_REDUNDANCY);
 
         findViewById(R.id.advertise).setOnClickListener(this);
         findViewById(R.id.discover).setOnClickListener(this);
+        eraseButton = (ToggleButton) findViewById(R.id.erase);
     }
 
     @Override
     public void onStart() {
         super.onStart();
         connectionsHandler.connect();
+        if(BuildConfig.DEBUG) {
+            metricsDumper.start();
+        }
     }
 
     @Override
     public void onStop() {
         super.onStop();
+        metricsDumper.stop();
         if(connectionsHandler != null) {
             connectionsHandler.disconnect();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Writes what is still queued
+        strokeJournal.stop();
+    }
+
     private void setCurrentPaint() {
         currentPaint = new Paint();
         currentPaint.setDither(true);
@@ -72,68 +226,115 @@ public class MainActivity extends AppCompatActivity implements View.OnTouchListe
         currentPaint.setStrokeWidth(3);
     }
 
-    private void setRemotePaint() {
-        remotePaint = new Paint();
-        remotePaint.setDither(true);
-        remotePaint.setColor(0xFFFF00FF);
-        remotePaint.setStyle(Paint.Style.STROKE);
-        remotePaint.setStrokeJoin(Paint.Join.ROUND);
-        remotePaint.setStrokeCap(Paint.Cap.ROUND);
-        remotePaint.setStrokeWidth(3);
+    private void setRemotePaint(int color, float width) {
+        remotePaint = newStrokePaint(color, width);
+    }
+
+    private static Paint newStrokePaint(int color, float width) {
+        Paint paint = new Paint();
+        paint.setDither(true);
+        paint.setColor(color);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        paint.setStrokeWidth(width);
+        return paint;
     }
 
     @Override
     public boolean onTouch(View v, MotionEvent motionEvent) {
+        long start = System.nanoTime();
+        touchLagNanos.record((SystemClock.uptimeMillis() - motionEvent.getEventTime()) * 1000000L);
         currentPosX = motionEvent.getX();
         currentPosY = motionEvent.getY();
-        relativeX = (currentPosX / getScreenSize().x);
-        relativeY = (currentPosY / getScreenSize().y);
+        relativeX = viewport.unmapX(currentPosX);
+        relativeY = viewport.unmapY(currentPosY);
+        long eventNanos = motionEvent.getEventTime() * 1000000L;
+
+        if(motionEvent.getAction() == MotionEvent.ACTION_DOWN) {
+            erasing = eraseButton.isChecked();
+        }
 
-        if(motionEvent.getAction() == MotionEvent.ACTION_DOWN){
-            currentDrawingPath = new DrawingPath();
-            currentDrawingPath.paint = currentPaint;
-            currentDrawingPath.path = new Path();
-            currentDrawingPath.path.moveTo(currentPosX, currentPosY);
-            currentDrawingPath.path.lineTo(currentPosX, currentPosY);
+        if(erasing) {
+            // Every stroke the finger passes over goes, not only the first one touched
+            drawingSurfaceView.findCommittedPath(currentPosX, currentPosY, ERASE_RADIUS, eraseListener);
 
-            // Add position to message
-            PathMessage.clearList();
-            PathMessage.addCoords(relativeX, relativeY);
+        } else if(motionEvent.getAction() == MotionEvent.ACTION_DOWN){
+            Stroke stroke = new Stroke(nextStrokeId(), currentPaint.getColor(),
+                    currentPaint.getStrokeWidth());
+            // Strokes are stacked by their timestamps on every board
+            stroke.setTimestamp(connectionsHandler.getBoard().nextTimestamp());
+            stroke.addPoint(relativeX, relativeY);
+            currentDrawingPath = new DrawingPath(stroke, currentPaint, viewport, SMOOTH_STROKES);
+
+            // Start streaming the stroke to peers
+            pointSimplifier.begin(currentPosX, currentPosY, eventNanos);
+            strokeStreamer.beginStroke(stroke.getId(), stroke.getColor(), stroke.getWidth(),
+                    stroke.getTimestamp(), relativeX, relativeY);
+            scheduleFlush();
 
         } else if(motionEvent.getAction() == MotionEvent.ACTION_MOVE) {
-            currentDrawingPath.path.lineTo(currentPosX, currentPosY);
-            PathMessage.addCoords(relativeX, relativeY);
-
-            try {
-                /*
-                * The Connections message size limit is 4096 bytes,
-                * make sure we don't add more than this. If we reach the limit,
-                * send chunks instead.
-                 */
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(bos);
-                oos.writeObject(PathMessage.getCoords());
-                byte[] bytes = bos.toByteArray();
-
-                if(bytes.length >= 4000) {
-                    connectionsHandler.sendMessage(PathMessage.getCoords());
-                    PathMessage.clearList();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            addHistoricalPoints(motionEvent);
+            currentDrawingPath.stroke.addPoint(relativeX, relativeY);
+            pointSimplifier.add(currentPosX, currentPosY, eventNanos);
+            pointSimplifier.flushIfDue(eventNanos);
+            scheduleFlush();
 
         } else if(motionEvent.getAction() == MotionEvent.ACTION_UP) {
-            PathMessage.addCoords(relativeX, relativeY);
-            currentDrawingPath.path.lineTo(currentPosX, currentPosY);
-            drawingSurfaceView.addDrawingPath(currentDrawingPath);
+            addHistoricalPoints(motionEvent);
+            currentDrawingPath.stroke.addPoint(relativeX, relativeY);
+            drawingSurfaceView.commitDrawingPath(currentDrawingPath);
+            if(connectionsHandler.getBoard().add(currentDrawingPath.stroke)) {
+                strokeJournal.append(currentDrawingPath.stroke);
+            }
 
-            // Send the message
-            connectionsHandler.sendMessage(PathMessage.getCoords());
+            // Commit the whole stroke
+            pointSimplifier.end(currentPosX, currentPosY, eventNanos);
+            strokeStreamer.endStroke(relativeX, relativeY);
         }
+        touchHandleNanos.recordSince(start);
         return true;
     }
 
+    /**
+     * Add the points batched in a move event since the previous one, oldest first.
+     * They are drawn locally and go through the simplifier like any other point.
+     */
+    private void addHistoricalPoints(MotionEvent motionEvent) {
+        for (int i = 0; i < motionEvent.getHistorySize(); i++) {
+            float x = motionEvent.getHistoricalX(i);
+            float y = motionEvent.getHistoricalY(i);
+            currentDrawingPath.stroke.addPoint(viewport.unmapX(x), viewport.unmapY(y));
+            pointSimplifier.add(x, y, motionEvent.getHistoricalEventTime(i) * 1000000L);
+        }
+    }
+
+    @Override
+    public void onPoint(float x, float y) {
+        strokeStreamer.addPoint(viewport.unmapX(x), viewport.unmapY(y));
+    }
+
+    /**
+     * Make sure the simplifier and the streamer get a chance to send pending points
+     * if no more touch events arrive before they are due.
+     */
+    private void scheduleFlush() {
+        long delayNanos = strokeStreamer.getFlushDelayNanos();
+        long holdNanos = pointSimplifier.getFlushDelayNanos(SystemClock.uptimeMillis() * 1000000L);
+        if(delayNanos < 0 || (holdNanos >= 0 && holdNanos < delayNanos)) {
+            delayNanos = holdNanos;
+        }
+        if(!flushScheduled && delayNanos >= 0) {
+            flushScheduled = true;
+            flushHandler.postDelayed(flushRunnable, (delayNanos + 999999) / 1000000);
+        }
+    }
+
+    @Override
+    public void onSegment(Chunk segment) {
+        connectionsHandler.sendMessage(segment);
+    }
+
     private Point getScreenSize() {
         Display display = getWindowManager().getDefaultDisplay();
         Point size = new Point();
@@ -154,34 +355,124 @@ public class MainActivity extends AppCompatActivity implements View.OnTouchListe
     }
 
     @Override
-    public void onRemoteDrawingReceived(List<String> coords) {
-        Iterator i = coords.iterator();
-        boolean first = true;
-        while(i.hasNext()) {
-            String c = (String) i.next();
-            String[] cArr = c.split(",");
-
-            float x, y;
-            Point size = getScreenSize();
-            x = (Float.valueOf(cArr[0]) * size.x);
-            y = (Float.valueOf(cArr[1]) * size.y);
-
-            if(remotePaint == null) {
-                setRemotePaint();
-            }
+    public void onRemoteDrawingReceived(PathMessage message) {
+        strokeAssembler.onMessage(message);
+    }
 
-            if(first) {
-                first = false;
-                remoteDrawing = new DrawingPath();
-                remoteDrawing.paint = remotePaint;
-                remoteDrawing.path = new Path();
-                remoteDrawing.path.moveTo(x, y);
-            } else {
-                remoteDrawing.path.lineTo(x, y);
-            }
+    /**
+     * Hand out a stroke id and save the generator's state, so the next run carries on.
+     */
+    private int nextStrokeId() {
+        int id = strokeIds.next();
+        preferences.edit()
+                .putInt(PREF_STROKE_PEER, strokeIds.getPeer())
+                .putInt(PREF_STROKE_COUNTER, strokeIds.getCounter())
+                .apply();
+        return id;
+    }
+
+    /**
+     * Delete a committed stroke here, and tell the peers.
+     */
+    private void eraseStroke(int strokeId) {
+        ReplicatedBoard board = connectionsHandler.getBoard();
+        if(!board.contains(strokeId)) {
+            // Erased by an earlier hit of the same touch
+            return;
+        }
+        BoardOp delete = board.deleteStroke(strokeId);
+        strokeJournal.appendDelete(strokeId, delete.getTimestamp());
+        strokeStreamer.deleteStroke(strokeId, delete.getTimestamp());
+        drawingSurfaceView.removeCommittedStroke(strokeId);
+    }
+
+    @Override
+    public void onStrokeDeleted(BoardOp delete) {
+        strokeJournal.appendDelete(delete.getStrokeId(), delete.getTimestamp());
+        drawingSurfaceView.removeCommittedStroke(delete.getStrokeId());
+    }
+
+    @Override
+    public void onSnapshotStrokeReceived(Stroke stroke) {
+        strokeJournal.append(stroke);
+        commitStroke(stroke);
+    }
+
+    /**
+     * Draw a finished stroke that is not drawn yet.
+     */
+    private void commitStroke(Stroke stroke) {
+        if(snapshotPaint == null || snapshotPaint.getColor() != stroke.getColor()
+                || snapshotPaint.getStrokeWidth() != stroke.getWidth()) {
+            snapshotPaint = newStrokePaint(stroke.getColor(), stroke.getWidth());
+        }
+        drawingSurfaceView.commitDrawingPath(new DrawingPath(stroke, snapshotPaint, viewport, SMOOTH_STROKES));
+    }
+
+    @Override
+    public void onStrokeStarted(int strokeId, int color, float width, long timestamp) {
+        ReplicatedBoard board = connectionsHandler.getBoard();
+        if(board.contains(strokeId) || board.isDeleted(strokeId)) {
+            // Already drawn from a snapshot, or deleted before it got here
+            return;
+        }
+        if(remotePaint == null || remotePaint.getColor() != color
+                || remotePaint.getStrokeWidth() != width) {
+            setRemotePaint(color, width);
         }
 
+        Stroke remoteStroke = new Stroke(strokeId, color, width);
+        remoteStroke.setTimestamp(timestamp);
+        remoteStrokes.put(strokeId, remoteStroke);
+        DrawingPath remoteDrawing = new DrawingPath(new Stroke(strokeId, color, width),
+                remotePaint, viewport, SMOOTH_STROKES);
+        remoteDrawings.put(strokeId, remoteDrawing);
         drawingSurfaceView.addDrawingPath(remoteDrawing);
     }
-}
 
+    @Override
+    public void onStrokePoints(int strokeId, PathMessage message, int start) {
+        Stroke remoteStroke = remoteStrokes.get(strokeId);
+        if(remoteStroke == null) {
+            return;
+        }
+        appendPoints(remoteStroke, message, start);
+        drawingSurfaceView.appendPoints(remoteDrawings.get(strokeId), message.getCoords(), start * 2,
+                message.getPointCount() - start);
+    }
+
+    @Override
+    public void onStrokeReplaced(int strokeId, PathMessage stroke) {
+        Stroke remoteStroke = remoteStrokes.get(strokeId);
+        if(remoteStroke == null) {
+            return;
+        }
+        remoteStroke.rewind();
+        appendPoints(remoteStroke, stroke, 0);
+        drawingSurfaceView.replacePoints(remoteDrawings.get(strokeId), stroke.getCoords(), 0,
+                stroke.getPointCount());
+    }
+
+    @Override
+    public void onStrokeEnded(int strokeId) {
+        Stroke remoteStroke = remoteStrokes.get(strokeId);
+        if(remoteStroke == null) {
+            return;
+        }
+        remoteStrokes.remove(strokeId);
+        DrawingPath remoteDrawing = remoteDrawings.get(strokeId);
+        remoteDrawings.remove(strokeId);
+        // Drawn in the same frame, the finished stroke takes over from the one in progress
+        drawingSurfaceView.removeDrawingPath(remoteDrawing);
+        // Not if a snapshot brought the stroke meanwhile, or it was deleted
+        if(connectionsHandler.getBoard().add(remoteStroke)) {
+            strokeJournal.append(remoteStroke);
+            drawingSurfaceView.commitDrawingPath(new DrawingPath(remoteStroke, remoteDrawing.paint, viewport,
+                    SMOOTH_STROKES));
+        }
+    }
+
+    private static void appendPoints(Stroke stroke, PathMessage message, int start) {
+        stroke.addPoints(message.getCoords(), start * 2, message.getPointCount() - start);
+    }
+}
@@ -0,0 +1,117 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded stroke message in a pooled buffer, see {@link ChunkBuilder}.
+ *
+ * Whoever holds a chunk owns its buffer and must call {@link #recycle()} when
+ * done with it. The chunk must not be used after that. To hand the same message
+ * to several owners, call {@link #retain()} once for each extra owner; the chunk
+ * goes back to the pool when the last owner recycles it. The contents must not
+ * be changed while it is shared.
+ */
+public class Chunk {
+
+    private final byte[] mBuffer;
+    private final ChunkPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    private int mLength;
+    private int mStrokeId;
+    private int mSequence;
+    private int mFlags;
+    private int mPointCount;
+
+    /** Exact length copy shared by all owners, guarded by this **/
+    private byte[] mPayload;
+
+    Chunk(byte[] buffer, ChunkPool pool) {
+        mBuffer = buffer;
+        mPool = pool;
+    }
+
+    /**
+     * Called by the pool when the chunk is handed out.
+     */
+    void acquired() {
+        mRefCount.set(1);
+    }
+
+    void set(int length, int strokeId, int sequence, int flags, int pointCount) {
+        mLength = length;
+        mStrokeId = strokeId;
+        mSequence = sequence;
+        mFlags = flags;
+        mPointCount = pointCount;
+        synchronized (this) {
+            mPayload = null;
+        }
+    }
+
+    /**
+     * @return the buffer holding the encoded message in its first {@link #getLength()} bytes
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getStrokeId() {
+        return mStrokeId;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * Copy the message into an array of its exact length, for APIs that take a plain byte[].
+     * The copy is made once and returned to every owner of a shared chunk, so it must
+     * not be modified.
+     * @return the encoded message
+     */
+    public synchronized byte[] toByteArray() {
+        if (mPayload == null) {
+            mPayload = Arrays.copyOf(mBuffer, mLength);
+        }
+        return mPayload;
+    }
+
+    /**
+     * Add an owner, who must also call {@link #recycle()}.
+     * @return this chunk
+     */
+    public Chunk retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop one owner, the chunk returns to its pool when there are none left.
+     */
+    public void recycle() {
+        int owners = mRefCount.decrementAndGet();
+        if (owners == 0) {
+            mLength = 0;
+            synchronized (this) {
+                mPayload = null;
+            }
+            mPool.release(this);
+        } else if (owners < 0) {
+            throw new IllegalStateException("Chunk recycled more than once");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package me.hammarstrom.paint.connections;
+
+/**
+ * Encodes a stroke message point by point straight into a pooled {@link Chunk}.
+ *
+ * The encoded size is known after every {@link #append}, so finding out whether a
+ * point still fits is O(1) and does not allocate. {@link #finish} fills in the
+ * header and hands the chunk over without copying.
+ *
+ * Not thread safe.
+ */
+public class ChunkBuilder {
+
+    private final StrokeCodec mCodec;
+    private final ChunkPool mPool;
+    private final int mMaxBytes;
+
+    private Chunk mChunk;
+    private int mStrokeId;
+    private int mSequence;
+    private int mPosition;
+    private int mPointCount;
+    private int mLastX;
+    private int mLastY;
+
+    /**
+     * @param codec codec defining the encoding
+     * @param pool pool to take chunks from
+     * @param maxBytes largest encoded message, at most the pool's chunk size
+     */
+    public ChunkBuilder(StrokeCodec codec, ChunkPool pool, int maxBytes) {
+        if (maxBytes > pool.getChunkSize() || maxBytes > StrokeCodec.MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Chunk size too large: " + maxBytes);
+        }
+        if (maxBytes < StrokeCodec.FRAME_HEADER_SIZE + StrokeCodec.STROKE_HEADER_SIZE
+                + StrokeCodec.MAX_POINT_SIZE) {
+            throw new IllegalArgumentException("Chunk size too small: " + maxBytes);
+        }
+        mCodec = codec;
+        mPool = pool;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Start a new message. A message that was not finished is discarded.
+     * @param timestamp Lamport timestamp of the stroke, see {@link PathMessage#getTimestamp()}
+     */
+    public void begin(int strokeId, int sequence, int color, float width, long timestamp) {
+        discard();
+        mChunk = mPool.acquire();
+        mStrokeId = strokeId;
+        mSequence = sequence;
+        mPosition = mCodec.writeHeader(mChunk.getBuffer(), 0, strokeId, sequence, color, width, timestamp);
+        mPointCount = 0;
+    }
+
+    /**
+     * Append a point if it fits.
+     * @param x normalized x coordinate
+     * @param y normalized y coordinate
+     * @return false if the message is full, the point is not added then
+     */
+    public boolean append(float x, float y) {
+        int qx = mCodec.quantize(x);
+        int qy = mCodec.quantize(y);
+        boolean first = mPointCount == 0;
+        if (mPosition + mCodec.pointSize(first, qx, qy, mLastX, mLastY) > mMaxBytes
+                || mPointCount == 0xFFFF) {
+            return false;
+        }
+        mPosition = mCodec.putPoint(mChunk.getBuffer(), mPosition, first, qx, qy, mLastX, mLastY);
+        mLastX = qx;
+        mLastY = qy;
+        mPointCount++;
+        return true;
+    }
+
+    /**
+     * Complete the message without trace times and hand it over. The caller owns the
+     * returned chunk.
+     * @param flags {@link PathMessage#FLAG_FIRST}, {@link PathMessage#FLAG_LAST},
+     *              {@link PathMessage#FLAG_PREVIEW} and {@link PathMessage#FLAG_DELETE}
+     * @return the finished chunk
+     */
+    public Chunk finish(int flags) {
+        return finish(flags, 0, 0);
+    }
+
+    /**
+     * Complete the message with trace times and hand it over.
+     * @param captureNanos when the oldest point not sent before was captured
+     * @param sendNanos when the message is sent, now
+     * @see #finish(int)
+     */
+    public Chunk finish(int flags, long captureNanos, long sendNanos) {
+        Chunk chunk = mChunk;
+        StrokeCodec.finishHeader(chunk.getBuffer(), 0, mPosition, flags, mPointCount);
+        StrokeCodec.putTimes(chunk.getBuffer(), 0, captureNanos, sendNanos);
+        chunk.set(mPosition, mStrokeId, mSequence, flags, mPointCount);
+        mChunk = null;
+        return chunk;
+    }
+
+    /**
+     * Drop the message being built, if any, and return its chunk to the pool.
+     */
+    public void discard() {
+        if (mChunk != null) {
+            mChunk.recycle();
+            mChunk = null;
+        }
+    }
+
+    /**
+     * @return true between {@link #begin} and {@link #finish} or {@link #discard}
+     */
+    public boolean isOpen() {
+        return mChunk != null;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * @return the encoded length so far, including headers
+     */
+    public int getLength() {
+        return mPosition;
+    }
+}
@@ -0,0 +1,47 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of {@link Chunk}s with fixed size buffers. Chunks can be acquired
+ * and recycled from any thread. When the pool is empty a new chunk is created, and
+ * chunks recycled to a full pool are left to the garbage collector.
+ */
+public class ChunkPool {
+
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final int mChunkSize;
+
+    /**
+     * @param capacity largest number of idle chunks kept
+     * @param chunkSize buffer size of each chunk
+     */
+    public ChunkPool(int capacity, int chunkSize) {
+        mFree = new ArrayBlockingQueue<>(capacity);
+        mChunkSize = chunkSize;
+    }
+
+    public Chunk acquire() {
+        Chunk chunk = mFree.poll();
+        if (chunk == null) {
+            chunk = new Chunk(new byte[mChunkSize], this);
+        }
+        chunk.acquired();
+        return chunk;
+    }
+
+    void release(Chunk chunk) {
+        mFree.offer(chunk);
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * @return number of idle chunks in the pool
+     */
+    public int size() {
+        return mFree.size();
+    }
+}
@@ -0,0 +1,19 @@
+package me.hammarstrom.paint.connections;
+
+/**
+ * Source of monotonic time, replaceable in tests.
+ */
+public interface Clock {
+
+    /**
+     * @return the current time in nanoseconds, only meaningful relative to other readings
+     */
+    long nanoTime();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
@@ -0,0 +1,198 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+
+/**
+ * Estimates the offset between this device's clock and the clock of each peer, so
+ * that times a peer puts in its messages can be compared with local times.
+ *
+ * A {@link StrokeCodec#TYPE_PING} carries its send time t0. The peer answers with a
+ * {@link StrokeCodec#TYPE_PONG} carrying t0, the time it received the ping t1 and the
+ * time it sent the pong t2, both by its own clock. When the pong arrives at t3:
+ * <pre>
+ * offset     = ((t1 - t0) + (t2 - t3)) / 2
+ * round trip = (t3 - t0) - (t2 - t1)
+ * </pre>
+ * The offset is exact if both directions took equally long, and off by at most half
+ * the round trip otherwise. Of the last few samples of a peer, the one with the
+ * shortest round trip is used, since queueing delay is rarely symmetric.
+ *
+ * Clock messages go over the unreliable channel, a lost ping is just a missing
+ * sample. Thread safe.
+ */
+public class ClockSync {
+
+    /** Default number of recent samples the best one is chosen from **/
+    public static final int DEFAULT_SAMPLES = 8;
+
+    private final Transport mTransport;
+    private final StrokeCodec mCodec;
+    private final Clock mClock;
+    private final int mSamples;
+    private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<>();
+    private final Histogram mRoundTripNanos;
+
+    /**
+     * @param transport the link to the peers
+     * @param codec codec of the clock messages
+     * @param clock this device's clock, the one local times are read from
+     */
+    public ClockSync(Transport transport, StrokeCodec codec, Clock clock) {
+        this(transport, codec, clock, DEFAULT_SAMPLES, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * @param samples number of recent samples the best one is chosen from
+     * @param metrics registry to record round trip times in
+     */
+    public ClockSync(Transport transport, StrokeCodec codec, Clock clock, int samples,
+                     MetricsRegistry metrics) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("Invalid number of samples: " + samples);
+        }
+        mTransport = transport;
+        mCodec = codec;
+        mClock = clock;
+        mSamples = samples;
+        mRoundTripNanos = metrics.histogram(MetricNames.CLOCK_ROUND_TRIP_NANOS);
+    }
+
+    /**
+     * Send a ping to take a new sample of a peer's clock.
+     * @param endpointId the peer
+     */
+    public void ping(String endpointId) {
+        mTransport.sendUnreliable(endpointId, mCodec.encodeClock(StrokeCodec.TYPE_PING,
+                mClock.nanoTime(), 0, 0));
+    }
+
+    /**
+     * Handle a received message if it is a clock message: answer pings and take a
+     * sample from pongs.
+     * @param endpointId the sending peer
+     * @param payload the received message
+     * @return true if the message was a clock message, consumed or dropped as invalid
+     */
+    public boolean onMessageReceived(String endpointId, byte[] payload) {
+        long receivedNanos = mClock.nanoTime();
+        int type = StrokeCodec.getType(payload);
+        if (type != StrokeCodec.TYPE_PING && type != StrokeCodec.TYPE_PONG) {
+            return false;
+        }
+        long[] times = new long[3];
+        try {
+            mCodec.decodeClock(payload, times);
+        } catch (IOException e) {
+            return true;
+        }
+        if (type == StrokeCodec.TYPE_PING) {
+            mTransport.sendUnreliable(endpointId, mCodec.encodeClock(StrokeCodec.TYPE_PONG,
+                    times[0], receivedNanos, mClock.nanoTime()));
+            return true;
+        }
+        long roundTrip = (receivedNanos - times[0]) - (times[2] - times[1]);
+        if (roundTrip < 0) {
+            // Not a pong to one of our pings
+            return true;
+        }
+        long offset = ((times[1] - times[0]) + (times[2] - receivedNanos)) / 2;
+        mRoundTripNanos.record(roundTrip);
+        Peer peer = mPeers.get(endpointId);
+        if (peer == null) {
+            Peer created = new Peer(mSamples);
+            peer = mPeers.putIfAbsent(endpointId, created);
+            if (peer == null) {
+                peer = created;
+            }
+        }
+        peer.add(offset, roundTrip);
+        return true;
+    }
+
+    /**
+     * @return true if a pong has arrived from the peer since it was last removed
+     */
+    public boolean hasOffset(String endpointId) {
+        return mPeers.containsKey(endpointId);
+    }
+
+    /**
+     * Get the estimated offset of a peer's clock.
+     * @return the peer's time minus the local time, 0 if there is no sample yet
+     */
+    public long getOffsetNanos(String endpointId) {
+        Peer peer = mPeers.get(endpointId);
+        return peer == null ? 0 : peer.getOffset();
+    }
+
+    /**
+     * Get the round trip time of the sample the offset is taken from. Half of it is
+     * the largest error of the offset.
+     * @return the round trip time, -1 if there is no sample yet
+     */
+    public long getRoundTripNanos(String endpointId) {
+        Peer peer = mPeers.get(endpointId);
+        return peer == null ? -1 : peer.getRoundTrip();
+    }
+
+    /**
+     * Convert a time read from a peer's clock to the local clock.
+     * @param remoteNanos the peer's time
+     * @return the local time, assuming an offset of 0 if there is no sample yet
+     */
+    public long toLocal(String endpointId, long remoteNanos) {
+        return remoteNanos - getOffsetNanos(endpointId);
+    }
+
+    /**
+     * Forget the samples of a peer, for example when it disconnects.
+     */
+    public void removePeer(String endpointId) {
+        mPeers.remove(endpointId);
+    }
+
+    /**
+     * The recent samples of one peer
+     */
+    private static class Peer {
+        private final long[] mOffsets;
+        private final long[] mRoundTrips;
+        private int mNext;
+        private int mCount;
+        private long mBestOffset;
+        private long mBestRoundTrip;
+
+        Peer(int samples) {
+            mOffsets = new long[samples];
+            mRoundTrips = new long[samples];
+        }
+
+        synchronized void add(long offset, long roundTrip) {
+            mOffsets[mNext] = offset;
+            mRoundTrips[mNext] = roundTrip;
+            mNext = (mNext + 1) % mOffsets.length;
+            mCount = Math.min(mCount + 1, mOffsets.length);
+            int best = 0;
+            for (int i = 1; i < mCount; i++) {
+                if (mRoundTrips[i] < mRoundTrips[best]) {
+                    best = i;
+                }
+            }
+            mBestOffset = mOffsets[best];
+            mBestRoundTrip = mRoundTrips[best];
+        }
+
+        synchronized long getOffset() {
+            return mBestOffset;
+        }
+
+        synchronized long getRoundTrip() {
+            return mBestRoundTrip;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Transport} that compresses the messages it sends with a
+ * {@link MessageCompressor}, for the peers that agreed to it, and restores the
+ * compressed messages it receives. The listener only ever sees original messages.
+ *
+ * Compression is agreed per connection: once connected, each side that is willing to
+ * receive compressed messages sends an offer with its dictionary id, a frame of type
+ * {@link StrokeCodec#TYPE_DEFLATE_OFFER}:
+ * <pre>
+ *  0  frame header   4 bytes, see {@link StrokeCodec}
+ *  4  dictionary id  4 bytes, see {@link MessageCompressor#getDictionaryId()}
+ * </pre>
+ * Messages to a peer are compressed after its offer arrived, with the dictionary if
+ * the ids match. Snapshot chunks are deflated already and go as they are, as do small
+ * messages, see {@link MessageCompressor#MIN_SIZE}.
+ *
+ * Thread safe, messages to different peers are compressed in parallel.
+ */
+public class CompressingTransport implements Transport, Transport.Listener {
+
+    static final int OFFER_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 4;
+
+    private final Transport mTransport;
+    private final boolean mEnabled;
+    private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<>();
+    private volatile Listener mListener;
+
+    /** All guarded by this **/
+    private long mCompressedMessages;
+    private long mBytesIn;
+    private long mBytesOut;
+
+    /**
+     * @param transport the transport to send over, this becomes its listener
+     * @param enabled false to neither offer nor send compressed messages, received
+     *                ones are still restored
+     */
+    public CompressingTransport(Transport transport, boolean enabled) {
+        mTransport = transport;
+        mEnabled = enabled;
+        transport.setListener(this);
+    }
+
+    @Override
+    public void sendReliable(String endpointId, byte[] payload) {
+        mTransport.sendReliable(endpointId, compress(endpointId, payload));
+    }
+
+    @Override
+    public void sendUnreliable(String endpointId, byte[] payload) {
+        mTransport.sendUnreliable(endpointId, compress(endpointId, payload));
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        mTransport.disconnect(endpointId);
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+        int type = StrokeCodec.getType(payload);
+        if (type == StrokeCodec.TYPE_DEFLATE_OFFER) {
+            onOffer(endpointId, payload);
+            return;
+        }
+        if (type == StrokeCodec.TYPE_DEFLATED) {
+            Peer peer = peer(endpointId);
+            try {
+                synchronized (peer) {
+                    if (peer.ended) {
+                        return;
+                    }
+                    payload = peer.compressor.decompress(payload);
+                }
+            } catch (StreamCorruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(endpointId, payload, reliable);
+        }
+    }
+
+    @Override
+    public void onEndpointConnected(String endpointId) {
+        // The peer's offer may have come first
+        peer(endpointId);
+        if (mEnabled) {
+            byte[] offer = new byte[OFFER_SIZE];
+            offer[0] = (byte) StrokeCodec.VERSION;
+            offer[1] = (byte) StrokeCodec.TYPE_DEFLATE_OFFER;
+            offer[3] = (byte) (OFFER_SIZE - StrokeCodec.FRAME_HEADER_SIZE);
+            int id = MessageCompressor.getDictionaryId();
+            for (int i = 0; i < 4; i++) {
+                offer[4 + i] = (byte) (id >>> (24 - i * 8));
+            }
+            mTransport.sendReliable(endpointId, offer);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointConnected(endpointId);
+        }
+    }
+
+    @Override
+    public void onEndpointDisconnected(String endpointId) {
+        Peer peer = mPeers.remove(endpointId);
+        if (peer != null) {
+            peer.end();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointDisconnected(endpointId);
+        }
+    }
+
+    /**
+     * @return true if messages to the peer are compressed
+     */
+    public boolean isCompressing(String endpointId) {
+        Peer peer = mPeers.get(endpointId);
+        return peer != null && peer.accepted;
+    }
+
+    /**
+     * @return number of messages sent compressed
+     */
+    public synchronized long getCompressedMessages() {
+        return mCompressedMessages;
+    }
+
+    /**
+     * @return size of the messages sent compressed, before compression
+     */
+    public synchronized long getBytesIn() {
+        return mBytesIn;
+    }
+
+    /**
+     * @return size of the messages sent compressed, after compression
+     */
+    public synchronized long getBytesOut() {
+        return mBytesOut;
+    }
+
+    private byte[] compress(String endpointId, byte[] payload) {
+        Peer peer = mPeers.get(endpointId);
+        if (!mEnabled || peer == null || !peer.accepted
+                || StrokeCodec.getType(payload) == StrokeCodec.TYPE_SNAPSHOT) {
+            return payload;
+        }
+        byte[] compressed;
+        synchronized (peer) {
+            if (peer.ended) {
+                return payload;
+            }
+            compressed = peer.compressor.compress(payload, peer.sharesDictionary);
+        }
+        if (compressed == null) {
+            return payload;
+        }
+        synchronized (this) {
+            mCompressedMessages++;
+            mBytesIn += payload.length;
+            mBytesOut += compressed.length;
+        }
+        return compressed;
+    }
+
+    private void onOffer(String endpointId, byte[] payload) {
+        if (payload.length != OFFER_SIZE) {
+            new StreamCorruptedException("Bad compression offer of " + payload.length + " bytes")
+                    .printStackTrace();
+            return;
+        }
+        int id = 0;
+        for (int i = 0; i < 4; i++) {
+            id = (id << 8) | (payload[4 + i] & 0xFF);
+        }
+        Peer peer = peer(endpointId);
+        peer.sharesDictionary = id == MessageCompressor.getDictionaryId();
+        peer.accepted = true;
+    }
+
+    /**
+     * Get the state of a peer, also for messages that arrive before the connection
+     * is reported.
+     */
+    private Peer peer(String endpointId) {
+        Peer peer = mPeers.get(endpointId);
+        if (peer == null) {
+            Peer created = new Peer();
+            peer = mPeers.putIfAbsent(endpointId, created);
+            if (peer == null) {
+                peer = created;
+            } else {
+                created.end();
+            }
+        }
+        return peer;
+    }
+
+    /**
+     * Compression state of one connection, the compressor guarded by the peer
+     */
+    private static class Peer {
+        final MessageCompressor compressor = new MessageCompressor();
+        volatile boolean accepted;
+        volatile boolean sharesDictionary;
+        boolean ended;
+
+        synchronized void end() {
+            ended = true;
+            compressor.end();
+        }
+    }
+}
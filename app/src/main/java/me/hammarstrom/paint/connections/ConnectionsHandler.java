@@ -6,6 +6,7 @@ import android.content.DialogInterface;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.IntDef;
 import android.util.Log;
 import android.widget.Toast;
@@ -20,20 +21,22 @@ import com.google.android.gms.nearby.connection.AppMetadata;
 import com.google.android.gms.nearby.connection.Connections;
 import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.StreamCorruptedException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import me.hammarstrom.paint.HostListDialog;
 import me.hammarstrom.paint.R;
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.metrics.Counter;
+import me.hammarstrom.paint.metrics.Gauge;
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+import me.hammarstrom.paint.sync.AntiEntropy;
+import me.hammarstrom.paint.sync.BoardOp;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
 
 /**
  * Created by Fredrik Hammarström on 12/10/15.
@@ -41,8 +44,8 @@ import me.hammarstrom.paint.R;
 public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener,
         Connections.ConnectionRequestListener,
-        Connections.MessageListener,
-        Connections.EndpointDiscoveryListener {
+        Connections.EndpointDiscoveryListener,
+        Transport.Listener {
 
     private final String TAG = ConnectionsHandler.this.getClass().getName();
 
@@ -52,20 +55,68 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
     public interface OnRemoteDrawingReceivedListener {
 
         /**
-         * Method called when a new message has arrived
-         * @param coords A list of the coordinates of the path to draw
+         * Method called when a new message has arrived, on the receiver's worker thread
+         * @param message The stroke to draw, with coordinates normalized to the sender's screen.
+         *                Reused for the next message after the call.
          */
-        void onRemoteDrawingReceived(List<String> coords);
+        void onRemoteDrawingReceived(PathMessage message);
+
+        /**
+         * Method called for every stroke a peer caught this board up with that was not
+         * on the board yet, on the anti-entropy worker thread
+         * @param stroke The finished stroke, with normalized coordinates. Already on the board.
+         */
+        void onSnapshotStrokeReceived(Stroke stroke);
+
+        /**
+         * Method called for every delete by a peer that was new to the board, live or
+         * while catching this board up, on a worker thread
+         * @param delete The delete. Already applied, the stroke is off the board.
+         */
+        void onStrokeDeleted(BoardOp delete);
     }
 
     public GoogleApiClient googleApiClient;
+    private NearbyTransport mTransport;
+    /** Compresses the messages to peers that agree, everything goes through it **/
+    private CompressingTransport mCompressingTransport;
+    /** Puts control messages and live strokes ahead of bulk transfers, above the compression **/
+    private SchedulingTransport mSchedulingTransport;
+    /** Sends messages over the size limit in fragments, on top of the scheduling **/
+    private FragmentingTransport mFragmentingTransport;
     private AlertDialog mConnectionRequestDialog;
     private HostListDialog mMyListDialog;
     private Context context;
     private OnRemoteDrawingReceivedListener mCallback;
+    private final StrokeCodec mCodec = new StrokeCodec();
+    private final ChunkPool mChunkPool = new ChunkPool(CHUNK_POOL_SIZE, StrokeCodec.MAX_MESSAGE_SIZE);
+
+    /** The connected peers, used for messaging **/
+    private SessionHub mHub;
+    /** Decodes received messages off the main thread **/
+    private final InboundReceiver mReceiver;
+    /** Traces received strokes by the clocks synced by the hub **/
+    private final LatencyTracer mLatencyTracer;
+
+    /** The committed strokes and deletes, sent to peers that join later or missed them **/
+    private final ReplicatedBoard mBoard = new ReplicatedBoard();
+    /** Swaps the strokes and deletes the other side lacks with every peer that connects **/
+    private final AntiEntropy mAntiEntropy;
+
+    /** Takes new clock samples of the peers while connected **/
+    private final Handler mPingHandler = new Handler();
+    private final Runnable mPingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHub.pingPeers();
+            mPingHandler.postDelayed(this, CLOCK_PING_PERIOD_MILLIS);
+        }
+    };
 
-    /** The endpoint ID of the connected peer, used for messaging **/
-    private String mOtherEndpointId;
+    private final Counter mSentMessages;
+    private final Histogram mSentBytes;
+    private final Counter mReceivedMessages;
+    private final Histogram mReceivedBytes;
 
     /**
      * Timeout for advertising and discovery in millis.
@@ -74,6 +125,18 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
     private static final long TIMEOUT_ADVERTISE = 0L;
     private static final long TIMEOUT_DISCOVER = 0L;
 
+    /** Number of idle message buffers kept for reuse **/
+    private static final int CHUNK_POOL_SIZE = 8;
+
+    /** Number of messages that may wait for a slow peer before its messages are merged or dropped **/
+    private static final int SEND_QUEUE_CAPACITY = 64;
+
+    /** Time between clock samples of the peers **/
+    private static final long CLOCK_PING_PERIOD_MILLIS = 5000L;
+
+    /** Whether to offer peers compressed messages **/
+    private static final boolean COMPRESS_MESSAGES = true;
+
     public ConnectionsHandler(Context context, OnRemoteDrawingReceivedListener callback) {
         this.context = context;
         mCallback = callback;
@@ -82,13 +145,156 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
                 .addOnConnectionFailedListener(this)
                 .addApi(Nearby.CONNECTIONS_API)
                 .build();
+        mTransport = new NearbyTransport(googleApiClient);
+        mCompressingTransport = new CompressingTransport(mTransport, COMPRESS_MESSAGES);
+        mSchedulingTransport = new SchedulingTransport(mCompressingTransport);
+        mFragmentingTransport = new FragmentingTransport(mSchedulingTransport);
+        mHub = new SessionHub(mFragmentingTransport, this, mCodec, mChunkPool, SEND_QUEUE_CAPACITY);
+        mReceiver = new InboundReceiver(mCodec, new InboundReceiver.Listener() {
+            @Override
+            public void onMessage(PathMessage message) {
+                if (message.isDelete()) {
+                    BoardOp delete = BoardOp.delete(message.getStrokeId(), message.getTimestamp());
+                    if (mBoard.apply(delete)) {
+                        mCallback.onStrokeDeleted(delete);
+                    }
+                    return;
+                }
+                mCallback.onRemoteDrawingReceived(message);
+            }
+        }, "InboundReceiver");
+        mAntiEntropy = new AntiEntropy(mFragmentingTransport, mCodec, mBoard, mHub,
+                new AntiEntropy.Listener() {
+                    @Override
+                    public void onStrokeReceived(String endpointId, Stroke stroke) {
+                        mCallback.onSnapshotStrokeReceived(stroke);
+                    }
+
+                    @Override
+                    public void onStrokeDeleted(String endpointId, BoardOp delete) {
+                        mCallback.onStrokeDeleted(delete);
+                    }
+                });
+        mHub.setResyncListener(new SessionHub.ResyncListener() {
+            @Override
+            public void onResyncNeeded(String endpointId) {
+                // The peer answers with its summary, and gets the strokes it lacks
+                mAntiEntropy.sendSummary(endpointId, true);
+            }
+        });
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        mLatencyTracer = new LatencyTracer(mHub.getClockSync(), metrics);
+        mReceiver.setLatencyTracer(mLatencyTracer);
+        mSentMessages = metrics.counter(MetricNames.SEND_MESSAGES);
+        mSentBytes = metrics.histogram(MetricNames.SEND_BYTES);
+        mReceivedMessages = metrics.counter(MetricNames.RECEIVE_MESSAGES);
+        mReceivedBytes = metrics.histogram(MetricNames.RECEIVE_BYTES);
+        metrics.gauge(MetricNames.PEERS, new Gauge() {
+            @Override
+            public long value() {
+                return mHub.getPeerCount();
+            }
+        });
+        metrics.gauge(MetricNames.SEND_QUEUE_DEPTH, new Gauge() {
+            @Override
+            public long value() {
+                long depth = 0;
+                for (String peer : mHub.getPeers()) {
+                    OutboundSender sender = mHub.getSender(peer);
+                    if (sender != null) {
+                        depth += sender.getQueueSize();
+                    }
+                }
+                return depth;
+            }
+        });
+        metrics.gauge(MetricNames.SEND_DROPPED, new Gauge() {
+            @Override
+            public long value() {
+                long dropped = 0;
+                for (String peer : mHub.getPeers()) {
+                    OutboundSender sender = mHub.getSender(peer);
+                    if (sender != null) {
+                        dropped += sender.getDroppedSegments();
+                    }
+                }
+                return dropped;
+            }
+        });
+        metrics.gauge(MetricNames.SEND_DROPPED_COMMITS, new Gauge() {
+            @Override
+            public long value() {
+                return mHub.getDroppedCommits();
+            }
+        });
+        metrics.gauge(MetricNames.SEND_RATE, new Gauge() {
+            @Override
+            public long value() {
+                long rate = 0;
+                for (String peer : mHub.getPeers()) {
+                    OutboundScheduler scheduler = mSchedulingTransport.getScheduler(peer);
+                    if (scheduler != null) {
+                        rate = rate == 0 ? scheduler.getRate() : Math.min(rate, scheduler.getRate());
+                    }
+                }
+                return rate;
+            }
+        });
+        metrics.gauge(MetricNames.SEND_COMPRESSION_SAVED, new Gauge() {
+            @Override
+            public long value() {
+                return mCompressingTransport.getBytesIn() - mCompressingTransport.getBytesOut();
+            }
+        });
+        metrics.gauge(MetricNames.RECEIVE_QUEUE_DEPTH, new Gauge() {
+            @Override
+            public long value() {
+                return mReceiver.getQueueSize();
+            }
+        });
+    }
+
+    /**
+     * Get the transport messages to and from peers go through.
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return mFragmentingTransport;
+    }
+
+    /**
+     * Get the tracer of received strokes, to be told when frames are drawn.
+     * @return the tracer
+     */
+    public LatencyTracer getLatencyTracer() {
+        return mLatencyTracer;
+    }
+
+    /**
+     * Get the committed strokes of the session. Finished local and remote strokes
+     * should be added, and local deletes applied, so peers joining later get them.
+     * Received deletes are applied here.
+     * @return the board
+     */
+    public ReplicatedBoard getBoard() {
+        return mBoard;
     }
 
     public void connect() {
+        mReceiver.start();
+        mAntiEntropy.start();
+        mPingHandler.postDelayed(mPingRunnable, CLOCK_PING_PERIOD_MILLIS);
         googleApiClient.connect();
     }
 
     public void disconnect() {
+        mPingHandler.removeCallbacks(mPingRunnable);
+        mAntiEntropy.stop();
+        mFragmentingTransport.stop();
+        mSchedulingTransport.stop();
+        mHub.removeAllPeers();
+        mReceiver.stop();
         if(googleApiClient != null) {
             googleApiClient.disconnect();
         }
@@ -103,6 +309,9 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
             return;
         }
 
+        // The advertiser is the hub everyone connects to, it passes strokes on between peers
+        mHub.setRelay(true);
+
         // Advertising with an AppIdentifer lets other devices on the network discover
         // this application and prompt the user to install the application.
         List<AppIdentifier> appIdentifierList = new ArrayList<>();
@@ -186,40 +395,60 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
                                                      byte[] bytes) {
                         if (status.isSuccess()) {
                             Toast.makeText(context, "Connected to " + endpointName, Toast.LENGTH_SHORT).show();
-                            mOtherEndpointId = endpointId;
+                            mTransport.endpointConnected(endpointId);
                         }
                     }
-                }, this);
+                }, mTransport);
     }
 
     /**
-     * Send a reliable message to the connected peer. Takes the contents of the EditText and
-     * sends the message as a byte[].
+     * Get the codec used for messages to and from peers.
+     * @return the codec
      */
-    public void sendMessage(List<String> coords) {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(coords);
-            byte[] bytes = bos.toByteArray();
-            Nearby.Connections.sendReliableMessage(googleApiClient, mOtherEndpointId, bytes);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public StrokeCodec getCodec() {
+        return mCodec;
     }
 
-    public static List<byte[]> divideArray(byte[] source, int chunksize) {
+    /**
+     * Get the pool that outgoing messages should be built in.
+     * @return the pool
+     */
+    public ChunkPool getChunkPool() {
+        return mChunkPool;
+    }
 
-        List<byte[]> result = new ArrayList<byte[]>();
-        int start = 0;
-        while (start < source.length) {
-            int end = Math.min(source.length, start + chunksize);
-            result.add(Arrays.copyOfRange(source, start, end));
-            start += chunksize;
-        }
+    /**
+     * Queue a message for all connected peers. The message is sent from the
+     * {@link OutboundSender} worker thread of each peer, never from the calling thread,
+     * compressed for the peers that agreed to it, see {@link CompressingTransport}.
+     * @param chunk the encoded stroke message to send, owned by the handler from now on
+     */
+    public void sendMessage(Chunk chunk) {
+        mSentMessages.increment();
+        mSentBytes.record(chunk.getLength());
+        mHub.broadcast(chunk);
+    }
 
-        return result;
+    /**
+     * Get the number of connected peers.
+     * @return the number of peers
+     */
+    public int getPeerCount() {
+        return mHub.getPeerCount();
+    }
+
+    @Override
+    public void onEndpointConnected(String endpointId) {
+        Log.d(TAG, "Peer connected: " + endpointId + ", peers: " + mHub.getPeerCount());
+        // Swap what either side lacks, a new peer or one back after the link was down.
+        // Live strokes keep flowing meanwhile
+        mAntiEntropy.onEndpointConnected(endpointId);
+    }
+
+    @Override
+    public void onEndpointDisconnected(String endpointId) {
+        Log.d(TAG, "Peer disconnected: " + endpointId + ", peers: " + mHub.getPeerCount());
+        mAntiEntropy.onEndpointDisconnected(endpointId);
     }
 
     @Override
@@ -232,12 +461,12 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         byte[] payload = null;
-                        Nearby.Connections.acceptConnectionRequest(googleApiClient, endpointId, payload, ConnectionsHandler.this)
+                        Nearby.Connections.acceptConnectionRequest(googleApiClient, endpointId, payload, mTransport)
                                 .setResultCallback(new ResultCallback<Status>() {
                                     @Override
                                     public void onResult(Status status) {
                                         if (status.isSuccess()) {
-                                            mOtherEndpointId = endpointId;
+                                            mTransport.endpointConnected(endpointId);
                                         } else {
 
                                         }
@@ -256,22 +485,14 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
     }
 
     @Override
-    public void onMessageReceived(String s, byte[] bytes, boolean b) {
-        Log.d(TAG, "Message received : " + s);
-        try {
-
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            List<String> coords = (List<String>) ois.readObject();
-            mCallback.onRemoteDrawingReceived(coords);
-
-        } catch (StreamCorruptedException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    public void onMessageReceived(String s, byte[] bytes, boolean reliable) {
+        // Counted instead of logged, this runs for every message
+        mReceivedMessages.increment();
+        mReceivedBytes.record(bytes.length);
+        if (mAntiEntropy.onMessageReceived(s, bytes)) {
+            return;
         }
+        mReceiver.offer(s, bytes);
     }
 
     @Override
@@ -312,11 +533,6 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
         }
     }
 
-    @Override
-    public void onDisconnected(String s) {
-
-    }
-
     @Override
     public void onConnected(Bundle bundle) {
 
@@ -324,6 +540,7 @@ public class ConnectionsHandler implements GoogleApiClient.ConnectionCallbacks,
 
     @Override
     public void onConnectionSuspended(int i) {
+        // The peers connect again afterwards and swap the strokes drawn meanwhile
         googleApiClient.reconnect();
     }
 
@@ -0,0 +1,221 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sends messages larger than {@link Transport#MAX_RELIABLE_MESSAGE_SIZE} to one
+ * endpoint in fragments, from a worker thread, for a {@link Reassembler} to put
+ * back together.
+ *
+ * The fragments go over the reliable channel as fast as the transport takes them.
+ * The rate is up to the transport: a {@link SchedulingTransport} sends them as bulk
+ * messages, which the live messages sent meanwhile overtake, and holds up the worker
+ * while its bulk queue is full. With several messages queued, the worker takes a
+ * fragment of each in turn, so a small message is not stuck behind a large one. A fragment is a frame of type {@link StrokeCodec#TYPE_FRAGMENT}:
+ * <pre>
+ *  0  frame header     4 bytes, see {@link StrokeCodec}
+ *  4  message id       4 bytes
+ *  8  fragment index   4 bytes
+ * 12  fragment count   4 bytes
+ * 16  data, at most {@link #MAX_FRAGMENT_DATA} bytes, all fragments but the last full
+ * </pre>
+ */
+public class FragmentSender {
+
+    public static final int HEADER_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 12;
+    public static final int MAX_FRAGMENT_DATA = Transport.MAX_RELIABLE_MESSAGE_SIZE - HEADER_SIZE;
+
+    static final int OFFSET_MESSAGE_ID = 4;
+    static final int OFFSET_INDEX = 8;
+    static final int OFFSET_COUNT = 12;
+
+    private final Transport mTransport;
+    private final String mEndpointId;
+
+    /** Messages with fragments left to send, guarded by itself **/
+    private final ArrayDeque<Message> mQueue = new ArrayDeque<>();
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    private volatile long mSentFragments;
+    private volatile long mSentMessages;
+
+    /**
+     * @param transport the link to the peer
+     * @param endpointId the peer
+     */
+    public FragmentSender(Transport transport, String endpointId) {
+        mTransport = transport;
+        mEndpointId = endpointId;
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "FragmentSender-" + mEndpointId);
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker. Messages not sent completely are dropped, the peer evicts what
+     * it got of them.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mQueue) {
+            mQueue.clear();
+            mQueue.notifyAll();
+        }
+        // The worker may be waiting for room in the transport
+        worker.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a message for sending in fragments.
+     * @param messageId id telling the message apart from the others to the peer
+     * @param payload the message, not changed afterwards
+     */
+    public void send(int messageId, byte[] payload) {
+        int count = Math.max(1, (payload.length + MAX_FRAGMENT_DATA - 1) / MAX_FRAGMENT_DATA);
+        synchronized (mQueue) {
+            if (!mRunning) {
+                return;
+            }
+            mQueue.addLast(new Message(messageId, payload, count));
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * @return number of messages with fragments left to send
+     */
+    public int getQueueSize() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    public long getSentFragments() {
+        return mSentFragments;
+    }
+
+    /**
+     * @return number of messages sent completely
+     */
+    public long getSentMessages() {
+        return mSentMessages;
+    }
+
+    /**
+     * Build a fragment of a message, the header and its part of the payload copied
+     * straight into one buffer.
+     * @param messageId id of the message
+     * @param payload the message
+     * @param index index of the fragment
+     * @param count number of fragments of the message
+     * @return the fragment
+     */
+    static byte[] fragment(int messageId, byte[] payload, int index, int count) {
+        int start = index * MAX_FRAGMENT_DATA;
+        int length = Math.min(payload.length - start, MAX_FRAGMENT_DATA);
+        byte[] fragment = new byte[HEADER_SIZE + length];
+        fragment[0] = (byte) StrokeCodec.VERSION;
+        fragment[1] = (byte) StrokeCodec.TYPE_FRAGMENT;
+        putInt(fragment, StrokeCodec.OFFSET_BODY_LENGTH, fragment.length - StrokeCodec.FRAME_HEADER_SIZE, 2);
+        putInt(fragment, OFFSET_MESSAGE_ID, messageId, 4);
+        putInt(fragment, OFFSET_INDEX, index, 4);
+        putInt(fragment, OFFSET_COUNT, count, 4);
+        System.arraycopy(payload, start, fragment, HEADER_SIZE, length);
+        return fragment;
+    }
+
+    private void drain() {
+        while (mRunning) {
+            Message message;
+            int index;
+            boolean last;
+            synchronized (mQueue) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                // One fragment of the first message, then it goes to the back
+                message = mQueue.pollFirst();
+                index = message.next++;
+                last = message.next == message.count;
+                if (!last) {
+                    mQueue.addLast(message);
+                }
+            }
+            // Built outside the lock, one fragment at a time
+            byte[] fragment = fragment(message.messageId, message.payload, index, message.count);
+            try {
+                mTransport.sendReliable(mEndpointId, fragment);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            mSentFragments++;
+            if (last) {
+                mSentMessages++;
+            }
+        }
+    }
+
+    /**
+     * Write the low bytes of a value, big endian.
+     */
+    private static void putInt(byte[] buffer, int pos, int value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            buffer[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static class Message {
+        final int messageId;
+        final byte[] payload;
+        final int count;
+        /** Index of the next fragment to send **/
+        int next;
+
+        Message(int messageId, byte[] payload, int count) {
+            this.messageId = messageId;
+            this.payload = payload;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Transport} that also carries reliable messages over
+ * {@link #MAX_RELIABLE_MESSAGE_SIZE}, up to {@link #MAX_MESSAGE_SIZE}. They are sent in
+ * fragments by a {@link FragmentSender} per peer and put back together by a
+ * {@link Reassembler} before the listener gets them.
+ *
+ * Sending a large message only queues it. Messages within the limit go straight
+ * through, so they overtake the large ones still being sent, which is what keeps
+ * live strokes flowing during a transfer. The fragments are sent as fast as the
+ * transport below takes them, put this over a {@link SchedulingTransport} to keep
+ * them from filling the link. Thread safe.
+ */
+public class FragmentingTransport implements Transport, Transport.Listener {
+
+    /** Largest message sent, in fragments if need be **/
+    public static final int MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+
+    private final Transport mTransport;
+    private final Reassembler mReassembler;
+    private final ConcurrentHashMap<String, FragmentSender> mSenders = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextMessageId = new AtomicInteger();
+    private volatile Listener mListener;
+
+    /**
+     * Create a transport with the default reassembly limits.
+     * @param transport the transport to send over, this becomes its listener
+     */
+    public FragmentingTransport(Transport transport) {
+        this(transport, new Reassembler(Reassembler.DEFAULT_MAX_BYTES, Reassembler.DEFAULT_TIMEOUT_NANOS, Clock.SYSTEM));
+    }
+
+    /**
+     * @param transport the transport to send over, this becomes its listener
+     * @param reassembler puts received fragments together
+     */
+    public FragmentingTransport(Transport transport, Reassembler reassembler) {
+        mTransport = transport;
+        mReassembler = reassembler;
+        transport.setListener(this);
+    }
+
+    /**
+     * Send a message, in fragments if it is over {@link #MAX_RELIABLE_MESSAGE_SIZE}.
+     * Messages within that limit are delivered in order, larger ones after the
+     * messages sent meanwhile.
+     * @param payload the message, at most {@link #MAX_MESSAGE_SIZE} bytes
+     */
+    @Override
+    public void sendReliable(String endpointId, byte[] payload) {
+        if (payload.length <= MAX_RELIABLE_MESSAGE_SIZE) {
+            mTransport.sendReliable(endpointId, payload);
+            return;
+        }
+        if (payload.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message too large: " + payload.length + " bytes");
+        }
+        FragmentSender sender = mSenders.get(endpointId);
+        if (sender == null) {
+            // Not connected
+            return;
+        }
+        sender.send(mNextMessageId.incrementAndGet(), payload);
+    }
+
+    @Override
+    public void sendUnreliable(String endpointId, byte[] payload) {
+        mTransport.sendUnreliable(endpointId, payload);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        mTransport.disconnect(endpointId);
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+        if (StrokeCodec.getType(payload) == StrokeCodec.TYPE_FRAGMENT) {
+            try {
+                payload = mReassembler.offer(endpointId, payload);
+            } catch (StreamCorruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (payload == null) {
+                return;
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(endpointId, payload, reliable);
+        }
+    }
+
+    @Override
+    public void onEndpointConnected(String endpointId) {
+        FragmentSender sender = new FragmentSender(mTransport, endpointId);
+        sender.start();
+        FragmentSender previous = mSenders.put(endpointId, sender);
+        if (previous != null) {
+            previous.stop();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointConnected(endpointId);
+        }
+    }
+
+    @Override
+    public void onEndpointDisconnected(String endpointId) {
+        FragmentSender sender = mSenders.remove(endpointId);
+        if (sender != null) {
+            sender.stop();
+        }
+        mReassembler.removePeer(endpointId);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointDisconnected(endpointId);
+        }
+    }
+
+    /**
+     * Stop sending the large messages still queued for every peer.
+     */
+    public void stop() {
+        for (String endpointId : mSenders.keySet()) {
+            FragmentSender sender = mSenders.remove(endpointId);
+            if (sender != null) {
+                sender.stop();
+            }
+        }
+    }
+
+    /**
+     * @return the peer's sender of fragments, or null if the peer is not connected
+     */
+    public FragmentSender getSender(String endpointId) {
+        return mSenders.get(endpointId);
+    }
+
+    public Reassembler getReassembler() {
+        return mReassembler;
+    }
+}
@@ -0,0 +1,234 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+
+/**
+ * Decodes received stroke messages on a worker thread, so that neither decoding nor
+ * the listener run on the thread the transport delivers on.
+ *
+ * Payloads wait in an unbounded queue, since stroke messages must not be lost once
+ * they have arrived. The worker decodes each one into the same {@link PathMessage}
+ * and hands it to the listener, which must copy what it needs before returning.
+ * Payloads that do not decode are counted and skipped.
+ *
+ * With a {@link LatencyTracer} set, every message is traced with the time it was
+ * offered, by the receiver's clock.
+ */
+public class InboundReceiver {
+
+    /**
+     * Receiver of the decoded messages, called on the worker thread
+     */
+    public interface Listener {
+
+        /**
+         * @param message the decoded message, reused for the next one after the call
+         */
+        void onMessage(PathMessage message);
+    }
+
+    private final StrokeCodec mCodec;
+    private final Listener mListener;
+    private final String mName;
+
+    private final Clock mClock;
+
+    /** Guarded by itself **/
+    private final ArrayDeque<Inbound> mQueue = new ArrayDeque<>();
+    /** Only used by the worker **/
+    private final PathMessage mMessage = new PathMessage();
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    private volatile long mReceivedMessages;
+    private volatile long mCorruptMessages;
+    private volatile LatencyTracer mTracer;
+
+    private final Histogram mDecodeNanos;
+    private final Histogram mHandleNanos;
+
+    /**
+     * @param codec codec of the received messages
+     * @param listener receiver of the decoded messages
+     * @param name name of the worker thread
+     */
+    public InboundReceiver(StrokeCodec codec, Listener listener, String name) {
+        this(codec, listener, name, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * @param metrics registry to record decode and handling times in
+     */
+    public InboundReceiver(StrokeCodec codec, Listener listener, String name, MetricsRegistry metrics) {
+        this(codec, listener, name, metrics, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock time source for the trace times, the one the tracer's clock sync uses
+     */
+    public InboundReceiver(StrokeCodec codec, Listener listener, String name, MetricsRegistry metrics,
+                           Clock clock) {
+        mCodec = codec;
+        mListener = listener;
+        mName = name;
+        mClock = clock;
+        mDecodeNanos = metrics.histogram(MetricNames.RECEIVE_DECODE_NANOS);
+        mHandleNanos = metrics.histogram(MetricNames.RECEIVE_HANDLE_NANOS);
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, mName);
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker. Payloads still queued are dropped.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mQueue) {
+            mQueue.clear();
+            mQueue.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set the tracer of the received messages.
+     * @param tracer the tracer, or null to stop tracing
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Queue a received payload of an unknown sender for decoding, from any thread.
+     * @see #offer(String, byte[])
+     */
+    public boolean offer(byte[] payload) {
+        return offer(null, payload);
+    }
+
+    /**
+     * Queue a received payload for decoding, from any thread.
+     * @param endpointId the peer that sent it, or null if not known
+     * @param payload the encoded message, not changed by the caller afterwards
+     * @return false if the receiver is stopped and the payload was dropped
+     */
+    public boolean offer(String endpointId, byte[] payload) {
+        Inbound inbound = new Inbound(endpointId, payload, mClock.nanoTime());
+        synchronized (mQueue) {
+            if (!mRunning) {
+                return false;
+            }
+            mQueue.addLast(inbound);
+            mQueue.notifyAll();
+        }
+        return true;
+    }
+
+    public int getQueueSize() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * @return number of messages decoded and passed to the listener
+     */
+    public long getReceivedMessages() {
+        return mReceivedMessages;
+    }
+
+    /**
+     * @return number of payloads that could not be decoded
+     */
+    public long getCorruptMessages() {
+        return mCorruptMessages;
+    }
+
+    private void drain() {
+        while (mRunning) {
+            Inbound inbound;
+            synchronized (mQueue) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                inbound = mQueue.pollFirst();
+            }
+            long start = mClock.nanoTime();
+            try {
+                mCodec.decode(inbound.payload, 0, inbound.payload.length, mMessage);
+            } catch (IOException e) {
+                mCorruptMessages++;
+                continue;
+            }
+            long decoded = mClock.nanoTime();
+            mDecodeNanos.record(decoded - start);
+            mListener.onMessage(mMessage);
+            long handled = mClock.nanoTime();
+            mHandleNanos.record(handled - decoded);
+            mReceivedMessages++;
+            LatencyTracer tracer = mTracer;
+            if (tracer != null) {
+                tracer.onReceived(inbound.endpointId, mMessage, inbound.receivedNanos, decoded, handled);
+            }
+        }
+    }
+
+    /**
+     * A payload waiting to be decoded
+     */
+    private static class Inbound {
+        final String endpointId;
+        final byte[] payload;
+        final long receivedNanos;
+
+        Inbound(String endpointId, byte[] payload, long receivedNanos) {
+            this.endpointId = endpointId;
+            this.payload = payload;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package me.hammarstrom.paint.connections;
+
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+
+/**
+ * Splits the time from a finger moving on the sending device to the pixels showing
+ * up here into stages, and records each stage of every received stroke message:
+ * <ul>
+ * <li>capture to send, on the sender, from the message's own times</li>
+ * <li>network, from the send time converted by the {@link ClockSync} to the arrival</li>
+ * <li>decode, from the arrival to the message being decoded</li>
+ * <li>render, from the message being handled to the first frame drawn after it</li>
+ * <li>end to end, from the capture to that frame</li>
+ * </ul>
+ * The network, render and end to end stages are only recorded once the clock offset
+ * to the sending peer is known. Untraced messages, with a send time of 0, are skipped.
+ *
+ * Messages wait for their frame in a bounded buffer: if it is full, or a message is
+ * not drawn within {@link #MAX_RENDER_WAIT_NANOS} because it changed nothing on
+ * screen, it is left out of the render stages. All times must come from the clock
+ * the clock sync uses. Thread safe.
+ */
+public class LatencyTracer {
+
+    /** Longest a handled message waits for a frame before it is given up on **/
+    public static final long MAX_RENDER_WAIT_NANOS = 1000000000L;
+
+    private static final int MAX_PENDING = 256;
+
+    private final ClockSync mClockSync;
+
+    private final Histogram mCaptureToSendNanos;
+    private final Histogram mNetworkNanos;
+    private final Histogram mDecodeNanos;
+    private final Histogram mRenderNanos;
+    private final Histogram mEndToEndNanos;
+
+    /** Handled messages waiting for a frame, a ring guarded by this **/
+    private final long[] mPendingHandled = new long[MAX_PENDING];
+    private final long[] mPendingCaptured = new long[MAX_PENDING];
+    private int mPendingStart;
+    private int mPendingCount;
+
+    /**
+     * @param clockSync the offsets to the peers' clocks
+     * @param metrics registry to record the stages in
+     */
+    public LatencyTracer(ClockSync clockSync, MetricsRegistry metrics) {
+        mClockSync = clockSync;
+        mCaptureToSendNanos = metrics.histogram(MetricNames.TRACE_CAPTURE_TO_SEND_NANOS);
+        mNetworkNanos = metrics.histogram(MetricNames.TRACE_NETWORK_NANOS);
+        mDecodeNanos = metrics.histogram(MetricNames.TRACE_DECODE_NANOS);
+        mRenderNanos = metrics.histogram(MetricNames.TRACE_RENDER_NANOS);
+        mEndToEndNanos = metrics.histogram(MetricNames.TRACE_END_TO_END_NANOS);
+    }
+
+    /**
+     * Record the stages up to handling a received message.
+     * @param endpointId the peer the message came from, or null if not known
+     * @param message the decoded message
+     * @param receivedNanos when the message arrived
+     * @param decodedNanos when it was decoded
+     * @param handledNanos when the listener was done with it
+     */
+    public void onReceived(String endpointId, PathMessage message, long receivedNanos,
+                           long decodedNanos, long handledNanos) {
+        long sendNanos = message.getSendNanos();
+        if (sendNanos == 0) {
+            return;
+        }
+        mCaptureToSendNanos.record(sendNanos - message.getCaptureNanos());
+        mDecodeNanos.record(decodedNanos - receivedNanos);
+        if (endpointId == null || !mClockSync.hasOffset(endpointId)) {
+            return;
+        }
+        long localSendNanos = mClockSync.toLocal(endpointId, sendNanos);
+        mNetworkNanos.record(receivedNanos - localSendNanos);
+        long localCaptureNanos = localSendNanos - (sendNanos - message.getCaptureNanos());
+        synchronized (this) {
+            if (mPendingCount == MAX_PENDING) {
+                return;
+            }
+            int index = (mPendingStart + mPendingCount) % MAX_PENDING;
+            mPendingHandled[index] = handledNanos;
+            mPendingCaptured[index] = localCaptureNanos;
+            mPendingCount++;
+        }
+    }
+
+    /**
+     * Record the render stages of the messages that a frame shows.
+     * @param drainedNanos when the frame took the changes it draws, messages handled
+     *                     before are in it
+     * @param shownNanos when the frame was handed to the display
+     */
+    public synchronized void onFrameDrawn(long drainedNanos, long shownNanos) {
+        while (mPendingCount > 0) {
+            long handled = mPendingHandled[mPendingStart];
+            if (handled > drainedNanos) {
+                break;
+            }
+            if (shownNanos - handled <= MAX_RENDER_WAIT_NANOS) {
+                mRenderNanos.record(shownNanos - handled);
+                mEndToEndNanos.record(shownNanos - mPendingCaptured[mPendingStart]);
+            }
+            mPendingStart = (mPendingStart + 1) % MAX_PENDING;
+            mPendingCount--;
+        }
+    }
+
+    /**
+     * @return number of handled messages waiting for a frame
+     */
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+}
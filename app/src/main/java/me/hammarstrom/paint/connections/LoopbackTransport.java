@@ -0,0 +1,91 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process {@link Transport} without delay or loss. Messages are delivered
+ * synchronously on the sending thread, so the receiving listener runs before the
+ * send call returns.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final String mLocalId;
+    private final Map<String, LoopbackTransport> mPeers = new ConcurrentHashMap<>();
+    private volatile Listener mListener;
+
+    /**
+     * @param localId the endpoint ID peers see as the sender of this transport's messages
+     */
+    public LoopbackTransport(String localId) {
+        mLocalId = localId;
+    }
+
+    /**
+     * Connect two transports and notify both listeners.
+     */
+    public static void connect(LoopbackTransport a, LoopbackTransport b) {
+        a.mPeers.put(b.mLocalId, b);
+        b.mPeers.put(a.mLocalId, a);
+        a.notifyConnected(b.mLocalId);
+        b.notifyConnected(a.mLocalId);
+    }
+
+    public String getLocalId() {
+        return mLocalId;
+    }
+
+    @Override
+    public void sendReliable(String endpointId, byte[] payload) {
+        send(endpointId, payload, true, MAX_RELIABLE_MESSAGE_SIZE);
+    }
+
+    @Override
+    public void sendUnreliable(String endpointId, byte[] payload) {
+        send(endpointId, payload, false, MAX_UNRELIABLE_MESSAGE_SIZE);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        LoopbackTransport peer = mPeers.remove(endpointId);
+        if (peer == null) {
+            return;
+        }
+        peer.mPeers.remove(mLocalId);
+        notifyDisconnected(endpointId);
+        peer.notifyDisconnected(mLocalId);
+    }
+
+    private void send(String endpointId, byte[] payload, boolean reliable, int maxSize) {
+        if (payload.length > maxSize) {
+            throw new IllegalArgumentException("Message too large: " + payload.length + " bytes");
+        }
+        LoopbackTransport peer = mPeers.get(endpointId);
+        if (peer == null) {
+            return;
+        }
+        Listener listener = peer.mListener;
+        if (listener != null) {
+            listener.onMessageReceived(mLocalId, payload, reliable);
+        }
+    }
+
+    private void notifyConnected(String endpointId) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointConnected(endpointId);
+        }
+    }
+
+    private void notifyDisconnected(String endpointId) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointDisconnected(endpointId);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates single messages, each on its own so they can be lost, reordered or relayed
+ * like any other message. The deflater can start from a dictionary both sides share,
+ * encoded stroke messages of the usual colors and widths, see {@link #getDictionary()},
+ * that headers refer back to. That saves a few bytes at most: the bytes are mostly
+ * point deltas, which deflate only shrinks by giving common values shorter codes, and
+ * that pays from about a hundred points on. Merged messages of hundreds of points
+ * shrink to a half or a third.
+ *
+ * A compressed message is a frame of type {@link StrokeCodec#TYPE_DEFLATED}:
+ * <pre>
+ *  0  frame header     4 bytes, see {@link StrokeCodec}
+ *  4  flags            1 byte, {@link #FLAG_DICTIONARY}
+ *  5  original length  2 bytes
+ *  7  raw deflate data
+ * </pre>
+ * Messages under {@link #MIN_SIZE} bytes, and messages that would not get smaller,
+ * are left as they are.
+ *
+ * Not thread safe.
+ */
+public class MessageCompressor {
+
+    /** The data was deflated starting from the shared dictionary **/
+    public static final int FLAG_DICTIONARY = 1;
+
+    public static final int HEADER_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 3;
+
+    /**
+     * Smallest message worth compressing. Below this the points are too few for
+     * deflate's codes to win back its block overhead, dictionary or not
+     */
+    public static final int MIN_SIZE = 128;
+
+    private static final int OFFSET_FLAGS = 4;
+    private static final int OFFSET_LENGTH = 5;
+
+    private static byte[] sDictionary;
+    private static int sDictionaryId;
+
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mOut = new byte[StrokeCodec.MAX_MESSAGE_SIZE];
+
+    /**
+     * Create a compressor with the default level.
+     */
+    public MessageCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level deflate level, 0..9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public MessageCompressor(int level) {
+        mDeflater = new Deflater(level, true);
+    }
+
+    /**
+     * Get the dictionary compression starts from. The same on every device running
+     * this version of the app, its {@link #getDictionaryId() id} tells peers apart
+     * that have another.
+     * @return the dictionary, not to be changed
+     */
+    public static synchronized byte[] getDictionary() {
+        if (sDictionary == null) {
+            sDictionary = buildDictionary();
+            Adler32 adler = new Adler32();
+            adler.update(sDictionary, 0, sDictionary.length);
+            sDictionaryId = (int) adler.getValue();
+        }
+        return sDictionary;
+    }
+
+    /**
+     * @return checksum of the dictionary
+     */
+    public static synchronized int getDictionaryId() {
+        getDictionary();
+        return sDictionaryId;
+    }
+
+    /**
+     * Compress a message if it pays.
+     * @param payload the message
+     * @param useDictionary true if the receiver has the same dictionary
+     * @return the compressed message, or null if it is better sent as it is
+     */
+    public byte[] compress(byte[] payload, boolean useDictionary) {
+        if (payload.length < MIN_SIZE || payload.length > 0xFFFF) {
+            return null;
+        }
+        mDeflater.reset();
+        if (useDictionary) {
+            byte[] dictionary = getDictionary();
+            mDeflater.setDictionary(dictionary, 0, dictionary.length);
+        }
+        mDeflater.setInput(payload, 0, payload.length);
+        mDeflater.finish();
+        // Anything as long as the original is no saving, so the output only needs that much room
+        int limit = Math.min(payload.length, mOut.length);
+        int length = HEADER_SIZE;
+        while (!mDeflater.finished() && length < limit) {
+            length += mDeflater.deflate(mOut, length, limit - length);
+        }
+        if (!mDeflater.finished() || length >= payload.length) {
+            return null;
+        }
+        mOut[0] = (byte) StrokeCodec.VERSION;
+        mOut[1] = (byte) StrokeCodec.TYPE_DEFLATED;
+        putShort(mOut, StrokeCodec.OFFSET_BODY_LENGTH, length - StrokeCodec.FRAME_HEADER_SIZE);
+        mOut[OFFSET_FLAGS] = (byte) (useDictionary ? FLAG_DICTIONARY : 0);
+        putShort(mOut, OFFSET_LENGTH, payload.length);
+        return Arrays.copyOf(mOut, length);
+    }
+
+    /**
+     * Restore a compressed message.
+     * @param frame a message of type {@link StrokeCodec#TYPE_DEFLATED}
+     * @return the original message
+     * @throws StreamCorruptedException if the frame is damaged
+     */
+    public byte[] decompress(byte[] frame) throws StreamCorruptedException {
+        if (frame.length < HEADER_SIZE || StrokeCodec.getType(frame) != StrokeCodec.TYPE_DEFLATED
+                || StrokeCodec.FRAME_HEADER_SIZE + getShort(frame, StrokeCodec.OFFSET_BODY_LENGTH) != frame.length) {
+            throw new StreamCorruptedException("Not a compressed message");
+        }
+        byte[] payload = new byte[getShort(frame, OFFSET_LENGTH)];
+        mInflater.reset();
+        if ((frame[OFFSET_FLAGS] & FLAG_DICTIONARY) != 0) {
+            byte[] dictionary = getDictionary();
+            mInflater.setDictionary(dictionary, 0, dictionary.length);
+        }
+        mInflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        try {
+            int length = 0;
+            while (length < payload.length && !mInflater.finished()) {
+                int inflated = mInflater.inflate(payload, length, payload.length - length);
+                if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != payload.length) {
+                throw new StreamCorruptedException("Compressed message ended after " + length + " of "
+                        + payload.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Bad compressed message: " + e.getMessage());
+        }
+        return payload;
+    }
+
+    /**
+     * Release the native zlib state, the compressor cannot be used afterwards.
+     */
+    public void end() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    /**
+     * Encoded strokes like those drawn on a board: the app's colors and widths, and
+     * the small steps of a moving finger. The most common bytes go last, where deflate
+     * finds them with the shortest distances. Built from a fixed seed, so every device
+     * builds the same.
+     */
+    private static byte[] buildDictionary() {
+        int[] colors = {0xFF0000FF, 0xFF00FF00, 0xFFFF0000, 0xFF000000, 0xFFFFFFFF, 0xFFFFFF00};
+        float[] widths = {8f, 5f, 3f};
+        StrokeCodec codec = new StrokeCodec();
+        Random random = new Random(0x5354524bL);
+        byte[] dictionary = new byte[0];
+        for (int c = 0; c < colors.length; c++) {
+            for (float width : widths) {
+                PathMessage message = new PathMessage(random.nextInt(), colors[c], width);
+                float x = random.nextFloat();
+                float y = random.nextFloat();
+                for (int i = 0; i < 24; i++) {
+                    message.addCoords(x, y);
+                    x = Math.max(0f, Math.min(1f, x + (random.nextFloat() - 0.5f) * 0.006f));
+                    y = Math.max(0f, Math.min(1f, y + (random.nextFloat() - 0.5f) * 0.006f));
+                }
+                message.setFlags(PathMessage.FLAG_FIRST);
+                byte[] encoded = codec.encode(message);
+                int length = dictionary.length;
+                dictionary = Arrays.copyOf(dictionary, length + encoded.length);
+                System.arraycopy(encoded, 0, dictionary, length, encoded.length);
+            }
+        }
+        return dictionary;
+    }
+
+    private static int getShort(byte[] buffer, int pos) {
+        return ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 8);
+        buffer[pos + 1] = (byte) value;
+    }
+}
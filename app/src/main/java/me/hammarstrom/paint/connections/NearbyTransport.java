@@ -0,0 +1,70 @@
+package me.hammarstrom.paint.connections;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.Connections;
+
+/**
+ * {@link Transport} on top of Nearby Connections. Connections are set up by
+ * {@link ConnectionsHandler}, which passes this class as the message listener and
+ * reports established connections with {@link #endpointConnected}.
+ *
+ * The listener is called on the main thread, like the Nearby callbacks.
+ */
+public class NearbyTransport implements Transport, Connections.MessageListener {
+
+    private final GoogleApiClient mGoogleApiClient;
+    private volatile Listener mListener;
+
+    public NearbyTransport(GoogleApiClient googleApiClient) {
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public void sendReliable(String endpointId, byte[] payload) {
+        Nearby.Connections.sendReliableMessage(mGoogleApiClient, endpointId, payload);
+    }
+
+    @Override
+    public void sendUnreliable(String endpointId, byte[] payload) {
+        Nearby.Connections.sendUnreliableMessage(mGoogleApiClient, endpointId, payload);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        Nearby.Connections.disconnectFromEndpoint(mGoogleApiClient, endpointId);
+        onDisconnected(endpointId);
+    }
+
+    /**
+     * Report a connection accepted by either side.
+     * @param endpointId the connected endpoint
+     */
+    void endpointConnected(String endpointId) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointConnected(endpointId);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean isReliable) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(endpointId, payload, isReliable);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String endpointId) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointDisconnected(endpointId);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends all messages to one endpoint from a worker thread, in an order that keeps
+ * live strokes quick while bulk transfers fill the rest of the link.
+ *
+ * Messages wait in a queue per traffic class: {@link #CLASS_CONTROL} for clock,
+ * summary and other small protocol messages, {@link #CLASS_LIVE} for strokes and
+ * {@link #CLASS_BULK} for snapshot chunks and fragments. The classes share the link by
+ * deficit round robin: each turn a class may send up to its weight times
+ * {@link Transport#MAX_RELIABLE_MESSAGE_SIZE} bytes, so a backlogged class gets a
+ * share of the link by its weight and an idle class gives its share to the others.
+ * Within a class messages go in the order they were queued.
+ *
+ * A {@link TokenBucket} keeps the sending rate just under the capacity of the link, so
+ * that messages wait here, where live ones can overtake bulk ones, rather than in the
+ * transport's queue, where they cannot. The rate is tuned to the rate messages arrive
+ * at the peer, see {@link #onRateReport(long, long)}.
+ *
+ * The bulk queue holds a limited number of bytes, queueing more blocks until the
+ * worker makes room. The other queues are not limited, their senders are.
+ */
+public class OutboundScheduler {
+
+    public static final int CLASS_CONTROL = 0;
+    public static final int CLASS_LIVE = 1;
+    public static final int CLASS_BULK = 2;
+
+    /** Default weights of the classes, by class **/
+    public static final int[] DEFAULT_WEIGHTS = {4, 4, 1};
+
+    /** Default rate before anything was measured, a Wi-Fi link between phones **/
+    public static final long DEFAULT_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    public static final long MIN_BYTES_PER_SECOND = 16 * 1024;
+    public static final long MAX_BYTES_PER_SECOND = 32 * 1024 * 1024;
+
+    /** Default most bytes of bulk messages queued **/
+    public static final int DEFAULT_BULK_QUEUE_BYTES = 64 * 1024;
+
+    /** Fewest bytes sent between reports for a slow arrival to count, less is noise **/
+    static final int MIN_REPORT_BYTES = 4 * Transport.MAX_RELIABLE_MESSAGE_SIZE;
+
+    /** Time a backlog in the transport is drained over once the link is found full **/
+    static final long DRAIN_NANOS = 500000000L;
+
+    /** Most bytes sent at once after a pause, a couple of messages **/
+    static final int BURST_BYTES = 2 * Transport.MAX_RELIABLE_MESSAGE_SIZE;
+
+    private final Transport mTransport;
+    private final String mEndpointId;
+    private final Clock mClock;
+    private final int mBulkQueueBytes;
+
+    /** All guarded by mClasses, as are the bucket and the rate feedback **/
+    private final TrafficClass[] mClasses;
+    private final TokenBucket mBucket;
+    private int mCurrent;
+    private boolean mVisited;
+    private int mQueued;
+    private long mThrottledNanos;
+    private long mWindowBytes;
+    private long mLastReportNanos;
+    private long mReports;
+    /** Bytes sent but not reported arrived yet, as far as the reports tell **/
+    private long mBacklogBytes;
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    /**
+     * Create a scheduler with the default weights and limits.
+     * @param transport the link to the peer
+     * @param endpointId the peer
+     */
+    public OutboundScheduler(Transport transport, String endpointId) {
+        this(transport, endpointId, DEFAULT_WEIGHTS, DEFAULT_BYTES_PER_SECOND, DEFAULT_BULK_QUEUE_BYTES,
+                Clock.SYSTEM);
+    }
+
+    /**
+     * @param transport the link to the peer
+     * @param endpointId the peer
+     * @param weights weight of each class, by class
+     * @param bytesPerSecond rate before anything was measured
+     * @param bulkQueueBytes most bytes of bulk messages queued
+     * @param clock source of the time the rate is kept by
+     */
+    public OutboundScheduler(Transport transport, String endpointId, int[] weights, long bytesPerSecond,
+                             int bulkQueueBytes, Clock clock) {
+        if (weights.length != 3) {
+            throw new IllegalArgumentException("Expected a weight per class, got " + weights.length);
+        }
+        mTransport = transport;
+        mEndpointId = endpointId;
+        mClock = clock;
+        mBulkQueueBytes = bulkQueueBytes;
+        mClasses = new TrafficClass[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Invalid weight of class " + i + ": " + weights[i]);
+            }
+            mClasses[i] = new TrafficClass(weights[i] * Transport.MAX_RELIABLE_MESSAGE_SIZE);
+        }
+        mBucket = new TokenBucket(Math.max(MIN_BYTES_PER_SECOND, Math.min(MAX_BYTES_PER_SECOND, bytesPerSecond)),
+                BURST_BYTES, clock);
+        mLastReportNanos = clock.nanoTime();
+    }
+
+    /**
+     * Get the class a message belongs to, by its type.
+     * @param payload an encoded message
+     * @return the class, {@link #CLASS_BULK} for unknown types
+     */
+    public static int classOf(byte[] payload) {
+        switch (StrokeCodec.getType(payload)) {
+            case StrokeCodec.TYPE_STROKE:
+                return CLASS_LIVE;
+            case StrokeCodec.TYPE_PING:
+            case StrokeCodec.TYPE_PONG:
+            case StrokeCodec.TYPE_SUMMARY:
+            case StrokeCodec.TYPE_DEFLATE_OFFER:
+            case StrokeCodec.TYPE_RATE_REPORT:
+                return CLASS_CONTROL;
+            default:
+                return CLASS_BULK;
+        }
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "OutboundScheduler-" + mEndpointId);
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker. Messages still queued are dropped.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mClasses) {
+            for (TrafficClass trafficClass : mClasses) {
+                trafficClass.queue.clear();
+                trafficClass.bytes = 0;
+            }
+            mQueued = 0;
+            mClasses.notifyAll();
+        }
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a message. Blocks while the bulk queue is full if it is a bulk message.
+     * @param trafficClass the class of the message, see {@link #classOf(byte[])}
+     * @param payload the message, not changed afterwards
+     * @param reliable true to send over the reliable channel
+     * @return false if the scheduler is stopped and the message was dropped
+     */
+    public boolean send(int trafficClass, byte[] payload, boolean reliable) {
+        TrafficClass queue = mClasses[trafficClass];
+        synchronized (mClasses) {
+            while (mRunning && trafficClass == CLASS_BULK && queue.bytes > 0
+                    && queue.bytes + payload.length > mBulkQueueBytes) {
+                try {
+                    mClasses.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (!mRunning) {
+                return false;
+            }
+            queue.queue.addLast(new Message(payload, reliable));
+            queue.bytes += payload.length;
+            mQueued++;
+            mClasses.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Tune the rate to what the peer measured. If messages arrived clearly slower than
+     * they were sent, the link is full: the rate drops below what arrived, by enough
+     * to drain the backlog the reports add up to in the transport within
+     * {@link #DRAIN_NANOS}, and stays there while arrivals outpace sending. If they
+     * arrived about as fast and the rate held sending back for most of the time, the
+     * rate goes up a little to find out whether the link carries more. Otherwise the
+     * report says nothing about the link.
+     * @param bytes bytes the peer received
+     * @param elapsedNanos time the peer received them in
+     */
+    public void onRateReport(long bytes, long elapsedNanos) {
+        if (bytes < 0 || elapsedNanos <= 0) {
+            return;
+        }
+        synchronized (mClasses) {
+            long now = mClock.nanoTime();
+            long window = now - mLastReportNanos;
+            long sentBytes = mWindowBytes;
+            long throttled = mThrottledNanos;
+            mLastReportNanos = now;
+            mWindowBytes = 0;
+            mThrottledNanos = 0;
+            if (window <= 0) {
+                return;
+            }
+            double arrived = bytes * 1e9 / elapsedNanos;
+            double sent = sentBytes * 1e9 / window;
+            long rate = mBucket.getRate();
+            boolean full = arrived < sent * 0.95 && sentBytes >= MIN_REPORT_BYTES;
+            boolean draining = arrived > sent * 1.05;
+            mBacklogBytes = full || draining ? Math.max(0, mBacklogBytes + sentBytes - bytes) : 0;
+            if (full || (draining && mBacklogBytes > 0)) {
+                rate = (long) Math.max(arrived / 2, arrived - mBacklogBytes * 1e9 / DRAIN_NANOS);
+            } else if (!draining && throttled * 2 >= window) {
+                rate += rate / 20;
+            } else {
+                return;
+            }
+            mBucket.setRate(Math.max(MIN_BYTES_PER_SECOND, Math.min(MAX_BYTES_PER_SECOND, rate)));
+            mReports++;
+        }
+    }
+
+    /**
+     * @return the rate messages are sent at, at most
+     */
+    public long getRate() {
+        synchronized (mClasses) {
+            return mBucket.getRate();
+        }
+    }
+
+    /**
+     * @return number of rate reports the rate was changed by
+     */
+    public long getReports() {
+        synchronized (mClasses) {
+            return mReports;
+        }
+    }
+
+    public int getQueueSize(int trafficClass) {
+        synchronized (mClasses) {
+            return mClasses[trafficClass].queue.size();
+        }
+    }
+
+    public long getSentMessages(int trafficClass) {
+        synchronized (mClasses) {
+            return mClasses[trafficClass].sentMessages;
+        }
+    }
+
+    public long getSentBytes(int trafficClass) {
+        synchronized (mClasses) {
+            return mClasses[trafficClass].sentBytes;
+        }
+    }
+
+    private void drain() {
+        while (mRunning) {
+            Message message = null;
+            long wait;
+            synchronized (mClasses) {
+                while (mRunning && mQueued == 0) {
+                    try {
+                        mClasses.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                wait = mBucket.getWaitNanos();
+                if (wait == 0) {
+                    message = next();
+                    mBucket.take(message.payload.length);
+                    mWindowBytes += message.payload.length;
+                    mClasses.notifyAll();
+                } else {
+                    mThrottledNanos += wait;
+                }
+            }
+            if (message == null) {
+                // Choose after the wait, something more urgent may come meanwhile
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            try {
+                if (message.reliable) {
+                    mTransport.sendReliable(mEndpointId, message.payload);
+                } else {
+                    mTransport.sendUnreliable(mEndpointId, message.payload);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Take the next message by deficit round robin. Must hold the lock, with a message
+     * queued.
+     */
+    private Message next() {
+        while (true) {
+            TrafficClass current = mClasses[mCurrent];
+            if (current.queue.isEmpty()) {
+                current.deficit = 0;
+                advance();
+                continue;
+            }
+            if (!mVisited) {
+                current.deficit += current.quantum;
+                mVisited = true;
+            }
+            Message message = current.queue.peekFirst();
+            if (message.payload.length <= current.deficit) {
+                current.queue.pollFirst();
+                current.deficit -= message.payload.length;
+                current.bytes -= message.payload.length;
+                current.sentMessages++;
+                current.sentBytes += message.payload.length;
+                mQueued--;
+                return message;
+            }
+            advance();
+        }
+    }
+
+    private void advance() {
+        mCurrent = (mCurrent + 1) % mClasses.length;
+        mVisited = false;
+    }
+
+    private static class TrafficClass {
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        /** Bytes a turn **/
+        final long quantum;
+        long deficit;
+        long bytes;
+        long sentMessages;
+        long sentBytes;
+
+        TrafficClass(long quantum) {
+            this.quantum = quantum;
+        }
+    }
+
+    private static class Message {
+        final byte[] payload;
+        final boolean reliable;
+
+        Message(byte[] payload, boolean reliable) {
+            this.payload = payload;
+            this.reliable = reliable;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Sends stroke segments to one endpoint from a worker thread, so that encoding and
+ * the transport never run on the thread producing the segments.
+ *
+ * Segments wait in a bounded queue. When the worker takes a segment it merges the
+ * queued segments of the same stroke that follow it into one message, up to
+ * {@link StrokeCodec#MAX_MESSAGE_SIZE}. A merged message carries the sequence number
+ * of its last segment. What happens when the queue is full is decided by the policy:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} waits for the worker to make room.</li>
+ * <li>{@link #POLICY_DROP_OLDEST_PARTIAL} drops the oldest queued segment that neither
+ * starts nor ends a stroke. The receiver will miss those points. Blocks if every
+ * queued segment starts or ends a stroke.</li>
+ * <li>{@link #POLICY_MERGE} merges the new segment into the last queued one if they
+ * belong to the same stroke and fit in one message, otherwise blocks.</li>
+ * </ul>
+ * Previews, segments with {@link PathMessage#FLAG_PREVIEW}, go over the unreliable
+ * channel. They are never merged, and whatever the policy, the oldest queued preview
+ * is the first thing dropped when the queue is full since the stroke's commit
+ * replaces it anyway. Deletes, {@link PathMessage#FLAG_DELETE}, are not merged either.
+ */
+public class OutboundSender {
+
+    public static final int POLICY_BLOCK = 0;
+    public static final int POLICY_DROP_OLDEST_PARTIAL = 1;
+    public static final int POLICY_MERGE = 2;
+
+    private final Transport mTransport;
+    private final String mEndpointId;
+    private final StrokeCodec mCodec;
+    private final ChunkBuilder mBuilder;
+    private final int mCapacity;
+    private final int mPolicy;
+
+    /** Guarded by itself, as are the scratch messages and the builder **/
+    private final ArrayDeque<Chunk> mQueue;
+    private final PathMessage mScratchFirst = new PathMessage();
+    private final PathMessage mScratchSecond = new PathMessage();
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    private long mSentMessages;
+    private long mSentSegments;
+    private long mDroppedSegments;
+    private long mMergedSegments;
+
+    /**
+     * @param transport the link to send over
+     * @param endpointId the receiving endpoint
+     * @param codec codec of the queued segments
+     * @param pool pool that merged messages are built in
+     * @param capacity largest number of queued segments
+     * @param policy what to do when the queue is full
+     */
+    public OutboundSender(Transport transport, String endpointId, StrokeCodec codec, ChunkPool pool,
+                          int capacity, int policy) {
+        if (policy != POLICY_BLOCK && policy != POLICY_DROP_OLDEST_PARTIAL && policy != POLICY_MERGE) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        mTransport = transport;
+        mEndpointId = endpointId;
+        mCodec = codec;
+        mBuilder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+        mCapacity = capacity;
+        mPolicy = policy;
+        mQueue = new ArrayDeque<>(capacity);
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "OutboundSender-" + mEndpointId);
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker. Segments still queued are dropped.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mQueue) {
+            mQueue.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        synchronized (mQueue) {
+            while (!mQueue.isEmpty()) {
+                mQueue.poll().recycle();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a segment for sending, applying the policy if the queue is full.
+     * @param segment the encoded segment, owned by the sender from now on
+     * @return false if the sender is stopped and the segment was dropped
+     */
+    public boolean offer(Chunk segment) {
+        return offer(segment, true);
+    }
+
+    /**
+     * Queue a segment for sending without waiting. If the policy would block, the
+     * oldest queued segment that neither starts nor ends a stroke is dropped to make
+     * room for a segment ending one, and otherwise the new segment is dropped.
+     * @param segment the encoded segment, owned by the sender from now on
+     * @return false if the segment was dropped
+     */
+    public boolean tryOffer(Chunk segment) {
+        return offer(segment, false);
+    }
+
+    private boolean offer(Chunk segment, boolean mayBlock) {
+        synchronized (mQueue) {
+            while (mRunning && mQueue.size() >= mCapacity) {
+                if (dropOldest(PathMessage.FLAG_PREVIEW, PathMessage.FLAG_PREVIEW)) {
+                    break;
+                }
+                if (mPolicy == POLICY_DROP_OLDEST_PARTIAL
+                        && dropOldest(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0)) {
+                    break;
+                }
+                if (mPolicy == POLICY_MERGE && !mQueue.isEmpty()) {
+                    Chunk merged = merge(mQueue.peekLast(), segment);
+                    if (merged != null) {
+                        mQueue.pollLast();
+                        mQueue.addLast(merged);
+                        synchronized (this) {
+                            mMergedSegments++;
+                        }
+                        return true;
+                    }
+                }
+                if (!mayBlock && (segment.getFlags() & PathMessage.FLAG_LAST) != 0
+                        && dropOldest(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0)) {
+                    break;
+                }
+                if (!mayBlock) {
+                    segment.recycle();
+                    synchronized (this) {
+                        mDroppedSegments++;
+                    }
+                    return false;
+                }
+                try {
+                    mQueue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    segment.recycle();
+                    return false;
+                }
+            }
+            if (!mRunning) {
+                segment.recycle();
+                return false;
+            }
+            mQueue.addLast(segment);
+            mQueue.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * @return number of messages handed to the transport
+     */
+    public synchronized long getSentMessages() {
+        return mSentMessages;
+    }
+
+    /**
+     * @return number of segments sent, a message holds several if they were merged
+     */
+    public synchronized long getSentSegments() {
+        return mSentSegments;
+    }
+
+    public synchronized long getDroppedSegments() {
+        return mDroppedSegments;
+    }
+
+    /**
+     * @return number of segments merged into a queued one because the queue was full
+     */
+    public synchronized long getMergedSegments() {
+        return mMergedSegments;
+    }
+
+    public int getQueueSize() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    private void drain() {
+        while (mRunning) {
+            Chunk message;
+            int segments = 1;
+            synchronized (mQueue) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                message = mQueue.pollFirst();
+                while (!mQueue.isEmpty()) {
+                    Chunk merged = merge(message, mQueue.peekFirst());
+                    if (merged == null) {
+                        break;
+                    }
+                    mQueue.pollFirst();
+                    message = merged;
+                    segments++;
+                }
+                mQueue.notifyAll();
+            }
+
+            byte[] payload = message.toByteArray();
+            boolean preview = (message.getFlags() & PathMessage.FLAG_PREVIEW) != 0;
+            message.recycle();
+            synchronized (this) {
+                mSentMessages++;
+                mSentSegments += segments;
+            }
+            try {
+                if (preview) {
+                    mTransport.sendUnreliable(mEndpointId, payload);
+                } else {
+                    mTransport.sendReliable(mEndpointId, payload);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Merge two segments of the same stroke. Must hold the queue lock.
+     * @return the merged segment, with both inputs recycled, or null if they cannot
+     * be merged and are left untouched
+     */
+    private Chunk merge(Chunk first, Chunk second) {
+        // Quick check before decoding, the second header goes away and its first point
+        // shrinks to a delta
+        int estimate = first.getLength() + second.getLength()
+                - StrokeCodec.FRAME_HEADER_SIZE - StrokeCodec.STROKE_HEADER_SIZE;
+        if (first.getStrokeId() != second.getStrokeId()
+                || ((first.getFlags() | second.getFlags()) & (PathMessage.FLAG_PREVIEW | PathMessage.FLAG_DELETE)) != 0
+                || estimate > StrokeCodec.MAX_MESSAGE_SIZE + StrokeCodec.MAX_POINT_SIZE) {
+            return null;
+        }
+        try {
+            mCodec.decode(first.getBuffer(), 0, first.getLength(), mScratchFirst);
+            mCodec.decode(second.getBuffer(), 0, second.getLength(), mScratchSecond);
+        } catch (IOException e) {
+            return null;
+        }
+
+        mBuilder.begin(first.getStrokeId(), second.getSequence(), mScratchFirst.getColor(),
+                mScratchFirst.getWidth(), mScratchFirst.getTimestamp());
+        if (!appendAll(mScratchFirst) || !appendAll(mScratchSecond)) {
+            mBuilder.discard();
+            return null;
+        }
+        int flags = (first.getFlags() & PathMessage.FLAG_FIRST) | (second.getFlags() & PathMessage.FLAG_LAST);
+        // The oldest capture, the send time of the newest segment so that queueing
+        // before it counts as the network
+        Chunk merged = mBuilder.finish(flags, mScratchFirst.getCaptureNanos(), mScratchSecond.getSendNanos());
+        first.recycle();
+        second.recycle();
+        return merged;
+    }
+
+    private boolean appendAll(PathMessage message) {
+        for (int i = 0; i < message.getPointCount(); i++) {
+            if (!mBuilder.append(message.getX(i), message.getY(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the oldest queued segment whose flags masked by mask equal value. Must
+     * hold the queue lock.
+     * @return true if a segment was dropped
+     */
+    private boolean dropOldest(int mask, int value) {
+        Iterator<Chunk> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            Chunk chunk = iterator.next();
+            if ((chunk.getFlags() & mask) == value) {
+                iterator.remove();
+                chunk.recycle();
+                synchronized (this) {
+                    mDroppedSegments++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
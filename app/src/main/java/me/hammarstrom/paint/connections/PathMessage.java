@@ -1,31 +1,202 @@
 package me.hammarstrom.paint.connections;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Fredrik Hammarström on 12/10/15.
+ *
+ * A stroke, or a part of a stroke, as it is sent between peers. Coordinates are
+ * normalized to the sender's screen size (0..1) so that the receiver can scale
+ * them to its own screen.
  */
-public class PathMessage implements Serializable {
+public class PathMessage {
 
-    private static List<String> coords;
+    /** The message holds the first points of the stroke **/
+    public static final int FLAG_FIRST = 1;
+    /** The message holds the last points of the stroke **/
+    public static final int FLAG_LAST = 1 << 1;
+    /**
+     * The message is a live preview sent over the unreliable channel. Its sequence
+     * number is the index of its first point in the stroke, and it may repeat points
+     * of earlier previews. The stroke is later committed with reliable messages.
+     **/
+    public static final int FLAG_PREVIEW = 1 << 2;
+    /**
+     * The stroke is deleted. The message has no points, and its timestamp is the one
+     * of the delete. Sent with {@link #FLAG_FIRST} and {@link #FLAG_LAST} over the
+     * reliable channel.
+     **/
+    public static final int FLAG_DELETE = 1 << 3;
 
-    static {
-        coords = new ArrayList<>();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mStrokeId;
+    private int mSequence;
+    private int mFlags;
+    private int mColor;
+    private float mWidth;
+    /** Lamport timestamp of the stroke's add, or of the delete **/
+    private long mTimestamp;
+    /** Trace times by the sender's clock, see {@link StrokeCodec} **/
+    private long mCaptureNanos;
+    private long mSendNanos;
+
+    /** Interleaved x, y coordinates **/
+    private float[] mCoords;
+    private int mPointCount;
+
+    public PathMessage() {
+        mCoords = new float[INITIAL_CAPACITY * 2];
+    }
+
+    public PathMessage(int strokeId, int color, float width) {
+        this();
+        mStrokeId = strokeId;
+        mColor = color;
+        mWidth = width;
+    }
+
+    /**
+     * Remove all points, the stroke header is kept.
+     */
+    public void clearList() {
+        mPointCount = 0;
+    }
+
+    /**
+     * Append a point to the message
+     * @param x normalized x coordinate
+     * @param y normalized y coordinate
+     */
+    public void addCoords(float x, float y) {
+        if (mPointCount * 2 == mCoords.length) {
+            mCoords = Arrays.copyOf(mCoords, mCoords.length * 2);
+        }
+        mCoords[mPointCount * 2] = x;
+        mCoords[mPointCount * 2 + 1] = y;
+        mPointCount++;
+    }
+
+    /**
+     * Make room for a number of points without growing again.
+     */
+    public void ensureCapacity(int points) {
+        if (points * 2 > mCoords.length) {
+            mCoords = Arrays.copyOf(mCoords, Math.max(points * 2, mCoords.length * 2));
+        }
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public float getX(int index) {
+        return mCoords[index * 2];
+    }
+
+    public float getY(int index) {
+        return mCoords[index * 2 + 1];
+    }
+
+    /**
+     * Get the points for copying in bulk.
+     * @return the interleaved x, y coordinates, valid for {@link #getPointCount()} points
+     * until a point is added
+     */
+    public float[] getCoords() {
+        return mCoords;
+    }
+
+    public int getStrokeId() {
+        return mStrokeId;
+    }
+
+    public void setStrokeId(int strokeId) {
+        mStrokeId = strokeId;
+    }
+
+    /**
+     * Get the position of this message among the messages of the same stroke.
+     * @return the sequence number, starting at 0 for the first message of a stroke
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public void setSequence(int sequence) {
+        mSequence = sequence;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    public boolean isFirst() {
+        return (mFlags & FLAG_FIRST) != 0;
+    }
+
+    public boolean isLast() {
+        return (mFlags & FLAG_LAST) != 0;
+    }
+
+    public boolean isPreview() {
+        return (mFlags & FLAG_PREVIEW) != 0;
+    }
+
+    public boolean isDelete() {
+        return (mFlags & FLAG_DELETE) != 0;
     }
 
-    public static void clearList() {
-        coords.clear();
+    public int getColor() {
+        return mColor;
     }
 
-    public static void addCoords(float x, float y) {
-        coords.add(String.valueOf(x) + "," + String.valueOf(y));
+    public void setColor(int color) {
+        mColor = color;
     }
 
-    public static List<String> getCoords() {
-        return Collections.unmodifiableList(coords);
+    public float getWidth() {
+        return mWidth;
     }
 
+    public void setWidth(float width) {
+        mWidth = width;
+    }
+
+    /**
+     * @return the Lamport timestamp of the stroke, see {@link me.hammarstrom.paint.sync.ReplicatedBoard}
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * @return when the oldest point not sent before was captured, by the sender's clock
+     */
+    public long getCaptureNanos() {
+        return mCaptureNanos;
+    }
+
+    public void setCaptureNanos(long captureNanos) {
+        mCaptureNanos = captureNanos;
+    }
+
+    /**
+     * @return when the message was sent by the sender's clock, 0 if it is not traced
+     */
+    public long getSendNanos() {
+        return mSendNanos;
+    }
+
+    public void setSendNanos(long sendNanos) {
+        mSendNanos = sendNanos;
+    }
 }
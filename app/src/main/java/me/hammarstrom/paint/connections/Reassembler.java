@@ -0,0 +1,247 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.StreamCorruptedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts the fragments a {@link FragmentSender} sends back together, in whatever order
+ * they arrive. Repeated fragments are ignored.
+ *
+ * The messages being put together may hold at most a given number of bytes between
+ * them, counted by their full size from their first fragment on. A message that
+ * would not fit evicts the messages that went longest without a new fragment, and a
+ * message that gets no fragment for the timeout is evicted too: its fragments were
+ * lost, or its sender went away. Thread safe.
+ */
+public class Reassembler {
+
+    /** Default most bytes held, a few snapshots or images **/
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /** Default time a message may go without a new fragment **/
+    public static final long DEFAULT_TIMEOUT_NANOS = 30000000000L;
+
+    private final int mMaxBytes;
+    private final long mTimeoutNanos;
+    private final Clock mClock;
+
+    /** All guarded by this. Least recently added to first **/
+    private final LinkedHashMap<Key, Partial> mPartials = new LinkedHashMap<>(16, 0.75f, true);
+    private long mHeldBytes;
+    private long mCompleted;
+    private long mEvicted;
+    private long mRejected;
+
+    /**
+     * @param maxBytes most bytes held in messages being put together
+     * @param timeoutNanos longest a message may go without a new fragment
+     * @param clock source of the time fragments arrive
+     */
+    public Reassembler(int maxBytes, long timeoutNanos, Clock clock) {
+        if (maxBytes < FragmentSender.MAX_FRAGMENT_DATA || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid limits: " + maxBytes + " bytes, " + timeoutNanos + " ns");
+        }
+        mMaxBytes = maxBytes;
+        mTimeoutNanos = timeoutNanos;
+        mClock = clock;
+    }
+
+    /**
+     * Add a fragment.
+     * @param endpointId the peer that sent it
+     * @param fragment a message of type {@link StrokeCodec#TYPE_FRAGMENT}
+     * @return the whole message if this was its last missing fragment, otherwise null
+     * @throws StreamCorruptedException if the fragment is damaged
+     */
+    public synchronized byte[] offer(String endpointId, byte[] fragment) throws StreamCorruptedException {
+        if (fragment.length < FragmentSender.HEADER_SIZE || StrokeCodec.getType(fragment) != StrokeCodec.TYPE_FRAGMENT
+                || StrokeCodec.FRAME_HEADER_SIZE + getInt(fragment, StrokeCodec.OFFSET_BODY_LENGTH, 2)
+                != fragment.length) {
+            throw new StreamCorruptedException("Not a fragment");
+        }
+        int messageId = getInt(fragment, FragmentSender.OFFSET_MESSAGE_ID, 4);
+        int index = getInt(fragment, FragmentSender.OFFSET_INDEX, 4);
+        int count = getInt(fragment, FragmentSender.OFFSET_COUNT, 4);
+        int length = fragment.length - FragmentSender.HEADER_SIZE;
+        if (count <= 0 || index < 0 || index >= count
+                || (index < count - 1 ? length != FragmentSender.MAX_FRAGMENT_DATA : length == 0)) {
+            throw new StreamCorruptedException("Bad fragment " + index + " of " + count + ", " + length + " bytes");
+        }
+
+        long now = mClock.nanoTime();
+        evictExpired(now);
+        Key key = new Key(endpointId, messageId);
+        Partial partial = mPartials.get(key);
+        if (partial == null) {
+            long size = (long) count * FragmentSender.MAX_FRAGMENT_DATA;
+            if (size > mMaxBytes) {
+                mRejected++;
+                return null;
+            }
+            evictFor(size);
+            partial = new Partial(count, size);
+            mPartials.put(key, partial);
+            mHeldBytes += size;
+        } else if (partial.fragments.length != count) {
+            throw new StreamCorruptedException("Fragment count of message " + messageId + " changed from "
+                    + partial.fragments.length + " to " + count);
+        }
+        partial.lastNanos = now;
+        if (partial.fragments[index] != null) {
+            return null;
+        }
+        partial.fragments[index] = fragment;
+        partial.received++;
+        partial.length += length;
+        if (partial.received < count) {
+            return null;
+        }
+
+        mPartials.remove(key);
+        mHeldBytes -= partial.size;
+        mCompleted++;
+        byte[] message = new byte[partial.length];
+        int pos = 0;
+        for (byte[] part : partial.fragments) {
+            int partLength = part.length - FragmentSender.HEADER_SIZE;
+            System.arraycopy(part, FragmentSender.HEADER_SIZE, message, pos, partLength);
+            pos += partLength;
+        }
+        return message;
+    }
+
+    /**
+     * Evict the messages that timed out, without waiting for the next fragment.
+     * @return number of messages evicted
+     */
+    public synchronized int evictExpired() {
+        return evictExpired(mClock.nanoTime());
+    }
+
+    /**
+     * Forget the messages a peer was sending.
+     */
+    public synchronized void removePeer(String endpointId) {
+        Iterator<Map.Entry<Key, Partial>> iterator = mPartials.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Partial> entry = iterator.next();
+            if (entry.getKey().endpointId.equals(endpointId)) {
+                mHeldBytes -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of messages being put together
+     */
+    public synchronized int getPendingMessages() {
+        return mPartials.size();
+    }
+
+    /**
+     * @return bytes held for the messages being put together
+     */
+    public synchronized long getHeldBytes() {
+        return mHeldBytes;
+    }
+
+    public synchronized long getCompletedMessages() {
+        return mCompleted;
+    }
+
+    /**
+     * @return number of messages given up on, timed out or pushed out by newer ones
+     */
+    public synchronized long getEvictedMessages() {
+        return mEvicted;
+    }
+
+    /**
+     * @return number of messages larger than the limit
+     */
+    public synchronized long getRejectedMessages() {
+        return mRejected;
+    }
+
+    private int evictExpired(long now) {
+        int evicted = 0;
+        Iterator<Partial> iterator = mPartials.values().iterator();
+        while (iterator.hasNext()) {
+            Partial partial = iterator.next();
+            if (now - partial.lastNanos < mTimeoutNanos) {
+                // The rest were added to more recently
+                break;
+            }
+            iterator.remove();
+            mHeldBytes -= partial.size;
+            mEvicted++;
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Evict the least recently added to messages until a new one of the size fits.
+     */
+    private void evictFor(long size) {
+        Iterator<Partial> iterator = mPartials.values().iterator();
+        while (mHeldBytes + size > mMaxBytes && iterator.hasNext()) {
+            Partial partial = iterator.next();
+            iterator.remove();
+            mHeldBytes -= partial.size;
+            mEvicted++;
+        }
+    }
+
+    private static int getInt(byte[] buffer, int pos, int bytes) {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | (buffer[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static final class Key {
+        final String endpointId;
+        final int messageId;
+
+        Key(String endpointId, int messageId) {
+            this.endpointId = endpointId;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return messageId == other.messageId && endpointId.equals(other.endpointId);
+        }
+
+        @Override
+        public int hashCode() {
+            return endpointId.hashCode() * 31 + messageId;
+        }
+    }
+
+    /**
+     * A message being put together
+     */
+    private static class Partial {
+        final byte[][] fragments;
+        /** Bytes counted against the limit **/
+        final long size;
+        int received;
+        int length;
+        long lastNanos;
+
+        Partial(int count, long size) {
+            fragments = new byte[count][];
+            this.size = size;
+        }
+    }
+}
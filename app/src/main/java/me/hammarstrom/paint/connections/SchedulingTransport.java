@@ -0,0 +1,214 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Transport} that sends through an {@link OutboundScheduler} per peer, so
+ * that control messages and live strokes are not stuck behind bulk transfers, and
+ * that measures for its peers how fast their messages arrive.
+ *
+ * Every report interval in which messages arrived, the peer is told how many bytes
+ * came in how long, in a frame of type {@link StrokeCodec#TYPE_RATE_REPORT}:
+ * <pre>
+ *  0  frame header   4 bytes, see {@link StrokeCodec}
+ *  4  bytes          8 bytes
+ * 12  elapsed ns     8 bytes
+ * </pre>
+ * Reports go over the unreliable channel straight away, not through the scheduler,
+ * a lost report is just a missing sample. The peer tunes its sending rate to them.
+ *
+ * Sending does not block, except for bulk messages while the peer's bulk queue is
+ * full. Messages of different classes may overtake each other. Thread safe.
+ */
+public class SchedulingTransport implements Transport, Transport.Listener {
+
+    static final int REPORT_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 16;
+
+    /** Default time messages are counted over for a report **/
+    public static final long DEFAULT_REPORT_INTERVAL_NANOS = 200000000L;
+
+    private final Transport mTransport;
+    private final long mBytesPerSecond;
+    private final long mReportIntervalNanos;
+    private final Clock mClock;
+    private final ConcurrentHashMap<String, OutboundScheduler> mSchedulers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Meter> mMeters = new ConcurrentHashMap<>();
+    private volatile Listener mListener;
+
+    /**
+     * Create a transport with the default rate and report interval.
+     * @param transport the transport to send over, this becomes its listener
+     */
+    public SchedulingTransport(Transport transport) {
+        this(transport, OutboundScheduler.DEFAULT_BYTES_PER_SECOND, DEFAULT_REPORT_INTERVAL_NANOS, Clock.SYSTEM);
+    }
+
+    /**
+     * @param transport the transport to send over, this becomes its listener
+     * @param bytesPerSecond rate to each peer before anything was measured
+     * @param reportIntervalNanos time messages are counted over for a report
+     * @param clock source of the time rates are measured and kept by
+     */
+    public SchedulingTransport(Transport transport, long bytesPerSecond, long reportIntervalNanos, Clock clock) {
+        if (reportIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Invalid report interval: " + reportIntervalNanos);
+        }
+        mTransport = transport;
+        mBytesPerSecond = bytesPerSecond;
+        mReportIntervalNanos = reportIntervalNanos;
+        mClock = clock;
+        transport.setListener(this);
+    }
+
+    @Override
+    public void sendReliable(String endpointId, byte[] payload) {
+        OutboundScheduler scheduler = mSchedulers.get(endpointId);
+        if (scheduler == null) {
+            // Sent before the connection was reported, there is nothing to wait behind
+            mTransport.sendReliable(endpointId, payload);
+            return;
+        }
+        scheduler.send(OutboundScheduler.classOf(payload), payload, true);
+    }
+
+    @Override
+    public void sendUnreliable(String endpointId, byte[] payload) {
+        if (payload.length > MAX_UNRELIABLE_MESSAGE_SIZE) {
+            // Fail now rather than on the worker
+            throw new IllegalArgumentException("Message too large: " + payload.length + " bytes");
+        }
+        OutboundScheduler scheduler = mSchedulers.get(endpointId);
+        if (scheduler == null) {
+            mTransport.sendUnreliable(endpointId, payload);
+            return;
+        }
+        scheduler.send(OutboundScheduler.classOf(payload), payload, false);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        mTransport.disconnect(endpointId);
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+        if (StrokeCodec.getType(payload) == StrokeCodec.TYPE_RATE_REPORT) {
+            onRateReport(endpointId, payload);
+            return;
+        }
+        Meter meter = mMeters.get(endpointId);
+        if (meter != null) {
+            meter.count(endpointId, payload.length);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(endpointId, payload, reliable);
+        }
+    }
+
+    @Override
+    public void onEndpointConnected(String endpointId) {
+        OutboundScheduler scheduler = new OutboundScheduler(mTransport, endpointId,
+                OutboundScheduler.DEFAULT_WEIGHTS, mBytesPerSecond, OutboundScheduler.DEFAULT_BULK_QUEUE_BYTES,
+                mClock);
+        scheduler.start();
+        OutboundScheduler previous = mSchedulers.put(endpointId, scheduler);
+        if (previous != null) {
+            previous.stop();
+        }
+        mMeters.put(endpointId, new Meter());
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointConnected(endpointId);
+        }
+    }
+
+    @Override
+    public void onEndpointDisconnected(String endpointId) {
+        OutboundScheduler scheduler = mSchedulers.remove(endpointId);
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        mMeters.remove(endpointId);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEndpointDisconnected(endpointId);
+        }
+    }
+
+    /**
+     * Stop the schedulers of every peer, dropping what they still queue.
+     */
+    public void stop() {
+        for (String endpointId : mSchedulers.keySet()) {
+            OutboundScheduler scheduler = mSchedulers.remove(endpointId);
+            if (scheduler != null) {
+                scheduler.stop();
+            }
+        }
+    }
+
+    /**
+     * @return the peer's scheduler, or null if the peer is not connected
+     */
+    public OutboundScheduler getScheduler(String endpointId) {
+        return mSchedulers.get(endpointId);
+    }
+
+    private void onRateReport(String endpointId, byte[] payload) {
+        if (payload.length != REPORT_SIZE) {
+            new StreamCorruptedException("Bad rate report of " + payload.length + " bytes")
+                    .printStackTrace();
+            return;
+        }
+        OutboundScheduler scheduler = mSchedulers.get(endpointId);
+        if (scheduler != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload, StrokeCodec.FRAME_HEADER_SIZE, 16);
+            scheduler.onRateReport(buffer.getLong(), buffer.getLong());
+        }
+    }
+
+    /**
+     * Counts the bytes arriving from one peer, guarded by itself
+     */
+    private class Meter {
+        private boolean mStarted;
+        private long mStartNanos;
+        private long mBytes;
+
+        void count(String endpointId, int bytes) {
+            byte[] report = null;
+            synchronized (this) {
+                long now = mClock.nanoTime();
+                long elapsed = now - mStartNanos;
+                if (!mStarted || elapsed > 2 * mReportIntervalNanos) {
+                    // A long gap would measure the gap rather than the link. The
+                    // message starting the interval arrived before it
+                    mStarted = true;
+                    mStartNanos = now;
+                    mBytes = 0;
+                    return;
+                }
+                mBytes += bytes;
+                if (elapsed < mReportIntervalNanos) {
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(REPORT_SIZE);
+                buffer.put((byte) StrokeCodec.VERSION).put((byte) StrokeCodec.TYPE_RATE_REPORT)
+                        .putShort((short) (REPORT_SIZE - StrokeCodec.FRAME_HEADER_SIZE))
+                        .putLong(mBytes).putLong(elapsed);
+                report = buffer.array();
+                mStartNanos = now;
+                mBytes = 0;
+            }
+            mTransport.sendUnreliable(endpointId, report);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of every connected peer of a session and fans strokes out to them.
+ *
+ * Each peer has its own {@link OutboundSender}, so a slow peer only fills its own
+ * queue. Messages are handed to the peers with {@link OutboundSender#tryOffer(Chunk)}:
+ * a peer whose queue is full and cannot be merged loses previews and partial
+ * segments rather than holding up the others. A segment ending a stroke, the commit,
+ * takes the place of a queued partial segment, and if there is none the peer is
+ * handed to the {@link ResyncListener} to get the stroke from the board instead.
+ *
+ * A message is encoded once and the same chunk is shared by all peer queues. When
+ * relaying is on, which it should be on the advertising device that everyone
+ * connects to, stroke messages received from one peer are passed on as they are to
+ * all the other peers, without being decoded. Previews keep going over the unreliable
+ * channel.
+ *
+ * The hub also keeps a {@link ClockSync} with every peer. Clock messages are answered
+ * and consumed here, and a peer is pinged as soon as it connects and on
+ * {@link #pingPeers()}. Relayed stroke messages have their trace times moved to this
+ * device's clock, the only one the receiving peers know the offset to, or cleared if
+ * the sender's offset is not known yet.
+ *
+ * The hub is the transport's listener and passes every other event on to the local
+ * listener.
+ */
+public class SessionHub implements Transport.Listener {
+
+    /**
+     * Told about peers that missed a committed stroke
+     */
+    public interface ResyncListener {
+
+        /**
+         * A commit segment could not be queued for a peer, which will not have the
+         * stroke until its board is brought up to date, for example by sending it a
+         * summary. Called on the thread that sent the message.
+         */
+        void onResyncNeeded(String endpointId);
+    }
+
+    private final Transport mTransport;
+    private final Transport.Listener mLocalListener;
+    private final StrokeCodec mCodec;
+    private final ChunkPool mPool;
+    private final int mQueueCapacity;
+    private final ConcurrentHashMap<String, OutboundSender> mPeers = new ConcurrentHashMap<>();
+    private final ClockSync mClockSync;
+
+    private volatile boolean mRelay;
+    private volatile ResyncListener mResyncListener;
+    /** Guarded by this **/
+    private long mDroppedCommits;
+
+    /**
+     * @param transport the link to the peers, the hub becomes its listener
+     * @param localListener receiver of messages and peer events for this device
+     * @param codec codec of the stroke messages
+     * @param pool pool that messages are built in
+     * @param queueCapacity largest number of messages queued per peer
+     */
+    public SessionHub(Transport transport, Transport.Listener localListener, StrokeCodec codec,
+                      ChunkPool pool, int queueCapacity) {
+        this(transport, localListener, codec, pool, queueCapacity, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock this device's clock, for syncing with the peers' clocks
+     */
+    public SessionHub(Transport transport, Transport.Listener localListener, StrokeCodec codec,
+                      ChunkPool pool, int queueCapacity, Clock clock) {
+        mTransport = transport;
+        mLocalListener = localListener;
+        mCodec = codec;
+        mPool = pool;
+        mQueueCapacity = queueCapacity;
+        mClockSync = new ClockSync(transport, codec, clock);
+        transport.setListener(this);
+    }
+
+    /**
+     * Set whether messages from one peer are passed on to the other peers.
+     * @param relay true on the device the other peers connect to
+     */
+    public void setRelay(boolean relay) {
+        mRelay = relay;
+    }
+
+    public boolean isRelay() {
+        return mRelay;
+    }
+
+    /**
+     * Set the listener told about peers that missed a commit segment.
+     * @param listener the listener, or null
+     */
+    public void setResyncListener(ResyncListener listener) {
+        mResyncListener = listener;
+    }
+
+    /**
+     * @return number of commit segments a peer's queue had no room for
+     */
+    public synchronized long getDroppedCommits() {
+        return mDroppedCommits;
+    }
+
+    /**
+     * Send a message to every connected peer.
+     * @param chunk the encoded stroke message, owned by the hub from now on
+     * @return number of peers the message was queued for
+     */
+    public int broadcast(Chunk chunk) {
+        return sendToPeers(chunk, null);
+    }
+
+    /**
+     * Take a new clock sample of every connected peer. Call every few seconds, the
+     * clocks drift and the best samples are the recent ones with the shortest round trip.
+     */
+    public void pingPeers() {
+        for (String endpointId : mPeers.keySet()) {
+            mClockSync.ping(endpointId);
+        }
+    }
+
+    /**
+     * Get the clock offsets to the peers, for converting the times in their messages.
+     * @return the clock sync of this hub
+     */
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Get the IDs of the connected peers.
+     * @return a copy of the peer IDs
+     */
+    public List<String> getPeers() {
+        return new ArrayList<>(mPeers.keySet());
+    }
+
+    public int getPeerCount() {
+        return mPeers.size();
+    }
+
+    /**
+     * Get the sender of a peer, for its statistics.
+     * @param endpointId the peer
+     * @return the sender, or null if the peer is not connected
+     */
+    public OutboundSender getSender(String endpointId) {
+        return mPeers.get(endpointId);
+    }
+
+    /**
+     * Stop sending to all peers, without telling the local listener. Queued messages
+     * are dropped.
+     */
+    public void removeAllPeers() {
+        for (String endpointId : getPeers()) {
+            removePeer(endpointId);
+        }
+    }
+
+    @Override
+    public void onEndpointConnected(String endpointId) {
+        OutboundSender sender = new OutboundSender(mTransport, endpointId, mCodec, mPool,
+                mQueueCapacity, OutboundSender.POLICY_MERGE);
+        sender.start();
+        OutboundSender previous = mPeers.put(endpointId, sender);
+        if (previous != null) {
+            previous.stop();
+        }
+        mLocalListener.onEndpointConnected(endpointId);
+        mClockSync.ping(endpointId);
+    }
+
+    @Override
+    public void onEndpointDisconnected(String endpointId) {
+        if (removePeer(endpointId)) {
+            mLocalListener.onEndpointDisconnected(endpointId);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+        if (mClockSync.onMessageReceived(endpointId, payload)) {
+            return;
+        }
+        if (mRelay && mPeers.size() > 1 && StrokeCodec.getType(payload) == StrokeCodec.TYPE_STROKE) {
+            try {
+                Chunk chunk = mCodec.toChunk(payload, mPool);
+                if (mClockSync.hasOffset(endpointId)) {
+                    StrokeCodec.shiftTimes(chunk.getBuffer(), 0, -mClockSync.getOffsetNanos(endpointId));
+                } else {
+                    StrokeCodec.putTimes(chunk.getBuffer(), 0, 0, 0);
+                }
+                sendToPeers(chunk, endpointId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mLocalListener.onMessageReceived(endpointId, payload, reliable);
+    }
+
+    /**
+     * Queue a chunk for every peer but one.
+     * @param chunk the message, owned by the hub from now on
+     * @param except the peer to leave out, or null
+     * @return number of peers the message was queued for
+     */
+    private int sendToPeers(Chunk chunk, String except) {
+        int flags = chunk.getFlags();
+        boolean commit = (flags & PathMessage.FLAG_LAST) != 0 && (flags & PathMessage.FLAG_PREVIEW) == 0;
+        int queued = 0;
+        for (Map.Entry<String, OutboundSender> peer : mPeers.entrySet()) {
+            if (peer.getKey().equals(except)) {
+                continue;
+            }
+            if (peer.getValue().tryOffer(chunk.retain())) {
+                queued++;
+            } else if (commit) {
+                onCommitDropped(peer.getKey());
+            }
+        }
+        chunk.recycle();
+        return queued;
+    }
+
+    private void onCommitDropped(String endpointId) {
+        synchronized (this) {
+            mDroppedCommits++;
+        }
+        ResyncListener listener = mResyncListener;
+        if (listener != null) {
+            listener.onResyncNeeded(endpointId);
+        }
+    }
+
+    private boolean removePeer(String endpointId) {
+        OutboundSender sender = mPeers.remove(endpointId);
+        if (sender == null) {
+            return false;
+        }
+        mClockSync.removePeer(endpointId);
+        sender.stop();
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Characteristics of a simulated connection between two {@link SimulatedNetwork}
+ * endpoints. Each direction has its own wire, messages queue up behind each other
+ * at the configured bandwidth and then take the latency plus a random jitter.
+ *
+ * A lost unreliable message is never delivered. A lost reliable message is sent
+ * again after the retransmit delay, and reliable messages are never delivered out
+ * of order, so one loss holds back every reliable message behind it.
+ */
+public class SimulatedLink {
+
+    private final long mBandwidth;
+    private final long mLatencyNanos;
+    private final long mJitterNanos;
+    private final double mLossRate;
+    private final long mRetransmitNanos;
+
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mLost = new AtomicLong();
+
+    private SimulatedLink(Builder builder) {
+        mBandwidth = builder.mBandwidth;
+        mLatencyNanos = builder.mLatencyNanos;
+        mJitterNanos = builder.mJitterNanos;
+        mLossRate = builder.mLossRate;
+        mRetransmitNanos = builder.mRetransmitNanos >= 0
+                ? builder.mRetransmitNanos : 2 * (builder.mLatencyNanos + builder.mJitterNanos);
+    }
+
+    /**
+     * @return number of messages sent over the link, in both directions
+     */
+    public long getMessages() {
+        return mMessages.get();
+    }
+
+    /**
+     * @return number of payload bytes sent over the link, in both directions
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return number of lost transmissions, including reliable ones that were sent again
+     */
+    public long getLost() {
+        return mLost.get();
+    }
+
+    Direction newDirection() {
+        return new Direction();
+    }
+
+    /**
+     * The state of one direction of the link.
+     */
+    final class Direction {
+        private long mWireFreeAt;
+        private long mLastReliableArrival;
+
+        /**
+         * Work out when a message sent now arrives.
+         * @return the arrival time, or -1 if the message is lost
+         */
+        synchronized long schedule(int size, boolean reliable, long now, Random random) {
+            mMessages.incrementAndGet();
+            mBytes.addAndGet(size);
+            long transmit = mBandwidth > 0 ? size * 1000000000L / mBandwidth : 0;
+            long start = Math.max(now, mWireFreeAt);
+            mWireFreeAt = start + transmit;
+            long arrival = mWireFreeAt + mLatencyNanos + jitter(random);
+
+            while (mLossRate > 0 && random.nextDouble() < mLossRate) {
+                mLost.incrementAndGet();
+                if (!reliable) {
+                    return -1;
+                }
+                mWireFreeAt += transmit;
+                arrival += mRetransmitNanos + transmit;
+            }
+            if (reliable) {
+                arrival = Math.max(arrival, mLastReliableArrival);
+                mLastReliableArrival = arrival;
+            }
+            return arrival;
+        }
+
+        private long jitter(Random random) {
+            return mJitterNanos > 0 ? (long) (random.nextDouble() * mJitterNanos) : 0;
+        }
+    }
+
+    public static class Builder {
+        private long mBandwidth;
+        private long mLatencyNanos;
+        private long mJitterNanos;
+        private double mLossRate;
+        private long mRetransmitNanos = -1;
+
+        /**
+         * @param bytesPerSecond bandwidth of each direction, 0 for unlimited
+         */
+        public Builder setBandwidth(long bytesPerSecond) {
+            mBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        public Builder setLatency(long latency, TimeUnit unit) {
+            mLatencyNanos = unit.toNanos(latency);
+            return this;
+        }
+
+        /**
+         * @param jitter upper bound of the uniformly distributed extra delay
+         */
+        public Builder setJitter(long jitter, TimeUnit unit) {
+            mJitterNanos = unit.toNanos(jitter);
+            return this;
+        }
+
+        /**
+         * @param lossRate probability, 0..1, that a transmission is lost
+         */
+        public Builder setLossRate(double lossRate) {
+            mLossRate = lossRate;
+            return this;
+        }
+
+        /**
+         * @param delay extra delay of a reliable message for each time it is lost,
+         *              twice the latency plus jitter by default
+         */
+        public Builder setRetransmitDelay(long delay, TimeUnit unit) {
+            mRetransmitNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        public SimulatedLink build() {
+            if (mLossRate < 0 || mLossRate >= 1) {
+                throw new IllegalArgumentException("Loss rate out of range: " + mLossRate);
+            }
+            return new SimulatedLink(this);
+        }
+    }
+}
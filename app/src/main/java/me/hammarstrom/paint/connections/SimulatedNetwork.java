@@ -0,0 +1,256 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process network of {@link Transport} endpoints joined by {@link SimulatedLink}s,
+ * for measuring the sync code without devices.
+ *
+ * All deliveries run on a single network thread in order of arrival time, so a
+ * listener that takes long holds up the whole network. Random decisions come from
+ * one seeded generator, but since they depend on the order threads send in, runs
+ * are only repeatable for a single sending thread.
+ */
+public class SimulatedNetwork {
+
+    private final Random mRandom;
+    private final Clock mClock;
+    private final ConcurrentHashMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<>();
+
+    /** Guarded by itself **/
+    private final PriorityQueue<Delivery> mPending = new PriorityQueue<>();
+    private long mNextSequence;
+    private boolean mRunning = true;
+    private final Thread mThread;
+
+    public SimulatedNetwork(long seed) {
+        mRandom = new Random(seed);
+        mClock = Clock.SYSTEM;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        }, "SimulatedNetwork");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Create an endpoint that is not connected to anything yet.
+     * @param endpointId the ID other endpoints see it as
+     * @return the endpoint's transport
+     */
+    public Transport createEndpoint(String endpointId) {
+        Endpoint endpoint = new Endpoint(endpointId);
+        if (mEndpoints.putIfAbsent(endpointId, endpoint) != null) {
+            throw new IllegalArgumentException("Endpoint exists: " + endpointId);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Connect two endpoints, both listeners are told on the network thread.
+     */
+    public void connect(String a, String b, SimulatedLink link) {
+        final Endpoint first = endpoint(a);
+        final Endpoint second = endpoint(b);
+        first.mOutbound.put(b, link.newDirection());
+        second.mOutbound.put(a, link.newDirection());
+        long now = mClock.nanoTime();
+        enqueue(now, new Runnable() {
+            @Override
+            public void run() {
+                first.notifyConnected(second.mId);
+                second.notifyConnected(first.mId);
+            }
+        });
+    }
+
+    /**
+     * Disconnect two endpoints. Messages already on the way are still delivered.
+     */
+    public void disconnect(String a, String b) {
+        final Endpoint first = endpoint(a);
+        final Endpoint second = endpoint(b);
+        if (first.mOutbound.remove(b) == null) {
+            return;
+        }
+        second.mOutbound.remove(a);
+        enqueue(mClock.nanoTime(), new Runnable() {
+            @Override
+            public void run() {
+                first.notifyDisconnected(second.mId);
+                second.notifyDisconnected(first.mId);
+            }
+        });
+    }
+
+    /**
+     * Stop the network thread, pending deliveries are dropped.
+     */
+    public void shutdown() {
+        synchronized (mPending) {
+            mRunning = false;
+            mPending.clear();
+            mPending.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of deliveries not run yet
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    private Endpoint endpoint(String endpointId) {
+        Endpoint endpoint = mEndpoints.get(endpointId);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Unknown endpoint: " + endpointId);
+        }
+        return endpoint;
+    }
+
+    private void enqueue(long at, Runnable task) {
+        synchronized (mPending) {
+            if (!mRunning) {
+                return;
+            }
+            mPending.add(new Delivery(at, mNextSequence++, task));
+            mPending.notifyAll();
+        }
+    }
+
+    private void deliverLoop() {
+        while (true) {
+            Delivery next;
+            synchronized (mPending) {
+                while (true) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    next = mPending.peek();
+                    long wait = next == null ? 0 : next.mAt - mClock.nanoTime();
+                    if (next != null && wait <= 0) {
+                        mPending.poll();
+                        break;
+                    }
+                    try {
+                        if (next == null) {
+                            mPending.wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(mPending, wait);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                next.mTask.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static final class Delivery implements Comparable<Delivery> {
+        final long mAt;
+        final long mSequence;
+        final Runnable mTask;
+
+        Delivery(long at, long sequence, Runnable task) {
+            mAt = at;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (mAt != other.mAt) {
+                return mAt < other.mAt ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final class Endpoint implements Transport {
+        final String mId;
+        final Map<String, SimulatedLink.Direction> mOutbound = new ConcurrentHashMap<>();
+        volatile Listener mListener;
+
+        Endpoint(String id) {
+            mId = id;
+        }
+
+        @Override
+        public void sendReliable(String endpointId, byte[] payload) {
+            send(endpointId, payload, true, MAX_RELIABLE_MESSAGE_SIZE);
+        }
+
+        @Override
+        public void sendUnreliable(String endpointId, byte[] payload) {
+            send(endpointId, payload, false, MAX_UNRELIABLE_MESSAGE_SIZE);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void disconnect(String endpointId) {
+            SimulatedNetwork.this.disconnect(mId, endpointId);
+        }
+
+        private void send(String endpointId, final byte[] payload, final boolean reliable, int maxSize) {
+            if (payload.length > maxSize) {
+                throw new IllegalArgumentException("Message too large: " + payload.length + " bytes");
+            }
+            SimulatedLink.Direction direction = mOutbound.get(endpointId);
+            final Endpoint target = mEndpoints.get(endpointId);
+            if (direction == null || target == null) {
+                return;
+            }
+            long arrival = direction.schedule(payload.length, reliable, mClock.nanoTime(), mRandom);
+            if (arrival < 0) {
+                return;
+            }
+            enqueue(arrival, new Runnable() {
+                @Override
+                public void run() {
+                    Listener listener = target.mListener;
+                    if (listener != null) {
+                        listener.onMessageReceived(mId, payload, reliable);
+                    }
+                }
+            });
+        }
+
+        void notifyConnected(String endpointId) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onEndpointConnected(endpointId);
+            }
+        }
+
+        void notifyDisconnected(String endpointId) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onEndpointDisconnected(endpointId);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns the received segments of remote strokes into drawing operations.
+ *
+ * Ordinary segments arrive in order over the reliable channel and are drawn as they
+ * come. Previews, see {@link PathMessage#FLAG_PREVIEW}, may be lost, repeated or
+ * reordered: only points not drawn yet are passed on, and a gap left by lost
+ * previews is drawn as a straight line. Once a stroke has been previewed, its
+ * reliable segments are collected until the last one arrives, and then replace
+ * everything drawn for the stroke. Previews arriving after that are ignored.
+ *
+ * Not thread safe.
+ */
+public class StrokeAssembler {
+
+    /**
+     * Receiver of the drawing operations
+     */
+    public interface Listener {
+
+        /**
+         * A stroke was seen for the first time.
+         * @param timestamp Lamport timestamp of the stroke, see {@link PathMessage#getTimestamp()}
+         */
+        void onStrokeStarted(int strokeId, int color, float width, long timestamp);
+
+        /**
+         * Append points to a stroke. The first point of an empty stroke starts it,
+         * the others are joined to it with lines.
+         * @param message the points
+         * @param start index of the first point in the message to append
+         */
+        void onStrokePoints(int strokeId, PathMessage message, int start);
+
+        /**
+         * Draw a stroke with exactly these points, replacing what was drawn for it.
+         * @param stroke all points of the stroke
+         */
+        void onStrokeReplaced(int strokeId, PathMessage stroke);
+
+        /**
+         * A stroke is complete, no more calls will be made for it.
+         */
+        void onStrokeEnded(int strokeId);
+    }
+
+    /** Number of ended strokes remembered, to ignore their late previews **/
+    private static final int ENDED_STROKES = 1024;
+
+    private final Listener mListener;
+    private final Map<Integer, Remote> mStrokes = new HashMap<>();
+    private final Map<Integer, Boolean> mEnded = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > ENDED_STROKES;
+        }
+    };
+
+    public StrokeAssembler(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Handle a received segment.
+     * @param message the decoded segment, not kept after the call
+     */
+    public void onMessage(PathMessage message) {
+        int strokeId = message.getStrokeId();
+        if (mEnded.containsKey(strokeId)) {
+            return;
+        }
+        Remote remote = mStrokes.get(strokeId);
+        if (message.isPreview()) {
+            if (remote != null && remote.commit != null) {
+                return;
+            }
+            int end = message.getSequence() + message.getPointCount();
+            if (remote == null) {
+                remote = start(message);
+                remote.previewed = true;
+            } else if (end <= remote.drawn) {
+                return;
+            }
+            mListener.onStrokePoints(strokeId, message, Math.max(0, remote.drawn - message.getSequence()));
+            remote.drawn = end;
+            return;
+        }
+
+        if (remote == null) {
+            remote = start(message);
+        } else if (message.getSequence() <= remote.sequence) {
+            // Duplicate or out of date segment
+            return;
+        }
+        remote.sequence = message.getSequence();
+        if (remote.previewed) {
+            if (remote.commit == null) {
+                remote.commit = new PathMessage(strokeId, message.getColor(), message.getWidth());
+            }
+            for (int i = 0; i < message.getPointCount(); i++) {
+                remote.commit.addCoords(message.getX(i), message.getY(i));
+            }
+            if (message.isLast()) {
+                mListener.onStrokeReplaced(strokeId, remote.commit);
+            }
+        } else {
+            mListener.onStrokePoints(strokeId, message, 0);
+        }
+        if (message.isLast()) {
+            mStrokes.remove(strokeId);
+            mEnded.put(strokeId, Boolean.TRUE);
+            mListener.onStrokeEnded(strokeId);
+        }
+    }
+
+    /**
+     * @return number of strokes that have not ended yet
+     */
+    public int getActiveCount() {
+        return mStrokes.size();
+    }
+
+    private Remote start(PathMessage message) {
+        Remote remote = new Remote();
+        mStrokes.put(message.getStrokeId(), remote);
+        mListener.onStrokeStarted(message.getStrokeId(), message.getColor(), message.getWidth(),
+                message.getTimestamp());
+        return remote;
+    }
+
+    private static class Remote {
+        /** Sequence number of the last reliable segment **/
+        int sequence = -1;
+        /** Number of points drawn from previews **/
+        int drawn;
+        boolean previewed;
+        /** Reliable points collected to replace the previews **/
+        PathMessage commit;
+    }
+}
@@ -0,0 +1,546 @@
+package me.hammarstrom.paint.connections;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Binary wire format for {@link PathMessage}s.
+ *
+ * Every message starts with a four byte frame header followed by the body:
+ * <pre>
+ *  0  version       1 byte
+ *  1  message type  1 byte
+ *  2  body length   2 bytes, unsigned
+ *  --- stroke body ---
+ *  4  stroke id     4 bytes
+ *  8  sequence      2 bytes, unsigned, position of the message within the stroke
+ * 10  flags         1 byte, the PathMessage FLAG constants
+ * 11  color (ARGB)  4 bytes
+ * 15  width         2 bytes, unsigned, 1/16 px
+ * 17  point count   2 bytes, unsigned
+ * 19  encoding      1 byte
+ * 20  grid          2 bytes, unsigned, number of quantization steps per screen axis
+ * 22  send time     8 bytes, sender's monotonic clock in ns, 0 if not traced
+ * 30  capture age   4 bytes, unsigned, us from capturing the oldest new point to sending
+ * 34  timestamp     4 bytes, unsigned, Lamport time of the stroke's add or delete
+ * 38  points
+ * </pre>
+ * Coordinates are quantized to the grid, so a point is stored as two integers in
+ * 0..grid. With {@link #ENCODING_FIXED16} every point is two unsigned shorts. With
+ * {@link #ENCODING_DELTA_VARINT} the first point is two unsigned varints and every
+ * following point is the zig-zag varint difference to the point before it, which
+ * for touch input is usually one byte per axis.
+ *
+ * The times let the receiver trace how long a point took to reach it, once it knows
+ * the offset to the sender's clock. That offset is measured with
+ * {@link #TYPE_PING} and {@link #TYPE_PONG} messages, whose body is three times in ns:
+ * the ping's send time, then for a pong the time the ping was received and the time
+ * the pong was sent, by the ponging side's clock.
+ *
+ * All fixed size values are big endian.
+ */
+public class StrokeCodec {
+
+    public static final int VERSION = 5;
+
+    public static final int TYPE_STROKE = 1;
+    public static final int TYPE_PING = 2;
+    public static final int TYPE_PONG = 3;
+    /** A chunk of a board snapshot, see {@link me.hammarstrom.paint.sync.SnapshotSender} **/
+    public static final int TYPE_SNAPSHOT = 4;
+    /** What a board holds, see {@link me.hammarstrom.paint.sync.AntiEntropy} **/
+    public static final int TYPE_SUMMARY = 5;
+    /** Another message, compressed, see {@link MessageCompressor} **/
+    public static final int TYPE_DEFLATED = 6;
+    /** Willingness to receive compressed messages, see {@link CompressingTransport} **/
+    public static final int TYPE_DEFLATE_OFFER = 7;
+    /** A part of a message over the size limit, see {@link FragmentSender} **/
+    public static final int TYPE_FRAGMENT = 8;
+    /** How fast a peer's messages arrive, see {@link SchedulingTransport} **/
+    public static final int TYPE_RATE_REPORT = 9;
+
+    public static final int ENCODING_FIXED16 = 0;
+    public static final int ENCODING_DELTA_VARINT = 1;
+
+    /** The Nearby Connections reliable message size limit **/
+    public static final int MAX_MESSAGE_SIZE = 4096;
+
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int STROKE_HEADER_SIZE = 34;
+    public static final int CLOCK_MESSAGE_SIZE = FRAME_HEADER_SIZE + 24;
+
+    /** Largest number of bytes a single point can occupy in any encoding **/
+    public static final int MAX_POINT_SIZE = 6;
+
+    public static final int MAX_GRID_RESOLUTION = 0xFFFF;
+    public static final int DEFAULT_GRID_RESOLUTION = 4096;
+
+    static final int OFFSET_BODY_LENGTH = 2;
+    static final int OFFSET_FLAGS = 10;
+    static final int OFFSET_POINT_COUNT = 17;
+    static final int OFFSET_SEND_NANOS = 22;
+    static final int OFFSET_CAPTURE_AGE = 30;
+
+    private static final float WIDTH_SCALE = 16f;
+
+    private final int mEncoding;
+    private final int mGridResolution;
+
+    /**
+     * Create a codec using delta encoding on the default grid.
+     */
+    public StrokeCodec() {
+        this(ENCODING_DELTA_VARINT, DEFAULT_GRID_RESOLUTION);
+    }
+
+    /**
+     * Create a codec. The settings only affect encoding, any codec decodes all encodings.
+     * @param encoding {@link #ENCODING_FIXED16} or {@link #ENCODING_DELTA_VARINT}
+     * @param gridResolution number of quantization steps per screen axis, 1..65535
+     */
+    public StrokeCodec(int encoding, int gridResolution) {
+        if (encoding != ENCODING_FIXED16 && encoding != ENCODING_DELTA_VARINT) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+        if (gridResolution < 1 || gridResolution > MAX_GRID_RESOLUTION) {
+            throw new IllegalArgumentException("Grid resolution out of range: " + gridResolution);
+        }
+        mEncoding = encoding;
+        mGridResolution = gridResolution;
+    }
+
+    public int getEncoding() {
+        return mEncoding;
+    }
+
+    public int getGridResolution() {
+        return mGridResolution;
+    }
+
+    /**
+     * Get the number of bytes a message will occupy when encoded.
+     * @param message the message to measure
+     * @return the encoded length in bytes
+     */
+    public int encodedLength(PathMessage message) {
+        int pointCount = message.getPointCount();
+        int length = FRAME_HEADER_SIZE + STROKE_HEADER_SIZE;
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int x = quantize(message.getX(i));
+            int y = quantize(message.getY(i));
+            length += pointSize(i == 0, x, y, lastX, lastY);
+            lastX = x;
+            lastY = y;
+        }
+        return length;
+    }
+
+    /**
+     * Encode a message into a new byte array.
+     * @param message the message to encode, must fit in {@link #MAX_MESSAGE_SIZE}
+     * @return the encoded message
+     */
+    public byte[] encode(PathMessage message) {
+        byte[] buffer = new byte[encodedLength(message)];
+        encode(message, buffer, 0);
+        return buffer;
+    }
+
+    /**
+     * Encode a message into an existing buffer.
+     * @param message the message to encode, must fit in {@link #MAX_MESSAGE_SIZE}
+     * @param buffer the destination buffer
+     * @param offset the position in buffer to start writing at
+     * @return the number of bytes written
+     */
+    public int encode(PathMessage message, byte[] buffer, int offset) {
+        int length = encodedLength(message);
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message too large: " + length + " bytes");
+        }
+
+        int pointCount = message.getPointCount();
+        int pos = writeHeader(buffer, offset, message.getStrokeId(), message.getSequence(),
+                message.getColor(), message.getWidth(), message.getTimestamp());
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int x = quantize(message.getX(i));
+            int y = quantize(message.getY(i));
+            pos = putPoint(buffer, pos, i == 0, x, y, lastX, lastY);
+            lastX = x;
+            lastY = y;
+        }
+        finishHeader(buffer, offset, pos - offset, message.getFlags(), pointCount);
+        putTimes(buffer, offset, message.getCaptureNanos(), message.getSendNanos());
+        return pos - offset;
+    }
+
+    /**
+     * Write the frame and stroke header with zero length, flags and point count,
+     * to be filled in by {@link #finishHeader} once the points are written.
+     * @return the position after the header
+     */
+    int writeHeader(byte[] buffer, int offset, int strokeId, int sequence, int color, float width,
+                    long timestamp) {
+        int pos = offset;
+        buffer[pos++] = (byte) VERSION;
+        buffer[pos++] = (byte) TYPE_STROKE;
+        pos = putShort(buffer, pos, 0);
+        pos = putInt(buffer, pos, strokeId);
+        pos = putShort(buffer, pos, sequence & 0xFFFF);
+        buffer[pos++] = 0;
+        pos = putInt(buffer, pos, color);
+        pos = putShort(buffer, pos, Math.min(0xFFFF, Math.round(width * WIDTH_SCALE)));
+        pos = putShort(buffer, pos, 0);
+        buffer[pos++] = (byte) mEncoding;
+        pos = putShort(buffer, pos, mGridResolution);
+        pos = putLong(buffer, pos, 0);
+        pos = putInt(buffer, pos, 0);
+        pos = putInt(buffer, pos, (int) timestamp);
+        return pos;
+    }
+
+    /**
+     * Fill in the header fields that are only known when the points are written.
+     * @param length total length of the message including the frame header
+     */
+    static void finishHeader(byte[] buffer, int offset, int length, int flags, int pointCount) {
+        putShort(buffer, offset + OFFSET_BODY_LENGTH, length - FRAME_HEADER_SIZE);
+        buffer[offset + OFFSET_FLAGS] = (byte) flags;
+        putShort(buffer, offset + OFFSET_POINT_COUNT, pointCount);
+    }
+
+    /**
+     * Fill in the trace times of a stroke message.
+     * @param captureNanos when the oldest new point was captured
+     * @param sendNanos when the message was sent, 0 if it is not traced
+     */
+    static void putTimes(byte[] buffer, int offset, long captureNanos, long sendNanos) {
+        putLong(buffer, offset + OFFSET_SEND_NANOS, sendNanos);
+        long ageMicros = Math.max(0, Math.min(0xFFFFFFFFL, (sendNanos - captureNanos) / 1000));
+        putInt(buffer, offset + OFFSET_CAPTURE_AGE, sendNanos == 0 ? 0 : (int) ageMicros);
+    }
+
+    /**
+     * Move the trace times of an encoded stroke message to another clock, for passing
+     * it on to peers that know the offset to this device's clock only.
+     * @param deltaNanos added to the times
+     */
+    static void shiftTimes(byte[] buffer, int offset, long deltaNanos) {
+        long sendNanos = getLong(buffer, offset + OFFSET_SEND_NANOS);
+        if (sendNanos != 0) {
+            putLong(buffer, offset + OFFSET_SEND_NANOS, sendNanos + deltaNanos);
+        }
+    }
+
+    /**
+     * Get the type of an encoded message.
+     * @return one of the TYPE constants, or -1 if the payload is not a message of
+     * this version
+     */
+    public static int getType(byte[] payload) {
+        if (payload.length < FRAME_HEADER_SIZE || (payload[0] & 0xFF) != VERSION) {
+            return -1;
+        }
+        return payload[1] & 0xFF;
+    }
+
+    /**
+     * Encode a clock sync message.
+     * @param type {@link #TYPE_PING} or {@link #TYPE_PONG}
+     * @param originNanos when the ping was sent
+     * @param receivedNanos when the ping was received, 0 for a ping
+     * @param replyNanos when the pong was sent, 0 for a ping
+     */
+    public byte[] encodeClock(int type, long originNanos, long receivedNanos, long replyNanos) {
+        if (type != TYPE_PING && type != TYPE_PONG) {
+            throw new IllegalArgumentException("Not a clock message type: " + type);
+        }
+        byte[] buffer = new byte[CLOCK_MESSAGE_SIZE];
+        buffer[0] = (byte) VERSION;
+        buffer[1] = (byte) type;
+        int pos = putShort(buffer, 2, CLOCK_MESSAGE_SIZE - FRAME_HEADER_SIZE);
+        pos = putLong(buffer, pos, originNanos);
+        pos = putLong(buffer, pos, receivedNanos);
+        putLong(buffer, pos, replyNanos);
+        return buffer;
+    }
+
+    /**
+     * Decode a clock sync message.
+     * @param into receives the origin, received and reply times
+     * @return the message type
+     * @throws IOException if the bytes are not a valid clock message
+     */
+    public int decodeClock(byte[] payload, long[] into) throws IOException {
+        int type = getType(payload);
+        if (type != TYPE_PING && type != TYPE_PONG) {
+            throw new StreamCorruptedException("Not a clock message: " + type);
+        }
+        if (payload.length != CLOCK_MESSAGE_SIZE
+                || getShort(payload, 2) != CLOCK_MESSAGE_SIZE - FRAME_HEADER_SIZE) {
+            throw new StreamCorruptedException("Invalid clock message length: " + payload.length);
+        }
+        into[0] = getLong(payload, FRAME_HEADER_SIZE);
+        into[1] = getLong(payload, FRAME_HEADER_SIZE + 8);
+        into[2] = getLong(payload, FRAME_HEADER_SIZE + 16);
+        return type;
+    }
+
+    /**
+     * Get the encoded size of a quantized point.
+     * @param first true for the first point of a message
+     * @param lastX quantized x of the previous point, ignored for the first point
+     * @param lastY quantized y of the previous point, ignored for the first point
+     */
+    int pointSize(boolean first, int x, int y, int lastX, int lastY) {
+        if (mEncoding == ENCODING_FIXED16) {
+            return 4;
+        }
+        if (first) {
+            return varintSize(x) + varintSize(y);
+        }
+        return varintSize(zigZag(x - lastX)) + varintSize(zigZag(y - lastY));
+    }
+
+    /**
+     * Write a quantized point.
+     * @return the position after the point
+     */
+    int putPoint(byte[] buffer, int pos, boolean first, int x, int y, int lastX, int lastY) {
+        if (mEncoding == ENCODING_FIXED16) {
+            pos = putShort(buffer, pos, x);
+            return putShort(buffer, pos, y);
+        }
+        if (first) {
+            pos = putVarint(buffer, pos, x);
+            return putVarint(buffer, pos, y);
+        }
+        pos = putVarint(buffer, pos, zigZag(x - lastX));
+        return putVarint(buffer, pos, zigZag(y - lastY));
+    }
+
+    /**
+     * Copy an encoded message into a pooled chunk, for passing a received message on
+     * without decoding it. Only the headers are checked.
+     * @param payload the encoded message
+     * @param pool the pool to take the chunk from
+     * @return the chunk, owned by the caller
+     * @throws IOException if the headers are not valid
+     */
+    public Chunk toChunk(byte[] payload, ChunkPool pool) throws IOException {
+        int length = payload.length;
+        if (length < FRAME_HEADER_SIZE + STROKE_HEADER_SIZE || length > pool.getChunkSize()) {
+            throw new StreamCorruptedException("Invalid message length: " + length);
+        }
+        if ((payload[0] & 0xFF) != VERSION || (payload[1] & 0xFF) != TYPE_STROKE) {
+            throw new StreamCorruptedException("Not a stroke message");
+        }
+        if (FRAME_HEADER_SIZE + getShort(payload, OFFSET_BODY_LENGTH) != length) {
+            throw new StreamCorruptedException("Length does not match header");
+        }
+        Chunk chunk = pool.acquire();
+        System.arraycopy(payload, 0, chunk.getBuffer(), 0, length);
+        chunk.set(length, getInt(payload, FRAME_HEADER_SIZE), getShort(payload, FRAME_HEADER_SIZE + 4),
+                payload[OFFSET_FLAGS] & 0xFF, getShort(payload, OFFSET_POINT_COUNT));
+        return chunk;
+    }
+
+    /**
+     * Decode a message.
+     * @param bytes the encoded message
+     * @return a new message
+     * @throws IOException if the bytes are not a valid stroke message
+     */
+    public PathMessage decode(byte[] bytes) throws IOException {
+        PathMessage message = new PathMessage();
+        decode(bytes, 0, bytes.length, message);
+        return message;
+    }
+
+    /**
+     * Decode a message into an existing instance, replacing its header and points.
+     * @param bytes buffer holding the encoded message
+     * @param offset position of the message in the buffer
+     * @param length number of bytes available
+     * @param into the message to decode into
+     * @throws IOException if the bytes are not a valid stroke message
+     */
+    public void decode(byte[] bytes, int offset, int length, PathMessage into) throws IOException {
+        if (length < FRAME_HEADER_SIZE + STROKE_HEADER_SIZE) {
+            throw new StreamCorruptedException("Message too short: " + length);
+        }
+        int pos = offset;
+        int version = bytes[pos++] & 0xFF;
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported version: " + version);
+        }
+        int type = bytes[pos++] & 0xFF;
+        if (type != TYPE_STROKE) {
+            throw new StreamCorruptedException("Unknown message type: " + type);
+        }
+        int bodyLength = getShort(bytes, pos);
+        pos += 2;
+        if (bodyLength < STROKE_HEADER_SIZE || FRAME_HEADER_SIZE + bodyLength > length) {
+            throw new StreamCorruptedException("Truncated message");
+        }
+        int end = offset + FRAME_HEADER_SIZE + bodyLength;
+
+        into.setStrokeId(getInt(bytes, pos));
+        pos += 4;
+        into.setSequence(getShort(bytes, pos));
+        pos += 2;
+        into.setFlags(bytes[pos++] & 0xFF);
+        into.setColor(getInt(bytes, pos));
+        pos += 4;
+        into.setWidth(getShort(bytes, pos) / WIDTH_SCALE);
+        pos += 2;
+        int pointCount = getShort(bytes, pos);
+        pos += 2;
+        int encoding = bytes[pos++] & 0xFF;
+        int grid = getShort(bytes, pos);
+        pos += 2;
+        if (grid == 0) {
+            throw new StreamCorruptedException("Invalid grid resolution");
+        }
+        long sendNanos = getLong(bytes, pos);
+        pos += 8;
+        long captureAgeMicros = getInt(bytes, pos) & 0xFFFFFFFFL;
+        pos += 4;
+        into.setSendNanos(sendNanos);
+        into.setCaptureNanos(sendNanos - captureAgeMicros * 1000);
+        into.setTimestamp(getInt(bytes, pos) & 0xFFFFFFFFL);
+        pos += 4;
+        float scale = 1f / grid;
+
+        into.clearList();
+        into.ensureCapacity(pointCount);
+        if (encoding == ENCODING_FIXED16) {
+            if (pos + pointCount * 4 != end) {
+                throw new StreamCorruptedException("Point count does not match length");
+            }
+            for (int i = 0; i < pointCount; i++) {
+                into.addCoords(getShort(bytes, pos) * scale, getShort(bytes, pos + 2) * scale);
+                pos += 4;
+            }
+        } else if (encoding == ENCODING_DELTA_VARINT) {
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < pointCount; i++) {
+                // Each varint stores its value in the low bits and the end position above them
+                long vx = getVarint(bytes, pos, end);
+                pos = (int) (vx >>> 32);
+                long vy = getVarint(bytes, pos, end);
+                pos = (int) (vy >>> 32);
+                if (i == 0) {
+                    x = (int) vx;
+                    y = (int) vy;
+                } else {
+                    x += unZigZag((int) vx);
+                    y += unZigZag((int) vy);
+                }
+                into.addCoords(x * scale, y * scale);
+            }
+            if (pos != end) {
+                throw new StreamCorruptedException("Point count does not match length");
+            }
+        } else {
+            throw new StreamCorruptedException("Unknown encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Map a normalized coordinate to the grid.
+     */
+    int quantize(float normalized) {
+        if (normalized <= 0f) {
+            return 0;
+        }
+        if (normalized >= 1f) {
+            return mGridResolution;
+        }
+        return Math.round(normalized * mGridResolution);
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarint(byte[] buffer, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Read an unsigned varint of at most 32 bits.
+     * @return the value in the low 32 bits and the position after it in the high 32 bits
+     */
+    private static long getVarint(byte[] buffer, int pos, int end) throws StreamCorruptedException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= end) {
+                throw new StreamCorruptedException("Truncated varint");
+            }
+            int b = buffer[pos++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ((long) pos << 32) | (value & 0xFFFFFFFFL);
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private static int putShort(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 8);
+        buffer[pos + 1] = (byte) value;
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] buffer, int pos, long value) {
+        putInt(buffer, pos, (int) (value >>> 32));
+        return putInt(buffer, pos + 4, (int) value);
+    }
+
+    private static long getLong(byte[] buffer, int pos) {
+        return ((long) getInt(buffer, pos) << 32) | (getInt(buffer, pos + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getShort(byte[] buffer, int pos) {
+        return ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] buffer, int pos) {
+        return ((buffer[pos] & 0xFF) << 24)
+                | ((buffer[pos + 1] & 0xFF) << 16)
+                | ((buffer[pos + 2] & 0xFF) << 8)
+                | (buffer[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,336 @@
+package me.hammarstrom.paint.connections;
+
+/**
+ * Splits the stroke being drawn into segments that are sent while the stroke is
+ * still in progress. A segment is handed to the {@link SegmentSink} as soon as the
+ * oldest unsent point has waited for the time budget, or when the next point does
+ * not fit in the size budget, whichever comes first.
+ *
+ * All segments of a stroke carry the stroke id and consecutive sequence numbers so
+ * that the receiver can append them to the same path.
+ *
+ * Points are only checked against the time budget when they are added, the owner
+ * should also call {@link #flushIfDue()} after {@link #getFlushDelayNanos()} so that
+ * a pause in the input does not hold back points.
+ *
+ * With previews enabled, see {@link #enablePreviews(int)}, the segments are sent as
+ * {@link PathMessage#FLAG_PREVIEW} messages meant for the unreliable channel. Each
+ * preview repeats the points of a few earlier previews so that a lost preview is
+ * covered by the next one. When the stroke ends, all of its points are sent again as
+ * ordinary segments for the reliable channel, which the receiver draws instead of
+ * the previews.
+ *
+ * Each segment is stamped with the capture time of its oldest new point and the
+ * time it is handed to the sink, by the streamer's clock. Commits count as captured
+ * when the stroke ended.
+ *
+ * Deletes of strokes go out through the sink too, see {@link #deleteStroke(int, long)}.
+ *
+ * Points are encoded as they arrive with a {@link ChunkBuilder}, so adding a point
+ * does not allocate once the chunk pool is warm. Not thread safe, use from the
+ * thread delivering touch events.
+ */
+public class StrokeStreamer {
+
+    /**
+     * Receiver of finished segments
+     */
+    public interface SegmentSink {
+
+        /**
+         * Called when a segment is ready to be sent.
+         * @param segment the encoded segment, the sink owns it and must recycle it
+         */
+        void onSegment(Chunk segment);
+    }
+
+    /** Default time budget, about one frame at 60 Hz **/
+    public static final long DEFAULT_MAX_DELAY_NANOS = 16000000L;
+
+    /** Default number of earlier previews repeated in each preview **/
+    public static final int DEFAULT_PREVIEW_REDUNDANCY = 2;
+
+    /** Previews address points by a 16 bit index, longer strokes are only committed **/
+    private static final int MAX_PREVIEW_POINTS = 0xFFFF;
+
+    private final StrokeCodec mCodec;
+    private final ChunkPool mPool;
+    private final int mMaxSegmentBytes;
+    private final ChunkBuilder mBuilder;
+    /** Builds deletes, which may come while a stroke is being built **/
+    private final ChunkBuilder mDeleteBuilder;
+    private final SegmentSink mSink;
+    private final Clock mClock;
+    private final long mMaxDelayNanos;
+
+    private boolean mStrokeActive;
+    private int mStrokeId;
+    private int mColor;
+    private float mWidth;
+    private long mTimestamp;
+    private int mNextSequence;
+    private long mOldestPendingNanos;
+
+    private boolean mPreviews;
+    private ChunkBuilder mPreviewBuilder;
+    private ChunkBuilder mCommitBuilder;
+    /** All points of the active stroke, kept for the commit **/
+    private PathMessage mStroke;
+    /** Index of the first point of the pending segment and of the earlier previews, newest first **/
+    private int[] mSegmentStarts;
+    private int mSegmentStartCount;
+
+    /**
+     * @param codec codec used to encode segments
+     * @param pool pool to take segment buffers from
+     * @param sink receiver of finished segments
+     * @param clock time source for the time budget
+     * @param maxDelayNanos longest time a point may wait before it is sent
+     * @param maxSegmentBytes largest encoded segment, at most {@link StrokeCodec#MAX_MESSAGE_SIZE}
+     */
+    public StrokeStreamer(StrokeCodec codec, ChunkPool pool, SegmentSink sink, Clock clock,
+                          long maxDelayNanos, int maxSegmentBytes) {
+        mCodec = codec;
+        mPool = pool;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mBuilder = new ChunkBuilder(codec, pool, maxSegmentBytes);
+        mDeleteBuilder = new ChunkBuilder(codec, pool, maxSegmentBytes);
+        mSink = sink;
+        mClock = clock;
+        mMaxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Send the segments as previews for the unreliable channel and commit each
+     * stroke with reliable segments when it ends. Call between strokes.
+     * @param redundancy number of earlier previews whose points are repeated in each preview
+     */
+    public void enablePreviews(int redundancy) {
+        if (mMaxSegmentBytes > Transport.MAX_UNRELIABLE_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Segments too large for previews: " + mMaxSegmentBytes);
+        }
+        if (redundancy < 0) {
+            throw new IllegalArgumentException("Invalid redundancy: " + redundancy);
+        }
+        mPreviews = true;
+        mPreviewBuilder = new ChunkBuilder(mCodec, mPool, mMaxSegmentBytes);
+        mCommitBuilder = new ChunkBuilder(mCodec, mPool, StrokeCodec.MAX_MESSAGE_SIZE);
+        mStroke = new PathMessage();
+        mSegmentStarts = new int[redundancy + 1];
+    }
+
+    public boolean isPreviewEnabled() {
+        return mPreviews;
+    }
+
+    /**
+     * Start a new stroke. A stroke that was not ended is dropped.
+     * @param strokeId id of the new stroke
+     * @param color stroke color
+     * @param width stroke width
+     * @param timestamp Lamport timestamp of the stroke, see {@link PathMessage#getTimestamp()}
+     * @param x normalized x coordinate of the first point
+     * @param y normalized y coordinate of the first point
+     */
+    public void beginStroke(int strokeId, int color, float width, long timestamp, float x, float y) {
+        mBuilder.discard();
+        mStrokeId = strokeId;
+        mColor = color;
+        mWidth = width;
+        mTimestamp = timestamp;
+        mStrokeActive = true;
+        mNextSequence = 0;
+        if (mPreviews) {
+            mStroke.clearList();
+            mSegmentStartCount = 0;
+        }
+        addPoint(x, y);
+    }
+
+    /**
+     * Add a point to the active stroke, sending a segment if a budget is reached.
+     * @param x normalized x coordinate
+     * @param y normalized y coordinate
+     */
+    public void addPoint(float x, float y) {
+        if (!mStrokeActive) {
+            return;
+        }
+        if (mPreviews) {
+            mStroke.addCoords(x, y);
+            if (mStroke.getPointCount() > MAX_PREVIEW_POINTS) {
+                return;
+            }
+        }
+        if (!mBuilder.isOpen()) {
+            open();
+        }
+        if (!mBuilder.append(x, y)) {
+            flush(false);
+            open();
+            mBuilder.append(x, y);
+        }
+        flushIfDue();
+    }
+
+    /**
+     * Add the last point of the active stroke and send the final segment.
+     * @param x normalized x coordinate
+     * @param y normalized y coordinate
+     */
+    public void endStroke(float x, float y) {
+        if (!mStrokeActive) {
+            return;
+        }
+        addPoint(x, y);
+        if (mPreviews) {
+            // Preview the pending points too, the commit may take a retransmission
+            if (mBuilder.isOpen()) {
+                flushPreview();
+            }
+            commit();
+            mStrokeActive = false;
+            return;
+        }
+        if (!mBuilder.isOpen()) {
+            // Everything was sent already, the receiver still needs to know the stroke ended
+            open();
+        }
+        flush(true);
+        mStrokeActive = false;
+    }
+
+    /**
+     * Send the delete of a stroke, as a message of its own for the reliable channel.
+     * Does not touch the active stroke.
+     * @param strokeId the deleted stroke
+     * @param timestamp Lamport timestamp of the delete
+     */
+    public void deleteStroke(int strokeId, long timestamp) {
+        mDeleteBuilder.begin(strokeId, 0, 0, 0f, timestamp);
+        long now = mClock.nanoTime();
+        int flags = PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST | PathMessage.FLAG_DELETE;
+        mSink.onSegment(mDeleteBuilder.finish(flags, now, now));
+    }
+
+    /**
+     * Send the pending points if the oldest of them has waited for the time budget.
+     * @return true if a segment was sent
+     */
+    public boolean flushIfDue() {
+        if (mBuilder.isOpen() && mClock.nanoTime() - mOldestPendingNanos >= mMaxDelayNanos) {
+            flush(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the time until the pending points are due.
+     * @return nanoseconds until {@link #flushIfDue()} will send, or -1 if nothing is pending
+     */
+    public long getFlushDelayNanos() {
+        if (!mBuilder.isOpen()) {
+            return -1;
+        }
+        return Math.max(0L, mOldestPendingNanos + mMaxDelayNanos - mClock.nanoTime());
+    }
+
+    public boolean isStrokeActive() {
+        return mStrokeActive;
+    }
+
+    private void open() {
+        if (mPreviews) {
+            int start = mStroke.getPointCount() - 1;
+            System.arraycopy(mSegmentStarts, 0, mSegmentStarts, 1, mSegmentStarts.length - 1);
+            mSegmentStarts[0] = start;
+            mSegmentStartCount = Math.min(mSegmentStartCount + 1, mSegmentStarts.length);
+            mBuilder.begin(mStrokeId, start, mColor, mWidth, mTimestamp);
+        } else {
+            mBuilder.begin(mStrokeId, mNextSequence, mColor, mWidth, mTimestamp);
+        }
+        mOldestPendingNanos = mClock.nanoTime();
+    }
+
+    private void flush(boolean last) {
+        if (mPreviews) {
+            flushPreview();
+            return;
+        }
+        int flags = 0;
+        if (mNextSequence == 0) {
+            flags |= PathMessage.FLAG_FIRST;
+        }
+        if (last) {
+            flags |= PathMessage.FLAG_LAST;
+        }
+        mNextSequence++;
+        mSink.onSegment(mBuilder.finish(flags, mOldestPendingNanos, mClock.nanoTime()));
+    }
+
+    /**
+     * Send the pending points as a preview, together with the points of as many
+     * earlier previews as fit.
+     */
+    private void flushPreview() {
+        int flags = PathMessage.FLAG_PREVIEW;
+        int end = mStroke.getPointCount();
+        if (mBuilder.getPointCount() < end - mSegmentStarts[0]) {
+            // The last point went to the next segment
+            end--;
+        }
+        for (int i = mSegmentStartCount - 1; i > 0; i--) {
+            int start = mSegmentStarts[i];
+            if (build(mPreviewBuilder, start, end)) {
+                mBuilder.discard();
+                mSink.onSegment(mPreviewBuilder.finish(start == 0 ? flags | PathMessage.FLAG_FIRST : flags,
+                        mOldestPendingNanos, mClock.nanoTime()));
+                return;
+            }
+        }
+        mSink.onSegment(mBuilder.finish(mSegmentStarts[0] == 0 ? flags | PathMessage.FLAG_FIRST : flags,
+                mOldestPendingNanos, mClock.nanoTime()));
+    }
+
+    /**
+     * Send every point of the stroke in reliable segments.
+     */
+    private void commit() {
+        long captured = mClock.nanoTime();
+        int count = mStroke.getPointCount();
+        int sequence = 0;
+        int start = 0;
+        do {
+            mCommitBuilder.begin(mStrokeId, sequence, mColor, mWidth, mTimestamp);
+            int end = start;
+            while (end < count && mCommitBuilder.append(mStroke.getX(end), mStroke.getY(end))) {
+                end++;
+            }
+            int flags = 0;
+            if (sequence == 0) {
+                flags |= PathMessage.FLAG_FIRST;
+            }
+            if (end == count) {
+                flags |= PathMessage.FLAG_LAST;
+            }
+            mSink.onSegment(mCommitBuilder.finish(flags, captured, mClock.nanoTime()));
+            sequence++;
+            start = end;
+        } while (start < count);
+    }
+
+    /**
+     * @return false if the points do not fit, the builder is discarded then
+     */
+    private boolean build(ChunkBuilder builder, int start, int end) {
+        builder.begin(mStrokeId, start, mColor, mWidth, mTimestamp);
+        for (int i = start; i < end; i++) {
+            if (!builder.append(mStroke.getX(i), mStroke.getY(i))) {
+                builder.discard();
+                return false;
+            }
+        }
+        return true;
+    }
+}
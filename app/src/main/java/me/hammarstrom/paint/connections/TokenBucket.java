@@ -0,0 +1,83 @@
+package me.hammarstrom.paint.connections;
+
+/**
+ * Limits the rate of sending to a number of bytes per second, with room for a short
+ * burst.
+ *
+ * Tokens are bytes. They build up at the rate while unused, up to the burst size.
+ * Sending takes the message's size at once, even if the bucket holds fewer, and the
+ * debt is paid off before the next message may go. So the next message is chosen
+ * at the last moment, when the link is ready for it. Not thread safe.
+ */
+public class TokenBucket {
+
+    private final long mBurstBytes;
+    private final Clock mClock;
+    private long mBytesPerSecond;
+    private long mTokens;
+    private long mLastNanos;
+
+    /**
+     * @param bytesPerSecond the rate
+     * @param burstBytes most bytes sent at once after a pause
+     * @param clock source of the time tokens build up over
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes, Clock clock) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond + " bytes/s, burst "
+                    + burstBytes + " bytes");
+        }
+        mBytesPerSecond = bytesPerSecond;
+        mBurstBytes = burstBytes;
+        mClock = clock;
+        mTokens = burstBytes;
+        mLastNanos = clock.nanoTime();
+    }
+
+    /**
+     * @return time until the next message may be sent, 0 if it may go now
+     */
+    public long getWaitNanos() {
+        refill();
+        return mTokens >= 0 ? 0 : (-mTokens * 1000000000L + mBytesPerSecond - 1) / mBytesPerSecond;
+    }
+
+    /**
+     * Take the tokens for a message being sent, going into debt if need be.
+     * @param bytes size of the message
+     */
+    public void take(int bytes) {
+        refill();
+        mTokens -= bytes;
+    }
+
+    public long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Change the rate, tokens built up so far are kept.
+     */
+    public void setRate(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+        }
+        refill();
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = mClock.nanoTime();
+        // Capped so that the product cannot overflow, the bucket is full long before
+        long elapsed = Math.min(now - mLastNanos, 10000000000L);
+        long tokens = elapsed * mBytesPerSecond / 1000000000L;
+        if (tokens > 0) {
+            mTokens = Math.min(mBurstBytes, mTokens + tokens);
+            // Keep the remainder, so a slow rate still builds up
+            mLastNanos += tokens * 1000000000L / mBytesPerSecond;
+        }
+        if (mTokens == mBurstBytes) {
+            mLastNanos = now;
+        }
+    }
+}
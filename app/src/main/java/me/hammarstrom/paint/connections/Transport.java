@@ -0,0 +1,67 @@
+package me.hammarstrom.paint.connections;
+
+/**
+ * The link messages are sent over. Lets the sync code run against Nearby
+ * Connections on a device, see {@link NearbyTransport}, and against
+ * {@link LoopbackTransport} or {@link SimulatedNetwork} in tests.
+ */
+public interface Transport {
+
+    /** Largest reliable message, the Nearby Connections limit **/
+    int MAX_RELIABLE_MESSAGE_SIZE = 4096;
+
+    /** Largest unreliable message, the Nearby Connections limit **/
+    int MAX_UNRELIABLE_MESSAGE_SIZE = 1168;
+
+    /**
+     * Receiver of transport events. Implementations document which thread calls it.
+     */
+    interface Listener {
+
+        /**
+         * Called when a message has arrived.
+         * @param endpointId the sending endpoint
+         * @param payload the message
+         * @param reliable true if it was sent with {@link #sendReliable}
+         */
+        void onMessageReceived(String endpointId, byte[] payload, boolean reliable);
+
+        /**
+         * Called when a connection to an endpoint is established.
+         * @param endpointId the endpoint
+         */
+        void onEndpointConnected(String endpointId);
+
+        /**
+         * Called when the connection to an endpoint is lost or closed.
+         * @param endpointId the endpoint
+         */
+        void onEndpointDisconnected(String endpointId);
+    }
+
+    /**
+     * Send a message that is delivered in order, or not at all if the link is lost.
+     * @param endpointId the receiving endpoint
+     * @param payload the message, at most {@link #MAX_RELIABLE_MESSAGE_SIZE} bytes
+     */
+    void sendReliable(String endpointId, byte[] payload);
+
+    /**
+     * Send a message that may be lost, duplicated or delivered out of order.
+     * @param endpointId the receiving endpoint
+     * @param payload the message, at most {@link #MAX_UNRELIABLE_MESSAGE_SIZE} bytes
+     */
+    void sendUnreliable(String endpointId, byte[] payload);
+
+    /**
+     * Set the receiver of incoming messages and endpoint events.
+     * @param listener the listener, or null to stop receiving
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Close the connection to an endpoint.
+     * @param endpointId the endpoint
+     */
+    void disconnect(String endpointId);
+}
@@ -3,19 +3,156 @@ package me.hammarstrom.paint.drawing;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 
 /**
  * Created by Fredrik Hammarström on 12/10/15.
+ *
+ * Draws a {@link Stroke}, mapped from normalized coordinates to pixels by a
+ * {@link Viewport}. The Path is derived from the stroke when it is drawn: points added
+ * since the last draw are appended to it, and it is rebuilt if the stroke was rewound.
+ *
+ * A smooth path is drawn as quadratic curves through the midpoints between the
+ * points, with each point as the control point, which rounds off the corners of
+ * strokes whose points were thinned out. The half segment from the last midpoint to
+ * the last point is drawn as a line, since the curve into it is not known yet.
  */
 public class DrawingPath {
-    public Path path;
-    public Paint paint;
+    public final Stroke stroke;
+    public final Paint paint;
+    public final Viewport viewport;
+    public final boolean smooth;
+
+    /** Area covered by the path as last computed, including the stroke width **/
+    final RectF bounds = new RectF();
+
+    /** Derived from the stroke, null until drawn **/
+    private Path path;
+    /** Points of the stroke in the path **/
+    private int pathPoints;
+    private int pathGeneration;
+
+    public DrawingPath(Stroke stroke, Paint paint, Viewport viewport) {
+        this(stroke, paint, viewport, false);
+    }
+
+    /**
+     * @param smooth true to draw curves through the midpoints instead of lines
+     */
+    public DrawingPath(Stroke stroke, Paint paint, Viewport viewport, boolean smooth) {
+        this.stroke = stroke;
+        this.paint = paint;
+        this.viewport = viewport;
+        this.smooth = smooth;
+    }
 
     /**
      * Draw path on canvas
      * @param canvas
      */
     public void draw(Canvas canvas) {
-        canvas.drawPath(path, paint);
+        canvas.drawPath(getPath(), paint);
+        int count = stroke.getPointCount();
+        if (smooth && count > 1) {
+            float x = viewport.mapX(stroke.getX(count - 1));
+            float y = viewport.mapY(stroke.getY(count - 1));
+            float previousX = viewport.mapX(stroke.getX(count - 2));
+            float previousY = viewport.mapY(stroke.getY(count - 2));
+            canvas.drawLine((previousX + x) / 2f, (previousY + y) / 2f, x, y, paint);
+        }
+    }
+
+    /**
+     * Bring the path up to date with the stroke.
+     * @return the path
+     */
+    Path getPath() {
+        if (path == null) {
+            path = new Path();
+            pathPoints = 0;
+        } else if (pathGeneration != stroke.getGeneration()) {
+            path.rewind();
+            pathPoints = 0;
+        }
+        pathGeneration = stroke.getGeneration();
+        int count = stroke.getPointCount();
+        for (int i = pathPoints; i < count; i++) {
+            float x = viewport.mapX(stroke.getX(i));
+            float y = viewport.mapY(stroke.getY(i));
+            if (i == 0) {
+                // A line to the same point, so that a single point is drawn as a dot
+                path.moveTo(x, y);
+                path.lineTo(x, y);
+            } else if (!smooth) {
+                path.lineTo(x, y);
+            } else {
+                float previousX = viewport.mapX(stroke.getX(i - 1));
+                float previousY = viewport.mapY(stroke.getY(i - 1));
+                float midX = (previousX + x) / 2f;
+                float midY = (previousY + y) / 2f;
+                if (i == 1) {
+                    path.lineTo(midX, midY);
+                } else {
+                    path.quadTo(previousX, previousY, midX, midY);
+                }
+            }
+        }
+        pathPoints = count;
+        return path;
+    }
+
+    /**
+     * Drop the derived path, it is built again if the stroke is drawn again.
+     */
+    void releasePath() {
+        path = null;
+    }
+
+    /**
+     * Recompute the area covered by the path.
+     */
+    void computeBounds() {
+        if (stroke.isEmpty()) {
+            bounds.setEmpty();
+            return;
+        }
+        bounds.set(viewport.mapX(stroke.getLeft()), viewport.mapY(stroke.getTop()),
+                viewport.mapX(stroke.getRight()), viewport.mapY(stroke.getBottom()));
+        // A flipped viewport swaps the edges
+        bounds.sort();
+        // Half the stroke on each side, and a pixel for anti-aliasing
+        float outset = paint.getStrokeWidth() / 2f + 1f;
+        bounds.inset(-outset, -outset);
+    }
+
+    /**
+     * Distance from a point to the edge of the drawn stroke, taking the lines between
+     * the points as the path.
+     * @param x x in pixels
+     * @param y y in pixels
+     * @return the distance in pixels, 0 if the point is on the stroke
+     */
+    float distance(float x, float y) {
+        int count = stroke.getPointCount();
+        if (count == 0) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float previousX = viewport.mapX(stroke.getX(0));
+        float previousY = viewport.mapY(stroke.getY(0));
+        float best = (float) Math.hypot(x - previousX, y - previousY);
+        for (int i = 1; i < count; i++) {
+            float pointX = viewport.mapX(stroke.getX(i));
+            float pointY = viewport.mapY(stroke.getY(i));
+            float dx = pointX - previousX;
+            float dy = pointY - previousY;
+            float lengthSquared = dx * dx + dy * dy;
+            // Where the point projects onto the segment, clamped to its ends
+            float t = lengthSquared == 0f ? 0f
+                    : Math.max(0f, Math.min(1f, ((x - previousX) * dx + (y - previousY) * dy) / lengthSquared));
+            best = Math.min(best, (float) Math.hypot(x - previousX - t * dx, y - previousY - t * dy));
+            previousX = pointX;
+            previousY = pointY;
+        }
+        return Math.max(0f, best - paint.getStrokeWidth() / 2f);
     }
 }
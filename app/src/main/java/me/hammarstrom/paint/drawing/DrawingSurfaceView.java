@@ -1,48 +1,248 @@
 package me.hammarstrom.paint.drawing;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.PorterDuff;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
 
 /**
  * Created by Fredrik Hammarström on 13/10/15.
+ *
+ * Draws the paths on a separate thread. The thread sleeps until something changes,
+ * then redraws only the area that changed, the dirty rect, with lockCanvas(Rect).
+ * Once added, a path belongs to the draw thread: add points to it with
+ * {@link #appendPoints(DrawingPath, float[], int, int)}, not through its stroke.
+ *
+ * Finished paths are handed to {@link #commitDrawingPath(DrawingPath)} and drawn once
+ * into a {@link StrokeLayer}. A frame copies the layer and draws only the paths still
+ * in progress on top, so its cost does not grow with the number of strokes.
+ *
+ * Other threads never share a structure with the draw thread: every change, down to
+ * the points added to a path, is posted to a lock-free inbox that the draw thread
+ * drains into its own state before a frame, so no caller waits for a frame being drawn.
+ *
+ * The draw thread keeps a {@link QuadTree} of the paths in progress by their bounds,
+ * and a frame only looks at the ones intersecting the dirty rect. A path leaves the
+ * index when it is committed, so the query does not grow with the finished strokes.
+ * Committed paths go into a second index instead, which frames never look at, for
+ * finding the strokes under a point or in an area, see
+ * {@link #findCommittedPath(float, float, float, HitListener)}, and by stroke id, for
+ * erasing them with {@link #removeCommittedStroke(int)}.
  */
 public class DrawingSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
 
-    private Boolean threadRunning;
-    protected DrawThread thread;
-    private List<DrawingPath> drawingPathList;
+    /**
+     * Told about every frame, on the draw thread
+     */
+    public interface FrameListener {
+
+        /**
+         * Called after a frame was handed to the display.
+         * @param drainedNanos when the frame took the posted changes, everything posted
+         *                     before is in it
+         * @param shownNanos when the frame was handed to the display
+         */
+        void onFrameDrawn(long drainedNanos, long shownNanos);
+    }
+
+    /**
+     * Told about the committed paths found by a hit test, on the draw thread
+     */
+    public interface HitListener {
+
+        /**
+         * @param paths the paths found, empty if there are none
+         */
+        void onHit(List<DrawingPath> paths);
+    }
+
+    private static final QuadTree.Distance<DrawingPath> PATH_DISTANCE = new QuadTree.Distance<DrawingPath>() {
+        @Override
+        public float distance(DrawingPath path, float x, float y) {
+            return path.distance(x, y);
+        }
+    };
+
+    private static final int BACKGROUND_COLOR = Color.BLACK;
+
+    protected volatile DrawThread thread;
+    private final MpscQueue<Update> inbox = new MpscQueue<>();
+
+    // Owned by the draw thread
+    /** Paths in progress by their bounds **/
+    private QuadTree<DrawingPath> strokeIndex = new QuadTree<>(0, 0, 1, 1);
+    /** Committed paths by their bounds, for hit tests **/
+    private QuadTree<DrawingPath> committedIndex = new QuadTree<>(0, 0, 1, 1);
+    /** Committed paths by stroke id **/
+    private final SparseArray<DrawingPath> committedPaths = new SparseArray<>();
+    /** Strokes removed, which are not drawn if they are committed afterwards **/
+    private final HashSet<Integer> removedStrokes = new HashSet<>();
+    /** Paths intersecting the frame being drawn **/
+    private final List<DrawingPath> framePaths = new ArrayList<>();
+    private final StrokeLayer strokeLayer = new StrokeLayer(BACKGROUND_COLOR);
+    private final Rect dirtyRect = new Rect();
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+    private final FrameStats frameStats = new FrameStats();
+    private final Histogram frameNanos = MetricsRegistry.getDefault().histogram(MetricNames.FRAME_NANOS);
+    private final Histogram frameLatencyNanos = MetricsRegistry.getDefault().histogram(MetricNames.FRAME_LATENCY_NANOS);
+    private volatile FrameListener frameListener;
 
     public DrawingSurfaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
         getHolder().addCallback(this);
-        thread = new DrawThread(getHolder());
-        drawingPathList = Collections.synchronizedList(new ArrayList<DrawingPath>());
     }
 
     /**
-     * Add drawing path
+     * Add a path that is still in progress. Its stroke must not be changed directly
+     * after this, see {@link #appendPoints(DrawingPath, float[], int, int)}.
      * @param drawingPath
      */
     public void addDrawingPath(DrawingPath drawingPath){
-        drawingPathList.add(drawingPath);
+        post(new Update(Update.ADD, drawingPath));
     }
 
-    public void surfaceChanged(SurfaceHolder holder, int format, int width,  int height) {
+    /**
+     * Add points to a path in progress. They are copied and added on the draw thread.
+     * @param drawingPath a path that was added
+     * @param coords interleaved coordinates
+     * @param offset index of the first x in coords
+     * @param count number of points
+     */
+    public void appendPoints(DrawingPath drawingPath, float[] coords, int offset, int count) {
+        post(new Update(Update.APPEND, drawingPath, copyPoints(coords, offset, count)));
+    }
+
+    /**
+     * Replace all points of a path in progress, like
+     * {@link #appendPoints(DrawingPath, float[], int, int)} after removing the old ones.
+     */
+    public void replacePoints(DrawingPath drawingPath, float[] coords, int offset, int count) {
+        post(new Update(Update.REPLACE, drawingPath, copyPoints(coords, offset, count)));
+    }
+
+    /**
+     * Stop drawing a path in progress.
+     * @param drawingPath a path that was added
+     */
+    public void removeDrawingPath(DrawingPath drawingPath) {
+        post(new Update(Update.REMOVE, drawingPath));
+    }
+
+    /**
+     * Add a finished path to the raster layer, removing it from the paths in progress
+     * if it was added before. The path must not change after this.
+     * @param drawingPath the finished path
+     */
+    public void commitDrawingPath(DrawingPath drawingPath) {
+        post(new Update(Update.COMMIT, drawingPath));
+    }
+
+    /**
+     * Erase a committed stroke, for example one deleted on the board. A path of the
+     * stroke committed after this is not drawn.
+     * @param strokeId id of the stroke
+     */
+    public void removeCommittedStroke(int strokeId) {
+        Update update = new Update(Update.REMOVE_COMMITTED, null);
+        update.strokeId = strokeId;
+        post(update);
+    }
+
+    /**
+     * Find the committed path nearest to a point, for example the one to erase.
+     * @param x x in pixels
+     * @param y y in pixels
+     * @param radius how far from the point the stroke may be, in pixels
+     * @param listener told about the path, or about none if there is no stroke
+     *                 that close
+     */
+    public void findCommittedPath(float x, float y, float radius, HitListener listener) {
+        Update update = new Update(Update.FIND_NEAREST, null);
+        update.area = new RectF(x, y, x, y);
+        update.radius = radius;
+        update.listener = listener;
+        post(update);
+    }
+
+    /**
+     * Find the committed paths whose bounds intersect an area, for example a selection.
+     * @param area the area in pixels, copied
+     * @param listener told about the paths
+     */
+    public void findCommittedPaths(RectF area, HitListener listener) {
+        Update update = new Update(Update.FIND_IN_AREA, null);
+        update.area = new RectF(area);
+        update.listener = listener;
+        post(update);
+    }
+
+    /**
+     * Redraw the whole surface.
+     */
+    public void invalidateAll() {
+        post(new Update(Update.INVALIDATE_ALL, null));
+    }
+
+    private static float[] copyPoints(float[] coords, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count * 2 > coords.length) {
+            throw new IllegalArgumentException("Bad range " + offset + "+" + count);
+        }
+        float[] copy = new float[count * 2];
+        System.arraycopy(coords, offset, copy, 0, copy.length);
+        return copy;
+    }
+
+    private void post(Update update) {
+        inbox.offer(update);
+        DrawThread drawThread = thread;
+        if (drawThread != null) {
+            LockSupport.unpark(drawThread);
+        }
+    }
 
+    /**
+     * Set the listener told about every frame, for example to trace when received
+     * strokes are shown.
+     * @param listener the listener, or null
+     */
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+
+    /**
+     * Get the frame time counters of the draw thread.
+     * @return the counters
+     */
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    public void surfaceChanged(SurfaceHolder holder, int format, int width,  int height) {
+        Update update = new Update(Update.RESIZE, null);
+        update.width = width;
+        update.height = height;
+        post(update);
     }
 
 
     public void surfaceCreated(SurfaceHolder holder) {
+        thread = new DrawThread(holder);
         thread.setRunning(true);
         thread.start();
     }
@@ -58,10 +258,58 @@ public class DrawingSurfaceView extends SurfaceView implements SurfaceHolder.Cal
                 // we will try it again and again...
             }
         }
+        // Redrawn from the paths when the surface comes back, the draw thread is gone now
+        strokeLayer.release();
+    }
+
+    /**
+     * A change posted to the draw thread
+     */
+    private static class Update {
+        static final int ADD = 0;
+        static final int COMMIT = 1;
+        static final int APPEND = 2;
+        static final int REPLACE = 3;
+        static final int REMOVE = 4;
+        static final int INVALIDATE_ALL = 5;
+        static final int RESIZE = 6;
+        static final int FIND_NEAREST = 7;
+        static final int FIND_IN_AREA = 8;
+        static final int REMOVE_COMMITTED = 9;
+
+        final int kind;
+        final DrawingPath path;
+        final long postedNanos = System.nanoTime();
+        /** Points to add to the path, not shared with the poster **/
+        final float[] coords;
+        /** New size of the surface **/
+        int width, height;
+        /** Committed stroke to remove **/
+        int strokeId;
+        /** Where to look for committed paths, and who to tell **/
+        RectF area;
+        float radius;
+        HitListener listener;
+
+        Update(int kind, DrawingPath path) {
+            this(kind, path, null);
+        }
+
+        Update(int kind, DrawingPath path, float[] coords) {
+            this.kind = kind;
+            this.path = path;
+            this.coords = coords;
+        }
     }
 
     class DrawThread extends Thread {
         private SurfaceHolder mSurfaceHolder;
+        private volatile boolean mRunning;
+
+        private final Rect mFrameRect = new Rect();
+        private final RectF mFrameBounds = new RectF();
+        /** When the oldest change not drawn yet was posted, 0 if there is none **/
+        private long mOldestUpdateNanos;
 
         public DrawThread(SurfaceHolder surfaceHolder){
             mSurfaceHolder = surfaceHolder;
@@ -72,33 +320,185 @@ public class DrawingSurfaceView extends SurfaceView implements SurfaceHolder.Cal
          * @param run A boolean value
          */
         public void setRunning(boolean run) {
-            threadRunning = run;
+            mRunning = run;
+            LockSupport.unpark(this);
         }
 
         @Override
         public void run() {
-            Canvas canvas = null;
-            while(threadRunning) {
-                try{
-                    canvas = mSurfaceHolder.lockCanvas(null);
-                    if(canvas != null) {
-                        if(drawingPathList != null) {
-                            synchronized (drawingPathList) {
-                                final Iterator i = drawingPathList.iterator();
-                                while (i.hasNext()) {
-                                    final DrawingPath dp = (DrawingPath) i.next();
-                                    dp.draw(canvas);
-                                }
-                            }
+            while(mRunning) {
+                drainInbox();
+                long drained = System.nanoTime();
+                if (dirtyRect.isEmpty()) {
+                    // Woken by the next post, or right away if one came in since draining
+                    LockSupport.park(this);
+                    continue;
+                }
+                mFrameRect.set(dirtyRect);
+                dirtyRect.setEmpty();
+
+                long start = System.nanoTime();
+                strokeLayer.resize(surfaceWidth, surfaceHeight);
+                strokeLayer.rasterizePending();
+                drawFrame();
+                long end = System.nanoTime();
+                frameStats.onFrame(end - start);
+                frameNanos.record(end - start);
+                if (mOldestUpdateNanos != 0) {
+                    frameLatencyNanos.record(end - mOldestUpdateNanos);
+                    mOldestUpdateNanos = 0;
+                }
+                FrameListener listener = frameListener;
+                if (listener != null) {
+                    listener.onFrameDrawn(drained, end);
+                }
+            }
+        }
+
+        private void drainInbox() {
+            Update update;
+            while ((update = inbox.poll()) != null) {
+                DrawingPath path = update.path;
+                switch (update.kind) {
+                    case Update.ADD:
+                        index(path);
+                        break;
+                    case Update.APPEND:
+                    case Update.REPLACE:
+                        // The path may have shrunk, the area it used to cover needs redrawing too
+                        invalidate(path.bounds);
+                        if (update.kind == Update.REPLACE) {
+                            path.stroke.rewind();
                         }
-                    }
-                } finally {
-                    if(canvas != null) {
-                        mSurfaceHolder.unlockCanvasAndPost(canvas);
-                    }
+                        path.stroke.addPoints(update.coords, 0, update.coords.length / 2);
+                        index(path);
+                        break;
+                    case Update.REMOVE:
+                        strokeIndex.remove(path);
+                        invalidate(path.bounds);
+                        break;
+                    case Update.COMMIT:
+                        strokeIndex.remove(path);
+                        path.computeBounds();
+                        invalidate(path.bounds);
+                        if (removedStrokes.contains(path.stroke.getId())) {
+                            break;
+                        }
+                        strokeLayer.commit(path);
+                        committedPaths.put(path.stroke.getId(), path);
+                        if (!path.bounds.isEmpty()) {
+                            RectF b = path.bounds;
+                            committedIndex.put(path, b.left, b.top, b.right, b.bottom);
+                        }
+                        break;
+                    case Update.REMOVE_COMMITTED:
+                        removeCommitted(update.strokeId);
+                        break;
+                    case Update.FIND_NEAREST:
+                    case Update.FIND_IN_AREA:
+                        find(update);
+                        break;
+                    case Update.INVALIDATE_ALL:
+                        dirtyRect.set(0, 0, surfaceWidth, surfaceHeight);
+                        break;
+                    case Update.RESIZE:
+                        resize(update.width, update.height);
+                        break;
+                }
+                if (mOldestUpdateNanos == 0) {
+                    mOldestUpdateNanos = update.postedNanos;
                 }
             }
+        }
+
+        /**
+         * Put a path in the index by its current bounds, and redraw it there.
+         */
+        private void index(DrawingPath path) {
+            path.computeBounds();
+            RectF b = path.bounds;
+            strokeIndex.put(path, b.left, b.top, b.right, b.bottom);
+            invalidate(b);
+        }
+
+        private void invalidate(RectF area) {
+            if (!area.isEmpty()) {
+                dirtyRect.union((int) Math.floor(area.left), (int) Math.floor(area.top),
+                        (int) Math.ceil(area.right), (int) Math.ceil(area.bottom));
+            }
+        }
+
+        private void removeCommitted(int strokeId) {
+            removedStrokes.add(strokeId);
+            DrawingPath path = committedPaths.get(strokeId);
+            if (path == null) {
+                return;
+            }
+            committedPaths.remove(strokeId);
+            committedIndex.remove(path);
+            strokeLayer.remove(path);
+            invalidate(path.bounds);
+        }
+
+        private void find(Update update) {
+            List<DrawingPath> found = new ArrayList<>();
+            RectF area = update.area;
+            if (update.kind == Update.FIND_NEAREST) {
+                DrawingPath nearest = committedIndex.nearest(area.left, area.top, update.radius, PATH_DISTANCE);
+                if (nearest != null) {
+                    found.add(nearest);
+                }
+            } else {
+                committedIndex.query(area.left, area.top, area.right, area.bottom, found);
+            }
+            update.listener.onHit(found);
+        }
 
+        private void resize(int width, int height) {
+            surfaceWidth = width;
+            surfaceHeight = height;
+            dirtyRect.set(0, 0, width, height);
+            strokeIndex = reindex(strokeIndex, width, height);
+            committedIndex = reindex(committedIndex, width, height);
+        }
+
+        /**
+         * Split an index over the new surface.
+         */
+        private QuadTree<DrawingPath> reindex(QuadTree<DrawingPath> old, int width, int height) {
+            QuadTree<DrawingPath> index = new QuadTree<>(0, 0, Math.max(1, width), Math.max(1, height));
+            List<DrawingPath> paths = new ArrayList<>(old.size());
+            old.query(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                    Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, paths);
+            for (int i = 0; i < paths.size(); i++) {
+                RectF b = paths.get(i).bounds;
+                index.put(paths.get(i), b.left, b.top, b.right, b.bottom);
+            }
+            return index;
+        }
+
+        private void drawFrame() {
+            Canvas canvas = null;
+            try {
+                // May grow the rect, for example if the previous content was lost
+                canvas = mSurfaceHolder.lockCanvas(mFrameRect);
+                if(canvas == null) {
+                    return;
+                }
+                mFrameBounds.set(mFrameRect);
+                strokeLayer.draw(canvas, mFrameRect);
+
+                strokeIndex.query(mFrameBounds.left, mFrameBounds.top, mFrameBounds.right,
+                        mFrameBounds.bottom, framePaths);
+                for (int i = 0; i < framePaths.size(); i++) {
+                    framePaths.get(i).draw(canvas);
+                }
+            } finally {
+                framePaths.clear();
+                if(canvas != null) {
+                    mSurfaceHolder.unlockCanvasAndPost(canvas);
+                }
+            }
         }
     }
 }
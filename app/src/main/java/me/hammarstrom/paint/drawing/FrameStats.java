@@ -0,0 +1,71 @@
+package me.hammarstrom.paint.drawing;
+
+/**
+ * Frame time counters for a render loop.
+ *
+ * A frame that takes longer than {@link #FRAME_INTERVAL_NANOS} makes the display
+ * miss one or more refreshes, those are counted as skipped frames.
+ */
+public class FrameStats {
+
+    /** One refresh at 60 Hz **/
+    public static final long FRAME_INTERVAL_NANOS = 16666667L;
+
+    private long mFrames;
+    private long mSkippedFrames;
+    private long mTotalNanos;
+    private long mLastNanos;
+    private long mMaxNanos;
+
+    /**
+     * Record a rendered frame.
+     * @param nanos time the frame took
+     */
+    public synchronized void onFrame(long nanos) {
+        mFrames++;
+        mTotalNanos += nanos;
+        mLastNanos = nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+        if (nanos > FRAME_INTERVAL_NANOS) {
+            mSkippedFrames += (nanos - 1) / FRAME_INTERVAL_NANOS;
+        }
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of refreshes missed because a frame took too long
+     */
+    public synchronized long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    public synchronized long getLastFrameNanos() {
+        return mLastNanos;
+    }
+
+    public synchronized long getMaxFrameNanos() {
+        return mMaxNanos;
+    }
+
+    public synchronized long getAverageFrameNanos() {
+        return mFrames == 0 ? 0 : mTotalNanos / mFrames;
+    }
+
+    public synchronized void reset() {
+        mFrames = 0;
+        mSkippedFrames = 0;
+        mTotalNanos = 0;
+        mLastNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames=" + mFrames + " skipped=" + mSkippedFrames
+                + " avg=" + getAverageFrameNanos() / 1000 + "us"
+                + " max=" + mMaxNanos / 1000 + "us";
+    }
+}
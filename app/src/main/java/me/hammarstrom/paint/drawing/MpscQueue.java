@@ -0,0 +1,70 @@
+package me.hammarstrom.paint.drawing;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producer threads and a single consumer thread.
+ *
+ * {@link #offer} never blocks and never fails: it links a new node with one atomic
+ * swap of the tail. Only the consumer thread may call {@link #poll} and
+ * {@link #isEmpty}. An element offered while the consumer polls may not be seen
+ * until the next poll.
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        volatile Node<E> next;
+        E value;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /** Last node, swapped by the producers **/
+    private final AtomicReference<Node<E>> mTail;
+    /** Node before the first element, only used by the consumer **/
+    private Node<E> mHead;
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Add an element, from any thread.
+     * @param element the element, not null
+     */
+    public void offer(E element) {
+        if (element == null) {
+            throw new IllegalArgumentException("Null element");
+        }
+        Node<E> node = new Node<>(element);
+        Node<E> previous = mTail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Remove the oldest element, from the consumer thread.
+     * @return the element, or null if there is none
+     */
+    public E poll() {
+        Node<E> next = mHead.next;
+        if (next == null) {
+            return null;
+        }
+        E element = next.value;
+        next.value = null;
+        mHead = next;
+        return element;
+    }
+
+    /**
+     * From the consumer thread.
+     * @return true if {@link #poll} would return null
+     */
+    public boolean isEmpty() {
+        return mHead.next == null;
+    }
+}
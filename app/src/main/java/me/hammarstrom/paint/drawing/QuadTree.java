@@ -0,0 +1,350 @@
+package me.hammarstrom.paint.drawing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index of items by their bounding boxes, for finding the strokes that
+ * touch an area or lie nearest to a point without looking at all of them.
+ *
+ * An item is kept in the smallest node that contains its whole box, so a box that
+ * straddles a split stays in the parent. A node splits into four when it holds more
+ * than {@link #NODE_CAPACITY} items, down to {@link #MAX_DEPTH}. Items outside the
+ * world bounds are kept in the root.
+ *
+ * Items are compared by identity. Not thread safe.
+ */
+public class QuadTree<T> {
+
+    /**
+     * Exact distance from an item to a point, for {@link #nearest}
+     */
+    public interface Distance<T> {
+
+        /**
+         * @return the distance, at least the distance to the item's bounding box
+         */
+        float distance(T item, float x, float y);
+    }
+
+    static final int NODE_CAPACITY = 8;
+    static final int MAX_DEPTH = 16;
+
+    private final Node<T> mRoot;
+    private final Map<T, Entry<T>> mEntries = new IdentityHashMap<>();
+    /** Entries and nodes looked at by the last query or nearest **/
+    private int mVisited;
+
+    /**
+     * @param left world bounds, used to place the splits
+     */
+    public QuadTree(float left, float top, float right, float bottom) {
+        mRoot = new Node<>(left, top, right, bottom, 0);
+    }
+
+    /**
+     * Add an item, or move it if it is already in the tree.
+     */
+    public void put(T item, float left, float top, float right, float bottom) {
+        Entry<T> entry = mEntries.get(item);
+        if (entry != null) {
+            if (entry.left == left && entry.top == top && entry.right == right && entry.bottom == bottom) {
+                return;
+            }
+            entry.node.remove(entry);
+        } else {
+            entry = new Entry<>(item);
+            mEntries.put(item, entry);
+        }
+        entry.left = left;
+        entry.top = top;
+        entry.right = right;
+        entry.bottom = bottom;
+        mRoot.insert(entry);
+    }
+
+    /**
+     * @return true if the item was in the tree
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = mEntries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+        entry.node.remove(entry);
+        return true;
+    }
+
+    public boolean contains(T item) {
+        return mEntries.containsKey(item);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mRoot.clear();
+    }
+
+    /**
+     * Find the items whose boxes intersect an area, edges touching included.
+     * @param out list the items are added to, in no particular order
+     * @return number of items added
+     */
+    public int query(float left, float top, float right, float bottom, List<? super T> out) {
+        int before = out.size();
+        mVisited = mRoot.query(left, top, right, bottom, out);
+        return out.size() - before;
+    }
+
+    /**
+     * Find the item nearest to a point.
+     * @param maxDistance items further away than this are not considered
+     * @param distance exact distance to an item, or null to use the bounding boxes
+     * @return the nearest item, or null if there is none within maxDistance
+     */
+    public T nearest(float x, float y, float maxDistance, Distance<? super T> distance) {
+        // Best first: nodes and boxes are queued by the lower bound of their distance,
+        // an item popped with its exact distance is the answer
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        // Nearest exact distance seen so far, anything further can be skipped
+        float best = maxDistance;
+        queue.add(new Candidate(mRoot, mRoot.distance(x, y), false));
+        mVisited = 0;
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            mVisited++;
+            if (candidate.distance > best) {
+                return null;
+            }
+            if (candidate.target instanceof Node) {
+                @SuppressWarnings("unchecked")
+                Node<T> node = (Node<T>) candidate.target;
+                for (int i = 0; i < node.entries.size(); i++) {
+                    Entry<T> entry = node.entries.get(i);
+                    float d = boxDistance(entry.left, entry.top, entry.right, entry.bottom, x, y);
+                    if (d <= best) {
+                        queue.add(new Candidate(entry, d, distance == null));
+                        if (distance == null) {
+                            best = d;
+                        }
+                    }
+                }
+                if (node.children != null) {
+                    for (Node<T> child : node.children) {
+                        float d = child.distance(x, y);
+                        if (child.count > 0 && d <= best) {
+                            queue.add(new Candidate(child, d, false));
+                        }
+                    }
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                Entry<T> entry = (Entry<T>) candidate.target;
+                if (candidate.exact) {
+                    return entry.item;
+                }
+                float d = Math.max(candidate.distance, distance.distance(entry.item, x, y));
+                if (d <= best) {
+                    queue.add(new Candidate(entry, d, true));
+                    best = d;
+                }
+            }
+        }
+        return null;
+    }
+
+    static float boxDistance(float left, float top, float right, float bottom, float x, float y) {
+        float dx = Math.max(0f, Math.max(left - x, x - right));
+        float dy = Math.max(0f, Math.max(top - y, y - bottom));
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * @return entries and nodes looked at by the last query or nearest, for tests
+     */
+    int visited() {
+        return mVisited;
+    }
+
+    /**
+     * @return depth of the deepest node, for tests
+     */
+    int depth() {
+        return mRoot.depth();
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        float left, top, right, bottom;
+        Node<T> node;
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final Object target;
+        final float distance;
+        final boolean exact;
+
+        Candidate(Object target, float distance, boolean exact) {
+            this.target = target;
+            this.distance = distance;
+            this.exact = exact;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int order = Float.compare(distance, other.distance);
+            if (order == 0) {
+                // Settle ties with an item that is done
+                return exact == other.exact ? 0 : (exact ? -1 : 1);
+            }
+            return order;
+        }
+    }
+
+    private static final class Node<T> {
+        final float left, top, right, bottom;
+        final float midX, midY;
+        final int depth;
+        final List<Entry<T>> entries = new ArrayList<>(4);
+        Node<T>[] children;
+        /** Number of entries in this node and below **/
+        int count;
+
+        Node(float left, float top, float right, float bottom, int depth) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.midX = (left + right) / 2f;
+            this.midY = (top + bottom) / 2f;
+            this.depth = depth;
+        }
+
+        void insert(Entry<T> entry) {
+            Node<T> node = this;
+            while (true) {
+                node.count++;
+                Node<T> child = node.children == null ? null : node.childFor(entry);
+                if (child == null) {
+                    break;
+                }
+                node = child;
+            }
+            node.entries.add(entry);
+            entry.node = node;
+            if (node.children == null && node.entries.size() > NODE_CAPACITY && node.depth < MAX_DEPTH) {
+                node.split();
+            }
+        }
+
+        void remove(Entry<T> entry) {
+            Node<T> node = this;
+            entry.node.entries.remove(entry);
+            // Walk down the same way insert did, to fix the counts
+            while (node != null) {
+                node.count--;
+                node = node == entry.node || node.children == null ? null : node.childFor(entry);
+            }
+            entry.node = null;
+        }
+
+        void clear() {
+            entries.clear();
+            children = null;
+            count = 0;
+        }
+
+        /**
+         * @return the child containing the whole box, or null if it straddles a split
+         */
+        Node<T> childFor(Entry<T> entry) {
+            boolean west = entry.right <= midX && entry.left >= left;
+            boolean east = entry.left >= midX && entry.right <= right;
+            boolean north = entry.bottom <= midY && entry.top >= top;
+            boolean south = entry.top >= midY && entry.bottom <= bottom;
+            if (north) {
+                return west ? children[0] : east ? children[1] : null;
+            }
+            if (south) {
+                return west ? children[2] : east ? children[3] : null;
+            }
+            return null;
+        }
+
+        void split() {
+            children = newNodes(4);
+            children[0] = new Node<>(left, top, midX, midY, depth + 1);
+            children[1] = new Node<>(midX, top, right, midY, depth + 1);
+            children[2] = new Node<>(left, midY, midX, bottom, depth + 1);
+            children[3] = new Node<>(midX, midY, right, bottom, depth + 1);
+            List<Entry<T>> kept = new ArrayList<>(4);
+            for (int i = 0; i < entries.size(); i++) {
+                Entry<T> entry = entries.get(i);
+                Node<T> child = childFor(entry);
+                if (child == null) {
+                    kept.add(entry);
+                } else {
+                    child.insert(entry);
+                }
+            }
+            entries.clear();
+            entries.addAll(kept);
+        }
+
+        /**
+         * Java has no arrays of a generic type, the unchecked cast is safe as long as
+         * only Node&lt;T&gt; is stored in the array.
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newNodes(int size) {
+            return (Node<T>[]) new Node<?>[size];
+        }
+
+        /**
+         * @return number of entries and nodes looked at
+         */
+        int query(float qLeft, float qTop, float qRight, float qBottom, List<? super T> out) {
+            int visited = 1 + entries.size();
+            for (int i = 0; i < entries.size(); i++) {
+                Entry<T> entry = entries.get(i);
+                if (entry.left <= qRight && entry.right >= qLeft && entry.top <= qBottom && entry.bottom >= qTop) {
+                    out.add(entry.item);
+                }
+            }
+            if (children != null) {
+                for (Node<T> child : children) {
+                    if (child.count > 0 && child.left <= qRight && child.right >= qLeft
+                            && child.top <= qBottom && child.bottom >= qTop) {
+                        visited += child.query(qLeft, qTop, qRight, qBottom, out);
+                    }
+                }
+            }
+            return visited;
+        }
+
+        float distance(float x, float y) {
+            // The root may hold items outside its bounds
+            return depth == 0 ? 0f : boxDistance(left, top, right, bottom, x, y);
+        }
+
+        int depth() {
+            int deepest = depth;
+            if (children != null) {
+                for (Node<T> child : children) {
+                    deepest = Math.max(deepest, child.depth());
+                }
+            }
+            return deepest;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package me.hammarstrom.paint.drawing;
+
+import java.util.Arrays;
+
+/**
+ * The points of a stroke and how it is drawn, without anything from Android.
+ *
+ * Coordinates are normalized to the screen (0..1), like the ones sent between peers,
+ * and packed as x, y pairs in one float array that grows by doubling. Adding a point
+ * allocates nothing once the array is large enough, and the bounds are kept as points
+ * are added. Views derive what they draw from it, see {@link DrawingPath}.
+ *
+ * Not thread safe.
+ */
+public class Stroke {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mId;
+    private final int mColor;
+    private final float mWidth;
+    /** Lamport timestamp of the stroke's add, its place on a replicated board **/
+    private long mTimestamp;
+
+    /** Interleaved x, y coordinates **/
+    private float[] mCoords;
+    private int mPointCount;
+    /** Counts calls to {@link #rewind()}, so that derived data can tell it is stale **/
+    private int mGeneration;
+
+    private float mLeft, mTop, mRight, mBottom;
+
+    /**
+     * @param id stroke id, as used in {@link me.hammarstrom.paint.connections.PathMessage}
+     * @param color ARGB color
+     * @param width stroke width in pixels
+     */
+    public Stroke(int id, int color, float width) {
+        mId = id;
+        mColor = color;
+        mWidth = width;
+        mCoords = new float[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Append a point.
+     * @param x normalized x coordinate
+     * @param y normalized y coordinate
+     */
+    public void addPoint(float x, float y) {
+        if (mPointCount * 2 == mCoords.length) {
+            mCoords = Arrays.copyOf(mCoords, mCoords.length * 2);
+        }
+        mCoords[mPointCount * 2] = x;
+        mCoords[mPointCount * 2 + 1] = y;
+        if (mPointCount == 0) {
+            mLeft = mRight = x;
+            mTop = mBottom = y;
+        } else {
+            mLeft = Math.min(mLeft, x);
+            mRight = Math.max(mRight, x);
+            mTop = Math.min(mTop, y);
+            mBottom = Math.max(mBottom, y);
+        }
+        mPointCount++;
+    }
+
+    /**
+     * Append points from a packed x, y array.
+     * @param coords interleaved coordinates
+     * @param offset index of the first x in coords
+     * @param count number of points
+     */
+    public void addPoints(float[] coords, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count * 2 > coords.length) {
+            throw new IllegalArgumentException("Bad range " + offset + "+" + count);
+        }
+        if (count == 0) {
+            return;
+        }
+        ensureCapacity(mPointCount + count);
+        System.arraycopy(coords, offset, mCoords, mPointCount * 2, count * 2);
+        int i = 0;
+        if (mPointCount == 0) {
+            mLeft = mRight = coords[offset];
+            mTop = mBottom = coords[offset + 1];
+            i = 1;
+        }
+        float left = mLeft, top = mTop, right = mRight, bottom = mBottom;
+        for (; i < count; i++) {
+            float x = coords[offset + i * 2];
+            float y = coords[offset + i * 2 + 1];
+            left = Math.min(left, x);
+            right = Math.max(right, x);
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+        }
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        mPointCount += count;
+    }
+
+    /**
+     * Remove all points, the metadata is kept.
+     */
+    public void rewind() {
+        mPointCount = 0;
+        mGeneration++;
+    }
+
+    /**
+     * Make room for a number of points without growing again.
+     */
+    public void ensureCapacity(int points) {
+        if (points * 2 > mCoords.length) {
+            mCoords = Arrays.copyOf(mCoords, Math.max(points * 2, mCoords.length * 2));
+        }
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getColor() {
+        return mColor;
+    }
+
+    public float getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the Lamport timestamp the stroke was started with, see
+     * {@link me.hammarstrom.paint.sync.ReplicatedBoard}
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public boolean isEmpty() {
+        return mPointCount == 0;
+    }
+
+    public float getX(int index) {
+        return mCoords[index * 2];
+    }
+
+    public float getY(int index) {
+        return mCoords[index * 2 + 1];
+    }
+
+    /**
+     * Copy points to a packed x, y array.
+     * @param start index of the first point
+     * @param count number of points
+     * @param out array to write interleaved coordinates to, from index 0
+     */
+    public void getPoints(int start, int count, float[] out) {
+        if (start < 0 || count < 0 || start + count > mPointCount) {
+            throw new IllegalArgumentException("Bad range " + start + "+" + count);
+        }
+        System.arraycopy(mCoords, start * 2, out, 0, count * 2);
+    }
+
+    /**
+     * @return a number that changes each time the points are rewound
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    // Bounds of the points, only meaningful when the stroke is not empty
+
+    public float getLeft() {
+        return mLeft;
+    }
+
+    public float getTop() {
+        return mTop;
+    }
+
+    public float getRight() {
+        return mRight;
+    }
+
+    public float getBottom() {
+        return mBottom;
+    }
+}
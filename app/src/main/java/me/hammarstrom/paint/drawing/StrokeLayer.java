@@ -0,0 +1,155 @@
+package me.hammarstrom.paint.drawing;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offscreen raster of the finished strokes. A stroke is drawn into the bitmap once
+ * when it is committed, after that a frame only copies the pixels of the area it
+ * redraws, however many strokes there are.
+ *
+ * The strokes are kept so that the bitmap can be redrawn when the size changes, or
+ * where a stroke was removed, but not their Paths, which are dropped once drawn.
+ * Only used from the draw thread, other threads commit through the view's inbox.
+ */
+public class StrokeLayer {
+
+    private final int mBackgroundColor;
+
+    /** Committed paths not rasterized yet **/
+    private final List<DrawingPath> mPending = new ArrayList<>();
+    /** Paths in the bitmap, in the order they were drawn **/
+    private final List<DrawingPath> mRasterized = new ArrayList<>();
+
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    /** Area being redrawn after a remove **/
+    private final Rect mRedrawRect = new Rect();
+
+    /**
+     * @param backgroundColor color of the empty layer
+     */
+    public StrokeLayer(int backgroundColor) {
+        mBackgroundColor = backgroundColor;
+    }
+
+    /**
+     * Add a finished path. It is rasterized by the next {@link #rasterizePending()}.
+     * @param drawingPath the path, which must not change any more
+     */
+    public void commit(DrawingPath drawingPath) {
+        mPending.add(drawingPath);
+    }
+
+    /**
+     * Remove a committed path, and redraw the area it covered from the paths left.
+     * Costs a pass over the committed paths, plus drawing the ones in the area again.
+     * @param drawingPath the path, with its bounds as computed when committed
+     * @return false if the path was not committed
+     */
+    public boolean remove(DrawingPath drawingPath) {
+        if (mPending.remove(drawingPath)) {
+            return true;
+        }
+        if (!mRasterized.remove(drawingPath)) {
+            return false;
+        }
+        RectF area = drawingPath.bounds;
+        if (mCanvas == null || area.isEmpty()) {
+            return true;
+        }
+        mRedrawRect.set((int) Math.floor(area.left), (int) Math.floor(area.top),
+                (int) Math.ceil(area.right), (int) Math.ceil(area.bottom));
+        mCanvas.save();
+        mCanvas.clipRect(mRedrawRect);
+        mCanvas.drawColor(mBackgroundColor);
+        for (int i = 0; i < mRasterized.size(); i++) {
+            DrawingPath path = mRasterized.get(i);
+            if (RectF.intersects(path.bounds, area)) {
+                rasterize(path);
+            }
+        }
+        mCanvas.restore();
+        return true;
+    }
+
+    /**
+     * Make the bitmap match the surface size, redrawing every committed path if
+     * it had to be recreated.
+     * @return true if the bitmap was recreated
+     */
+    public boolean resize(int width, int height) {
+        if (mBitmap != null && mBitmap.getWidth() == width && mBitmap.getHeight() == height) {
+            return false;
+        }
+        release();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+        mCanvas.drawColor(mBackgroundColor);
+        for (int i = 0; i < mRasterized.size(); i++) {
+            rasterize(mRasterized.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Draw the paths committed since the last call into the bitmap.
+     * @return number of paths drawn
+     */
+    public int rasterizePending() {
+        int start = mRasterized.size();
+        mRasterized.addAll(mPending);
+        mPending.clear();
+        if (mCanvas != null) {
+            for (int i = start; i < mRasterized.size(); i++) {
+                rasterize(mRasterized.get(i));
+            }
+        }
+        return mRasterized.size() - start;
+    }
+
+    private void rasterize(DrawingPath drawingPath) {
+        drawingPath.draw(mCanvas);
+        // Only the stroke is kept, the path is derived again if the bitmap is redrawn
+        drawingPath.releasePath();
+    }
+
+    /**
+     * Copy an area of the layer to a canvas.
+     * @param canvas the canvas to draw on
+     * @param area the area to copy
+     */
+    public void draw(Canvas canvas, Rect area) {
+        if (mBitmap == null) {
+            canvas.drawColor(mBackgroundColor);
+            return;
+        }
+        canvas.drawBitmap(mBitmap, area, area, null);
+    }
+
+    /**
+     * @return number of committed paths
+     */
+    public int size() {
+        return mRasterized.size() + mPending.size();
+    }
+
+    /**
+     * Free the bitmap, the paths are kept for the next {@link #resize(int, int)}.
+     */
+    public void release() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mCanvas = null;
+        }
+    }
+}
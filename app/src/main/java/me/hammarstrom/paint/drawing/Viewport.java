@@ -0,0 +1,74 @@
+package me.hammarstrom.paint.drawing;
+
+/**
+ * Maps normalized stroke coordinates (0..1) to pixels and back. Built once when the
+ * screen size changes and shared by everything drawn at that size, so that mapping a
+ * point is a multiply and an add.
+ *
+ * Immutable.
+ */
+public class Viewport {
+
+    private final float mScaleX, mScaleY;
+    private final float mTranslateX, mTranslateY;
+
+    /**
+     * @param width pixels mapped to the normalized width
+     * @param height pixels mapped to the normalized height
+     */
+    public Viewport(float width, float height) {
+        this(width, height, 0f, 0f);
+    }
+
+    /**
+     * @param scaleX pixels per normalized unit
+     * @param scaleY pixels per normalized unit
+     * @param translateX pixel position of normalized 0
+     * @param translateY pixel position of normalized 0
+     */
+    public Viewport(float scaleX, float scaleY, float translateX, float translateY) {
+        if (scaleX == 0f || scaleY == 0f) {
+            throw new IllegalArgumentException("Empty viewport: " + scaleX + "x" + scaleY);
+        }
+        mScaleX = scaleX;
+        mScaleY = scaleY;
+        mTranslateX = translateX;
+        mTranslateY = translateY;
+    }
+
+    public float mapX(float x) {
+        return x * mScaleX + mTranslateX;
+    }
+
+    public float mapY(float y) {
+        return y * mScaleY + mTranslateY;
+    }
+
+    /**
+     * @return the normalized coordinate of a pixel position
+     */
+    public float unmapX(float pixelX) {
+        return (pixelX - mTranslateX) / mScaleX;
+    }
+
+    /**
+     * @return the normalized coordinate of a pixel position
+     */
+    public float unmapY(float pixelY) {
+        return (pixelY - mTranslateY) / mScaleY;
+    }
+
+    /**
+     * @return the length in pixels of a normalized horizontal length
+     */
+    public float getScaleX() {
+        return mScaleX;
+    }
+
+    /**
+     * @return the length in pixels of a normalized vertical length
+     */
+    public float getScaleY() {
+        return mScaleY;
+    }
+}
@@ -0,0 +1,233 @@
+package me.hammarstrom.paint.input;
+
+/**
+ * Drops the touch points of a stroke that the line through the kept points passes
+ * within a tolerance of anyway, as the points come in.
+ *
+ * The simplifier keeps an anchor, the last point passed on, and the points since.
+ * A new point is taken as the tentative end of a line from the anchor if every point
+ * since the anchor is within the tolerance of that line, otherwise the previous
+ * tentative end is passed on and becomes the anchor. A point closer than the
+ * tolerance to the tentative end cannot become one itself, which drops sub-pixel
+ * jitter without a line check. This is the opening window form of Douglas-Peucker:
+ * no point that came in is ever further than the tolerance from the kept line.
+ *
+ * Points are held back until the line bends, at most {@link #MAX_WINDOW} of them, and
+ * for at most the hold time once the owner calls {@link #flushIfDue(long)}, so a
+ * straight stroke still reaches the peers while it is drawn.
+ *
+ * The first and last point of a stroke are always kept, the owner sends those
+ * itself. Units are whatever the points are in, pixels for a tolerance that means
+ * something on screen. Not thread safe.
+ */
+public class PointSimplifier {
+
+    /**
+     * Receiver of the kept points
+     */
+    public interface Sink {
+
+        /**
+         * Called for every kept point but the first and the last of a stroke.
+         */
+        void onPoint(float x, float y);
+    }
+
+    /** Default tolerance in pixels, hidden by the stroke width and anti-aliasing **/
+    public static final float DEFAULT_TOLERANCE = 1f;
+
+    /** Default hold time, about a frame at 60 Hz **/
+    public static final long DEFAULT_MAX_HOLD_NANOS = 16000000L;
+
+    /** Most points held back, bounds the cost of the line check **/
+    public static final int MAX_WINDOW = 64;
+
+    private final float mTolerance;
+    private final long mMaxHoldNanos;
+    private final Sink mSink;
+
+    private float mAnchorX, mAnchorY;
+    /** Points since the anchor, interleaved x and y **/
+    private final float[] mWindow = new float[MAX_WINDOW * 2];
+    private int mWindowCount;
+    /** Index in the window of the tentative end, -1 if the window is empty **/
+    private int mTentative = -1;
+    /** When the oldest point in the window came in **/
+    private long mHoldStartNanos;
+
+    private long mInputPoints;
+    private long mKeptPoints;
+
+    /**
+     * @param tolerance largest distance of a dropped point from the kept line
+     * @param maxHoldNanos longest a point is held back, see {@link #flushIfDue(long)}
+     * @param sink receiver of the kept points
+     */
+    public PointSimplifier(float tolerance, long maxHoldNanos, Sink sink) {
+        if (tolerance < 0f) {
+            throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        }
+        mTolerance = tolerance;
+        mMaxHoldNanos = maxHoldNanos;
+        mSink = sink;
+    }
+
+    /**
+     * Start a new stroke. The first point is kept, the owner passes it on itself.
+     * @param timeNanos when the point was captured
+     */
+    public void begin(float x, float y, long timeNanos) {
+        mAnchorX = x;
+        mAnchorY = y;
+        mWindowCount = 0;
+        mTentative = -1;
+        mInputPoints++;
+        mKeptPoints++;
+    }
+
+    /**
+     * Add a point of the stroke, passing on the points that turn out to be needed.
+     * @param timeNanos when the point was captured
+     */
+    public void add(float x, float y, long timeNanos) {
+        mInputPoints++;
+        if (mTentative < 0) {
+            if (distanceSquared(x, y, mAnchorX, mAnchorY) < mTolerance * mTolerance) {
+                // Within the tolerance of every line from the anchor
+                return;
+            }
+            startWindow(x, y, timeNanos);
+            return;
+        }
+        int tentative = mTentative * 2;
+        if (distanceSquared(x, y, mWindow[tentative], mWindow[tentative + 1]) < mTolerance * mTolerance) {
+            // Covered by any line that covers the tentative end
+            append(x, y);
+        } else if (covers(x, y)) {
+            append(x, y);
+            mTentative = mWindowCount - 1;
+        } else {
+            emitTentative();
+            startWindow(x, y, timeNanos);
+            return;
+        }
+        if (mWindowCount == MAX_WINDOW) {
+            emitTentative();
+        }
+    }
+
+    /**
+     * Add the last point of the stroke and pass on the points it needs. The last
+     * point is kept, the owner passes it on itself.
+     * @param timeNanos when the point was captured
+     */
+    public void end(float x, float y, long timeNanos) {
+        mInputPoints++;
+        mKeptPoints++;
+        if (mTentative >= 0 && !covers(x, y)) {
+            emitTentative();
+        }
+        mWindowCount = 0;
+        mTentative = -1;
+    }
+
+    /**
+     * Pass on the held back points if the oldest of them has waited for the hold time.
+     * @param nowNanos the current time, by the clock of the capture times
+     * @return true if a point was passed on
+     */
+    public boolean flushIfDue(long nowNanos) {
+        if (mTentative >= 0 && nowNanos - mHoldStartNanos >= mMaxHoldNanos) {
+            emitTentative();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the time until held back points are due.
+     * @return nanoseconds until {@link #flushIfDue(long)} will pass a point on, or -1
+     * if no point is held back
+     */
+    public long getFlushDelayNanos(long nowNanos) {
+        if (mTentative < 0) {
+            return -1;
+        }
+        return Math.max(0L, mHoldStartNanos + mMaxHoldNanos - nowNanos);
+    }
+
+    /**
+     * @return number of points added, including first and last points
+     */
+    public long getInputPoints() {
+        return mInputPoints;
+    }
+
+    /**
+     * @return number of points kept, including first and last points
+     */
+    public long getKeptPoints() {
+        return mKeptPoints;
+    }
+
+    private void startWindow(float x, float y, long timeNanos) {
+        mWindowCount = 0;
+        append(x, y);
+        mTentative = 0;
+        mHoldStartNanos = timeNanos;
+    }
+
+    private void append(float x, float y) {
+        mWindow[mWindowCount * 2] = x;
+        mWindow[mWindowCount * 2 + 1] = y;
+        mWindowCount++;
+    }
+
+    /**
+     * Pass on the tentative end and make it the anchor. The points after it are all
+     * within the tolerance of it and so of every line from it, they are dropped.
+     */
+    private void emitTentative() {
+        mAnchorX = mWindow[mTentative * 2];
+        mAnchorY = mWindow[mTentative * 2 + 1];
+        mWindowCount = 0;
+        mTentative = -1;
+        mKeptPoints++;
+        mSink.onPoint(mAnchorX, mAnchorY);
+    }
+
+    /**
+     * @return true if every point in the window is within the tolerance of the line
+     * from the anchor to the point
+     */
+    private boolean covers(float x, float y) {
+        float limit = mTolerance * mTolerance;
+        for (int i = 0; i < mWindowCount; i++) {
+            if (segmentDistanceSquared(mWindow[i * 2], mWindow[i * 2 + 1], mAnchorX, mAnchorY, x, y) > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static float distanceSquared(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return the squared distance of point p from the segment a-b
+     */
+    static float segmentDistanceSquared(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0f) {
+            return distanceSquared(px, py, ax, ay);
+        }
+        float t = ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0f, Math.min(1f, t));
+        return distanceSquared(px, py, ax + t * dx, ay + t * dy);
+    }
+}
@@ -0,0 +1,34 @@
+package me.hammarstrom.paint.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, updated with a single atomic add from any thread.
+ */
+public class Counter {
+
+    /** Does nothing, handed out by a disabled registry **/
+    static final Counter NOOP = new Counter() {
+        @Override
+        public void add(long delta) {
+        }
+
+        @Override
+        public void increment() {
+        }
+    };
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void increment() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
@@ -0,0 +1,13 @@
+package me.hammarstrom.paint.metrics;
+
+/**
+ * A value read when a snapshot is taken, like a queue depth.
+ */
+public interface Gauge {
+
+    /**
+     * Called from the thread taking the snapshot.
+     * @return the current value
+     */
+    long value();
+}
@@ -0,0 +1,94 @@
+package me.hammarstrom.paint.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds or message
+ * sizes in bytes, in a fixed amount of memory.
+ *
+ * Like an HDR histogram, values are counted in buckets that are exact below
+ * {@link #SUB_BUCKETS} and above that split each power of two into
+ * {@link #SUB_BUCKETS} parts, so a recorded value is known to within about 3%
+ * whatever its magnitude. Recording is a few atomic adds and never blocks.
+ */
+public class Histogram {
+
+    /** Buckets per power of two, 2^5 for about 3% precision **/
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /** Does nothing, handed out by a disabled registry **/
+    static final Histogram NOOP = new Histogram() {
+        @Override
+        public void record(long value) {
+        }
+    };
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Add a value, negative values count as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Record the time since a start time.
+     * @param startNanos a reading of System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Copy the current counts. Values recorded during the copy may be only partly
+     * included.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new HistogramSnapshot(counts, count, mSum.get(), mMax.get());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        // The top bits below the leading one pick the sub-bucket
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,64 @@
+package me.hammarstrom.paint.metrics;
+
+/**
+ * The counts of a {@link Histogram} at one point in time.
+ */
+public class HistogramSnapshot {
+
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        mCounts = counts;
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return a value at least as large as that share of the recorded values, and
+     * within the histogram's precision of it. 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.highestValueOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mCount + " mean=" + Math.round(getMean()) + " p50=" + percentile(50)
+                + " p90=" + percentile(90) + " p99=" + percentile(99) + " max=" + mMax;
+    }
+}
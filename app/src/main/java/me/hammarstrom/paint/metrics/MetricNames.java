@@ -0,0 +1,68 @@
+package me.hammarstrom.paint.metrics;
+
+/**
+ * Names of the metrics the app records. Times are in nanoseconds, sizes in bytes.
+ */
+public final class MetricNames {
+
+    /** Messages handed to the session hub for sending **/
+    public static final String SEND_MESSAGES = "send.messages";
+    /** Size of each message sent **/
+    public static final String SEND_BYTES = "send.bytes";
+    /** Messages waiting in the outbound queues of all peers **/
+    public static final String SEND_QUEUE_DEPTH = "send.queue.depth";
+    /** Segments dropped by the outbound queues of all peers **/
+    public static final String SEND_DROPPED = "send.dropped";
+    /** Stroke commits a slow peer's queue had no room for, each one resyncs the peer **/
+    public static final String SEND_DROPPED_COMMITS = "send.dropped.commits";
+    /** Bytes per second the scheduler sends at to the slowest peer, as measured **/
+    public static final String SEND_RATE = "send.rate";
+    /** Bytes compression saved on the messages sent to all peers **/
+    public static final String SEND_COMPRESSION_SAVED = "send.compression.saved";
+    /** Connected peers **/
+    public static final String PEERS = "peers";
+
+    /** Messages received from the transport **/
+    public static final String RECEIVE_MESSAGES = "receive.messages";
+    /** Size of each message received **/
+    public static final String RECEIVE_BYTES = "receive.bytes";
+    /** Received messages waiting to be decoded **/
+    public static final String RECEIVE_QUEUE_DEPTH = "receive.queue.depth";
+    /** Time to decode a received message **/
+    public static final String RECEIVE_DECODE_NANOS = "receive.decode.nanos";
+    /** Time the listener took to handle a decoded message **/
+    public static final String RECEIVE_HANDLE_NANOS = "receive.handle.nanos";
+
+    /** Time from capturing the oldest new point of a received message to the sender sending it **/
+    public static final String TRACE_CAPTURE_TO_SEND_NANOS = "trace.capture_to_send.nanos";
+    /** Time from the sender sending a message to it arriving, by the synced clocks **/
+    public static final String TRACE_NETWORK_NANOS = "trace.network.nanos";
+    /** Time from a message arriving to it being decoded, including the wait in the queue **/
+    public static final String TRACE_DECODE_NANOS = "trace.decode.nanos";
+    /** Time from a received message being handled to the frame showing it **/
+    public static final String TRACE_RENDER_NANOS = "trace.render.nanos";
+    /** Time from capturing a point on the sender to the frame showing it here **/
+    public static final String TRACE_END_TO_END_NANOS = "trace.end_to_end.nanos";
+    /** Round trip time to the peers, of the samples the clock offsets are taken from **/
+    public static final String CLOCK_ROUND_TRIP_NANOS = "clock.round_trip.nanos";
+
+    /** Strokes written to the journal per sync to disk **/
+    public static final String JOURNAL_BATCH_STROKES = "journal.batch.strokes";
+    /** Time to sync a batch of the journal to disk **/
+    public static final String JOURNAL_SYNC_NANOS = "journal.sync.nanos";
+    /** Time to compact the journal into a snapshot **/
+    public static final String JOURNAL_COMPACT_NANOS = "journal.compact.nanos";
+
+    /** Time from a touch event to the app handling it **/
+    public static final String TOUCH_LAG_NANOS = "touch.lag.nanos";
+    /** Time spent handling a touch event, including encoding the stroke **/
+    public static final String TOUCH_HANDLE_NANOS = "touch.handle.nanos";
+
+    /** Time to draw a frame **/
+    public static final String FRAME_NANOS = "frame.nanos";
+    /** Time from the oldest change in a frame being posted to the frame being shown **/
+    public static final String FRAME_LATENCY_NANOS = "frame.latency.nanos";
+
+    private MetricNames() {
+    }
+}
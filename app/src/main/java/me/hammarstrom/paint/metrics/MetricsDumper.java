@@ -0,0 +1,80 @@
+package me.hammarstrom.paint.metrics;
+
+/**
+ * Takes a snapshot of a registry at a fixed period on its own thread and hands it
+ * to a sink, for example to write it to the log.
+ */
+public class MetricsDumper {
+
+    /**
+     * Receiver of the snapshots, called on the dumper's thread
+     */
+    public interface Sink {
+        void onSnapshot(MetricsSnapshot snapshot);
+    }
+
+    private final MetricsRegistry mRegistry;
+    private final long mPeriodMillis;
+    private final Sink mSink;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public MetricsDumper(MetricsRegistry registry, long periodMillis, Sink sink) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + periodMillis);
+        }
+        mRegistry = registry;
+        mPeriodMillis = periodMillis;
+        mSink = sink;
+    }
+
+    public synchronized void start() {
+        if (mThread != null || !mRegistry.isEnabled()) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        Thread.sleep(mPeriodMillis);
+                    } catch (InterruptedException e) {
+                        // Woken by stop
+                    }
+                    if (mRunning) {
+                        mSink.onSnapshot(mRegistry.snapshot());
+                    }
+                }
+            }
+        }, "MetricsDumper");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        thread.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package me.hammarstrom.paint.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, histograms and gauges for one process.
+ *
+ * Look a metric up once and keep the reference, updating it is then a few atomic
+ * operations. A disabled registry hands out metrics that do nothing, so code can be
+ * instrumented unconditionally. Components created without a registry use
+ * {@link #getDefault()}.
+ *
+ * Thread safe.
+ */
+public class MetricsRegistry {
+
+    /** Records nothing, and its snapshots are empty **/
+    public static final MetricsRegistry DISABLED = new MetricsRegistry(false);
+
+    private static volatile MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final boolean mEnabled;
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+
+    public MetricsRegistry() {
+        this(true);
+    }
+
+    private MetricsRegistry(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return the registry used by components not given one
+     */
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replace the default registry. Components keep the metrics they already looked up,
+     * so call this before creating them, {@link #DISABLED} turns metrics off.
+     */
+    public static void setDefault(MetricsRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("Null registry");
+        }
+        sDefault = registry;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the counter with this name, created if needed
+     */
+    public Counter counter(String name) {
+        if (!mEnabled) {
+            return Counter.NOOP;
+        }
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram with this name, created if needed
+     */
+    public Histogram histogram(String name) {
+        if (!mEnabled) {
+            return Histogram.NOOP;
+        }
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing one with the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        if (mEnabled) {
+            mGauges.put(name, gauge);
+        }
+    }
+
+    public void removeGauge(String name) {
+        mGauges.remove(name);
+    }
+
+    /**
+     * Read every metric. Gauges are called on this thread.
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Long> gauges = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().value());
+        }
+        Map<String, HistogramSnapshot> histograms = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counters, gauges, histograms);
+    }
+}
@@ -0,0 +1,83 @@
+package me.hammarstrom.paint.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The values of every metric in a registry at one point in time, by name.
+ */
+public class MetricsSnapshot {
+
+    private final long mTimeMillis;
+    private final Map<String, Long> mCounters;
+    private final Map<String, Long> mGauges;
+    private final Map<String, HistogramSnapshot> mHistograms;
+
+    MetricsSnapshot(long timeMillis, Map<String, Long> counters, Map<String, Long> gauges,
+                    Map<String, HistogramSnapshot> histograms) {
+        mTimeMillis = timeMillis;
+        mCounters = Collections.unmodifiableMap(counters);
+        mGauges = Collections.unmodifiableMap(gauges);
+        mHistograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @return wall clock time the snapshot was taken
+     */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * @return the counter's value, 0 if there is none with this name
+     */
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return the gauge's value, 0 if there is none with this name
+     */
+    public long getGauge(String name) {
+        Long value = mGauges.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return the histogram, or null if there is none with this name
+     */
+    public HistogramSnapshot getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return mGauges;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    /**
+     * @return one metric per line, sorted by name
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : mGauges.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : mHistograms.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package me.hammarstrom.paint.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.sync.BoardOp;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
+
+/**
+ * Replays a journal or snapshot file written by {@link StrokeJournal} onto a board.
+ *
+ * The file is memory mapped and read front to back once. Reading stops at the first
+ * record that is cut short or fails its checksum, which is where a crash while
+ * appending leaves the file; everything before it is kept.
+ */
+public class JournalReader {
+
+    private long mStrokes;
+    private long mDeletes;
+    private long mDuplicates;
+    private long mValidLength;
+    private boolean mTruncated;
+
+    /** Body of the record being read, grown as needed **/
+    private byte[] mBody = new byte[4096];
+    private float[] mCoords = new float[1024];
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Apply the strokes and deletes of a file to a board. Records the board has applied
+     * already are skipped.
+     * @param file the journal or snapshot, need not exist
+     * @param board the board to apply the records to
+     * @return the number of valid bytes in the file, 0 if it does not exist or has no
+     * valid header
+     * @throws IOException if the file cannot be read
+     */
+    public long replay(File file, ReplicatedBoard board) throws IOException {
+        mStrokes = 0;
+        mDeletes = 0;
+        mDuplicates = 0;
+        mValidLength = 0;
+        mTruncated = false;
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < StrokeJournal.HEADER_SIZE) {
+                mTruncated = size > 0;
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != StrokeJournal.MAGIC || buffer.getInt() != StrokeJournal.FORMAT_VERSION) {
+                mTruncated = true;
+                return 0;
+            }
+            mValidLength = StrokeJournal.HEADER_SIZE;
+            while (readRecord(buffer, board)) {
+                mValidLength = buffer.position();
+            }
+            mTruncated = mValidLength < size;
+            return mValidLength;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return number of strokes added to the board by the last replay
+     */
+    public long getStrokes() {
+        return mStrokes;
+    }
+
+    /**
+     * @return number of deletes new to the board in the last replay
+     */
+    public long getDeletes() {
+        return mDeletes;
+    }
+
+    /**
+     * @return number of records of the last replay the board had applied already
+     */
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * @return true if the last replay stopped before the end of the file
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    private boolean readRecord(ByteBuffer buffer, ReplicatedBoard board) {
+        if (buffer.remaining() < StrokeJournal.RECORD_HEADER_SIZE) {
+            return false;
+        }
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        if (length < StrokeJournal.DELETE_SIZE || length > buffer.remaining()) {
+            return false;
+        }
+        if (mBody.length < length) {
+            mBody = new byte[Math.max(length, mBody.length * 2)];
+        }
+        buffer.get(mBody, 0, length);
+        mCrc.reset();
+        mCrc.update(mBody, 0, length);
+        if ((int) mCrc.getValue() != crc) {
+            return false;
+        }
+
+        ByteBuffer body = ByteBuffer.wrap(mBody, 0, length);
+        int type = body.get();
+        int id = body.getInt();
+        long timestamp = body.getLong();
+        if (type == StrokeJournal.RECORD_DELETE) {
+            if (length != StrokeJournal.DELETE_SIZE) {
+                return false;
+            }
+            if (board.apply(BoardOp.delete(id, timestamp))) {
+                mDeletes++;
+            } else {
+                mDuplicates++;
+            }
+            return true;
+        }
+        if (type != StrokeJournal.RECORD_STROKE || length < StrokeJournal.STROKE_HEADER_SIZE) {
+            return false;
+        }
+        int color = body.getInt();
+        float width = body.getFloat();
+        int count = body.getInt();
+        if (count * 8 != length - StrokeJournal.STROKE_HEADER_SIZE) {
+            return false;
+        }
+        if (mCoords.length < count * 2) {
+            mCoords = new float[Math.max(count * 2, mCoords.length * 2)];
+        }
+        body.asFloatBuffer().get(mCoords, 0, count * 2);
+        Stroke stroke = new Stroke(id, color, width);
+        stroke.setTimestamp(timestamp);
+        stroke.addPoints(mCoords, 0, count);
+        if (board.add(stroke)) {
+            mStrokes++;
+        } else {
+            mDuplicates++;
+        }
+        return true;
+    }
+}
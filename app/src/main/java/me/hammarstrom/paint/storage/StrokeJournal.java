@@ -0,0 +1,464 @@
+package me.hammarstrom.paint.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+import me.hammarstrom.paint.sync.BoardOp;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
+
+/**
+ * Keeps the committed strokes and the deletes of the board on disk, so the board
+ * survives the activity stopping or the app crashing.
+ *
+ * Strokes and deletes are appended to a log by a worker thread. The worker writes
+ * everything queued since its last write in one go and syncs it to disk once, so a
+ * burst of strokes costs one sync. When the log has grown past the compaction size,
+ * the worker writes every stroke and delete on the board to a snapshot file, renames
+ * it into place and empties the log. At startup {@link #open()} replays the snapshot
+ * and then the log onto the board, see {@link JournalReader}.
+ *
+ * Both files are a header followed by records, all big endian:
+ * <pre>
+ * header  magic 4 bytes, format version 4 bytes
+ * record  body length 4 bytes, CRC32 of the body 4 bytes, body
+ * body    type 1 byte, {@link #RECORD_STROKE} or {@link #RECORD_DELETE}, stroke id
+ *         4 bytes, Lamport timestamp 8 bytes, and for a stroke color 4 bytes, width
+ *         float, point count 4 bytes, interleaved x, y floats
+ * </pre>
+ *
+ * A stroke or delete must be on the board before it is appended, so a snapshot always
+ * holds what the log held. A crash between writing the snapshot and emptying the log
+ * leaves records in both, which the board applies once. The board's operations
+ * commute, so a delete replayed before its stroke still wins.
+ */
+public class StrokeJournal {
+
+    public static final String LOG_FILE = "strokes.log";
+    public static final String SNAPSHOT_FILE = "strokes.snapshot";
+
+    /** Default log size that triggers a compaction **/
+    public static final long DEFAULT_COMPACT_BYTES = 4 * 1024 * 1024;
+
+    static final int MAGIC = 0x53544b4a;
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int DELETE_SIZE = 13;
+    static final int STROKE_HEADER_SIZE = 25;
+
+    static final int RECORD_STROKE = 0;
+    static final int RECORD_DELETE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final ReplicatedBoard mBoard;
+    private final long mCompactBytes;
+
+    /** Strokes and delete {@link BoardOp}s, guarded by itself **/
+    private final ArrayDeque<Object> mQueue = new ArrayDeque<>();
+    /** Number of records queued and synced to disk so far, guarded by mQueue **/
+    private long mQueued;
+    private long mSynced;
+    private boolean mCompactRequested;
+
+    /** Only used by the worker once started **/
+    private RandomAccessFile mLog;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private long mLogBytes;
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    private volatile long mCompactions;
+    private volatile long mWriteErrors;
+
+    private final Histogram mBatchStrokes;
+    private final Histogram mSyncNanos;
+    private final Histogram mCompactNanos;
+
+    /**
+     * @param directory directory of the journal files, created if needed
+     * @param board the board the journal keeps, and compacts from
+     */
+    public StrokeJournal(File directory, ReplicatedBoard board) {
+        this(directory, board, DEFAULT_COMPACT_BYTES, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * @param compactBytes log size that triggers a compaction
+     * @param metrics registry to record batch sizes and disk times in
+     */
+    public StrokeJournal(File directory, ReplicatedBoard board, long compactBytes, MetricsRegistry metrics) {
+        if (compactBytes <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid compaction size: " + compactBytes);
+        }
+        mDirectory = directory;
+        mBoard = board;
+        mCompactBytes = compactBytes;
+        mBatchStrokes = metrics.histogram(MetricNames.JOURNAL_BATCH_STROKES);
+        mSyncNanos = metrics.histogram(MetricNames.JOURNAL_SYNC_NANOS);
+        mCompactNanos = metrics.histogram(MetricNames.JOURNAL_COMPACT_NANOS);
+    }
+
+    /**
+     * Replay the snapshot and the log onto the board and open the log for appending.
+     * A log cut short by a crash is truncated to its last whole record. Call before
+     * {@link #start()}.
+     * @return number of strokes added to the board
+     * @throws IOException if the files cannot be read or the log cannot be opened
+     */
+    public synchronized long open() throws IOException {
+        if (mLog != null) {
+            throw new IllegalStateException("Already open");
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        JournalReader reader = new JournalReader();
+        reader.replay(new File(mDirectory, SNAPSHOT_FILE), mBoard);
+        long strokes = reader.getStrokes();
+        long validLength = reader.replay(new File(mDirectory, LOG_FILE), mBoard);
+        strokes += reader.getStrokes();
+
+        mLog = new RandomAccessFile(new File(mDirectory, LOG_FILE), "rw");
+        FileChannel channel = mLog.getChannel();
+        if (validLength == 0) {
+            channel.truncate(0);
+            mBuffer.clear();
+            mBuffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+            writeBuffer(channel);
+            validLength = HEADER_SIZE;
+        } else if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+        channel.force(true);
+        channel.position(validLength);
+        mLogBytes = validLength;
+        return strokes;
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        if (mLog == null) {
+            throw new IllegalStateException("Not open");
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "StrokeJournal");
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker after it has written the records still queued, and close the log.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mQueue) {
+            mQueue.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            mLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mLog = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a committed stroke for writing, from any thread. The stroke must already be
+     * on the board and must not change afterwards.
+     */
+    public void append(Stroke stroke) {
+        enqueue(stroke);
+    }
+
+    /**
+     * Queue a delete for writing, from any thread. The delete must already be applied
+     * to the board.
+     * @param timestamp Lamport timestamp of the delete
+     */
+    public void appendDelete(int strokeId, long timestamp) {
+        enqueue(BoardOp.delete(strokeId, timestamp));
+    }
+
+    private void enqueue(Object record) {
+        synchronized (mQueue) {
+            mQueue.addLast(record);
+            mQueued++;
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Ask the worker to compact the log after its next write, whatever its size.
+     */
+    public void compact() {
+        synchronized (mQueue) {
+            mCompactRequested = true;
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every stroke and delete appended so far is on disk.
+     * @param timeoutMillis longest time to wait
+     * @return true if they are on disk, false on timeout or if the worker stopped
+     */
+    public boolean awaitSynced(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mQueue) {
+            long target = mQueued;
+            while (mSynced < target) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0 || !mRunning) {
+                    return false;
+                }
+                mQueue.wait(left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return size of the log in bytes, as far as the worker has written it
+     */
+    public long getLogBytes() {
+        synchronized (mQueue) {
+            return mLogBytes;
+        }
+    }
+
+    public long getCompactions() {
+        return mCompactions;
+    }
+
+    /**
+     * @return number of batches that could not be written, their records are lost
+     */
+    public long getWriteErrors() {
+        return mWriteErrors;
+    }
+
+    private void drain() {
+        List<Object> batch = new ArrayList<>();
+        while (true) {
+            boolean compact;
+            synchronized (mQueue) {
+                while (mRunning && mQueue.isEmpty() && !mCompactRequested) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning && mQueue.isEmpty()) {
+                    return;
+                }
+                batch.addAll(mQueue);
+                mQueue.clear();
+                compact = mCompactRequested;
+                mCompactRequested = false;
+            }
+            long written = 0;
+            if (!batch.isEmpty()) {
+                try {
+                    written = writeBatch(batch);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    mWriteErrors++;
+                }
+            }
+            synchronized (mQueue) {
+                mSynced += batch.size();
+                mLogBytes += written;
+                mQueue.notifyAll();
+            }
+            batch.clear();
+            if (compact || mLogBytes >= mCompactBytes) {
+                try {
+                    compactLog();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    mWriteErrors++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the strokes and deletes to the log and sync it.
+     * @return number of bytes written
+     */
+    private long writeBatch(List<Object> batch) throws IOException {
+        FileChannel channel = mLog.getChannel();
+        long start = channel.position();
+        mBuffer.clear();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Object record = batch.get(i);
+                if (record instanceof Stroke) {
+                    putRecord(channel, (Stroke) record);
+                } else {
+                    putRecord(channel, (BoardOp) record);
+                }
+            }
+            writeBuffer(channel);
+        } catch (IOException e) {
+            // Drop the part written, a torn record would hide the later ones on replay
+            mBuffer.clear();
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+        long syncStart = System.nanoTime();
+        channel.force(false);
+        mSyncNanos.recordSince(syncStart);
+        mBatchStrokes.record(batch.size());
+        return channel.position() - start;
+    }
+
+    /**
+     * Write every stroke and delete on the board to a new snapshot, then empty the log.
+     */
+    private void compactLog() throws IOException {
+        long start = System.nanoTime();
+        List<Stroke> strokes = mBoard.getStrokes();
+        List<BoardOp> deletes = mBoard.getDeletes();
+        File snapshot = new File(mDirectory, SNAPSHOT_FILE);
+        File temporary = new File(mDirectory, SNAPSHOT_FILE + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            mBuffer.clear();
+            mBuffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+            for (int i = 0; i < strokes.size(); i++) {
+                putRecord(channel, strokes.get(i));
+            }
+            for (int i = 0; i < deletes.size(); i++) {
+                putRecord(channel, deletes.get(i));
+            }
+            writeBuffer(channel);
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+        if (!temporary.renameTo(snapshot)) {
+            throw new IOException("Cannot rename " + temporary + " to " + snapshot);
+        }
+
+        FileChannel log = mLog.getChannel();
+        log.truncate(HEADER_SIZE);
+        log.position(HEADER_SIZE);
+        log.force(true);
+        synchronized (mQueue) {
+            mLogBytes = HEADER_SIZE;
+        }
+        mCompactions++;
+        mCompactNanos.recordSince(start);
+    }
+
+    /**
+     * Add the record of a stroke to the buffer, writing the buffer out when it fills.
+     */
+    private void putRecord(FileChannel channel, Stroke stroke) throws IOException {
+        int count = stroke.getPointCount();
+        int length = STROKE_HEADER_SIZE + count * 8;
+        int recordStart = beginRecord(channel, length);
+        mBuffer.put((byte) RECORD_STROKE);
+        mBuffer.putInt(stroke.getId());
+        mBuffer.putLong(stroke.getTimestamp());
+        mBuffer.putInt(stroke.getColor());
+        mBuffer.putFloat(stroke.getWidth());
+        mBuffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.putFloat(stroke.getX(i));
+            mBuffer.putFloat(stroke.getY(i));
+        }
+        finishRecord(recordStart, length);
+    }
+
+    /**
+     * Add the record of a delete to the buffer, writing the buffer out when it fills.
+     */
+    private void putRecord(FileChannel channel, BoardOp delete) throws IOException {
+        int recordStart = beginRecord(channel, DELETE_SIZE);
+        mBuffer.put((byte) RECORD_DELETE);
+        mBuffer.putInt(delete.getStrokeId());
+        mBuffer.putLong(delete.getTimestamp());
+        finishRecord(recordStart, DELETE_SIZE);
+    }
+
+    /**
+     * Make room for a record in the buffer and skip its header.
+     * @return position of the record in the buffer
+     */
+    private int beginRecord(FileChannel channel, int length) throws IOException {
+        if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+            writeBuffer(channel);
+            if (mBuffer.capacity() < RECORD_HEADER_SIZE + length) {
+                mBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            }
+        }
+        int recordStart = mBuffer.position();
+        mBuffer.position(recordStart + RECORD_HEADER_SIZE);
+        return recordStart;
+    }
+
+    /**
+     * Fill in the header of a record once its body is in the buffer.
+     */
+    private void finishRecord(int recordStart, int length) {
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), recordStart + RECORD_HEADER_SIZE, length);
+        mBuffer.putInt(recordStart, length);
+        mBuffer.putInt(recordStart + 4, (int) mCrc.getValue());
+    }
+
+    private void writeBuffer(FileChannel channel) throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,413 @@
+package me.hammarstrom.paint.sync;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import me.hammarstrom.paint.connections.SessionHub;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.Transport;
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * Brings the boards of two peers together whenever they connect, also after a link
+ * was down for a while and both drew meanwhile.
+ *
+ * On connecting, each side sends a {@link VersionVector} summary of its board, and
+ * answers a summary with the strokes and deletes the other side lacks, streamed by a
+ * {@link SnapshotSender} as bulk messages that live strokes overtake. A summary holds
+ * two vectors: the strokes the board knows, deleted ones included so they are not
+ * sent back, and the deleted strokes, so a peer that still has one gets the delete. Only the missing strokes go
+ * over the link, the summary is a few bytes per peer that ever drew on the board.
+ * When the relay gets strokes that were new to it, it sends its summary to the other
+ * peers asking for theirs back, so the strokes spread to everyone.
+ *
+ * A summary is a frame of type {@link StrokeCodec#TYPE_SUMMARY}:
+ * <pre>
+ *  0  frame header   4 bytes, see {@link StrokeCodec}
+ *  4  flags          1 byte, {@link #FLAG_REPLY_WANTED}
+ *  5  version vector of the strokes known
+ *     version vector of the strokes deleted
+ * </pre>
+ * Received summaries and snapshot chunks are handled on a worker thread, in the order
+ * they arrived, so that inflating, decoding and adding the strokes to the board does
+ * not hold up the thread the transport delivers on. Summaries are built and compared
+ * with the board there too, both scan the whole board. Call {@link #start()} before
+ * messages come in. Thread safe.
+ */
+public class AntiEntropy {
+
+    /** The receiver of the summary should send back its own **/
+    public static final int FLAG_REPLY_WANTED = 1;
+
+    public static final int SUMMARY_HEADER_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 1;
+
+    /**
+     * Callback for the strokes that peers sent
+     */
+    public interface Listener {
+
+        /**
+         * Called for every received stroke that was not on the board yet, on the
+         * worker thread. The stroke is already on the board.
+         * @param endpointId the peer that sent the stroke
+         */
+        void onStrokeReceived(String endpointId, Stroke stroke);
+
+        /**
+         * Called for every received delete that was new to the board, on the worker
+         * thread. The stroke, if there was one, is already off the board.
+         * @param endpointId the peer that sent the delete
+         */
+        void onStrokeDeleted(String endpointId, BoardOp delete);
+    }
+
+    private final Transport mTransport;
+    private final StrokeCodec mCodec;
+    private final ReplicatedBoard mBoard;
+    private final SessionHub mHub;
+    private final Listener mListener;
+    private final SnapshotReceiver mReceiver;
+
+    /** Guarded by itself **/
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    private Thread mWorker;
+    private volatile boolean mRunning;
+
+    /** All guarded by this **/
+    private final HashMap<String, SnapshotSender> mSenders = new HashMap<>();
+    private int mNextSnapshotId;
+    private long mSentSummaries;
+    private long mSummaryBytes;
+    private long mMissingStrokes;
+    private long mMissingDeletes;
+
+    /**
+     * @param transport the links to the peers
+     * @param codec codec the strokes are encoded with
+     * @param board the committed strokes and deletes
+     * @param hub the connected peers and whether this is the relay
+     * @param listener receiver of the strokes new to the board
+     */
+    public AntiEntropy(Transport transport, StrokeCodec codec, ReplicatedBoard board, SessionHub hub,
+                       Listener listener) {
+        mTransport = transport;
+        mCodec = codec;
+        mBoard = board;
+        mHub = hub;
+        mListener = listener;
+        mReceiver = new SnapshotReceiver(codec, board, new SnapshotReceiver.Listener() {
+            @Override
+            public void onSnapshotStroke(String endpointId, Stroke stroke) {
+                mListener.onStrokeReceived(endpointId, stroke);
+            }
+
+            @Override
+            public void onSnapshotDelete(String endpointId, BoardOp delete) {
+                mListener.onStrokeDeleted(endpointId, delete);
+            }
+
+            @Override
+            public void onSnapshotComplete(String endpointId, int strokes, int added) {
+                if (added > 0 && mHub.isRelay()) {
+                    // Pass the new strokes and deletes on to everyone else
+                    for (String peer : mHub.getPeers()) {
+                        if (!peer.equals(endpointId)) {
+                            sendSummary(peer, true);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AntiEntropy");
+        mWorker.start();
+    }
+
+    /**
+     * Start bringing the boards together with a newly connected peer, on the worker.
+     */
+    public void onEndpointConnected(String endpointId) {
+        sendSummary(endpointId, false);
+    }
+
+    /**
+     * Stop sending strokes to a peer that is gone, and forget what it was sending,
+     * after the messages that came from it before.
+     */
+    public void onEndpointDisconnected(String endpointId) {
+        offer(new Event(Event.DISCONNECTED, endpointId, null));
+    }
+
+    /**
+     * Take a received message if it is a summary or carries missing strokes. It is
+     * handled on the worker thread.
+     * @param payload the message, not changed by the caller afterwards
+     * @return true if the message was taken
+     */
+    public boolean onMessageReceived(String endpointId, byte[] payload) {
+        int type = StrokeCodec.getType(payload);
+        if (type != StrokeCodec.TYPE_SUMMARY && type != StrokeCodec.TYPE_SNAPSHOT) {
+            return false;
+        }
+        offer(new Event(Event.MESSAGE, endpointId, payload));
+        return true;
+    }
+
+    private void offer(Event event) {
+        synchronized (mQueue) {
+            if (!mRunning) {
+                // Stopped, there is nobody to bring together
+                return;
+            }
+            mQueue.addLast(event);
+            mQueue.notifyAll();
+        }
+    }
+
+    private void drain() {
+        while (mRunning) {
+            Event event;
+            synchronized (mQueue) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                event = mQueue.pollFirst();
+            }
+            try {
+                if (event.kind == Event.DISCONNECTED) {
+                    removePeer(event.endpointId);
+                } else if (event.kind == Event.SUMMARY) {
+                    writeSummary(event.endpointId, event.replyWanted);
+                } else if (StrokeCodec.getType(event.payload) == StrokeCodec.TYPE_SNAPSHOT) {
+                    mReceiver.onMessageReceived(event.endpointId, event.payload);
+                } else {
+                    onSummary(event.endpointId, event.payload);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void removePeer(String endpointId) {
+        SnapshotSender sender = mSenders.remove(endpointId);
+        if (sender != null) {
+            sender.stop();
+        }
+        mReceiver.removePeer(endpointId);
+    }
+
+    private void onSummary(String endpointId, byte[] payload) {
+        VersionVector known;
+        VersionVector deleted;
+        try {
+            if (payload.length < SUMMARY_HEADER_SIZE) {
+                throw new StreamCorruptedException("Truncated summary");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload, SUMMARY_HEADER_SIZE, payload.length - SUMMARY_HEADER_SIZE);
+            known = VersionVector.read(buffer);
+            deleted = VersionVector.read(buffer);
+        } catch (StreamCorruptedException e) {
+            e.printStackTrace();
+            return;
+        }
+        if ((payload[SUMMARY_HEADER_SIZE - 1] & FLAG_REPLY_WANTED) != 0) {
+            writeSummary(endpointId, false);
+        }
+        // Outside the lock, which only guards the senders
+        List<Stroke> missing = known.missing(mBoard.getStrokes());
+        List<BoardOp> missingDeletes = new ArrayList<>();
+        for (BoardOp delete : mBoard.getDeletes()) {
+            if (!deleted.contains(delete.getStrokeId())) {
+                missingDeletes.add(delete);
+            }
+        }
+        synchronized (this) {
+            SnapshotSender previous = mSenders.remove(endpointId);
+            if (previous != null) {
+                // Replaced by the new one, which holds what the old one had left
+                previous.stop();
+            }
+            if (!missing.isEmpty() || !missingDeletes.isEmpty()) {
+                SnapshotSender sender = new SnapshotSender(mTransport, endpointId, mCodec, missing,
+                        missingDeletes, mNextSnapshotId++);
+                mSenders.put(endpointId, sender);
+                mMissingStrokes += missing.size();
+                mMissingDeletes += missingDeletes.size();
+                sender.start();
+            }
+        }
+    }
+
+    /**
+     * Send the summary of the board to a peer, from the worker. Nothing is queued if
+     * the same summary is already waiting to be sent.
+     * @param replyWanted true to have the peer send its summary back
+     */
+    public void sendSummary(String endpointId, boolean replyWanted) {
+        synchronized (mQueue) {
+            for (Event queued : mQueue) {
+                if (queued.kind == Event.SUMMARY && queued.replyWanted == replyWanted
+                        && queued.endpointId.equals(endpointId)) {
+                    return;
+                }
+            }
+        }
+        Event event = new Event(Event.SUMMARY, endpointId, null);
+        event.replyWanted = replyWanted;
+        offer(event);
+    }
+
+    /**
+     * Send the summary of the board now. One that does not fit in a message claims less
+     * than the board holds, see {@link VersionVector#write(ByteBuffer, int)}, so the
+     * peer sends strokes or deletes this side has already.
+     */
+    private void writeSummary(String endpointId, boolean replyWanted) {
+        VersionVector known = VersionVector.of(mBoard.getIds());
+        List<BoardOp> deletes = mBoard.getDeletes();
+        int[] deletedIds = new int[deletes.size()];
+        for (int i = 0; i < deletedIds.length; i++) {
+            deletedIds[i] = deletes.get(i).getStrokeId();
+        }
+        VersionVector deleted = VersionVector.of(deletedIds);
+        ByteBuffer buffer = ByteBuffer.allocate(StrokeCodec.MAX_MESSAGE_SIZE);
+        buffer.position(SUMMARY_HEADER_SIZE);
+        int room = buffer.capacity() - SUMMARY_HEADER_SIZE;
+        // The deletes get at most half of the room
+        int deletedRoom = Math.min(deleted.getEncodedSize(), room / 2);
+        int length = SUMMARY_HEADER_SIZE + known.write(buffer, room - deletedRoom);
+        length += deleted.write(buffer, buffer.capacity() - length);
+        buffer.put(0, (byte) StrokeCodec.VERSION);
+        buffer.put(1, (byte) StrokeCodec.TYPE_SUMMARY);
+        buffer.putShort(2, (short) (length - StrokeCodec.FRAME_HEADER_SIZE));
+        buffer.put(4, (byte) (replyWanted ? FLAG_REPLY_WANTED : 0));
+        byte[] payload = Arrays.copyOf(buffer.array(), length);
+        mTransport.sendReliable(endpointId, payload);
+        synchronized (this) {
+            mSentSummaries++;
+            mSummaryBytes += length;
+        }
+    }
+
+    /**
+     * Stop the worker and sending strokes to every peer. Messages still queued are
+     * dropped.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker != null) {
+            mRunning = false;
+            synchronized (mQueue) {
+                mQueue.clear();
+                mQueue.notifyAll();
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (SnapshotSender sender : mSenders.values()) {
+                sender.stop();
+            }
+            mSenders.clear();
+        }
+    }
+
+    /**
+     * @return true while strokes are being sent to a peer
+     */
+    public synchronized boolean isSending(String endpointId) {
+        SnapshotSender sender = mSenders.get(endpointId);
+        return sender != null && !sender.isDone();
+    }
+
+    public SnapshotReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    public int getQueueSize() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    public synchronized long getSentSummaries() {
+        return mSentSummaries;
+    }
+
+    public synchronized long getSummaryBytes() {
+        return mSummaryBytes;
+    }
+
+    /**
+     * @return number of strokes peers lacked and were sent, or are being sent
+     */
+    public synchronized long getMissingStrokes() {
+        return mMissingStrokes;
+    }
+
+    /**
+     * @return number of deletes peers lacked and were sent, or are being sent
+     */
+    public synchronized long getMissingDeletes() {
+        return mMissingDeletes;
+    }
+
+    /**
+     * Something to handle on the worker
+     */
+    private static class Event {
+        static final int MESSAGE = 0;
+        static final int DISCONNECTED = 1;
+        static final int SUMMARY = 2;
+
+        final int kind;
+        final String endpointId;
+        final byte[] payload;
+        /** For a summary to send, whether to ask for one back **/
+        boolean replyWanted;
+
+        Event(int kind, String endpointId, byte[] payload) {
+            this.kind = kind;
+            this.endpointId = endpointId;
+            this.payload = payload;
+        }
+    }
+}
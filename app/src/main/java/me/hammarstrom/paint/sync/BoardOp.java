@@ -0,0 +1,102 @@
+package me.hammarstrom.paint.sync;
+
+/**
+ * An operation on a {@link ReplicatedBoard}, made by one peer and applied by all.
+ * Immutable.
+ */
+public class BoardOp {
+
+    /** Create a stroke, with its color and width **/
+    public static final int TYPE_ADD = 1;
+    /** Set points of a stroke, from a point index on **/
+    public static final int TYPE_APPEND = 2;
+    /** Remove a stroke for good **/
+    public static final int TYPE_DELETE = 3;
+
+    private static final float[] NO_COORDS = new float[0];
+
+    private final int mType;
+    private final int mStrokeId;
+    private final long mTimestamp;
+    private final int mColor;
+    private final float mWidth;
+    private final int mOffset;
+    private final float[] mCoords;
+
+    private BoardOp(int type, int strokeId, long timestamp, int color, float width, int offset,
+                    float[] coords) {
+        mType = type;
+        mStrokeId = strokeId;
+        mTimestamp = timestamp;
+        mColor = color;
+        mWidth = width;
+        mOffset = offset;
+        mCoords = coords;
+    }
+
+    public static BoardOp add(int strokeId, long timestamp, int color, float width) {
+        return new BoardOp(TYPE_ADD, strokeId, timestamp, color, width, 0, NO_COORDS);
+    }
+
+    /**
+     * @param offset index in the stroke of the first point
+     * @param coords interleaved x, y coordinates, not changed afterwards
+     */
+    public static BoardOp append(int strokeId, long timestamp, int offset, float[] coords) {
+        if (offset < 0 || coords.length % 2 != 0) {
+            throw new IllegalArgumentException("Bad points " + offset + "+" + coords.length);
+        }
+        return new BoardOp(TYPE_APPEND, strokeId, timestamp, 0, 0f, offset, coords);
+    }
+
+    public static BoardOp delete(int strokeId, long timestamp) {
+        return new BoardOp(TYPE_DELETE, strokeId, timestamp, 0, 0f, 0, NO_COORDS);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getStrokeId() {
+        return mStrokeId;
+    }
+
+    /**
+     * @return the Lamport timestamp of the operation
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getColor() {
+        return mColor;
+    }
+
+    public float getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return index in the stroke of the first point of an append
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getPointCount() {
+        return mCoords.length / 2;
+    }
+
+    /**
+     * @return the interleaved coordinates of an append, not to be changed
+     */
+    public float[] getCoords() {
+        return mCoords;
+    }
+
+    @Override
+    public String toString() {
+        return "BoardOp{type=" + mType + ", stroke=" + Integer.toHexString(mStrokeId) + ", time=" + mTimestamp
+                + ", points=" + mOffset + "+" + getPointCount() + "}";
+    }
+}
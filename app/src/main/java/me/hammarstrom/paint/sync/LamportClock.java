@@ -0,0 +1,34 @@
+package me.hammarstrom.paint.sync;
+
+/**
+ * A Lamport clock: a counter that is ahead of every timestamp seen so far, so an
+ * operation made after seeing another gets a later timestamp. Thread safe.
+ */
+public class LamportClock {
+
+    /** Guarded by this **/
+    private long mTime;
+
+    /**
+     * @return the timestamp of a new local event
+     */
+    public synchronized long tick() {
+        return ++mTime;
+    }
+
+    /**
+     * Move the clock past a timestamp received from a peer.
+     */
+    public synchronized void observe(long timestamp) {
+        if (timestamp > mTime) {
+            mTime = timestamp;
+        }
+    }
+
+    /**
+     * @return the latest timestamp handed out or seen
+     */
+    public synchronized long get() {
+        return mTime;
+    }
+}
@@ -0,0 +1,349 @@
+package me.hammarstrom.paint.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * A board that several peers change at once and that ends up the same on every peer,
+ * whatever order the operations arrive in and however often.
+ *
+ * Strokes have {@link StrokeIds} made of the drawing peer and its stroke counter, so
+ * peers never hand out the same id. Every operation carries a {@link LamportClock}
+ * timestamp, and the strokes are kept in the order of the timestamps of their adds,
+ * ties broken by id: a stroke drawn after seeing another is on top of it on every
+ * peer. The operations commute and are idempotent:
+ * <ul>
+ * <li>an add creates the stroke; adding it again changes nothing</li>
+ * <li>an append sets the points from an index on, so appends of the same points
+ *   agree, and points past a gap wait until the gap is filled. Appends that come
+ *   before the add wait for it</li>
+ * <li>a delete removes the stroke for good, it wins over every add and append, before
+ *   or after it. The id is kept as a tombstone</li>
+ * </ul>
+ * Applying an operation costs O(log n) in the number of strokes, plus its points.
+ *
+ * This is the board of the session. The app adds strokes whole once they are
+ * committed, see {@link #add(Stroke)}, with the timestamp the stroke was started with,
+ * which its messages carry. Deletes are sent as messages of their own, kept in the
+ * journal and swapped by {@link AntiEntropy} like strokes. Thread safe.
+ */
+public class ReplicatedBoard {
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.timestamp != b.timestamp) {
+                return a.timestamp < b.timestamp ? -1 : 1;
+            }
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    /** Null if strokes are only added whole **/
+    private final StrokeIdGenerator mIds;
+    private final LamportClock mClock = new LamportClock();
+
+    /** Every stroke id seen, including tombstones, all guarded by this **/
+    private final HashMap<Integer, Entry> mEntries = new HashMap<>();
+    /** The strokes that are added and not deleted, in board order **/
+    private final TreeSet<Entry> mVisible = new TreeSet<>(ORDER);
+    private long mAppliedOps;
+
+    /**
+     * Create a board that strokes are only added to whole, see {@link #add(Stroke)}.
+     */
+    public ReplicatedBoard() {
+        this(null);
+    }
+
+    /**
+     * @param ids source of the ids of the strokes made here with {@link #addStroke(int, float)}
+     */
+    public ReplicatedBoard(StrokeIdGenerator ids) {
+        mIds = ids;
+    }
+
+    /**
+     * Get the timestamp for a stroke started here, to send with its messages and to
+     * add it with once committed.
+     * @return a timestamp later than every one seen so far
+     */
+    public long nextTimestamp() {
+        return mClock.tick();
+    }
+
+    /**
+     * Add a committed stroke whole, made here or received, by the timestamp it was
+     * started with. This is an add and an append of all its points in one.
+     * @param stroke the finished stroke, which must not change afterwards
+     * @return false if the stroke was added before or is deleted
+     */
+    public synchronized boolean add(Stroke stroke) {
+        mClock.observe(stroke.getTimestamp());
+        mAppliedOps++;
+        Entry entry = entry(stroke.getId());
+        if (entry.deleted || entry.stroke != null) {
+            return false;
+        }
+        entry.timestamp = stroke.getTimestamp();
+        entry.stroke = stroke;
+        mVisible.add(entry);
+        drainPending(entry);
+        return true;
+    }
+
+    /**
+     * Start a stroke made here.
+     * @return the operation to send to the peers, already applied
+     */
+    public synchronized BoardOp addStroke(int color, float width) {
+        if (mIds == null) {
+            throw new IllegalStateException("No stroke ids on this board");
+        }
+        BoardOp op = BoardOp.add(mIds.next(), mClock.tick(), color, width);
+        apply(op);
+        return op;
+    }
+
+    /**
+     * Add points to the end of a stroke made here.
+     * @param coords interleaved coordinates, copied
+     * @return the operation to send to the peers, already applied
+     */
+    public synchronized BoardOp appendPoints(int strokeId, float[] coords, int offset, int count) {
+        Entry entry = mEntries.get(strokeId);
+        if (entry == null || entry.stroke == null) {
+            throw new IllegalArgumentException("No stroke " + Integer.toHexString(strokeId));
+        }
+        float[] copy = new float[count * 2];
+        System.arraycopy(coords, offset, copy, 0, count * 2);
+        BoardOp op = BoardOp.append(strokeId, mClock.tick(), entry.stroke.getPointCount(), copy);
+        apply(op);
+        return op;
+    }
+
+    /**
+     * Delete a stroke, made here or by a peer.
+     * @return the operation to send to the peers, already applied
+     */
+    public synchronized BoardOp deleteStroke(int strokeId) {
+        BoardOp op = BoardOp.delete(strokeId, mClock.tick());
+        apply(op);
+        return op;
+    }
+
+    /**
+     * Apply an operation made here or by a peer.
+     * @return true if the board changed, false if the operation was applied before,
+     * waits for an earlier one or is overruled by a delete
+     */
+    public synchronized boolean apply(BoardOp op) {
+        mClock.observe(op.getTimestamp());
+        mAppliedOps++;
+        Entry entry = entry(op.getStrokeId());
+        if (entry.deleted) {
+            return false;
+        }
+        switch (op.getType()) {
+            case BoardOp.TYPE_ADD:
+                return applyAdd(entry, op);
+            case BoardOp.TYPE_APPEND:
+                return applyAppend(entry, op);
+            case BoardOp.TYPE_DELETE:
+                if (entry.stroke != null) {
+                    mVisible.remove(entry);
+                }
+                entry.timestamp = op.getTimestamp();
+                entry.deleted = true;
+                entry.stroke = null;
+                entry.pending = null;
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + op.getType());
+        }
+    }
+
+    /**
+     * Get the strokes on the board.
+     * @return the strokes in board order, bottom first. The strokes themselves are
+     * live, they change with later appends
+     */
+    public synchronized List<Stroke> getStrokes() {
+        List<Stroke> strokes = new ArrayList<>(mVisible.size());
+        for (Entry entry : mVisible) {
+            strokes.add(entry.stroke);
+        }
+        return strokes;
+    }
+
+    /**
+     * @return true if the stroke is on the board
+     */
+    public synchronized boolean contains(int strokeId) {
+        Entry entry = mEntries.get(strokeId);
+        return entry != null && entry.stroke != null;
+    }
+
+    /**
+     * @return the stroke, or null if it is not on the board
+     */
+    public synchronized Stroke get(int strokeId) {
+        Entry entry = mEntries.get(strokeId);
+        return entry == null ? null : entry.stroke;
+    }
+
+    /**
+     * @return true if the stroke was deleted
+     */
+    public synchronized boolean isDeleted(int strokeId) {
+        Entry entry = mEntries.get(strokeId);
+        return entry != null && entry.deleted;
+    }
+
+    /**
+     * Get the ids the board knows the final state of: the strokes on it and the
+     * deleted ones.
+     * @return the ids, in no particular order
+     */
+    public synchronized int[] getIds() {
+        int[] ids = new int[mEntries.size()];
+        int count = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.stroke != null || entry.deleted) {
+                ids[count++] = entry.id;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Get the deletes applied, to pass on to peers that lack them.
+     * @return a delete operation per deleted stroke, in no particular order
+     */
+    public synchronized List<BoardOp> getDeletes() {
+        List<BoardOp> deletes = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.deleted) {
+                deletes.add(BoardOp.delete(entry.id, entry.timestamp));
+            }
+        }
+        return deletes;
+    }
+
+    /**
+     * @return number of strokes on the board
+     */
+    public synchronized int size() {
+        return mVisible.size();
+    }
+
+    /**
+     * @return number of operations applied, including repeated ones
+     */
+    public synchronized long getAppliedOps() {
+        return mAppliedOps;
+    }
+
+    public long getTime() {
+        return mClock.get();
+    }
+
+    private boolean applyAdd(Entry entry, BoardOp op) {
+        if (entry.stroke != null) {
+            return false;
+        }
+        entry.timestamp = op.getTimestamp();
+        entry.stroke = new Stroke(op.getStrokeId(), op.getColor(), op.getWidth());
+        entry.stroke.setTimestamp(op.getTimestamp());
+        mVisible.add(entry);
+        drainPending(entry);
+        return true;
+    }
+
+    private boolean applyAppend(Entry entry, BoardOp op) {
+        if (entry.stroke == null || op.getOffset() > entry.stroke.getPointCount()) {
+            // Before the add, or past a gap
+            if (entry.pending == null) {
+                entry.pending = new TreeMap<>();
+            }
+            float[] previous = entry.pending.get(op.getOffset());
+            if (previous == null || previous.length < op.getCoords().length) {
+                entry.pending.put(op.getOffset(), op.getCoords());
+            }
+            return false;
+        }
+        boolean changed = copyPoints(entry.stroke, op.getOffset(), op.getCoords());
+        return drainPending(entry) || changed;
+    }
+
+    private Entry entry(int strokeId) {
+        Entry entry = mEntries.get(strokeId);
+        if (entry == null) {
+            entry = new Entry(strokeId);
+            mEntries.put(strokeId, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Add the points of an append that are past the end of the stroke.
+     * @return true if any were
+     */
+    private static boolean copyPoints(Stroke stroke, int offset, float[] coords) {
+        int have = stroke.getPointCount() - offset;
+        int count = coords.length / 2;
+        if (have >= count) {
+            return false;
+        }
+        stroke.addPoints(coords, have * 2, count - have);
+        return true;
+    }
+
+    /**
+     * Apply the waiting appends that the stroke has reached.
+     */
+    private static boolean drainPending(Entry entry) {
+        if (entry.pending == null) {
+            return false;
+        }
+        boolean changed = false;
+        while (!entry.pending.isEmpty()) {
+            Map.Entry<Integer, float[]> first = entry.pending.firstEntry();
+            if (first.getKey() > entry.stroke.getPointCount()) {
+                break;
+            }
+            entry.pending.pollFirstEntry();
+            changed |= copyPoints(entry.stroke, first.getKey(), first.getValue());
+        }
+        if (entry.pending.isEmpty()) {
+            entry.pending = null;
+        }
+        return changed;
+    }
+
+    /**
+     * What the board knows of one stroke id
+     */
+    private static class Entry {
+        final int id;
+        /** Timestamp of the add, the board order, or of the delete once deleted **/
+        long timestamp;
+        /** Null until added and after deleted **/
+        Stroke stroke;
+        /** Appends waiting for the add or for a gap, by offset, or null **/
+        TreeMap<Integer, float[]> pending;
+        boolean deleted;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package me.hammarstrom.paint.sync;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * Rebuilds the strokes of a board snapshot from the chunks a {@link SnapshotSender}
+ * sends, inflating each chunk as it arrives. Snapshots from different peers may
+ * arrive at once, each peer's chunks are followed on their own.
+ *
+ * Every finished stroke is added to the board, and passed to the listener unless the
+ * board had it already, which happens when a stroke committed during the catch-up
+ * arrived live before its place in the snapshot, or it was deleted. Deletes are
+ * applied to the board the same way. A chunk out of order or damaged
+ * drops the snapshot; a new one starts with chunk 0. Thread safe.
+ */
+public class SnapshotReceiver {
+
+    /**
+     * Callback for the strokes of a snapshot
+     */
+    public interface Listener {
+
+        /**
+         * Called for every snapshot stroke that was not on the board yet.
+         * @param endpointId the peer that sent the snapshot
+         */
+        void onSnapshotStroke(String endpointId, Stroke stroke);
+
+        /**
+         * Called for every snapshot delete that was new to the board.
+         * @param endpointId the peer that sent the snapshot
+         */
+        void onSnapshotDelete(String endpointId, BoardOp delete);
+
+        /**
+         * Called after the last chunk of a snapshot.
+         * @param endpointId the peer that sent the snapshot
+         * @param strokes number of strokes and deletes in the snapshot
+         * @param added number of them that changed the board
+         */
+        void onSnapshotComplete(String endpointId, int strokes, int added);
+    }
+
+    private final StrokeCodec mCodec;
+    private final ReplicatedBoard mBoard;
+    private final Listener mListener;
+
+    /** All guarded by this **/
+    private final HashMap<String, Stream> mStreams = new HashMap<>();
+    private final PathMessage mMessage = new PathMessage();
+    private long mAddedStrokes;
+    private long mSkippedStrokes;
+    private long mDroppedSnapshots;
+
+    /**
+     * @param codec codec the strokes are encoded with
+     * @param board board to add the strokes to
+     * @param listener receiver of the strokes new to the board
+     */
+    public SnapshotReceiver(StrokeCodec codec, ReplicatedBoard board, Listener listener) {
+        mCodec = codec;
+        mBoard = board;
+        mListener = listener;
+    }
+
+    /**
+     * Handle a received message if it is a snapshot chunk.
+     * @return true if the message was a snapshot chunk
+     */
+    public synchronized boolean onMessageReceived(String endpointId, byte[] payload) {
+        if (StrokeCodec.getType(payload) != StrokeCodec.TYPE_SNAPSHOT) {
+            return false;
+        }
+        Stream stream = mStreams.get(endpointId);
+        if (stream == null) {
+            stream = new Stream(endpointId);
+            mStreams.put(endpointId, stream);
+        }
+        try {
+            onChunk(stream, payload);
+        } catch (IOException | DataFormatException e) {
+            e.printStackTrace();
+            stream.drop();
+        }
+        return true;
+    }
+
+    /**
+     * Forget the snapshot a peer was sending.
+     */
+    public synchronized void removePeer(String endpointId) {
+        Stream stream = mStreams.remove(endpointId);
+        if (stream != null) {
+            stream.inflater.end();
+        }
+    }
+
+    /**
+     * @return number of snapshot strokes that were new to the board
+     */
+    public synchronized long getAddedStrokes() {
+        return mAddedStrokes;
+    }
+
+    /**
+     * @return number of snapshot strokes the board had already, or had deleted
+     */
+    public synchronized long getSkippedStrokes() {
+        return mSkippedStrokes;
+    }
+
+    /**
+     * @return number of snapshots given up on because of a bad chunk
+     */
+    public synchronized long getDroppedSnapshots() {
+        return mDroppedSnapshots;
+    }
+
+    private void onChunk(Stream stream, byte[] payload) throws IOException, DataFormatException {
+        if (payload.length < SnapshotSender.HEADER_SIZE
+                || StrokeCodec.FRAME_HEADER_SIZE + getInt(payload, 2, 2) != payload.length) {
+            throw new StreamCorruptedException("Truncated snapshot chunk");
+        }
+        int snapshotId = getInt(payload, SnapshotSender.OFFSET_SNAPSHOT_ID, 4);
+        int index = getInt(payload, SnapshotSender.OFFSET_INDEX, 4);
+        boolean last = (payload[SnapshotSender.OFFSET_FLAGS] & SnapshotSender.FLAG_LAST) != 0;
+        if (index == 0) {
+            stream.reset(snapshotId);
+        } else if (!stream.active) {
+            // The rest of a snapshot that was dropped
+            return;
+        } else if (snapshotId != stream.snapshotId || index != stream.nextIndex) {
+            throw new StreamCorruptedException("Expected chunk " + stream.nextIndex + " of " + stream.snapshotId
+                    + ", got " + index + " of " + snapshotId);
+        }
+        stream.nextIndex++;
+
+        Inflater inflater = stream.inflater;
+        inflater.setInput(payload, SnapshotSender.HEADER_SIZE, payload.length - SnapshotSender.HEADER_SIZE);
+        while (true) {
+            if (stream.length == stream.buffer.length) {
+                stream.buffer = Arrays.copyOf(stream.buffer, stream.buffer.length * 2);
+            }
+            int inflated = inflater.inflate(stream.buffer, stream.length, stream.buffer.length - stream.length);
+            stream.length += inflated;
+            parseMessages(stream);
+            if (inflated == 0 && (inflater.needsInput() || inflater.finished())) {
+                break;
+            }
+        }
+
+        if (last) {
+            if (!inflater.finished() || stream.length > 0 || stream.stroke != null) {
+                throw new StreamCorruptedException("Snapshot ended inside a stroke");
+            }
+            stream.active = false;
+            mListener.onSnapshotComplete(stream.endpointId,
+                    getInt(payload, SnapshotSender.OFFSET_STROKE_COUNT, 4), stream.added);
+        }
+    }
+
+    /**
+     * Decode the complete messages at the start of the buffer and keep the rest.
+     */
+    private void parseMessages(Stream stream) throws IOException {
+        byte[] buffer = stream.buffer;
+        int pos = 0;
+        while (stream.length - pos >= StrokeCodec.FRAME_HEADER_SIZE) {
+            int length = StrokeCodec.FRAME_HEADER_SIZE + getInt(buffer, pos + 2, 2);
+            if (stream.length - pos < length) {
+                break;
+            }
+            mCodec.decode(buffer, pos, length, mMessage);
+            onMessage(stream, mMessage);
+            pos += length;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, stream.length - pos);
+            stream.length -= pos;
+        }
+    }
+
+    private void onMessage(Stream stream, PathMessage message) throws IOException {
+        if (message.isDelete()) {
+            if (stream.stroke != null) {
+                throw new StreamCorruptedException("Stroke " + stream.stroke.getId() + " not finished");
+            }
+            BoardOp delete = BoardOp.delete(message.getStrokeId(), message.getTimestamp());
+            if (mBoard.apply(delete)) {
+                stream.added++;
+                mListener.onSnapshotDelete(stream.endpointId, delete);
+            }
+            return;
+        }
+        if (message.isFirst()) {
+            if (stream.stroke != null) {
+                throw new StreamCorruptedException("Stroke " + stream.stroke.getId() + " not finished");
+            }
+            stream.stroke = new Stroke(message.getStrokeId(), message.getColor(), message.getWidth());
+            stream.stroke.setTimestamp(message.getTimestamp());
+        } else if (stream.stroke == null || stream.stroke.getId() != message.getStrokeId()) {
+            throw new StreamCorruptedException("Segment of unknown stroke " + message.getStrokeId());
+        }
+        stream.stroke.addPoints(message.getCoords(), 0, message.getPointCount());
+        if (!message.isLast()) {
+            return;
+        }
+        Stroke stroke = stream.stroke;
+        stream.stroke = null;
+        if (mBoard.add(stroke)) {
+            mAddedStrokes++;
+            stream.added++;
+            mListener.onSnapshotStroke(stream.endpointId, stroke);
+        } else {
+            mSkippedStrokes++;
+        }
+    }
+
+    /**
+     * Read an unsigned big endian value.
+     */
+    private static int getInt(byte[] buffer, int pos, int bytes) {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | (buffer[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * The snapshot one peer is sending
+     */
+    private class Stream {
+        final String endpointId;
+        final Inflater inflater = new Inflater();
+        /** Inflated bytes not parsed yet **/
+        byte[] buffer = new byte[StrokeCodec.MAX_MESSAGE_SIZE * 2];
+        int length;
+        boolean active;
+        int snapshotId;
+        int nextIndex;
+        /** The stroke being rebuilt, or null between strokes **/
+        Stroke stroke;
+        /** Strokes and deletes that changed the board **/
+        int added;
+
+        Stream(String endpointId) {
+            this.endpointId = endpointId;
+        }
+
+        void reset(int snapshotId) {
+            inflater.reset();
+            length = 0;
+            stroke = null;
+            active = true;
+            this.snapshotId = snapshotId;
+            nextIndex = 0;
+            added = 0;
+        }
+
+        void drop() {
+            inflater.reset();
+            length = 0;
+            stroke = null;
+            if (active) {
+                active = false;
+                mDroppedSnapshots++;
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package me.hammarstrom.paint.sync;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import me.hammarstrom.paint.connections.Chunk;
+import me.hammarstrom.paint.connections.ChunkBuilder;
+import me.hammarstrom.paint.connections.ChunkPool;
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.Transport;
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * Streams committed strokes of the board to a peer that joined late or missed them,
+ * from a worker thread, see {@link AntiEntropy}.
+ *
+ * The strokes are encoded as ordinary stroke messages, one or more per stroke,
+ * followed by a {@link PathMessage#FLAG_DELETE} message for every delete the peer
+ * lacks, and the messages are deflated as one stream. The stream is cut into chunks
+ * of at most {@link #MAX_CHUNK_SIZE} bytes that go over the reliable channel, so they
+ * arrive in order and the receiver inflates them as they come, see
+ * {@link SnapshotReceiver}.
+ * The stream is chunked here rather than sent as one message through a
+ * {@link me.hammarstrom.paint.connections.FragmentingTransport}: neither side ever
+ * holds the whole snapshot, and the strokes show up while it is still arriving.
+ * A chunk is a frame of type {@link StrokeCodec#TYPE_SNAPSHOT}:
+ * <pre>
+ *  0  frame header  4 bytes, see {@link StrokeCodec}
+ *  4  snapshot id   4 bytes
+ *  8  chunk index   4 bytes
+ * 12  flags         1 byte, {@link #FLAG_LAST}
+ * 13  stroke count  4 bytes, number of strokes and deletes in the snapshot
+ * 17  deflated data
+ * </pre>
+ *
+ * The snapshot holds the strokes committed when the sender was created. Live
+ * messages go to the peer as usual meanwhile. Chunks are sent as fast as the
+ * transport takes them, the rate is up to the transport: a
+ * {@link me.hammarstrom.paint.connections.SchedulingTransport} sends them as bulk
+ * messages, which live ones overtake, and holds up the worker while its bulk queue
+ * is full.
+ */
+public class SnapshotSender {
+
+    public static final int FLAG_LAST = 1;
+
+    public static final int MAX_CHUNK_SIZE = Transport.MAX_RELIABLE_MESSAGE_SIZE;
+    public static final int HEADER_SIZE = StrokeCodec.FRAME_HEADER_SIZE + 13;
+
+    static final int OFFSET_SNAPSHOT_ID = 4;
+    static final int OFFSET_INDEX = 8;
+    static final int OFFSET_FLAGS = 12;
+    static final int OFFSET_STROKE_COUNT = 13;
+
+    private final Transport mTransport;
+    private final String mEndpointId;
+    private final StrokeCodec mCodec;
+    private final List<Stroke> mStrokes;
+    private final List<BoardOp> mDeletes;
+    private final int mSnapshotId;
+
+    /** Only used by the worker **/
+    private final byte[] mOut = new byte[MAX_CHUNK_SIZE];
+    private int mOutLength = HEADER_SIZE;
+    private int mNextIndex;
+
+    private Thread mWorker;
+    private volatile boolean mRunning;
+    private volatile boolean mDone;
+    private volatile long mSentChunks;
+    private volatile long mSentBytes;
+
+    /**
+     * @param transport the link to the peer
+     * @param endpointId the peer
+     * @param codec codec the strokes are encoded with
+     * @param strokes the committed strokes, not changed afterwards
+     * @param deletes the deletes, sent after the strokes
+     * @param snapshotId id telling this snapshot from earlier ones to the same peer
+     */
+    public SnapshotSender(Transport transport, String endpointId, StrokeCodec codec, List<Stroke> strokes,
+                          List<BoardOp> deletes, int snapshotId) {
+        mTransport = transport;
+        mEndpointId = endpointId;
+        mCodec = codec;
+        mStrokes = strokes;
+        mDeletes = deletes;
+        mSnapshotId = snapshotId;
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "SnapshotSender-" + mEndpointId);
+        mWorker.start();
+    }
+
+    /**
+     * Stop sending, the peer is left with an incomplete snapshot.
+     */
+    public void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (worker == null) {
+            return;
+        }
+        mRunning = false;
+        // The worker may be waiting for room in the transport
+        worker.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true once the last chunk was sent
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    public int getStrokeCount() {
+        return mStrokes.size();
+    }
+
+    public int getDeleteCount() {
+        return mDeletes.size();
+    }
+
+    public long getSentChunks() {
+        return mSentChunks;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    private void send() {
+        ChunkBuilder builder = new ChunkBuilder(mCodec, new ChunkPool(1, StrokeCodec.MAX_MESSAGE_SIZE),
+                StrokeCodec.MAX_MESSAGE_SIZE);
+        Deflater deflater = new Deflater();
+        try {
+            for (int s = 0; s < mStrokes.size(); s++) {
+                if (!mRunning) {
+                    return;
+                }
+                Stroke stroke = mStrokes.get(s);
+                int count = stroke.getPointCount();
+                int sequence = 0;
+                int start = 0;
+                do {
+                    builder.begin(stroke.getId(), sequence, stroke.getColor(), stroke.getWidth(),
+                            stroke.getTimestamp());
+                    int end = start;
+                    while (end < count && builder.append(stroke.getX(end), stroke.getY(end))) {
+                        end++;
+                    }
+                    int flags = 0;
+                    if (sequence == 0) {
+                        flags |= PathMessage.FLAG_FIRST;
+                    }
+                    if (end == count) {
+                        flags |= PathMessage.FLAG_LAST;
+                    }
+                    deflate(deflater, builder.finish(flags));
+                    sequence++;
+                    start = end;
+                } while (start < count);
+            }
+            for (int d = 0; d < mDeletes.size(); d++) {
+                if (!mRunning) {
+                    return;
+                }
+                BoardOp delete = mDeletes.get(d);
+                builder.begin(delete.getStrokeId(), 0, 0, 0f, delete.getTimestamp());
+                deflate(deflater, builder.finish(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST
+                        | PathMessage.FLAG_DELETE));
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(deflater);
+            }
+            sendChunk(true);
+            mDone = true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Feed a message to the deflater and recycle it.
+     */
+    private void deflate(Deflater deflater, Chunk message) {
+        deflater.setInput(message.getBuffer(), 0, message.getLength());
+        while (!deflater.needsInput()) {
+            deflate(deflater);
+        }
+        message.recycle();
+    }
+
+    private void deflate(Deflater deflater) {
+        mOutLength += deflater.deflate(mOut, mOutLength, mOut.length - mOutLength);
+        if (mOutLength == mOut.length) {
+            sendChunk(false);
+        }
+    }
+
+    private void sendChunk(boolean last) {
+        mOut[0] = (byte) StrokeCodec.VERSION;
+        mOut[1] = (byte) StrokeCodec.TYPE_SNAPSHOT;
+        putInt(mOut, 2, mOutLength - StrokeCodec.FRAME_HEADER_SIZE, 2);
+        putInt(mOut, OFFSET_SNAPSHOT_ID, mSnapshotId, 4);
+        putInt(mOut, OFFSET_INDEX, mNextIndex, 4);
+        mOut[OFFSET_FLAGS] = (byte) (last ? FLAG_LAST : 0);
+        putInt(mOut, OFFSET_STROKE_COUNT, mStrokes.size() + mDeletes.size(), 4);
+        byte[] payload = Arrays.copyOf(mOut, mOutLength);
+        mOutLength = HEADER_SIZE;
+        mNextIndex++;
+
+        if (!mRunning) {
+            return;
+        }
+        mTransport.sendReliable(mEndpointId, payload);
+        mSentChunks++;
+        mSentBytes += payload.length;
+    }
+
+    /**
+     * Write the low bytes of a value, big endian.
+     */
+    private static void putInt(byte[] buffer, int pos, int value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            buffer[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package me.hammarstrom.paint.sync;
+
+import java.util.Random;
+
+/**
+ * Hands out the ids of the strokes drawn on this device, see {@link StrokeIds}.
+ *
+ * The peer part is picked at random, so devices do not have to agree on peer numbers
+ * first; with a handful of devices in a session two of them picking the same one is
+ * unlikely. When the counter runs out a new peer part is picked. Not thread safe.
+ *
+ * A device keeps its peer part across runs: save {@link #getPeer()} and
+ * {@link #getCounter()} after handing out an id and restore them with
+ * {@link #StrokeIdGenerator(Random, int, int)}. Otherwise every run is a new peer to the
+ * others, and summaries grow by a peer each time. Strokes found on the board can only
+ * move the counter on, see {@link #advancePast(int)}, so an id is never handed out
+ * twice even if the saved counter is behind.
+ */
+public class StrokeIdGenerator {
+
+    private final Random mRandom;
+    private int mPeer;
+    private int mCounter;
+
+    public StrokeIdGenerator(Random random) {
+        mRandom = random;
+        mPeer = random.nextInt(StrokeIds.MAX_PEER + 1);
+    }
+
+    /**
+     * Carry on from a saved state.
+     * @param peer the peer part handed out before
+     * @param counter the counter of the last id handed out, 0 for none
+     */
+    public StrokeIdGenerator(Random random, int peer, int counter) {
+        if (peer < 0 || peer > StrokeIds.MAX_PEER || counter < 0 || counter > StrokeIds.MAX_COUNTER) {
+            throw new IllegalArgumentException("Invalid state: peer " + peer + ", counter " + counter);
+        }
+        mRandom = random;
+        mPeer = peer;
+        mCounter = counter;
+    }
+
+    /**
+     * @return the id of a new stroke
+     */
+    public int next() {
+        if (mCounter == StrokeIds.MAX_COUNTER) {
+            mPeer = mRandom.nextInt(StrokeIds.MAX_PEER + 1);
+            mCounter = 0;
+        }
+        mCounter++;
+        return StrokeIds.make(mPeer, mCounter);
+    }
+
+    /**
+     * Make sure an existing stroke's id is not handed out again.
+     * @param strokeId id of a stroke on the board
+     */
+    public void advancePast(int strokeId) {
+        if (StrokeIds.peer(strokeId) == mPeer) {
+            mCounter = Math.max(mCounter, StrokeIds.counter(strokeId));
+        }
+    }
+
+    /**
+     * @return the peer part of the ids handed out now
+     */
+    public int getPeer() {
+        return mPeer;
+    }
+
+    /**
+     * @return the counter of the last id handed out, 0 for none
+     */
+    public int getCounter() {
+        return mCounter;
+    }
+}
@@ -0,0 +1,39 @@
+package me.hammarstrom.paint.sync;
+
+/**
+ * Stroke ids made of the peer that drew the stroke and a counter of that peer's
+ * strokes, packed into the int id the stroke messages carry: the peer in the high 16
+ * bits, the counter in the low 16. Counters start at 1, so every id of a peer names
+ * one stroke and a peer's strokes can be counted off in order.
+ */
+public final class StrokeIds {
+
+    public static final int MAX_PEER = 0xFFFF;
+    public static final int MAX_COUNTER = 0xFFFF;
+
+    private StrokeIds() {
+    }
+
+    /**
+     * @param peer the drawing peer, 0..{@link #MAX_PEER}
+     * @param counter the peer's stroke counter, 1..{@link #MAX_COUNTER}
+     * @return the stroke id
+     */
+    public static int make(int peer, int counter) {
+        if (peer < 0 || peer > MAX_PEER) {
+            throw new IllegalArgumentException("Peer out of range: " + peer);
+        }
+        if (counter < 1 || counter > MAX_COUNTER) {
+            throw new IllegalArgumentException("Counter out of range: " + counter);
+        }
+        return (peer << 16) | counter;
+    }
+
+    public static int peer(int strokeId) {
+        return strokeId >>> 16;
+    }
+
+    public static int counter(int strokeId) {
+        return strokeId & 0xFFFF;
+    }
+}
@@ -0,0 +1,281 @@
+package me.hammarstrom.paint.sync;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * A compact summary of the strokes a board holds, by the peer and counter of their
+ * {@link StrokeIds}: for every peer, the counter up to which the board has all of the
+ * peer's strokes, and the ranges of counters it has beyond that. Boards that only lack
+ * the last few strokes of some peers, or a run drawn while a link was down, have
+ * summaries of a few bytes per peer, however many strokes they hold. Immutable.
+ *
+ * Written as:
+ * <pre>
+ * peer count   2 bytes
+ * per peer     peer 2 bytes, complete up to 2 bytes, range count 2 bytes,
+ *              ranges of first and last counter, 2 bytes each
+ * </pre>
+ */
+public class VersionVector {
+
+    private static final int PEER_SIZE = 6;
+    private static final int RANGE_SIZE = 4;
+
+    /** Peers in ascending order **/
+    private final int[] mPeers;
+    /** Counter up to which every stroke of the peer is held, 0 for none **/
+    private final int[] mComplete;
+    /** Further ranges held, per peer, as first and last counter pairs in order **/
+    private final int[][] mRanges;
+
+    private VersionVector(int[] peers, int[] complete, int[][] ranges) {
+        mPeers = peers;
+        mComplete = complete;
+        mRanges = ranges;
+    }
+
+    /**
+     * Summarize strokes.
+     * @param strokes the strokes of a board
+     */
+    public static VersionVector of(List<Stroke> strokes) {
+        int[] ids = new int[strokes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = strokes.get(i).getId();
+        }
+        return of(ids);
+    }
+
+    /**
+     * Summarize stroke ids.
+     * @param ids the ids, in any order
+     */
+    public static VersionVector of(int[] ids) {
+        TreeMap<Integer, Counters> counters = new TreeMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            Counters peerCounters = counters.get(StrokeIds.peer(id));
+            if (peerCounters == null) {
+                peerCounters = new Counters();
+                counters.put(StrokeIds.peer(id), peerCounters);
+            }
+            peerCounters.add(StrokeIds.counter(id));
+        }
+
+        int[] peers = new int[counters.size()];
+        int[] complete = new int[peers.length];
+        int[][] ranges = new int[peers.length][];
+        int p = 0;
+        for (Map.Entry<Integer, Counters> entry : counters.entrySet()) {
+            int n = entry.getValue().size;
+            int[] list = entry.getValue().values;
+            Arrays.sort(list, 0, n);
+            peers[p] = entry.getKey();
+            int i = 0;
+            int upTo = 0;
+            while (i < n && list[i] <= upTo + 1) {
+                upTo = Math.max(upTo, list[i]);
+                i++;
+            }
+            complete[p] = upTo;
+            int[] peerRanges = new int[8];
+            int r = 0;
+            while (i < n) {
+                int first = list[i];
+                int last = first;
+                while (i < n && list[i] <= last + 1) {
+                    last = Math.max(last, list[i]);
+                    i++;
+                }
+                if (r + 2 > peerRanges.length) {
+                    peerRanges = Arrays.copyOf(peerRanges, peerRanges.length * 2);
+                }
+                peerRanges[r++] = first;
+                peerRanges[r++] = last;
+            }
+            ranges[p] = Arrays.copyOf(peerRanges, r);
+            p++;
+        }
+        return new VersionVector(peers, complete, ranges);
+    }
+
+    /**
+     * @return true if the summarized board holds the stroke
+     */
+    public boolean contains(int strokeId) {
+        int p = Arrays.binarySearch(mPeers, StrokeIds.peer(strokeId));
+        if (p < 0) {
+            return false;
+        }
+        int counter = StrokeIds.counter(strokeId);
+        if (counter <= mComplete[p]) {
+            return true;
+        }
+        int[] ranges = mRanges[p];
+        // Binary search over the first counters of the ranges
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[mid * 2] > counter) {
+                high = mid - 1;
+            } else if (ranges[mid * 2 + 1] < counter) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the strokes of a board that the summarized board does not hold.
+     * @param strokes the strokes of a board
+     * @return the strokes missing from the summarized board, in the given order
+     */
+    public List<Stroke> missing(List<Stroke> strokes) {
+        List<Stroke> missing = new ArrayList<>();
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke stroke = strokes.get(i);
+            if (!contains(stroke.getId())) {
+                missing.add(stroke);
+            }
+        }
+        return missing;
+    }
+
+    public int getPeerCount() {
+        return mPeers.length;
+    }
+
+    /**
+     * @return number of bytes {@link #write(ByteBuffer, int)} writes with no limit
+     */
+    public int getEncodedSize() {
+        int size = 2;
+        for (int[] ranges : mRanges) {
+            size += PEER_SIZE + ranges.length / 2 * RANGE_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Write the summary. If it does not fit, the last ranges of the peers with the most
+     * of them are left out, and if there are still too many peers, the peers the board
+     * holds the fewest strokes of. Either only makes the summary claim less than the
+     * board holds, so the other side sends those strokes again.
+     * @param maxSize most bytes to write, at least 2
+     * @return number of bytes written
+     */
+    public int write(ByteBuffer buffer, int maxSize) {
+        if (maxSize < 2) {
+            throw new IllegalArgumentException("No room for a summary in " + maxSize + " bytes");
+        }
+        int[] kept = new int[mPeers.length];
+        for (int p = 0; p < kept.length; p++) {
+            kept[p] = mRanges[p].length / 2;
+        }
+        int size = getEncodedSize();
+        while (size > maxSize) {
+            int largest = 0;
+            for (int p = 1; p < kept.length; p++) {
+                if (kept[p] > kept[largest]) {
+                    largest = p;
+                }
+            }
+            if (kept[largest] == 0) {
+                break;
+            }
+            kept[largest]--;
+            size -= RANGE_SIZE;
+        }
+        boolean[] leftOut = new boolean[mPeers.length];
+        int peerCount = mPeers.length;
+        if (size > maxSize) {
+            // By the number of strokes held, which every range is gone from now
+            long[] order = new long[mPeers.length];
+            for (int p = 0; p < order.length; p++) {
+                order[p] = (long) mComplete[p] << 16 | p;
+            }
+            Arrays.sort(order);
+            for (int i = 0; size > maxSize; i++) {
+                leftOut[(int) (order[i] & 0xFFFF)] = true;
+                peerCount--;
+                size -= PEER_SIZE;
+            }
+        }
+        buffer.putShort((short) peerCount);
+        for (int p = 0; p < mPeers.length; p++) {
+            if (leftOut[p]) {
+                continue;
+            }
+            buffer.putShort((short) mPeers[p]);
+            buffer.putShort((short) mComplete[p]);
+            buffer.putShort((short) kept[p]);
+            for (int r = 0; r < kept[p] * 2; r++) {
+                buffer.putShort((short) mRanges[p][r]);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Read a summary written by {@link #write(ByteBuffer, int)}.
+     * @throws StreamCorruptedException if the bytes are not a valid summary
+     */
+    public static VersionVector read(ByteBuffer buffer) throws StreamCorruptedException {
+        try {
+            int count = buffer.getShort() & 0xFFFF;
+            int[] peers = new int[count];
+            int[] complete = new int[count];
+            int[][] ranges = new int[count][];
+            for (int p = 0; p < count; p++) {
+                peers[p] = buffer.getShort() & 0xFFFF;
+                if (p > 0 && peers[p] <= peers[p - 1]) {
+                    throw new StreamCorruptedException("Peers out of order");
+                }
+                complete[p] = buffer.getShort() & 0xFFFF;
+                int rangeCount = buffer.getShort() & 0xFFFF;
+                ranges[p] = new int[rangeCount * 2];
+                int previous = complete[p];
+                for (int r = 0; r < rangeCount * 2; r += 2) {
+                    int first = buffer.getShort() & 0xFFFF;
+                    int last = buffer.getShort() & 0xFFFF;
+                    if (first <= previous + 1 || last < first) {
+                        throw new StreamCorruptedException("Bad range " + first + ".." + last);
+                    }
+                    ranges[p][r] = first;
+                    ranges[p][r + 1] = last;
+                    previous = last;
+                }
+            }
+            return new VersionVector(peers, complete, ranges);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated summary");
+        }
+    }
+
+    /**
+     * The counters of one peer's strokes, in the order they were found
+     */
+    private static class Counters {
+        int[] values = new int[16];
+        int size;
+
+        void add(int counter) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = counter;
+        }
+    }
+}
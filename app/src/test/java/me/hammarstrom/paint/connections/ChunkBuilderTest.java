@@ -0,0 +1,137 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link ChunkBuilder} and the allocation behaviour of the outgoing stroke path.
+ */
+public class ChunkBuilderTest {
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final ChunkPool pool = new ChunkPool(4, StrokeCodec.MAX_MESSAGE_SIZE);
+
+    @Test
+    public void finish_matchesCodecEncoding() throws Exception {
+        for (StrokeCodec c : new StrokeCodec[] {codec, new StrokeCodec(StrokeCodec.ENCODING_FIXED16, 0xFFFF)}) {
+            PathMessage message = StrokeCodecTest.trace(9, 0xFF123456, 5f, 300);
+            message.setSequence(3);
+            message.setFlags(PathMessage.FLAG_LAST);
+            message.setTimestamp(77L);
+            ChunkBuilder builder = new ChunkBuilder(c, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+
+            builder.begin(9, 3, 0xFF123456, 5f, 77L);
+            for (int i = 0; i < message.getPointCount(); i++) {
+                assertTrue(builder.append(message.getX(i), message.getY(i)));
+            }
+            Chunk chunk = builder.finish(PathMessage.FLAG_LAST);
+
+            byte[] expected = c.encode(message);
+            assertArrayEquals(expected, chunk.toByteArray());
+            assertEquals(c.encodedLength(message), builder.getLength());
+            assertEquals(9, chunk.getStrokeId());
+            assertEquals(3, chunk.getSequence());
+            assertEquals(300, chunk.getPointCount());
+            chunk.recycle();
+        }
+    }
+
+    @Test
+    public void append_stopsAtSizeLimit() throws Exception {
+        int maxBytes = 200;
+        ChunkBuilder builder = new ChunkBuilder(codec, pool, maxBytes);
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 1000);
+
+        builder.begin(1, 0, 0, 3f, 0L);
+        int added = 0;
+        while (builder.append(trace.getX(added), trace.getY(added))) {
+            added++;
+        }
+        Chunk chunk = builder.finish(0);
+
+        assertTrue(chunk.getLength() <= maxBytes);
+        assertTrue(chunk.getLength() > maxBytes - 2 * StrokeCodec.MAX_POINT_SIZE);
+        assertEquals(added, codec.decode(chunk.toByteArray()).getPointCount());
+    }
+
+    @Test
+    public void recycledChunks_areReused() {
+        ChunkBuilder builder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        builder.begin(1, 0, 0, 3f, 0L);
+        Chunk first = builder.finish(0);
+        first.recycle();
+        builder.begin(2, 0, 0, 3f, 0L);
+        Chunk second = builder.finish(0);
+
+        assertSame(first, second);
+        assertEquals(2, second.getStrokeId());
+    }
+
+    @Test
+    public void discard_returnsChunkToPool() {
+        ChunkBuilder builder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+        int idle = pool.size();
+
+        builder.begin(1, 0, 0, 3f, 0L);
+        assertEquals(Math.max(0, idle - 1), pool.size());
+        builder.discard();
+
+        assertFalse(builder.isOpen());
+        assertEquals(Math.max(1, idle), pool.size());
+    }
+
+    @Test
+    public void steadyState_doesNotAllocatePerPoint() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final float[] coords = new float[2000];
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, coords.length / 2);
+        for (int i = 0; i < trace.getPointCount(); i++) {
+            coords[i * 2] = trace.getX(i);
+            coords[i * 2 + 1] = trace.getY(i);
+        }
+        StrokeStreamerTest.FakeClock clock = new StrokeStreamerTest.FakeClock();
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+            @Override
+            public void onSegment(Chunk segment) {
+                segment.recycle();
+            }
+        }, clock, 16000000L, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        // Warm up the pool and let the JIT settle
+        feed(streamer, clock, coords, 200);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        int points = feed(streamer, clock, coords, 500);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("Allocated " + allocated + " bytes for " + points + " points");
+        // Allow for the bookkeeping of the measurement itself, far below one byte per point
+        assertTrue(allocated < 1024);
+    }
+
+    private static int feed(StrokeStreamer streamer, StrokeStreamerTest.FakeClock clock,
+                            float[] coords, int strokes) {
+        int count = coords.length / 2;
+        for (int s = 0; s < strokes; s++) {
+            streamer.beginStroke(s, 0, 3f, 0L, coords[0], coords[1]);
+            for (int i = 1; i < count - 1; i++) {
+                clock.advance(3000000L);
+                streamer.addPoint(coords[i * 2], coords[i * 2 + 1]);
+            }
+            streamer.endStroke(coords[count * 2 - 2], coords[count * 2 - 1]);
+        }
+        return strokes * count;
+    }
+}
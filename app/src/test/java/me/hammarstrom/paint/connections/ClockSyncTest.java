@@ -0,0 +1,294 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.metrics.HistogramSnapshot;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+import me.hammarstrom.paint.metrics.MetricsSnapshot;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ClockSync} and {@link LatencyTracer}: peers on a
+ * {@link SimulatedNetwork} whose clocks are seconds apart, tracing strokes end to end.
+ */
+public class ClockSyncTest {
+
+    private static final long MS = 1000000L;
+    private static final long LATENCY = 20 * MS;
+    private static final long JITTER = 4 * MS;
+    private static final int POINTS = 200;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(17);
+    private final StrokeCodec codec = new StrokeCodec();
+    private final List<Peer> peers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Peer peer : peers) {
+            peer.hub.removeAllPeers();
+            peer.receiver.stop();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void offset_matchesSkew() throws Exception {
+        Peer a = createPeer("a", -3000 * MS);
+        Peer b = createPeer("b", 7000 * MS);
+        network.connect("a", "b", link());
+        sync(a, b);
+
+        ClockSync sync = a.hub.getClockSync();
+        System.out.println("Offset a to b: " + sync.getOffsetNanos("b") / 1000 + " us, round trip "
+                + sync.getRoundTripNanos("b") / 1000 + " us");
+        assertEquals(10000 * MS, sync.getOffsetNanos("b"), JITTER / 2 + MS);
+        assertEquals(-10000 * MS, b.hub.getClockSync().getOffsetNanos("a"), JITTER / 2 + MS);
+        assertTrue(sync.getRoundTripNanos("b") >= 2 * LATENCY);
+        assertEquals(-9000 * MS, sync.toLocal("b", 1000 * MS), JITTER / 2 + MS);
+    }
+
+    @Test
+    public void offset_keepsShortestRoundTrip() throws Exception {
+        final List<byte[]> sent = new ArrayList<>();
+        final long[] now = {0};
+        ClockSync sync = new ClockSync(new LoopbackTransport("a") {
+            @Override
+            public void sendUnreliable(String endpointId, byte[] payload) {
+                sent.add(payload);
+            }
+        }, codec, new Clock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+        }, 4, new MetricsRegistry());
+
+        // Pongs by a clock 500 ms ahead, the second sample took the longest way back
+        long[] backDelays = {10 * MS, 40 * MS, 12 * MS, 11 * MS};
+        for (long back : backDelays) {
+            long t0 = now[0];
+            long t1 = t0 + 10 * MS + 500 * MS;
+            now[0] = t0 + 10 * MS + back;
+            assertTrue(sync.onMessageReceived("b", codec.encodeClock(StrokeCodec.TYPE_PONG, t0, t1, t1)));
+            now[0] += 100 * MS;
+        }
+        assertEquals(500 * MS, sync.getOffsetNanos("b"));
+        assertEquals(20 * MS, sync.getRoundTripNanos("b"));
+
+        // A ping is answered with its origin time
+        now[0] = 42;
+        assertTrue(sync.onMessageReceived("c", codec.encodeClock(StrokeCodec.TYPE_PING, 7, 0, 0)));
+        long[] times = new long[3];
+        assertEquals(StrokeCodec.TYPE_PONG, codec.decodeClock(sent.get(sent.size() - 1), times));
+        assertEquals(7, times[0]);
+        assertEquals(42, times[1]);
+        assertFalse(sync.hasOffset("c"));
+
+        sync.removePeer("b");
+        assertFalse(sync.hasOffset("b"));
+        assertFalse(sync.onMessageReceived("b", codec.encode(StrokeCodecTest.trace(1, 0, 3f, 4))));
+    }
+
+    @Test
+    public void trace_direct() throws Exception {
+        Peer sender = createPeer("sender", 2500 * MS);
+        Peer receiver = createPeer("receiver", -4000 * MS);
+        network.connect("sender", "receiver", link());
+        sync(sender, receiver);
+
+        MetricsSnapshot stages = traceStroke(sender, receiver);
+
+        HistogramSnapshot networkNanos = stages.getHistogram(MetricNames.TRACE_NETWORK_NANOS);
+        assertTrue(networkNanos.getCount() > 0);
+        assertEquals(LATENCY + JITTER / 2, networkNanos.percentile(50), JITTER + 3 * MS);
+        assertEndToEnd(stages);
+    }
+
+    @Test
+    public void trace_relayedByHub() throws Exception {
+        Peer sender = createPeer("sender", 2500 * MS);
+        Peer hub = createPeer("hub", 60000 * MS);
+        hub.hub.setRelay(true);
+        Peer receiver = createPeer("receiver", -4000 * MS);
+        network.connect("hub", "sender", link());
+        network.connect("hub", "receiver", link());
+        sync(hub, sender);
+        sync(hub, receiver);
+
+        MetricsSnapshot stages = traceStroke(sender, receiver);
+
+        // Two hops, the times moved to the hub's clock on the way
+        HistogramSnapshot networkNanos = stages.getHistogram(MetricNames.TRACE_NETWORK_NANOS);
+        assertTrue(networkNanos.getCount() > 0);
+        assertEquals(2 * (LATENCY + JITTER / 2), networkNanos.percentile(50), 2 * JITTER + 3 * MS);
+        assertEndToEnd(stages);
+    }
+
+    /**
+     * Draw a stroke on one peer and show it on another, with a frame every 8 ms.
+     * @return the receiving peer's metrics
+     */
+    private MetricsSnapshot traceStroke(Peer sender, final Peer receiver) throws Exception {
+        Thread display = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long drained = receiver.clock.nanoTime();
+                    try {
+                        Thread.sleep(8);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    receiver.tracer.onFrameDrawn(drained, receiver.clock.nanoTime());
+                }
+            }
+        });
+        display.start();
+        PathMessage trace = StrokeCodecTest.trace(0, 0, 3f, POINTS);
+        for (int i = 0; i < POINTS; i++) {
+            sender.draw(1, i, trace);
+            Thread.sleep(1);
+        }
+        receiver.awaitLast(5000);
+        // Let the display catch up with the last message
+        Thread.sleep(50);
+        display.interrupt();
+        display.join();
+
+        MetricsSnapshot stages = receiver.metrics.snapshot();
+        for (String stage : new String[] {MetricNames.TRACE_CAPTURE_TO_SEND_NANOS,
+                MetricNames.TRACE_NETWORK_NANOS, MetricNames.TRACE_DECODE_NANOS,
+                MetricNames.TRACE_RENDER_NANOS, MetricNames.TRACE_END_TO_END_NANOS}) {
+            System.out.println(stage + ": " + stages.getHistogram(stage));
+        }
+        return stages;
+    }
+
+    private static void assertEndToEnd(MetricsSnapshot stages) {
+        HistogramSnapshot captureToSend = stages.getHistogram(MetricNames.TRACE_CAPTURE_TO_SEND_NANOS);
+        HistogramSnapshot networkNanos = stages.getHistogram(MetricNames.TRACE_NETWORK_NANOS);
+        HistogramSnapshot render = stages.getHistogram(MetricNames.TRACE_RENDER_NANOS);
+        HistogramSnapshot endToEnd = stages.getHistogram(MetricNames.TRACE_END_TO_END_NANOS);
+        assertEquals(networkNanos.getCount(), captureToSend.getCount());
+        assertEquals(networkNanos.getCount(), render.getCount());
+        assertEquals(networkNanos.getCount(), endToEnd.getCount());
+        // Segments wait at most the streamer's time budget, and frames come every 8 ms
+        assertTrue(captureToSend.percentile(50) <= 20 * MS);
+        assertTrue(render.percentile(50) <= 20 * MS);
+        assertTrue(endToEnd.percentile(50) >= networkNanos.percentile(50));
+        assertTrue(endToEnd.getMax() < 1000 * MS);
+    }
+
+    private static SimulatedLink link() {
+        return new SimulatedLink.Builder()
+                .setLatency(LATENCY, TimeUnit.NANOSECONDS)
+                .setJitter(JITTER, TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * Ping both ways until each side has a few samples of the other.
+     */
+    private static void sync(Peer a, Peer b) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            a.hub.getClockSync().ping(b.id);
+            b.hub.getClockSync().ping(a.id);
+            Thread.sleep(10);
+        }
+        // The last pongs are still on the way
+        Thread.sleep(2 * (LATENCY + JITTER) / MS);
+        assertTrue(a.hub.getClockSync().hasOffset(b.id));
+        assertTrue(b.hub.getClockSync().hasOffset(a.id));
+    }
+
+    private Peer createPeer(String id, long skewNanos) {
+        Peer peer = new Peer(id, network.createEndpoint(id), skewNanos);
+        peers.add(peer);
+        return peer;
+    }
+
+    /**
+     * A device whose clock is off by a fixed amount, receiving into its own metrics.
+     */
+    private class Peer implements Transport.Listener, InboundReceiver.Listener {
+        final String id;
+        final Clock clock;
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final SessionHub hub;
+        final InboundReceiver receiver;
+        final LatencyTracer tracer;
+        final StrokeStreamer streamer;
+        private boolean mLast;
+
+        Peer(String id, Transport transport, final long skewNanos) {
+            this.id = id;
+            clock = new Clock() {
+                @Override
+                public long nanoTime() {
+                    return System.nanoTime() + skewNanos;
+                }
+            };
+            ChunkPool pool = new ChunkPool(64, StrokeCodec.MAX_MESSAGE_SIZE);
+            hub = new SessionHub(transport, this, codec, pool, 64, clock);
+            receiver = new InboundReceiver(codec, this, "receiver-" + id, metrics, clock);
+            tracer = new LatencyTracer(hub.getClockSync(), metrics);
+            receiver.setLatencyTracer(tracer);
+            receiver.start();
+            streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+                @Override
+                public void onSegment(Chunk segment) {
+                    hub.broadcast(segment);
+                }
+            }, clock, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+        }
+
+        void draw(int strokeId, int index, PathMessage trace) {
+            float x = trace.getX(index);
+            float y = trace.getY(index);
+            if (index == 0) {
+                streamer.beginStroke(strokeId, 0, 3f, 0L, x, y);
+            } else if (index == trace.getPointCount() - 1) {
+                streamer.endStroke(x, y);
+            } else {
+                streamer.addPoint(x, y);
+            }
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            receiver.offer(endpointId, payload);
+        }
+
+        @Override
+        public void onEndpointConnected(String endpointId) {
+        }
+
+        @Override
+        public void onEndpointDisconnected(String endpointId) {
+        }
+
+        @Override
+        public synchronized void onMessage(PathMessage message) {
+            if (message.isLast()) {
+                mLast = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void awaitLast(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!mLast) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("Timed out waiting for the stroke", left > 0);
+                wait(left);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link MessageCompressor} and {@link CompressingTransport}: round trips,
+ * what is left uncompressed, agreeing on compression per connection, and what it
+ * saves on stroke messages of every size.
+ */
+public class CompressingTransportTest {
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final List<MessageCompressor> compressors = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MessageCompressor compressor : compressors) {
+            compressor.end();
+        }
+    }
+
+    @Test
+    public void roundTrip_withAndWithoutDictionary() throws Exception {
+        MessageCompressor compressor = compressor(Deflater.DEFAULT_COMPRESSION);
+        Random random = new Random(1);
+        for (int points : new int[] {128, 256, 1000}) {
+            byte[] message = strokeMessage(points, random);
+            for (boolean dictionary : new boolean[] {true, false}) {
+                byte[] compressed = compressor.compress(message, dictionary);
+                assertNotNull(compressed);
+                assertEquals(StrokeCodec.TYPE_DEFLATED, StrokeCodec.getType(compressed));
+                assertTrue(compressed.length < message.length);
+                assertArrayEquals(message, compressor.decompress(compressed));
+            }
+        }
+    }
+
+    @Test
+    public void smallOrIncompressible_leftAsIs() {
+        MessageCompressor compressor = compressor(Deflater.DEFAULT_COMPRESSION);
+        assertNull(compressor.compress(new byte[StrokeCodec.CLOCK_MESSAGE_SIZE], true));
+        byte[] noise = new byte[1000];
+        new Random(2).nextBytes(noise);
+        assertNull(compressor.compress(noise, true));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void damagedMessage_throws() throws Exception {
+        MessageCompressor compressor = compressor(Deflater.DEFAULT_COMPRESSION);
+        byte[] compressed = compressor.compress(strokeMessage(256, new Random(3)), true);
+        compressor.decompress(Arrays.copyOf(compressed, compressed.length - 3));
+    }
+
+    @Test
+    public void bothWilling_messagesCompressed() {
+        Pair pair = new Pair(true, true);
+        byte[] message = strokeMessage(256, new Random(4));
+
+        pair.a.sendReliable("b", message);
+        pair.b.sendUnreliable("a", message);
+
+        assertTrue(pair.a.isCompressing("b"));
+        assertTrue(pair.b.isCompressing("a"));
+        assertEquals(1, pair.a.getCompressedMessages());
+        assertEquals(1, pair.b.getCompressedMessages());
+        assertTrue(pair.a.getBytesOut() < pair.a.getBytesIn());
+        assertArrayEquals(message, pair.received.get(0));
+        assertArrayEquals(message, pair.received.get(1));
+    }
+
+    @Test
+    public void peerNotWilling_getsMessagesAsTheyAre() {
+        Pair pair = new Pair(true, false);
+        byte[] message = strokeMessage(256, new Random(5));
+
+        pair.a.sendReliable("b", message);
+        pair.b.sendReliable("a", message);
+
+        assertFalse(pair.a.isCompressing("b"));
+        assertEquals(0, pair.a.getCompressedMessages());
+        assertEquals(0, pair.b.getCompressedMessages());
+        assertEquals(2, pair.received.size());
+        assertArrayEquals(message, pair.received.get(0));
+    }
+
+    @Test
+    public void snapshotChunks_leftAsIs() {
+        Pair pair = new Pair(true, true);
+        byte[] chunk = new byte[1000];
+        chunk[0] = (byte) StrokeCodec.VERSION;
+        chunk[1] = (byte) StrokeCodec.TYPE_SNAPSHOT;
+
+        pair.a.sendReliable("b", chunk);
+
+        assertEquals(0, pair.a.getCompressedMessages());
+        assertArrayEquals(chunk, pair.received.get(0));
+    }
+
+    @Test
+    public void benchmark_strokeMessages() throws Exception {
+        Random random = new Random(6);
+        for (int level : new int[] {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+            MessageCompressor compressor = compressor(level);
+            for (int points : new int[] {4, 16, 64, 256, 1000}) {
+                List<byte[]> messages = new ArrayList<>();
+                long rawBytes = 0;
+                for (int i = 0; i < 200; i++) {
+                    byte[] message = strokeMessage(points, random);
+                    messages.add(message);
+                    rawBytes += message.length;
+                }
+                for (boolean dictionary : new boolean[] {false, true}) {
+                    long sent = 0;
+                    int compressed = 0;
+                    List<byte[]> wire = new ArrayList<>();
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < 5; run++) {
+                        wire.clear();
+                        long start = System.nanoTime();
+                        for (byte[] message : messages) {
+                            byte[] out = compressor.compress(message, dictionary);
+                            wire.add(out == null ? message : out);
+                        }
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    for (byte[] out : wire) {
+                        sent += out.length;
+                        if (StrokeCodec.getType(out) == StrokeCodec.TYPE_DEFLATED) {
+                            compressed++;
+                        }
+                    }
+                    long bestInflate = Long.MAX_VALUE;
+                    for (int run = 0; run < 5; run++) {
+                        long start = System.nanoTime();
+                        for (byte[] out : wire) {
+                            if (StrokeCodec.getType(out) == StrokeCodec.TYPE_DEFLATED) {
+                                compressor.decompress(out);
+                            }
+                        }
+                        bestInflate = Math.min(bestInflate, System.nanoTime() - start);
+                    }
+                    double pointsPerKb = 1024.0 * points * messages.size() / sent;
+                    System.out.println(String.format("Level %d, %4d points/message, %s dictionary: %5d -> %5d"
+                                    + " bytes/message (%3.0f%%, %d of %d compressed), %6.0f -> %6.0f points/KB,"
+                                    + " deflate %5d ns/KB, inflate %5d ns/KB",
+                            level, points, dictionary ? "with" : "no  ", rawBytes / messages.size(),
+                            sent / messages.size(), 100.0 * sent / rawBytes, compressed, messages.size(),
+                            1024.0 * points * messages.size() / rawBytes, pointsPerKb,
+                            best * 1024 / rawBytes, bestInflate * 1024 / rawBytes));
+                    assertTrue(sent <= rawBytes);
+                    if (points >= 256) {
+                        assertTrue(sent < rawBytes * 4 / 5);
+                    }
+                }
+            }
+        }
+    }
+
+    private MessageCompressor compressor(int level) {
+        MessageCompressor compressor = new MessageCompressor(level);
+        compressors.add(compressor);
+        return compressor;
+    }
+
+    /**
+     * An encoded segment of a stroke, with the times a traced message carries.
+     */
+    private byte[] strokeMessage(int points, Random random) {
+        int[] colors = {0xFFFFFF00, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF};
+        PathMessage message = new PathMessage((1 + random.nextInt(8)) << 16 | (1 + random.nextInt(5000)),
+                colors[random.nextInt(colors.length)], 3f);
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        float dx = (random.nextFloat() - 0.5f) * 0.01f;
+        float dy = (random.nextFloat() - 0.5f) * 0.01f;
+        for (int i = 0; i < points; i++) {
+            message.addCoords(x, y);
+            dx += (random.nextFloat() - 0.5f) * 0.002f;
+            dy += (random.nextFloat() - 0.5f) * 0.002f;
+            x = Math.max(0f, Math.min(1f, x + dx));
+            y = Math.max(0f, Math.min(1f, y + dy));
+        }
+        message.setSequence(random.nextInt(20));
+        message.setSendNanos(System.nanoTime());
+        message.setCaptureNanos(message.getSendNanos() - random.nextInt(20000000));
+        return codec.encode(message);
+    }
+
+    /**
+     * Two compressing transports over a loopback, recording what b and a receive.
+     */
+    private static class Pair {
+        final CompressingTransport a;
+        final CompressingTransport b;
+        final List<byte[]> received = new ArrayList<>();
+
+        Pair(boolean aEnabled, boolean bEnabled) {
+            LoopbackTransport loopA = new LoopbackTransport("a");
+            LoopbackTransport loopB = new LoopbackTransport("b");
+            a = new CompressingTransport(loopA, aEnabled);
+            b = new CompressingTransport(loopB, bEnabled);
+            a.setListener(new Recorder());
+            b.setListener(new Recorder());
+            LoopbackTransport.connect(loopA, loopB);
+        }
+
+        private class Recorder implements Transport.Listener {
+            @Override
+            public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                received.add(payload);
+            }
+
+            @Override
+            public void onEndpointConnected(String endpointId) {
+            }
+
+            @Override
+            public void onEndpointDisconnected(String endpointId) {
+            }
+        }
+    }
+}
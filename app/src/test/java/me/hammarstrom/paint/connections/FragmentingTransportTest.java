@@ -0,0 +1,310 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FragmentSender}, {@link Reassembler} and {@link FragmentingTransport}:
+ * fragments in any order, lost fragments, the memory limit, and a large message over
+ * a lossy link with live messages flowing alongside, sent through a scheduler.
+ */
+public class FragmentingTransportTest {
+
+    private static final long MS = 1000000L;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(11);
+    private final List<FragmentSender> senders = new ArrayList<>();
+    private final List<FragmentingTransport> transports = new ArrayList<>();
+    private final List<SchedulingTransport> schedulers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (FragmentSender sender : senders) {
+            sender.stop();
+        }
+        for (FragmentingTransport transport : transports) {
+            transport.stop();
+        }
+        for (SchedulingTransport transport : schedulers) {
+            transport.stop();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void fragment_headerAndSlice_lastOneShorter() {
+        byte[] source = payload(2 * FragmentSender.MAX_FRAGMENT_DATA + 10, new Random(1));
+
+        byte[] first = FragmentSender.fragment(7, source, 0, 3);
+        byte[] last = FragmentSender.fragment(7, source, 2, 3);
+
+        assertEquals(Transport.MAX_RELIABLE_MESSAGE_SIZE, first.length);
+        assertEquals(FragmentSender.HEADER_SIZE + 10, last.length);
+        assertEquals(StrokeCodec.TYPE_FRAGMENT, last[1]);
+        assertEquals(2, last[FragmentSender.OFFSET_INDEX + 3]);
+        assertEquals(3, last[FragmentSender.OFFSET_COUNT + 3]);
+        assertArrayEquals(Arrays.copyOfRange(source, 2 * FragmentSender.MAX_FRAGMENT_DATA, source.length),
+                Arrays.copyOfRange(last, FragmentSender.HEADER_SIZE, last.length));
+        assertEquals(FragmentSender.HEADER_SIZE, FragmentSender.fragment(7, new byte[0], 0, 1).length);
+    }
+
+    @Test
+    public void reassembler_anyOrderAndRepeats() throws Exception {
+        byte[] message = payload(10 * FragmentSender.MAX_FRAGMENT_DATA + 123, new Random(1));
+        List<byte[]> fragments = fragments(1, message);
+        assertEquals(11, fragments.size());
+        for (byte[] fragment : fragments) {
+            assertTrue(fragment.length <= Transport.MAX_RELIABLE_MESSAGE_SIZE);
+        }
+        List<byte[]> arriving = new ArrayList<>(fragments);
+        arriving.addAll(fragments.subList(2, 5));
+        Collections.shuffle(arriving, new Random(2));
+        // The last one completes the message, whichever it is
+        arriving.remove(fragments.get(7));
+        arriving.add(fragments.get(7));
+        Reassembler reassembler = new Reassembler(1024 * 1024, 1000 * MS, new StrokeStreamerTest.FakeClock());
+
+        for (int i = 0; i < arriving.size() - 1; i++) {
+            assertNull(reassembler.offer("a", arriving.get(i)));
+        }
+        assertEquals(1, reassembler.getPendingMessages());
+        assertArrayEquals(message, reassembler.offer("a", arriving.get(arriving.size() - 1)));
+        assertEquals(0, reassembler.getPendingMessages());
+        assertEquals(0, reassembler.getHeldBytes());
+        assertEquals(1, reassembler.getCompletedMessages());
+    }
+
+    @Test
+    public void reassembler_samePeerAndIdFromOtherPeerKeptApart() throws Exception {
+        Random random = new Random(3);
+        byte[] fromA = payload(5000, random);
+        byte[] fromB = payload(5000, random);
+        List<byte[]> a = fragments(1, fromA);
+        List<byte[]> b = fragments(1, fromB);
+        Reassembler reassembler = new Reassembler(1024 * 1024, 1000 * MS, new StrokeStreamerTest.FakeClock());
+
+        assertNull(reassembler.offer("a", a.get(0)));
+        assertNull(reassembler.offer("b", b.get(1)));
+        assertArrayEquals(fromA, reassembler.offer("a", a.get(1)));
+        assertArrayEquals(fromB, reassembler.offer("b", b.get(0)));
+    }
+
+    @Test
+    public void reassembler_lostFragment_evictedAfterTimeout() throws Exception {
+        StrokeStreamerTest.FakeClock clock = new StrokeStreamerTest.FakeClock();
+        Reassembler reassembler = new Reassembler(1024 * 1024, 100 * MS, clock);
+        List<byte[]> fragments = fragments(1, payload(20000, new Random(4)));
+        for (int i = 1; i < fragments.size(); i++) {
+            reassembler.offer("a", fragments.get(i));
+            clock.advance(60 * MS);
+        }
+        // Every fragment arrived within the timeout of the one before
+        assertEquals(1, reassembler.getPendingMessages());
+
+        clock.advance(50 * MS);
+        assertEquals(1, reassembler.evictExpired());
+        assertEquals(0, reassembler.getPendingMessages());
+        assertEquals(0, reassembler.getHeldBytes());
+        assertEquals(1, reassembler.getEvictedMessages());
+        // A late first fragment starts over rather than completing anything
+        assertNull(reassembler.offer("a", fragments.get(0)));
+    }
+
+    @Test
+    public void reassembler_overLimit_evictsLeastRecentAndRejectsTooLarge() throws Exception {
+        StrokeStreamerTest.FakeClock clock = new StrokeStreamerTest.FakeClock();
+        Reassembler reassembler = new Reassembler(6 * FragmentSender.MAX_FRAGMENT_DATA, 1000 * MS, clock);
+        Random random = new Random(5);
+        byte[] third = payload(2 * FragmentSender.MAX_FRAGMENT_DATA, random);
+        List<byte[]> first = fragments(1, payload(3 * FragmentSender.MAX_FRAGMENT_DATA, random));
+        List<byte[]> second = fragments(2, payload(3 * FragmentSender.MAX_FRAGMENT_DATA, random));
+        List<byte[]> thirdFragments = fragments(3, third);
+
+        reassembler.offer("a", first.get(0));
+        reassembler.offer("a", second.get(0));
+        reassembler.offer("a", first.get(1));
+        assertEquals(6 * FragmentSender.MAX_FRAGMENT_DATA, reassembler.getHeldBytes());
+        // The second message went longest without a fragment
+        reassembler.offer("a", thirdFragments.get(0));
+        assertEquals(1, reassembler.getEvictedMessages());
+        assertNotNull(reassembler.offer("a", first.get(2)));
+        assertArrayEquals(third, reassembler.offer("a", thirdFragments.get(1)));
+
+        reassembler.offer("a", fragments(4, payload(7 * FragmentSender.MAX_FRAGMENT_DATA, random)).get(0));
+        assertEquals(1, reassembler.getRejectedMessages());
+        assertEquals(0, reassembler.getHeldBytes());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void reassembler_damagedFragment_throws() throws Exception {
+        byte[] fragment = fragments(1, payload(5000, new Random(6))).get(0);
+        Reassembler reassembler = new Reassembler(1024 * 1024, 1000 * MS, Clock.SYSTEM);
+        reassembler.offer("a", Arrays.copyOf(fragment, fragment.length - 1));
+    }
+
+    @Test
+    public void smallerMessageQueuedLater_notStuckBehindLarger() throws Exception {
+        // Holds up the first fragment until both messages are queued
+        final CountDownLatch gate = new CountDownLatch(1);
+        LoopbackTransport loopA = new LoopbackTransport("a") {
+            @Override
+            public void sendReliable(String endpointId, byte[] payload) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                super.sendReliable(endpointId, payload);
+            }
+        };
+        LoopbackTransport loopB = new LoopbackTransport("b");
+        FragmentingTransport a = transport(loopA);
+        FragmentingTransport b = transport(loopB);
+        SimulatedNetworkTest.RecordingListener listener = new SimulatedNetworkTest.RecordingListener();
+        b.setListener(listener);
+        LoopbackTransport.connect(loopA, loopB);
+        Random random = new Random(7);
+        byte[] large = payload(400 * 1024, random);
+        byte[] small = payload(20 * 1024, random);
+
+        a.sendReliable("b", large);
+        a.sendReliable("b", small);
+        gate.countDown();
+        listener.awaitReliable(2);
+
+        assertArrayEquals(small, listener.payloads.get(0));
+        assertArrayEquals(large, listener.payloads.get(1));
+        assertEquals(2, a.getSender("b").getSentMessages());
+        assertEquals(0, b.getReassembler().getHeldBytes());
+    }
+
+    @Test
+    public void benchmark_largeMessageOverLossyLink() throws Exception {
+        // The scheduler keeps the fragments from filling the link
+        final FragmentingTransport phone = transport(scheduling(network.createEndpoint("phone")));
+        FragmentingTransport tablet = transport(scheduling(network.createEndpoint("tablet")));
+        final LatencyRecorder latency = new LatencyRecorder();
+        final long[] sendTimes = new long[1000];
+        final byte[][] large = new byte[1][];
+        final long[] largeArrival = new long[1];
+        tablet.setListener(new SimulatedNetworkTest.RecordingListener() {
+            @Override
+            public synchronized void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                long now = System.nanoTime();
+                if (payload.length > Transport.MAX_RELIABLE_MESSAGE_SIZE) {
+                    large[0] = payload;
+                    largeArrival[0] = now;
+                } else {
+                    latency.record(now - sendTimes[(payload[4] & 0xFF) << 8 | (payload[5] & 0xFF)]);
+                }
+                notifyAll();
+            }
+        });
+        SimulatedLink link = new SimulatedLink.Builder()
+                .setBandwidth(2 * 1024 * 1024)
+                .setLatency(10, TimeUnit.MILLISECONDS)
+                .setJitter(3, TimeUnit.MILLISECONDS)
+                .setLossRate(0.02)
+                .setRetransmitDelay(40, TimeUnit.MILLISECONDS)
+                .build();
+        network.connect("phone", "tablet", link);
+        waitForSender(phone, "tablet");
+
+        byte[] image = payload(2 * 1024 * 1024, new Random(8));
+        long start = System.nanoTime();
+        phone.sendReliable("tablet", image);
+        // A live stroke message every 10 ms while the image goes
+        int live = 0;
+        while (System.nanoTime() - start < 1800 * MS) {
+            byte[] message = new byte[96];
+            message[0] = (byte) StrokeCodec.VERSION;
+            message[1] = (byte) StrokeCodec.TYPE_STROKE;
+            message[4] = (byte) (live >>> 8);
+            message[5] = (byte) live;
+            sendTimes[live++] = System.nanoTime();
+            phone.sendReliable("tablet", message);
+            Thread.sleep(10);
+        }
+        long end = System.currentTimeMillis() + 10000;
+        while ((large[0] == null || latency.count() < live) && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+
+        System.out.println(String.format("2 MB in %d fragments over a 2 MB/s link with 2%% loss: %d ms,"
+                        + " %d bytes on the link, %d transmissions lost",
+                phone.getSender("tablet").getSentFragments(), (largeArrival[0] - start) / MS,
+                link.getBytes(), link.getLost()));
+        System.out.print(latency.summary("Live messages alongside"));
+        assertArrayEquals(image, large[0]);
+        assertEquals(live, latency.count());
+        assertEquals(0, tablet.getReassembler().getPendingMessages());
+        assertTrue(latency.percentile(50) < 200 * MS);
+    }
+
+    private FragmentingTransport transport(Transport inner) {
+        FragmentingTransport transport = new FragmentingTransport(inner);
+        transports.add(transport);
+        return transport;
+    }
+
+    private SchedulingTransport scheduling(Transport inner) {
+        SchedulingTransport transport = new SchedulingTransport(inner);
+        schedulers.add(transport);
+        return transport;
+    }
+
+    /**
+     * The fragments a sender makes of a message.
+     */
+    private List<byte[]> fragments(int messageId, byte[] message) throws InterruptedException {
+        final List<byte[]> sent = new ArrayList<>();
+        Transport recorder = new LoopbackTransport("a") {
+            @Override
+            public void sendReliable(String endpointId, byte[] payload) {
+                synchronized (sent) {
+                    sent.add(payload);
+                }
+            }
+        };
+        FragmentSender sender = new FragmentSender(recorder, "b");
+        senders.add(sender);
+        sender.start();
+        sender.send(messageId, message);
+        long end = System.currentTimeMillis() + 5000;
+        while (sender.getSentMessages() < 1 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    private static void waitForSender(FragmentingTransport transport, String endpointId)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (transport.getSender(endpointId) == null && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertNotNull(transport.getSender(endpointId));
+    }
+
+    private static byte[] payload(int length, Random random) {
+        byte[] payload = new byte[length];
+        random.nextBytes(payload);
+        // Not mistaken for a fragment
+        payload[1] = (byte) StrokeCodec.TYPE_SNAPSHOT;
+        return payload;
+    }
+}
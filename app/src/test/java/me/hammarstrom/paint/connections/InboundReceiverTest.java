@@ -0,0 +1,105 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.drawing.Viewport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link InboundReceiver} and the bulk append it feeds. The speed of the
+ * receive path is measured by ReceiveBenchmark in the benchmarks module.
+ */
+public class InboundReceiverTest {
+
+    private final StrokeCodec codec = new StrokeCodec();
+
+    @Test
+    public void offer_decodesInOrderOffTheCallingThread() throws Exception {
+        final List<Integer> sequences = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(10);
+        InboundReceiver receiver = new InboundReceiver(codec, new InboundReceiver.Listener() {
+            @Override
+            public void onMessage(PathMessage message) {
+                sequences.add(message.getSequence());
+                threads.add(Thread.currentThread());
+                done.countDown();
+            }
+        }, "test-receiver");
+        receiver.start();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(receiver.offer(codec.encode(segment(i, 20))));
+            if (i == 4) {
+                assertTrue(receiver.offer(new byte[] {1, 2, 3}));
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+
+        synchronized (sequences) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, (int) sequences.get(i));
+                assertNotSame(Thread.currentThread(), threads.get(i));
+            }
+        }
+        assertEquals(10, receiver.getReceivedMessages());
+        assertEquals(1, receiver.getCorruptMessages());
+        assertFalse(receiver.offer(codec.encode(segment(10, 1))));
+    }
+
+    @Test
+    public void bulkAppend_matchesPointByPoint() throws Exception {
+        PathMessage decoded = new PathMessage();
+        codec.decode(codec.encode(segment(0, 100)), 0, codec.encodedLength(segment(0, 100)), decoded);
+        Stroke bulk = new Stroke(1, 0, 3f);
+        Stroke single = new Stroke(1, 0, 3f);
+
+        bulk.addPoints(decoded.getCoords(), 10 * 2, decoded.getPointCount() - 10);
+        for (int i = 10; i < decoded.getPointCount(); i++) {
+            single.addPoint(decoded.getX(i), decoded.getY(i));
+        }
+
+        assertEquals(single.getPointCount(), bulk.getPointCount());
+        for (int i = 0; i < bulk.getPointCount(); i++) {
+            assertEquals(single.getX(i), bulk.getX(i), 0f);
+            assertEquals(single.getY(i), bulk.getY(i), 0f);
+        }
+        assertEquals(single.getLeft(), bulk.getLeft(), 0f);
+        assertEquals(single.getTop(), bulk.getTop(), 0f);
+        assertEquals(single.getRight(), bulk.getRight(), 0f);
+        assertEquals(single.getBottom(), bulk.getBottom(), 0f);
+    }
+
+    @Test
+    public void viewport_mapsAndUnmaps() {
+        Viewport viewport = new Viewport(1080, 1920);
+
+        assertEquals(540f, viewport.mapX(0.5f), 0f);
+        assertEquals(480f, viewport.mapY(0.25f), 0f);
+        assertEquals(0.5f, viewport.unmapX(540f), 0f);
+        assertEquals(0.25f, viewport.unmapY(480f), 0f);
+    }
+
+    private static PathMessage segment(int sequence, int points) {
+        Random random = new Random(sequence);
+        PathMessage message = new PathMessage(42, 0xFFFFFF00, 3f);
+        message.setSequence(sequence);
+        float x = 0.5f;
+        float y = 0.5f;
+        for (int i = 0; i < points; i++) {
+            x = Math.min(1f, Math.max(0f, x + (random.nextFloat() - 0.5f) * 0.01f));
+            y = Math.min(1f, Math.max(0f, y + (random.nextFloat() - 0.5f) * 0.01f));
+            message.addCoords(x, y);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,70 @@
+package me.hammarstrom.paint.connections;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples in tests and reports percentiles and a coarse histogram.
+ */
+public class LatencyRecorder {
+
+    private long[] mSamples = new long[1024];
+    private int mCount;
+
+    public synchronized void record(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+    }
+
+    public synchronized int count() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return the sample at the percentile, in nanoseconds
+     */
+    public synchronized long percentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(mCount - 1, index))];
+    }
+
+    public long max() {
+        return percentile(100);
+    }
+
+    /**
+     * Format the percentiles and a histogram with power of two millisecond buckets.
+     * @param name label for the output
+     * @return a printable summary
+     */
+    public synchronized String summary(String name) {
+        StringBuilder sb = new StringBuilder(name).append(": n=").append(mCount)
+                .append(" p50=").append(millis(percentile(50)))
+                .append(" p90=").append(millis(percentile(90)))
+                .append(" p99=").append(millis(percentile(99)))
+                .append(" max=").append(millis(max())).append('\n');
+        int[] buckets = new int[32];
+        for (int i = 0; i < mCount; i++) {
+            long ms = mSamples[i] / 1000000L;
+            int bucket = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+            buckets[Math.min(bucket, buckets.length - 1)]++;
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            if (buckets[b] > 0) {
+                sb.append("  < ").append(1L << b).append(" ms: ").append(buckets[b]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+}
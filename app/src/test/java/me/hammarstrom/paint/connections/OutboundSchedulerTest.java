@@ -0,0 +1,234 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TokenBucket}, {@link OutboundScheduler} and
+ * {@link SchedulingTransport}: the rate limit, sharing the link by weight, and live
+ * messages staying quick while a bulk transfer fills a link slower than expected.
+ */
+public class OutboundSchedulerTest {
+
+    private static final long MS = 1000000L;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(13);
+    private final List<OutboundScheduler> schedulers = new ArrayList<>();
+    private final List<FragmentingTransport> fragmenting = new ArrayList<>();
+    private final List<SchedulingTransport> scheduling = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (OutboundScheduler scheduler : schedulers) {
+            scheduler.stop();
+        }
+        for (FragmentingTransport transport : fragmenting) {
+            transport.stop();
+        }
+        for (SchedulingTransport transport : scheduling) {
+            transport.stop();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void tokenBucket_burstThenRate() {
+        StrokeStreamerTest.FakeClock clock = new StrokeStreamerTest.FakeClock();
+        TokenBucket bucket = new TokenBucket(1000, 500, clock);
+
+        bucket.take(400);
+        assertEquals(0, bucket.getWaitNanos());
+        bucket.take(400);
+        // 300 bytes of debt at 1000 bytes/s
+        assertEquals(300 * MS, bucket.getWaitNanos());
+        clock.advance(300 * MS);
+        assertEquals(0, bucket.getWaitNanos());
+
+        // Idle time builds up no more than the burst
+        clock.advance(10000 * MS);
+        bucket.take(500);
+        bucket.take(100);
+        assertEquals(100 * MS, bucket.getWaitNanos());
+
+        bucket.setRate(2000);
+        assertEquals(50 * MS, bucket.getWaitNanos());
+    }
+
+    @Test
+    public void classOf_byType() {
+        assertEquals(OutboundScheduler.CLASS_LIVE, OutboundScheduler.classOf(message(StrokeCodec.TYPE_STROKE, 100)));
+        assertEquals(OutboundScheduler.CLASS_CONTROL, OutboundScheduler.classOf(message(StrokeCodec.TYPE_PING, 28)));
+        assertEquals(OutboundScheduler.CLASS_CONTROL,
+                OutboundScheduler.classOf(message(StrokeCodec.TYPE_SUMMARY, 100)));
+        assertEquals(OutboundScheduler.CLASS_BULK, OutboundScheduler.classOf(message(StrokeCodec.TYPE_SNAPSHOT, 100)));
+        assertEquals(OutboundScheduler.CLASS_BULK, OutboundScheduler.classOf(message(StrokeCodec.TYPE_FRAGMENT, 100)));
+        assertEquals(OutboundScheduler.CLASS_BULK, OutboundScheduler.classOf(new byte[1]));
+    }
+
+    @Test
+    public void backloggedClasses_shareByWeight() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<byte[]> sent = new ArrayList<>();
+        Transport transport = new LoopbackTransport("a") {
+            @Override
+            public void sendReliable(String endpointId, byte[] payload) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                synchronized (sent) {
+                    sent.add(payload);
+                }
+            }
+        };
+        OutboundScheduler scheduler = new OutboundScheduler(transport, "b", new int[] {4, 2, 1},
+                OutboundScheduler.MAX_BYTES_PER_SECOND, 1024 * 1024, Clock.SYSTEM);
+        schedulers.add(scheduler);
+        scheduler.start();
+        // Held up in the transport until everything else is queued
+        scheduler.send(OutboundScheduler.CLASS_BULK, message(StrokeCodec.TYPE_FRAGMENT, 4096), true);
+        while (scheduler.getQueueSize(OutboundScheduler.CLASS_BULK) > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 70; i++) {
+            scheduler.send(OutboundScheduler.CLASS_BULK, message(StrokeCodec.TYPE_FRAGMENT, 4096), true);
+            scheduler.send(OutboundScheduler.CLASS_LIVE, message(StrokeCodec.TYPE_STROKE, 1024), true);
+            scheduler.send(OutboundScheduler.CLASS_CONTROL, message(StrokeCodec.TYPE_SUMMARY, 4096), true);
+        }
+        release.countDown();
+        while (scheduler.getSentMessages(OutboundScheduler.CLASS_BULK) < 71) {
+            Thread.sleep(1);
+        }
+
+        // Three rounds after the held one, while every class is backlogged
+        long[] bytes = new long[3];
+        synchronized (sent) {
+            for (byte[] payload : sent.subList(1, 40)) {
+                bytes[OutboundScheduler.classOf(payload)] += payload.length;
+            }
+        }
+        System.out.println(String.format("Weights 4:2:1, bytes sent control %d, live %d, bulk %d",
+                bytes[0], bytes[1], bytes[2]));
+        assertEquals(2.0, (double) bytes[0] / bytes[1], 0.01);
+        assertEquals(2.0, (double) bytes[1] / bytes[2], 0.01);
+    }
+
+    @Test
+    public void benchmark_liveLatencyUnderBulkTransfer() throws Exception {
+        // Without the scheduler the fragments go as fast as the transport takes them,
+        // and a queue builds up in it
+        long capacity = 768 * 1024;
+        Run plain = run("plain", false, capacity);
+        Run scheduled = run("scheduled", true, capacity);
+
+        System.out.print(plain.latency.summary("Live messages, not scheduled, on a "
+                + capacity / 1024 + " KB/s link"));
+        System.out.print(scheduled.latency.summary("Live messages, scheduled"));
+        System.out.println(String.format("Scheduled: rate tuned to %d KB/s by %d reports, link used %d KB/s",
+                scheduled.rate / 1024, scheduled.reports, scheduled.throughput / 1024));
+        assertEquals(plain.sent, plain.latency.count());
+        assertEquals(scheduled.sent, scheduled.latency.count());
+        assertTrue(scheduled.latency.percentile(99) < 150 * MS);
+        assertTrue(plain.latency.percentile(99) > 2 * scheduled.latency.percentile(99));
+        assertTrue(scheduled.rate > capacity / 2 && scheduled.rate < capacity * 3 / 2);
+        assertTrue(scheduled.throughput > capacity * 3 / 5);
+    }
+
+    /**
+     * Send a 4 MB message, and after a second of it a live message every 10 ms for two
+     * seconds, recording how long the live ones take.
+     */
+    private Run run(String name, boolean scheduled, long capacity) throws Exception {
+        final Run run = new Run();
+        String phoneId = name + "-phone";
+        String tabletId = name + "-tablet";
+        Transport phoneEndpoint = network.createEndpoint(phoneId);
+        Transport tabletEndpoint = network.createEndpoint(tabletId);
+        SchedulingTransport phoneScheduling = null;
+        if (scheduled) {
+            phoneScheduling = scheduling(phoneEndpoint);
+            phoneEndpoint = phoneScheduling;
+            tabletEndpoint = scheduling(tabletEndpoint);
+        }
+        FragmentingTransport phone = fragmenting(phoneEndpoint);
+        FragmentingTransport tablet = fragmenting(tabletEndpoint);
+        final long[] sendTimes = new long[1000];
+        tablet.setListener(new SimulatedNetworkTest.RecordingListener() {
+            @Override
+            public synchronized void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                if (StrokeCodec.getType(payload) == StrokeCodec.TYPE_STROKE) {
+                    run.latency.record(System.nanoTime() - sendTimes[(payload[4] & 0xFF) << 8 | (payload[5] & 0xFF)]);
+                }
+            }
+        });
+        SimulatedLink link = new SimulatedLink.Builder()
+                .setBandwidth(capacity)
+                .setLatency(10, TimeUnit.MILLISECONDS)
+                .setJitter(2, TimeUnit.MILLISECONDS)
+                .build();
+        network.connect(phoneId, tabletId, link);
+        long end = System.currentTimeMillis() + 5000;
+        while (phone.getSender(tabletId) == null && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+
+        byte[] image = message(StrokeCodec.TYPE_SNAPSHOT, 4 * 1024 * 1024);
+        phone.sendReliable(tabletId, image);
+        Thread.sleep(1000);
+        long start = System.nanoTime();
+        long startBytes = link.getBytes();
+        while (System.nanoTime() - start < 2000 * MS) {
+            byte[] message = message(StrokeCodec.TYPE_STROKE, 96);
+            message[4] = (byte) (run.sent >>> 8);
+            message[5] = (byte) run.sent;
+            sendTimes[run.sent++] = System.nanoTime();
+            phone.sendReliable(tabletId, message);
+            Thread.sleep(10);
+        }
+        run.throughput = (link.getBytes() - startBytes) * 1000000000L / (System.nanoTime() - start);
+        if (phoneScheduling != null) {
+            run.rate = phoneScheduling.getScheduler(tabletId).getRate();
+            run.reports = phoneScheduling.getScheduler(tabletId).getReports();
+        }
+        end = System.currentTimeMillis() + 5000;
+        while (run.latency.count() < run.sent && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return run;
+    }
+
+    private FragmentingTransport fragmenting(Transport inner) {
+        FragmentingTransport transport = new FragmentingTransport(inner);
+        fragmenting.add(transport);
+        return transport;
+    }
+
+    private SchedulingTransport scheduling(Transport inner) {
+        SchedulingTransport transport = new SchedulingTransport(inner);
+        scheduling.add(transport);
+        return transport;
+    }
+
+    private static byte[] message(int type, int length) {
+        byte[] message = new byte[length];
+        message[0] = (byte) StrokeCodec.VERSION;
+        message[1] = (byte) type;
+        return message;
+    }
+
+    private static class Run {
+        final LatencyRecorder latency = new LatencyRecorder();
+        int sent;
+        long throughput;
+        long rate;
+        long reports;
+    }
+}
@@ -0,0 +1,331 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link OutboundSender} against a fake transport. How long producers wait
+ * under each policy is measured by OutboundSenderBenchmark in the benchmarks module.
+ */
+public class OutboundSenderTest {
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final ChunkPool pool = new ChunkPool(64, StrokeCodec.MAX_MESSAGE_SIZE);
+    private final FakeTransport transport = new FakeTransport();
+    private OutboundSender sender;
+
+    @After
+    public void tearDown() {
+        transport.release();
+        if (sender != null) {
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void send_runsOnWorkerThread() throws Exception {
+        sender = start(OutboundSender.POLICY_BLOCK, 4);
+
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0, 10));
+
+        transport.awaitMessages(1);
+        assertNotSame(Thread.currentThread(), transport.sendThread);
+    }
+
+    @Test
+    public void queuedSegments_areCoalesced() throws Exception {
+        transport.hold();
+        sender = start(OutboundSender.POLICY_BLOCK, 16);
+
+        // The worker takes the first one and then waits on the transport
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST, 0, 10));
+        transport.awaitCalls(1);
+        for (int i = 1; i < 10; i++) {
+            sender.offer(segment(1, i, i == 9 ? PathMessage.FLAG_LAST : 0, i * 10, 10));
+        }
+        transport.release();
+        transport.awaitMessages(2);
+
+        List<PathMessage> messages = transport.decode(codec);
+        assertEquals(2, messages.size());
+        assertEquals(10, messages.get(0).getPointCount());
+        assertEquals(90, messages.get(1).getPointCount());
+        assertEquals(9, messages.get(1).getSequence());
+        assertTrue(messages.get(1).isLast());
+        assertFalse(messages.get(1).isFirst());
+        assertPointsInOrder(messages, 100);
+        assertEquals(10, sender.getSentSegments());
+    }
+
+    @Test
+    public void differentStrokes_areNotCoalesced() throws Exception {
+        transport.hold();
+        sender = start(OutboundSender.POLICY_BLOCK, 16);
+
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST, 0, 10));
+        transport.awaitCalls(1);
+        sender.offer(segment(1, 1, PathMessage.FLAG_LAST, 10, 10));
+        sender.offer(segment(2, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0, 10));
+        transport.release();
+        transport.awaitMessages(3);
+
+        assertEquals(3, sender.getSentMessages());
+    }
+
+    @Test
+    public void blockPolicy_waitsForRoom() throws Exception {
+        transport.hold();
+        sender = start(OutboundSender.POLICY_BLOCK, 2);
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST, 0, 10));
+        transport.awaitCalls(1);
+        sender.offer(segment(2, 0, PathMessage.FLAG_FIRST, 0, 10));
+        sender.offer(segment(3, 0, PathMessage.FLAG_FIRST, 0, 10));
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sender.offer(segment(4, 0, PathMessage.FLAG_FIRST, 0, 10));
+                offered.countDown();
+            }
+        });
+        producer.start();
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        transport.release();
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        transport.awaitMessages(4);
+        assertEquals(0, sender.getDroppedSegments());
+    }
+
+    @Test
+    public void dropOldestPartialPolicy_keepsFirstAndLastSegments() throws Exception {
+        transport.hold();
+        sender = start(OutboundSender.POLICY_DROP_OLDEST_PARTIAL, 3);
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0, 10));
+        transport.awaitCalls(1);
+
+        sender.offer(segment(2, 0, PathMessage.FLAG_FIRST, 0, 10));
+        for (int i = 1; i <= 5; i++) {
+            sender.offer(segment(2, i, 0, i * 10, 10));
+        }
+        sender.offer(segment(2, 6, PathMessage.FLAG_LAST, 60, 10));
+        // Each of the last four offers found the queue full and dropped a partial segment
+        assertEquals(4, sender.getDroppedSegments());
+        transport.release();
+        transport.awaitMessages(2);
+
+        List<PathMessage> messages = transport.decode(codec);
+        PathMessage last = messages.get(messages.size() - 1);
+        assertTrue(last.isFirst());
+        assertTrue(last.isLast());
+        assertEquals(30, last.getPointCount());
+    }
+
+    @Test
+    public void mergePolicy_mergesIntoLastQueuedSegment() throws Exception {
+        transport.hold();
+        sender = start(OutboundSender.POLICY_MERGE, 2);
+        sender.offer(segment(1, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST, 0, 10));
+        transport.awaitCalls(1);
+
+        sender.offer(segment(2, 0, PathMessage.FLAG_FIRST, 0, 10));
+        for (int i = 1; i < 20; i++) {
+            // Would block under POLICY_BLOCK once two segments are queued
+            sender.offer(segment(2, i, i == 19 ? PathMessage.FLAG_LAST : 0, i * 10, 10));
+        }
+        assertTrue(sender.getQueueSize() <= 2);
+        transport.release();
+        transport.awaitMessages(2);
+
+        List<PathMessage> messages = transport.decode(codec);
+        assertEquals(2, messages.size());
+        assertPointsInOrder(messages.subList(1, 2), 200);
+        assertEquals(0, sender.getDroppedSegments());
+        // The first two segments were queued, the rest merged into the second
+        assertEquals(18, sender.getMergedSegments());
+    }
+
+    @Test
+    public void slowLink_policiesDropOrMergeInsteadOfBlocking() throws Exception {
+        for (int policy : new int[] {OutboundSender.POLICY_BLOCK,
+                OutboundSender.POLICY_DROP_OLDEST_PARTIAL, OutboundSender.POLICY_MERGE}) {
+            FakeTransport slow = new FakeTransport();
+            slow.delayNanos = 2000000L;
+            OutboundSender s = new OutboundSender(slow, "peer", codec, pool, 4, policy);
+            s.start();
+            final OutboundSender target = s;
+
+            StrokeStreamerTest.FakeClock clock = new StrokeStreamerTest.FakeClock();
+            StrokeStreamer streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+                @Override
+                public void onSegment(Chunk segment) {
+                    target.offer(segment);
+                }
+            }, clock, 16000000L, StrokeCodec.MAX_MESSAGE_SIZE);
+
+            // A producer outpacing the link: one point every 0.05 ms of wall time, flushed every 4 points
+            PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 400);
+            for (int stroke = 0; stroke < 5; stroke++) {
+                streamer.beginStroke(stroke, 0, 3f, 0L, trace.getX(0), trace.getY(0));
+                for (int i = 1; i < trace.getPointCount(); i++) {
+                    clock.advance(4000000L);
+                    streamer.addPoint(trace.getX(i), trace.getY(i));
+                    busyWait(50000L);
+                }
+                streamer.endStroke(trace.getX(0), trace.getY(0));
+            }
+            // Let the link catch up, every stroke's last segment is sent under any policy
+            slow.awaitLastSegments(codec, 5);
+            s.stop();
+
+            if (policy == OutboundSender.POLICY_BLOCK) {
+                assertEquals(0, s.getDroppedSegments());
+                assertEquals(0, s.getMergedSegments());
+            } else if (policy == OutboundSender.POLICY_DROP_OLDEST_PARTIAL) {
+                assertTrue(s.getDroppedSegments() > 0);
+                assertEquals(0, s.getMergedSegments());
+            } else {
+                assertEquals(0, s.getDroppedSegments());
+                assertTrue(s.getMergedSegments() > 0);
+            }
+        }
+    }
+
+    private OutboundSender start(int policy, int capacity) {
+        OutboundSender s = new OutboundSender(transport, "peer", codec, pool, capacity, policy);
+        s.start();
+        return s;
+    }
+
+    /**
+     * Build a segment whose points are numbered along the x axis from firstPoint.
+     */
+    private Chunk segment(int strokeId, int sequence, int flags, int firstPoint, int points) {
+        ChunkBuilder builder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+        builder.begin(strokeId, sequence, 0xFF000000, 3f, 0L);
+        for (int i = 0; i < points; i++) {
+            builder.append((firstPoint + i) / 1000f, 0.5f);
+        }
+        return builder.finish(flags);
+    }
+
+    private void assertPointsInOrder(List<PathMessage> messages, int expected) {
+        int next = 0;
+        for (PathMessage message : messages) {
+            for (int i = 0; i < message.getPointCount(); i++) {
+                assertEquals(next / 1000f, message.getX(i), 0.5f / codec.getGridResolution());
+                next++;
+            }
+        }
+        assertEquals(expected, next);
+    }
+
+    private static void busyWait(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+
+    static class FakeTransport implements Transport {
+        final List<byte[]> messages = new ArrayList<>();
+        volatile Thread sendThread;
+        volatile long delayNanos;
+        private int mCalls;
+        private CountDownLatch mGate = new CountDownLatch(0);
+
+        synchronized void hold() {
+            mGate = new CountDownLatch(1);
+        }
+
+        synchronized void release() {
+            mGate.countDown();
+        }
+
+        @Override
+        public void sendReliable(String endpointId, byte[] payload) {
+            CountDownLatch gate;
+            synchronized (this) {
+                mCalls++;
+                notifyAll();
+                gate = mGate;
+            }
+            sendThread = Thread.currentThread();
+            try {
+                gate.await();
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                messages.add(payload);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void sendUnreliable(String endpointId, byte[] payload) {
+            sendReliable(endpointId, payload);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void disconnect(String endpointId) {
+        }
+
+        synchronized void awaitCalls(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mCalls < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue(mCalls >= count);
+        }
+
+        synchronized void awaitMessages(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue(messages.size() >= count);
+        }
+
+        synchronized void awaitLastSegments(StrokeCodec codec, int count) throws Exception {
+            long end = System.currentTimeMillis() + 10000;
+            while (countLast(codec) < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(count, countLast(codec));
+        }
+
+        private int countLast(StrokeCodec codec) throws Exception {
+            int last = 0;
+            for (PathMessage message : decode(codec)) {
+                if (message.isLast()) {
+                    last++;
+                }
+            }
+            return last;
+        }
+
+        synchronized List<PathMessage> decode(StrokeCodec codec) throws Exception {
+            List<PathMessage> decoded = new ArrayList<>();
+            for (byte[] message : messages) {
+                decoded.add(codec.decode(message));
+            }
+            return decoded;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fan out tests for {@link SessionHub}: a star of peers around one relaying hub on a
+ * {@link SimulatedNetwork}, every peer drawing at the same time. Also what the hub
+ * gives up when a peer's queue is full.
+ */
+public class SessionHubTest {
+
+    private static final long MS = 1000000L;
+    private static final int POINTS = 200;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(11);
+    private final StrokeCodec codec = new StrokeCodec();
+    private final List<Peer> peers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Peer peer : peers) {
+            peer.hub.removeAllPeers();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void fanOut_2peers() throws Exception {
+        assertFanOut(2);
+    }
+
+    @Test
+    public void fanOut_8peers() throws Exception {
+        assertFanOut(8);
+    }
+
+    @Test
+    public void fanOut_32peers() throws Exception {
+        assertFanOut(32);
+    }
+
+    @Test
+    public void slowPeer_doesNotHoldUpOthers() throws Exception {
+        Peer hub = createPeer("hub", 4);
+        hub.hub.setRelay(true);
+        Peer fast1 = createPeer("fast1", 4);
+        Peer fast2 = createPeer("fast2", 4);
+        Peer slow = createPeer("slow", 4);
+        SimulatedLink fastLink = new SimulatedLink.Builder()
+                .setBandwidth(500000)
+                .setLatency(5, TimeUnit.MILLISECONDS)
+                .build();
+        network.connect("hub", "fast1", fastLink);
+        network.connect("hub", "fast2", fastLink);
+        network.connect("hub", "slow", new SimulatedLink.Builder()
+                .setBandwidth(2000)
+                .setLatency(5, TimeUnit.MILLISECONDS)
+                .build());
+        hub.listener.awaitConnected(3);
+
+        long[] times = new long[POINTS];
+        LatencyRecorder broadcast = new LatencyRecorder();
+        PathMessage trace = StrokeCodecTest.trace(0, 0, 3f, POINTS);
+        for (int stroke = 1; stroke <= 4; stroke++) {
+            for (int i = 0; i < POINTS; i++) {
+                times[i] = System.nanoTime();
+                hub.draw(stroke, i, trace);
+                broadcast.record(System.nanoTime() - times[i]);
+            }
+        }
+
+        fast1.listener.awaitStrokes(4, 5000);
+        fast2.listener.awaitStrokes(4, 5000);
+        OutboundSender slowSender = hub.hub.getSender("slow");
+        System.out.print(broadcast.summary("Hub addPoint with one peer at 2 kB/s"));
+        System.out.println("Slow peer: sent " + slowSender.getSentSegments() + " segments, dropped "
+                + slowSender.getDroppedSegments() + ", queued " + slowSender.getQueueSize());
+        for (Peer fast : new Peer[] {fast1, fast2}) {
+            for (int stroke = 1; stroke <= 4; stroke++) {
+                assertEquals(POINTS, fast.listener.points(stroke));
+            }
+        }
+        assertTrue(slow.listener.completed() < 4);
+        assertTrue(broadcast.max() < 50 * MS);
+    }
+
+    @Test
+    public void removedPeer_getsNothingMore() throws Exception {
+        Peer hub = createPeer("hub", 16);
+        hub.hub.setRelay(true);
+        Peer a = createPeer("a", 16);
+        Peer b = createPeer("b", 16);
+        network.connect("hub", "a", new SimulatedLink.Builder().build());
+        network.connect("hub", "b", new SimulatedLink.Builder().build());
+        hub.listener.awaitConnected(2);
+        network.disconnect("hub", "b");
+        hub.listener.awaitDisconnected(1);
+
+        PathMessage trace = StrokeCodecTest.trace(0, 0, 3f, 10);
+        for (int i = 0; i < 10; i++) {
+            hub.draw(1, i, trace);
+        }
+        a.listener.awaitStrokes(1, 5000);
+
+        assertEquals(1, hub.hub.getPeerCount());
+        assertEquals(0, b.listener.completed());
+    }
+
+    @Test
+    public void fullQueue_dropsPartialsAndResyncsMissedCommits() throws Exception {
+        OutboundSenderTest.FakeTransport transport = new OutboundSenderTest.FakeTransport();
+        ChunkPool pool = new ChunkPool(16, StrokeCodec.MAX_MESSAGE_SIZE);
+        SessionHub hub = new SessionHub(transport, new StrokeListener(), codec, pool, 2);
+        final List<String> resynced = new ArrayList<>();
+        hub.setResyncListener(new SessionHub.ResyncListener() {
+            @Override
+            public void onResyncNeeded(String endpointId) {
+                resynced.add(endpointId);
+            }
+        });
+        hub.onEndpointConnected("peer");
+        // The worker takes the first stroke and then waits on the link
+        transport.awaitCalls(1);
+        transport.hold();
+        hub.broadcast(segment(pool, 1, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST));
+        transport.awaitCalls(2);
+        try {
+            hub.broadcast(segment(pool, 2, 0, PathMessage.FLAG_FIRST));
+            hub.broadcast(segment(pool, 2, 1, 0));
+
+            // A commit takes the place of the queued partial segment
+            assertEquals(1, hub.broadcast(segment(pool, 3, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST)));
+            // A partial segment is dropped
+            assertEquals(0, hub.broadcast(segment(pool, 2, 2, 0)));
+            assertEquals(0, hub.getDroppedCommits());
+            assertTrue(resynced.isEmpty());
+            // With only stroke starts and ends queued, the commit is dropped and the peer resynced
+            assertEquals(0, hub.broadcast(segment(pool, 4, 0, PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST)));
+            assertEquals(1, hub.getDroppedCommits());
+            assertEquals(Collections.singletonList("peer"), resynced);
+            assertEquals(3, hub.getSender("peer").getDroppedSegments());
+        } finally {
+            transport.release();
+            hub.removeAllPeers();
+        }
+    }
+
+    private Chunk segment(ChunkPool pool, int strokeId, int sequence, int flags) {
+        ChunkBuilder builder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+        builder.begin(strokeId, sequence, 0xFF000000, 3f, 0L);
+        builder.append(0.5f, 0.5f);
+        return builder.finish(flags);
+    }
+
+    private void assertFanOut(int count) throws Exception {
+        Peer hub = createPeer("hub", 64);
+        hub.hub.setRelay(true);
+        SimulatedLink link = new SimulatedLink.Builder()
+                .setBandwidth(500000)
+                .setLatency(5, TimeUnit.MILLISECONDS)
+                .setJitter(2, TimeUnit.MILLISECONDS)
+                .build();
+        for (int p = 1; p <= count; p++) {
+            createPeer("peer" + p, 64);
+            network.connect("hub", "peer" + p, link);
+        }
+        hub.listener.awaitConnected(count);
+
+        // Peer p draws stroke p, all at the same pace
+        PathMessage trace = StrokeCodecTest.trace(0, 0, 3f, POINTS);
+        long[] times = new long[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            times[i] = System.nanoTime();
+            for (int p = 1; p <= count; p++) {
+                peers.get(p).draw(p, i, trace);
+            }
+            Thread.sleep(1);
+        }
+
+        hub.listener.awaitStrokes(count, 10000);
+        LatencyRecorder latency = new LatencyRecorder();
+        for (int p = 1; p <= count; p++) {
+            Peer peer = peers.get(p);
+            peer.listener.awaitStrokes(count - 1, 10000);
+            peer.listener.recordLatency(times, latency);
+            assertEquals(0, peer.listener.points(p));
+            for (int other = 1; other <= count; other++) {
+                if (other != p) {
+                    assertEquals(POINTS, peer.listener.points(other));
+                }
+            }
+        }
+        long dropped = 0;
+        for (String id : hub.hub.getPeers()) {
+            dropped += hub.hub.getSender(id).getDroppedSegments();
+        }
+        System.out.print(latency.summary("Touch to remote peer via hub, " + count + " peers"));
+        assertEquals(count, hub.hub.getPeerCount());
+        assertEquals(0, dropped);
+        assertEquals((long) count * (count - 1) * POINTS, latency.count());
+    }
+
+    private Peer createPeer(String id, int queueCapacity) {
+        Peer peer = new Peer(network.createEndpoint(id), queueCapacity);
+        peers.add(peer);
+        return peer;
+    }
+
+    private class Peer {
+        final StrokeListener listener = new StrokeListener();
+        final SessionHub hub;
+        final StrokeStreamer streamer;
+
+        Peer(Transport transport, int queueCapacity) {
+            ChunkPool pool = new ChunkPool(64, StrokeCodec.MAX_MESSAGE_SIZE);
+            hub = new SessionHub(transport, listener, codec, pool, queueCapacity);
+            streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+                @Override
+                public void onSegment(Chunk segment) {
+                    hub.broadcast(segment);
+                }
+            }, Clock.SYSTEM, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+        }
+
+        void draw(int strokeId, int index, PathMessage trace) {
+            float x = trace.getX(index);
+            float y = trace.getY(index);
+            if (index == 0) {
+                streamer.beginStroke(strokeId, 0, 3f, 0L, x, y);
+            } else if (index == trace.getPointCount() - 1) {
+                streamer.endStroke(x, y);
+            } else {
+                streamer.addPoint(x, y);
+            }
+        }
+    }
+
+    /**
+     * Decodes the received strokes and notes when each point arrived.
+     */
+    private class StrokeListener implements Transport.Listener {
+        private final Map<Integer, List<Long>> mArrivals = new HashMap<>();
+        private int mCompleted;
+        private int mConnected;
+        private int mDisconnected;
+
+        @Override
+        public synchronized void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            PathMessage message;
+            try {
+                message = codec.decode(payload);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            List<Long> arrivals = mArrivals.get(message.getStrokeId());
+            if (arrivals == null) {
+                arrivals = new ArrayList<>();
+                mArrivals.put(message.getStrokeId(), arrivals);
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < message.getPointCount(); i++) {
+                arrivals.add(now);
+            }
+            if (message.isLast()) {
+                mCompleted++;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onEndpointConnected(String endpointId) {
+            mConnected++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onEndpointDisconnected(String endpointId) {
+            mDisconnected++;
+            notifyAll();
+        }
+
+        synchronized int points(int strokeId) {
+            List<Long> arrivals = mArrivals.get(strokeId);
+            return arrivals == null ? 0 : arrivals.size();
+        }
+
+        synchronized int completed() {
+            return mCompleted;
+        }
+
+        synchronized void recordLatency(long[] times, LatencyRecorder latency) {
+            for (List<Long> arrivals : mArrivals.values()) {
+                for (int i = 0; i < arrivals.size(); i++) {
+                    latency.record(arrivals.get(i) - times[i]);
+                }
+            }
+        }
+
+        synchronized void awaitStrokes(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (mCompleted < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue("Completed strokes " + mCompleted + "/" + count, mCompleted >= count);
+        }
+
+        synchronized void awaitConnected(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mConnected < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(count, mConnected);
+        }
+
+        synchronized void awaitDisconnected(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mDisconnected < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(count, mDisconnected);
+        }
+    }
+}
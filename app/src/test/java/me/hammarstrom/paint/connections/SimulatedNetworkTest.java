@@ -0,0 +1,238 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the in-process transports, and an end to end run of the outgoing
+ * stroke pipeline over a simulated link.
+ */
+public class SimulatedNetworkTest {
+
+    private static final long MS = 1000000L;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(7);
+
+    @After
+    public void tearDown() {
+        network.shutdown();
+    }
+
+    @Test
+    public void loopback_deliversSynchronously() {
+        LoopbackTransport a = new LoopbackTransport("a");
+        LoopbackTransport b = new LoopbackTransport("b");
+        RecordingListener listener = new RecordingListener();
+        b.setListener(listener);
+
+        LoopbackTransport.connect(a, b);
+        a.sendReliable("b", new byte[] {1, 2, 3});
+        a.sendUnreliable("b", new byte[] {4});
+        a.disconnect("b");
+        a.sendReliable("b", new byte[] {5});
+
+        assertEquals(2, listener.payloads.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, listener.payloads.get(0));
+        assertEquals("a", listener.connected.get(0));
+        assertEquals("a", listener.disconnected.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unreliable_rejectsOversizedMessage() {
+        Transport a = network.createEndpoint("a");
+        network.createEndpoint("b");
+        network.connect("a", "b", new SimulatedLink.Builder().build());
+        a.sendUnreliable("b", new byte[Transport.MAX_UNRELIABLE_MESSAGE_SIZE + 1]);
+    }
+
+    @Test
+    public void link_appliesLatency() throws Exception {
+        Transport a = network.createEndpoint("a");
+        Transport b = network.createEndpoint("b");
+        RecordingListener listener = new RecordingListener();
+        b.setListener(listener);
+        network.connect("a", "b", new SimulatedLink.Builder().setLatency(30, TimeUnit.MILLISECONDS).build());
+
+        long start = System.nanoTime();
+        a.sendReliable("b", new byte[10]);
+        listener.await(1);
+
+        assertTrue(listener.arrivals.get(0) - start >= 30 * MS);
+        assertEquals("a", listener.connected.get(0));
+    }
+
+    @Test
+    public void link_limitsBandwidth() throws Exception {
+        Transport a = network.createEndpoint("a");
+        Transport b = network.createEndpoint("b");
+        RecordingListener listener = new RecordingListener();
+        b.setListener(listener);
+        // 20 messages of 4000 bytes at 400 kB/s take 200 ms
+        network.connect("a", "b", new SimulatedLink.Builder().setBandwidth(400000).build());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            a.sendReliable("b", new byte[4000]);
+        }
+        listener.await(20);
+        long elapsed = listener.arrivals.get(19) - start;
+
+        System.out.println("20 x 4000 bytes at 400 kB/s: " + elapsed / MS + " ms");
+        assertTrue(elapsed >= 195 * MS);
+    }
+
+    @Test
+    public void lossyLink_dropsUnreliableAndKeepsReliableInOrder() throws Exception {
+        Transport a = network.createEndpoint("a");
+        Transport b = network.createEndpoint("b");
+        RecordingListener listener = new RecordingListener();
+        b.setListener(listener);
+        SimulatedLink link = new SimulatedLink.Builder()
+                .setLatency(2, TimeUnit.MILLISECONDS)
+                .setJitter(2, TimeUnit.MILLISECONDS)
+                .setLossRate(0.2)
+                .build();
+        network.connect("a", "b", link);
+
+        for (int i = 0; i < 200; i++) {
+            a.sendUnreliable("b", new byte[] {0, (byte) i});
+        }
+        for (int i = 0; i < 200; i++) {
+            a.sendReliable("b", new byte[] {1, (byte) i});
+        }
+        listener.awaitReliable(200);
+        Thread.sleep(20);
+
+        int unreliable = 0;
+        int nextReliable = 0;
+        for (byte[] payload : listener.payloads) {
+            if (payload[0] == 0) {
+                unreliable++;
+            } else {
+                assertEquals((byte) nextReliable++, payload[1]);
+            }
+        }
+        System.out.println("Unreliable delivered " + unreliable + "/200 at 20% loss, lost transmissions "
+                + link.getLost());
+        assertEquals(200, nextReliable);
+        assertTrue(unreliable > 120 && unreliable < 190);
+    }
+
+    @Test
+    public void strokePipeline_overSimulatedLink() throws Exception {
+        Transport phone = network.createEndpoint("phone");
+        Transport tablet = network.createEndpoint("tablet");
+        final StrokeCodec codec = new StrokeCodec();
+        final LatencyRecorder latency = new LatencyRecorder();
+        final List<Long> sendTimes = new ArrayList<>();
+        final CountDownLatch lastSegment = new CountDownLatch(1);
+        final int[] points = new int[1];
+        tablet.setListener(new RecordingListener() {
+            @Override
+            public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                try {
+                    PathMessage message = codec.decode(payload);
+                    long now = System.nanoTime();
+                    synchronized (sendTimes) {
+                        for (int i = 0; i < message.getPointCount(); i++) {
+                            latency.record(now - sendTimes.get(points[0]++));
+                        }
+                    }
+                    if (message.isLast()) {
+                        lastSegment.countDown();
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        network.connect("phone", "tablet", new SimulatedLink.Builder()
+                .setBandwidth(100000)
+                .setLatency(10, TimeUnit.MILLISECONDS)
+                .setJitter(5, TimeUnit.MILLISECONDS)
+                .build());
+
+        ChunkPool pool = new ChunkPool(16, StrokeCodec.MAX_MESSAGE_SIZE);
+        final OutboundSender sender = new OutboundSender(phone, "tablet", codec, pool, 8,
+                OutboundSender.POLICY_MERGE);
+        sender.start();
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+            @Override
+            public void onSegment(Chunk segment) {
+                sender.offer(segment);
+            }
+        }, Clock.SYSTEM, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 300);
+        for (int i = 0; i < trace.getPointCount(); i++) {
+            synchronized (sendTimes) {
+                sendTimes.add(System.nanoTime());
+            }
+            if (i == 0) {
+                streamer.beginStroke(1, 0, 3f, 0L, trace.getX(i), trace.getY(i));
+            } else if (i == trace.getPointCount() - 1) {
+                streamer.endStroke(trace.getX(i), trace.getY(i));
+            } else {
+                streamer.addPoint(trace.getX(i), trace.getY(i));
+            }
+            Thread.sleep(2);
+        }
+        assertTrue(lastSegment.await(5, TimeUnit.SECONDS));
+        sender.stop();
+
+        System.out.print(latency.summary("Touch to receive over 10+-5 ms link"));
+        assertEquals(trace.getPointCount(), latency.count());
+        assertTrue(latency.percentile(50) >= 10 * MS);
+    }
+
+    static class RecordingListener implements Transport.Listener {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Long> arrivals = new ArrayList<>();
+        final List<String> connected = new ArrayList<>();
+        final List<String> disconnected = new ArrayList<>();
+        private int mReliable;
+
+        @Override
+        public synchronized void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            payloads.add(payload);
+            arrivals.add(System.nanoTime());
+            if (reliable) {
+                mReliable++;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onEndpointConnected(String endpointId) {
+            connected.add(endpointId);
+        }
+
+        @Override
+        public synchronized void onEndpointDisconnected(String endpointId) {
+            disconnected.add(endpointId);
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (payloads.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue(payloads.size() >= count);
+        }
+
+        synchronized void awaitReliable(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mReliable < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue(mReliable >= count);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StrokeAssembler}, and a comparison of reliable streaming against
+ * unreliable previews with a reliable commit on a lossy simulated link.
+ */
+public class StrokeAssemblerTest {
+
+    private static final long MS = 1000000L;
+
+    private final StrokeCodec codec = new StrokeCodec();
+
+    @Test
+    public void reliableSegments_areDrawnAsTheyArrive() {
+        Canvas canvas = new Canvas();
+        StrokeAssembler assembler = new StrokeAssembler(canvas);
+
+        assembler.onMessage(segment(1, 0, PathMessage.FLAG_FIRST, 0, 3));
+        assembler.onMessage(segment(1, 0, PathMessage.FLAG_FIRST, 0, 3));
+        assembler.onMessage(segment(1, 1, PathMessage.FLAG_LAST, 3, 2));
+
+        assertEquals(5, canvas.points(1).size());
+        assertEquals(0, assembler.getActiveCount());
+        assertTrue(canvas.ended.contains(1));
+    }
+
+    @Test
+    public void previews_drawOnlyNewPoints() {
+        Canvas canvas = new Canvas();
+        StrokeAssembler assembler = new StrokeAssembler(canvas);
+
+        assembler.onMessage(preview(1, 0, 4));
+        // Repeats the first preview, then a stale copy of it
+        assembler.onMessage(preview(1, 0, 8));
+        assembler.onMessage(preview(1, 0, 4));
+        // Previews for 8..12 are lost, this one leaves a gap
+        assembler.onMessage(preview(1, 12, 4));
+
+        List<Float> points = canvas.points(1);
+        assertEquals(12, points.size());
+        assertEquals(x(7), points.get(7), 0f);
+        assertEquals(x(12), points.get(8), 0f);
+    }
+
+    @Test
+    public void commit_replacesPreviews() {
+        Canvas canvas = new Canvas();
+        StrokeAssembler assembler = new StrokeAssembler(canvas);
+
+        assembler.onMessage(preview(1, 0, 4));
+        assembler.onMessage(preview(1, 8, 4));
+        assembler.onMessage(segment(1, 0, PathMessage.FLAG_FIRST, 0, 10));
+        // A preview overtaking the commit is not drawn into it
+        assembler.onMessage(preview(1, 12, 4));
+        assertEquals(8, canvas.points(1).size());
+        assembler.onMessage(segment(1, 1, PathMessage.FLAG_LAST, 10, 10));
+        assembler.onMessage(preview(1, 16, 4));
+
+        List<Float> points = canvas.points(1);
+        assertEquals(20, points.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(x(i), points.get(i), 0f);
+        }
+        assertEquals(1, canvas.replaced);
+        assertEquals(0, assembler.getActiveCount());
+    }
+
+    @Test
+    public void lossyLink_previewsLowerVisibleLatency() throws Exception {
+        Run reliable = run(false);
+        Run previews = run(true);
+
+        System.out.print(reliable.visible.summary("Visible latency, reliable segments, 5% loss"));
+        System.out.print(previews.visible.summary("Visible latency, unreliable previews + commit, 5% loss"));
+        assertEquals(reliable.expected, reliable.canvas.strokes);
+        assertEquals(previews.expected, previews.canvas.strokes);
+        assertEquals(reliable.canvas.strokes, previews.canvas.strokes);
+        assertTrue(previews.visible.percentile(99) < reliable.visible.percentile(99));
+    }
+
+    private static final int STROKES = 6;
+    private static final int POINTS = 150;
+
+    /**
+     * Draw strokes over a lossy link and record when each point first became visible
+     * on the receiving canvas.
+     */
+    private Run run(boolean withPreviews) throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(3);
+        final Run run = new Run();
+        final StrokeAssembler assembler = new StrokeAssembler(run.canvas);
+        try {
+            Transport phone = network.createEndpoint("phone");
+            Transport tablet = network.createEndpoint("tablet");
+            tablet.setListener(new SimulatedNetworkTest.RecordingListener() {
+                @Override
+                public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                    try {
+                        PathMessage message = codec.decode(payload);
+                        synchronized (run.canvas) {
+                            assembler.onMessage(message);
+                        }
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            network.connect("phone", "tablet", new SimulatedLink.Builder()
+                    .setBandwidth(200000)
+                    .setLatency(10, TimeUnit.MILLISECONDS)
+                    .setJitter(5, TimeUnit.MILLISECONDS)
+                    .setLossRate(0.05)
+                    .build());
+
+            ChunkPool pool = new ChunkPool(16, StrokeCodec.MAX_MESSAGE_SIZE);
+            final OutboundSender sender = new OutboundSender(phone, "tablet", codec, pool, 16,
+                    OutboundSender.POLICY_MERGE);
+            sender.start();
+            StrokeStreamer streamer = new StrokeStreamer(codec, pool, new StrokeStreamer.SegmentSink() {
+                @Override
+                public void onSegment(Chunk segment) {
+                    sender.offer(segment);
+                }
+            }, Clock.SYSTEM, 16 * MS, Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+            if (withPreviews) {
+                streamer.enablePreviews(StrokeStreamer.DEFAULT_PREVIEW_REDUNDANCY);
+            }
+
+            PathMessage trace = StrokeCodecTest.trace(0, 0, 3f, POINTS * STROKES);
+            for (int s = 0; s < STROKES; s++) {
+                List<Float> expected = new ArrayList<>();
+                run.expected.put(s, expected);
+                for (int i = 0; i < POINTS; i++) {
+                    float x = trace.getX(s * POINTS + i);
+                    float y = trace.getY(s * POINTS + i);
+                    expected.add(codec.quantize(x) * (1f / codec.getGridResolution()));
+                    run.canvas.touched(s, i, System.nanoTime());
+                    if (i == 0) {
+                        streamer.beginStroke(s, 0, 3f, 0L, x, y);
+                    } else if (i == POINTS - 1) {
+                        streamer.endStroke(x, y);
+                    } else {
+                        streamer.addPoint(x, y);
+                    }
+                    Thread.sleep(2);
+                }
+            }
+            run.canvas.awaitEnded(STROKES);
+            sender.stop();
+        } finally {
+            network.shutdown();
+        }
+        run.canvas.recordVisible(run.visible);
+        return run;
+    }
+
+    private PathMessage segment(int strokeId, int sequence, int flags, int from, int count) {
+        PathMessage message = new PathMessage(strokeId, 0, 3f);
+        message.setSequence(sequence);
+        message.setFlags(flags);
+        for (int i = from; i < from + count; i++) {
+            message.addCoords(x(i), 0.5f);
+        }
+        return message;
+    }
+
+    private PathMessage preview(int strokeId, int from, int count) {
+        int flags = PathMessage.FLAG_PREVIEW | (from == 0 ? PathMessage.FLAG_FIRST : 0);
+        return segment(strokeId, from, flags, from, count);
+    }
+
+    private static float x(int index) {
+        return index / 100f;
+    }
+
+    private static class Run {
+        final Canvas canvas = new Canvas();
+        final Map<Integer, List<Float>> expected = new HashMap<>();
+        final LatencyRecorder visible = new LatencyRecorder();
+    }
+
+    /**
+     * Keeps the x coordinates of each drawn stroke, and when each point of a stroke
+     * was touched on the sender and first drawn on the receiver.
+     */
+    private static class Canvas implements StrokeAssembler.Listener {
+        final Map<Integer, List<Float>> strokes = new HashMap<>();
+        final List<Integer> ended = new ArrayList<>();
+        final Map<Integer, long[]> touched = new HashMap<>();
+        final Map<Integer, long[]> drawn = new HashMap<>();
+        int replaced;
+
+        @Override
+        public synchronized void onStrokeStarted(int strokeId, int color, float width, long timestamp) {
+            strokes.put(strokeId, new ArrayList<Float>());
+        }
+
+        @Override
+        public synchronized void onStrokePoints(int strokeId, PathMessage message, int start) {
+            List<Float> points = strokes.get(strokeId);
+            for (int i = start; i < message.getPointCount(); i++) {
+                points.add(message.getX(i));
+                markDrawn(strokeId, message.isPreview() ? message.getSequence() + i : points.size() - 1);
+            }
+        }
+
+        @Override
+        public synchronized void onStrokeReplaced(int strokeId, PathMessage stroke) {
+            List<Float> points = strokes.get(strokeId);
+            points.clear();
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                points.add(stroke.getX(i));
+                markDrawn(strokeId, i);
+            }
+            replaced++;
+        }
+
+        @Override
+        public synchronized void onStrokeEnded(int strokeId) {
+            ended.add(strokeId);
+            notifyAll();
+        }
+
+        List<Float> points(int strokeId) {
+            return strokes.get(strokeId);
+        }
+
+        synchronized void touched(int strokeId, int index, long nanos) {
+            if (!touched.containsKey(strokeId)) {
+                touched.put(strokeId, new long[POINTS]);
+                drawn.put(strokeId, new long[POINTS]);
+            }
+            touched.get(strokeId)[index] = nanos;
+        }
+
+        synchronized void awaitEnded(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000;
+            while (ended.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(count, ended.size());
+        }
+
+        synchronized void recordVisible(LatencyRecorder recorder) {
+            for (Map.Entry<Integer, long[]> stroke : touched.entrySet()) {
+                long[] drawnAt = drawn.get(stroke.getKey());
+                for (int i = 0; i < POINTS; i++) {
+                    recorder.record(drawnAt[i] - stroke.getValue()[i]);
+                }
+            }
+        }
+
+        private void markDrawn(int strokeId, int index) {
+            long[] drawnAt = drawn.get(strokeId);
+            if (drawnAt != null && index < drawnAt.length && drawnAt[index] == 0) {
+                drawnAt[index] = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests for {@link StrokeCodec} and a comparison of message capacity
+ * against the ObjectOutputStream format it replaced. The speed comparison is in the
+ * benchmarks module, see ObjectStreamBenchmark.
+ */
+public class StrokeCodecTest {
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final StrokeCodec fixedCodec = new StrokeCodec(StrokeCodec.ENCODING_FIXED16, 0xFFFF);
+
+    @Test
+    public void roundTrip_fixed16() throws Exception {
+        assertRoundTrip(fixedCodec);
+    }
+
+    @Test
+    public void roundTrip_deltaVarint() throws Exception {
+        assertRoundTrip(codec);
+        assertRoundTrip(new StrokeCodec(StrokeCodec.ENCODING_DELTA_VARINT, 1024));
+        assertRoundTrip(new StrokeCodec(StrokeCodec.ENCODING_DELTA_VARINT, 0xFFFF));
+    }
+
+    @Test
+    public void roundTrip_deltaVarintLargeJumps() throws Exception {
+        PathMessage message = new PathMessage(7, 0, 2f);
+        message.addCoords(0f, 1f);
+        message.addCoords(1f, 0f);
+        message.addCoords(0f, 0f);
+        message.addCoords(1f, 1f);
+        StrokeCodec fine = new StrokeCodec(StrokeCodec.ENCODING_DELTA_VARINT, 0xFFFF);
+
+        PathMessage decoded = fine.decode(fine.encode(message));
+
+        assertEquals(4, decoded.getPointCount());
+        assertEquals(1f, decoded.getX(1), 0f);
+        assertEquals(0f, decoded.getY(1), 0f);
+        assertEquals(1f, decoded.getY(3), 0f);
+    }
+
+    @Test
+    public void roundTrip_timestampAndDelete() throws Exception {
+        PathMessage message = new PathMessage(7, 0xFF00FF00, 2f);
+        message.addCoords(0.5f, 0.5f);
+        message.setTimestamp(0xFFFFFFF0L);
+
+        assertEquals(0xFFFFFFF0L, codec.decode(codec.encode(message)).getTimestamp());
+
+        PathMessage delete = new PathMessage(9, 0, 0f);
+        delete.setTimestamp(12);
+        delete.setFlags(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST | PathMessage.FLAG_DELETE);
+        PathMessage decoded = codec.decode(codec.encode(delete));
+
+        assertTrue(decoded.isDelete());
+        assertEquals(9, decoded.getStrokeId());
+        assertEquals(12, decoded.getTimestamp());
+        assertEquals(0, decoded.getPointCount());
+    }
+
+    @Test
+    public void zigZag_roundTrip() {
+        int[] values = {0, 1, -1, 63, -64, 64, 4096, -4096, 65535, -65535};
+        for (int value : values) {
+            assertEquals(value, StrokeCodec.unZigZag(StrokeCodec.zigZag(value)));
+        }
+        assertEquals(1, StrokeCodec.varintSize(StrokeCodec.zigZag(-64)));
+        assertEquals(2, StrokeCodec.varintSize(StrokeCodec.zigZag(64)));
+        assertEquals(3, StrokeCodec.varintSize(StrokeCodec.zigZag(-65535)));
+    }
+
+    @Test
+    public void encode_clampsOutOfRangeCoordinates() throws Exception {
+        PathMessage message = new PathMessage(1, 0, 1f);
+        message.addCoords(-0.5f, 1.5f);
+
+        PathMessage decoded = codec.decode(codec.encode(message));
+
+        assertEquals(0f, decoded.getX(0), 0f);
+        assertEquals(1f, decoded.getY(0), 0f);
+    }
+
+    @Test
+    public void encode_fullMessageFitsNearbyLimit() {
+        for (StrokeCodec c : new StrokeCodec[] {codec, fixedCodec}) {
+            PathMessage message = new PathMessage(1, 0, 3f);
+            int points = pointsPerMessage(c, message);
+
+            byte[] bytes = c.encode(message);
+
+            assertEquals(points, message.getPointCount());
+            assertTrue(bytes.length <= StrokeCodec.MAX_MESSAGE_SIZE);
+            assertEquals(c.encodedLength(message), bytes.length);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsOversizedMessage() {
+        fixedCodec.encode(trace(1, 0, 3f, 1100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsInvalidGrid() {
+        new StrokeCodec(StrokeCodec.ENCODING_DELTA_VARINT, 0x10000);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void decode_rejectsUnknownVersion() throws Exception {
+        byte[] bytes = codec.encode(trace(1, 0, 3f, 10));
+        bytes[0] = (byte) (StrokeCodec.VERSION + 1);
+        codec.decode(bytes);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void decode_rejectsTruncatedVarint() throws Exception {
+        byte[] bytes = codec.encode(trace(1, 0, 3f, 10));
+        // Shrink the body length so that the last varint is cut off
+        bytes[3] = (byte) (bytes[3] - 1);
+        codec.decode(bytes);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void decode_rejectsTruncatedMessage() throws Exception {
+        byte[] bytes = codec.encode(trace(1, 0, 3f, 10));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        codec.decode(truncated);
+    }
+
+    @Test
+    public void pointsPerMessage_comparedToObjectStream() throws Exception {
+        int legacy = legacyPointsPerMessage();
+        int fixed = pointsPerMessage(fixedCodec, new PathMessage());
+        int delta = pointsPerMessage(codec, new PathMessage());
+
+        assertTrue(fixed >= legacy * 5);
+        assertTrue(delta >= 1500);
+    }
+
+    private void assertRoundTrip(StrokeCodec c) throws IOException {
+        PathMessage message = trace(42, 0xFFFFFF00, 3f, 500);
+        float epsilon = 0.5f / c.getGridResolution() + 1e-6f;
+
+        PathMessage decoded = c.decode(c.encode(message));
+
+        assertEquals(42, decoded.getStrokeId());
+        assertEquals(0xFFFFFF00, decoded.getColor());
+        assertEquals(3f, decoded.getWidth(), 0f);
+        assertEquals(message.getPointCount(), decoded.getPointCount());
+        for (int i = 0; i < message.getPointCount(); i++) {
+            assertEquals(message.getX(i), decoded.getX(i), epsilon);
+            assertEquals(message.getY(i), decoded.getY(i), epsilon);
+        }
+    }
+
+    /**
+     * Fill a message with the synthetic trace until the codec considers it full.
+     */
+    private static int pointsPerMessage(StrokeCodec c, PathMessage message) {
+        PathMessage source = trace(1, 0, 3f, 10000);
+        message.clearList();
+        for (int i = 0; i < source.getPointCount(); i++) {
+            if (c.encodedLength(message) > StrokeCodec.MAX_MESSAGE_SIZE - StrokeCodec.MAX_POINT_SIZE) {
+                break;
+            }
+            message.addCoords(source.getX(i), source.getY(i));
+        }
+        return message.getPointCount();
+    }
+
+    private static int legacyPointsPerMessage() throws IOException {
+        PathMessage message = trace(1, 0, 3f, 2000);
+        List<String> coords = new ArrayList<>();
+        for (int i = 0; i < message.getPointCount(); i++) {
+            coords.add(String.valueOf(message.getX(i)) + "," + String.valueOf(message.getY(i)));
+            if (legacyEncode(coords).length > StrokeCodec.MAX_MESSAGE_SIZE) {
+                return i;
+            }
+        }
+        return message.getPointCount();
+    }
+
+    private static byte[] legacyEncode(List<String> coords) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(new ArrayList<>(coords));
+        oos.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * A synthetic handwriting-like trace: a slowly drifting loop with steps of a
+     * few pixels on a phone sized screen.
+     */
+    static PathMessage trace(int strokeId, int color, float width, int points) {
+        PathMessage message = new PathMessage(strokeId, color, width);
+        for (int i = 0; i < points; i++) {
+            double t = i * 0.02;
+            float x = (float) (0.5 + 0.3 * Math.cos(t) * (0.5 + 0.5 * Math.sin(t * 0.1)));
+            float y = (float) (0.5 + 0.3 * Math.sin(t) * (0.5 + 0.5 * Math.cos(t * 0.07)));
+            message.addCoords(x, y);
+        }
+        return message;
+    }
+}
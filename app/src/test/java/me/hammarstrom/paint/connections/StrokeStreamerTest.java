@@ -0,0 +1,312 @@
+package me.hammarstrom.paint.connections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StrokeStreamer}, driven by a simulated touch stream on a fake clock.
+ */
+public class StrokeStreamerTest {
+
+    private static final long MS = 1000000L;
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final ChunkPool pool = new ChunkPool(4, StrokeCodec.MAX_MESSAGE_SIZE);
+    private final FakeClock clock = new FakeClock();
+    private final List<PathMessage> segments = new ArrayList<>();
+
+    private final StrokeStreamer.SegmentSink sink = new StrokeStreamer.SegmentSink() {
+        @Override
+        public void onSegment(Chunk segment) {
+            segments.add(decode(segment));
+        }
+    };
+
+    @Test
+    public void segments_haveSequenceNumbersAndFlags() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        streamer.beginStroke(5, 0xFF00FF00, 4f, 42L, 0.1f, 0.1f);
+        for (int i = 0; i < 20; i++) {
+            clock.advance(5 * MS);
+            streamer.addPoint(0.1f + i * 0.01f, 0.1f);
+        }
+        streamer.endStroke(0.5f, 0.5f);
+
+        assertTrue(segments.size() > 2);
+        for (int i = 0; i < segments.size(); i++) {
+            PathMessage segment = segments.get(i);
+            assertEquals(5, segment.getStrokeId());
+            assertEquals(i, segment.getSequence());
+            assertEquals(i == 0, segment.isFirst());
+            assertEquals(i == segments.size() - 1, segment.isLast());
+            assertEquals(0xFF00FF00, segment.getColor());
+            assertEquals(42L, segment.getTimestamp());
+        }
+        assertEquals(22, totalPoints());
+    }
+
+    @Test
+    public void shortStroke_isOneSegment() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        streamer.beginStroke(1, 0, 3f, 0L, 0.2f, 0.2f);
+        streamer.addPoint(0.21f, 0.2f);
+        streamer.endStroke(0.22f, 0.2f);
+
+        assertEquals(1, segments.size());
+        assertTrue(segments.get(0).isFirst());
+        assertTrue(segments.get(0).isLast());
+        assertEquals(3, segments.get(0).getPointCount());
+    }
+
+    @Test
+    public void deleteStroke_isOneReliableMessage() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS,
+                Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+        streamer.enablePreviews(2);
+
+        // In the middle of drawing another stroke
+        streamer.beginStroke(1, 0, 3f, 10L, 0.2f, 0.2f);
+        streamer.deleteStroke(7, 11L);
+
+        PathMessage delete = segments.get(segments.size() - 1);
+        assertTrue(delete.isDelete());
+        assertTrue(delete.isFirst() && delete.isLast());
+        assertFalse(delete.isPreview());
+        assertEquals(7, delete.getStrokeId());
+        assertEquals(11L, delete.getTimestamp());
+        assertEquals(0, delete.getPointCount());
+    }
+
+    @Test
+    public void sizeBudget_isNeverExceeded() {
+        int budget = 256;
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, Long.MAX_VALUE, budget);
+
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 5000);
+        streamer.beginStroke(1, 0, 3f, 0L, trace.getX(0), trace.getY(0));
+        for (int i = 1; i < trace.getPointCount() - 1; i++) {
+            streamer.addPoint(trace.getX(i), trace.getY(i));
+        }
+        streamer.endStroke(trace.getX(trace.getPointCount() - 1), trace.getY(trace.getPointCount() - 1));
+
+        for (PathMessage segment : segments) {
+            assertTrue(codec.encodedLength(segment) <= budget);
+        }
+        assertTrue(segments.size() > 5000 * 2 / budget);
+        assertEquals(5000, totalPoints());
+    }
+
+    @Test
+    public void flushIfDue_sendsPointsAfterPause() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE);
+
+        streamer.beginStroke(1, 0, 3f, 0L, 0.2f, 0.2f);
+        clock.advance(10 * MS);
+        assertFalse(streamer.flushIfDue());
+        assertEquals(6 * MS, streamer.getFlushDelayNanos());
+        clock.advance(6 * MS);
+        assertTrue(streamer.flushIfDue());
+
+        assertEquals(1, segments.size());
+        assertEquals(-1, streamer.getFlushDelayNanos());
+    }
+
+    @Test
+    public void previews_repeatEarlierPointsThenCommit() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS,
+                Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+        streamer.enablePreviews(2);
+
+        PathMessage trace = StrokeCodecTest.trace(3, 0, 3f, 40);
+        streamer.beginStroke(3, 0, 3f, 0L, trace.getX(0), trace.getY(0));
+        for (int i = 1; i < 39; i++) {
+            clock.advance(4 * MS);
+            streamer.addPoint(trace.getX(i), trace.getY(i));
+        }
+        streamer.endStroke(trace.getX(39), trace.getY(39));
+
+        // A preview every 5 points, each starting where the preview two before it did
+        List<PathMessage> previews = new ArrayList<>();
+        List<PathMessage> commits = new ArrayList<>();
+        for (PathMessage segment : segments) {
+            (segment.isPreview() ? previews : commits).add(segment);
+        }
+        assertEquals(8, previews.size());
+        assertEquals(0, previews.get(0).getSequence());
+        assertTrue(previews.get(0).isFirst());
+        assertEquals(0, previews.get(2).getSequence());
+        assertEquals(15, previews.get(2).getPointCount());
+        assertEquals(5, previews.get(3).getSequence());
+        assertFalse(previews.get(3).isFirst());
+        float epsilon = 1f / codec.getGridResolution();
+        for (PathMessage preview : previews) {
+            assertFalse(preview.isLast());
+            assertEquals(trace.getX(preview.getSequence()), preview.getX(0), epsilon);
+        }
+
+        assertEquals(1, commits.size());
+        assertTrue(commits.get(0).isFirst());
+        assertTrue(commits.get(0).isLast());
+        assertEquals(40, commits.get(0).getPointCount());
+        assertEquals(trace.getY(39), commits.get(0).getY(39), epsilon);
+    }
+
+    @Test
+    public void previews_longStrokeIsCommittedInSeveralSegments() {
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, sink, clock, 16 * MS,
+                Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+        streamer.enablePreviews(StrokeStreamer.DEFAULT_PREVIEW_REDUNDANCY);
+
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 5000);
+        streamer.beginStroke(1, 0, 3f, 0L, trace.getX(0), trace.getY(0));
+        for (int i = 1; i < trace.getPointCount() - 1; i++) {
+            streamer.addPoint(trace.getX(i), trace.getY(i));
+        }
+        streamer.endStroke(trace.getX(trace.getPointCount() - 1), trace.getY(trace.getPointCount() - 1));
+
+        int committed = 0;
+        int sequence = 0;
+        for (PathMessage segment : segments) {
+            if (segment.isPreview()) {
+                assertTrue(codec.encodedLength(segment) <= Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+            } else {
+                assertEquals(sequence++, segment.getSequence());
+                committed += segment.getPointCount();
+            }
+        }
+        assertTrue(sequence > 1);
+        assertEquals(5000, committed);
+        assertTrue(segments.get(segments.size() - 1).isLast());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void previews_rejectSegmentsLargerThanUnreliableLimit() {
+        new StrokeStreamer(codec, pool, sink, clock, 16 * MS, StrokeCodec.MAX_MESSAGE_SIZE).enablePreviews(2);
+    }
+
+    @Test
+    public void latencyHistogram_simulatedTouchStream() {
+        LatencyRecorder streamed = simulate(16 * MS);
+        LatencyRecorder legacy = simulate(Long.MAX_VALUE);
+
+        System.out.print(streamed.summary("Streamed, 16 ms budget"));
+        System.out.print(legacy.summary("Send on full message or ACTION_UP"));
+
+        // Points wait at most the budget, plus the delay of the timer running late
+        assertTrue(streamed.max() <= 16 * MS + TIMER_SLACK_NANOS);
+        assertTrue(streamed.percentile(99) < legacy.percentile(99));
+    }
+
+    private static final long TIMER_SLACK_NANOS = 4 * MS;
+
+    /**
+     * Feed strokes sampled at around 120 Hz, with pauses where the finger rests, through
+     * a streamer and record how long each point waited before it was sent. A timer
+     * emulates the Handler in MainActivity and runs up to {@link #TIMER_SLACK_NANOS} late.
+     */
+    private LatencyRecorder simulate(long maxDelayNanos) {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        final List<Long> pendingCaptures = new ArrayList<>();
+        StrokeStreamer.SegmentSink recordingSink = new StrokeStreamer.SegmentSink() {
+            @Override
+            public void onSegment(Chunk segment) {
+                // A size flush happens before the point being added joins the segment
+                assertTrue(segment.getPointCount() <= pendingCaptures.size());
+                for (int i = 0; i < segment.getPointCount(); i++) {
+                    recorder.record(clock.nanoTime() - pendingCaptures.remove(0));
+                }
+                segment.recycle();
+            }
+        };
+
+        Random random = new Random(42);
+        StrokeStreamer streamer = new StrokeStreamer(codec, pool, recordingSink, clock, maxDelayNanos,
+                StrokeCodec.MAX_MESSAGE_SIZE);
+        PathMessage trace = StrokeCodecTest.trace(1, 0, 3f, 3000);
+
+        for (int stroke = 0; stroke < 10; stroke++) {
+            long timerAt = -1;
+            int points = 100 + random.nextInt(trace.getPointCount() - 100);
+            for (int i = 0; i < points; i++) {
+                long gap = (4 + random.nextInt(9)) * MS;
+                if (random.nextInt(50) == 0) {
+                    gap += 100 * MS;
+                }
+                long next = clock.nanoTime() + gap;
+
+                // Let the timer fire if it is due before the next touch event
+                while (timerAt >= 0 && timerAt <= next) {
+                    clock.set(timerAt);
+                    streamer.flushIfDue();
+                    timerAt = schedule(streamer, random);
+                }
+                clock.set(next);
+
+                pendingCaptures.add(clock.nanoTime());
+                if (i == 0) {
+                    streamer.beginStroke(stroke, 0, 3f, 0L, trace.getX(i), trace.getY(i));
+                } else if (i == points - 1) {
+                    streamer.endStroke(trace.getX(i), trace.getY(i));
+                } else {
+                    streamer.addPoint(trace.getX(i), trace.getY(i));
+                }
+                timerAt = schedule(streamer, random);
+            }
+            assertTrue(pendingCaptures.isEmpty());
+            clock.advance(500 * MS);
+        }
+        return recorder;
+    }
+
+    private long schedule(StrokeStreamer streamer, Random random) {
+        long delay = streamer.getFlushDelayNanos();
+        if (delay < 0 || delay == Long.MAX_VALUE || delay > 1000 * MS) {
+            return -1;
+        }
+        return clock.nanoTime() + delay + (long) (random.nextDouble() * TIMER_SLACK_NANOS);
+    }
+
+    private PathMessage decode(Chunk chunk) {
+        PathMessage message = new PathMessage();
+        try {
+            codec.decode(chunk.getBuffer(), 0, chunk.getLength(), message);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        chunk.recycle();
+        return message;
+    }
+
+    private int totalPoints() {
+        int total = 0;
+        for (PathMessage segment : segments) {
+            total += segment.getPointCount();
+        }
+        return total;
+    }
+
+    static class FakeClock implements Clock {
+        private long mNow = 1000 * MS;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        void advance(long nanos) {
+            mNow += nanos;
+        }
+
+        void set(long nanos) {
+            mNow = nanos;
+        }
+    }
+}
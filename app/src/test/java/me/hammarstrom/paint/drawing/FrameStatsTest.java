@@ -0,0 +1,40 @@
+package me.hammarstrom.paint.drawing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FrameStats}.
+ */
+public class FrameStatsTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void slowFrames_countSkippedRefreshes() {
+        FrameStats stats = new FrameStats();
+
+        stats.onFrame(2 * MS);
+        stats.onFrame(FrameStats.FRAME_INTERVAL_NANOS);
+        stats.onFrame(20 * MS);
+        stats.onFrame(51 * MS);
+
+        assertEquals(4, stats.getFrameCount());
+        assertEquals(1 + 3, stats.getSkippedFrames());
+        assertEquals(51 * MS, stats.getMaxFrameNanos());
+        assertEquals(51 * MS, stats.getLastFrameNanos());
+    }
+
+    @Test
+    public void reset_clearsCounters() {
+        FrameStats stats = new FrameStats();
+        stats.onFrame(40 * MS);
+
+        stats.reset();
+
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getSkippedFrames());
+        assertEquals(0, stats.getAverageFrameNanos());
+    }
+}
@@ -0,0 +1,78 @@
+package me.hammarstrom.paint.drawing;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link MpscQueue}. Producer latency against a render thread holding a
+ * lock is measured by MpscQueueBenchmark in the benchmarks module.
+ */
+public class MpscQueueTest {
+
+    @Test
+    public void poll_returnsInOrder() {
+        MpscQueue<Integer> queue = new MpscQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        queue.offer(1);
+        queue.offer(2);
+        assertEquals(Integer.valueOf(1), queue.poll());
+        queue.offer(3);
+
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offer_rejectsNull() {
+        new MpscQueue<Integer>().offer(null);
+    }
+
+    @Test
+    public void concurrentProducers_deliverEverythingInProducerOrder() throws Exception {
+        final MpscQueue<int[]> queue = new MpscQueue<>();
+        final int producers = 4;
+        final int perProducer = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new int[] {producer, i});
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        int received = 0;
+        long end = System.currentTimeMillis() + 10000;
+        while (received < producers * perProducer && System.currentTimeMillis() < end) {
+            int[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[element[0]]++, element[1]);
+            received++;
+        }
+        assertEquals(producers * perProducer, received);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package me.hammarstrom.paint.drawing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link QuadTree} against a linear scan. Query speed with a million strokes
+ * is measured by QuadTreeBenchmark in the benchmarks module.
+ */
+public class QuadTreeTest {
+
+    @Test
+    public void query_matchesLinearScan() {
+        Random random = new Random(1);
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        List<Box> boxes = boxes(random, 5000, tree);
+
+        for (int q = 0; q < 200; q++) {
+            Box area = randomBox(random, 0.2f);
+            List<Box> found = new ArrayList<>();
+            tree.query(area.left, area.top, area.right, area.bottom, found);
+
+            assertEquals(sorted(scan(boxes, area)), sorted(found));
+        }
+    }
+
+    @Test
+    public void put_movesAndRemoveForgets() {
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        Random random = new Random(2);
+        List<Box> boxes = boxes(random, 1000, tree);
+        Box moved = boxes.get(10);
+        Box removed = boxes.get(20);
+
+        tree.put(moved, 0.9f, 0.9f, 0.95f, 0.95f);
+        assertTrue(tree.remove(removed));
+        assertFalse(tree.remove(removed));
+
+        List<Box> found = new ArrayList<>();
+        tree.query(0.89f, 0.89f, 0.96f, 0.96f, found);
+        assertTrue(found.contains(moved));
+        found.clear();
+        tree.query(0, 0, 1, 1, found);
+        assertEquals(999, found.size());
+        assertFalse(found.contains(removed));
+        assertEquals(999, tree.size());
+    }
+
+    @Test
+    public void outsideWorld_isStillFound() {
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        Box outside = new Box(1.5f, -2f, 1.6f, -1.9f);
+        tree.put(outside, outside.left, outside.top, outside.right, outside.bottom);
+
+        List<Box> found = new ArrayList<>();
+        tree.query(1.55f, -1.95f, 1.56f, -1.94f, found);
+
+        assertEquals(Collections.singletonList(outside), found);
+        assertSame(outside, tree.nearest(2f, -2f, 10f, null));
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() {
+        Random random = new Random(3);
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        List<Box> boxes = boxes(random, 5000, tree);
+
+        for (int q = 0; q < 200; q++) {
+            float x = random.nextFloat();
+            float y = random.nextFloat();
+            Box nearest = tree.nearest(x, y, Float.MAX_VALUE, CENTER_DISTANCE);
+
+            assertEquals(CENTER_DISTANCE.distance(nearestByScan(boxes, x, y), x, y),
+                    CENTER_DISTANCE.distance(nearest, x, y), 0f);
+        }
+        assertNull(tree.nearest(5f, 5f, 1f, null));
+    }
+
+    @Test
+    public void depth_isBoundedForIdenticalBoxes() {
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(new Box(0.1f, 0.1f, 0.1f, 0.1f), 0.1f, 0.1f, 0.1f, 0.1f);
+        }
+        assertTrue(tree.depth() <= QuadTree.MAX_DEPTH);
+        assertEquals(1000, tree.query(0, 0, 0.2f, 0.2f, new ArrayList<Box>()));
+    }
+
+    @Test
+    public void query_visitsFewOfManyStrokes() {
+        Random random = new Random(4);
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        List<Box> boxes = boxes(random, 100000, tree);
+
+        // Dirty rects of a few strokes' size
+        long visited = 0;
+        long hits = 0;
+        List<Box> found = new ArrayList<>();
+        for (int q = 0; q < 200; q++) {
+            Box area = randomBox(random, 0.02f);
+            found.clear();
+            hits += tree.query(area.left, area.top, area.right, area.bottom, found);
+            visited += tree.visited();
+        }
+
+        assertTrue(hits > 0);
+        // A linear scan looks at every stroke, the long ones straddling splits are
+        // looked at by every query
+        assertTrue(visited < 200L * boxes.size() / 10);
+    }
+
+    @Test
+    public void nearest_visitsFewOfManyStrokes() {
+        Random random = new Random(5);
+        QuadTree<Box> tree = new QuadTree<>(0, 0, 1, 1);
+        List<Box> boxes = boxes(random, 100000, tree);
+
+        long visited = 0;
+        for (int q = 0; q < 200; q++) {
+            assertNotNull(tree.nearest(random.nextFloat(), random.nextFloat(), 1f, CENTER_DISTANCE));
+            visited += tree.visited();
+        }
+
+        assertTrue(visited < 200L * boxes.size() / 100);
+    }
+
+    private static final QuadTree.Distance<Box> CENTER_DISTANCE = new QuadTree.Distance<Box>() {
+        @Override
+        public float distance(Box box, float x, float y) {
+            // Distance to the box, and to its center inside, as if the stroke ran through it
+            float dx = (box.left + box.right) / 2f - x;
+            float dy = (box.top + box.bottom) / 2f - y;
+            float center = (float) Math.sqrt(dx * dx + dy * dy);
+            return Math.max(center, QuadTree.boxDistance(box.left, box.top, box.right, box.bottom, x, y));
+        }
+    };
+
+    /**
+     * Boxes the size of handwriting strokes on a normalized screen, with a few long ones.
+     */
+    private static List<Box> boxes(Random random, int count, QuadTree<Box> tree) {
+        List<Box> boxes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Box box = randomBox(random, random.nextInt(100) == 0 ? 0.5f : 0.02f);
+            boxes.add(box);
+            tree.put(box, box.left, box.top, box.right, box.bottom);
+        }
+        return boxes;
+    }
+
+    private static Box randomBox(Random random, float maxSize) {
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        return new Box(x, y, x + random.nextFloat() * maxSize, y + random.nextFloat() * maxSize);
+    }
+
+    private static List<Box> scan(List<Box> boxes, Box area) {
+        List<Box> found = new ArrayList<>();
+        for (Box box : boxes) {
+            if (box.left <= area.right && box.right >= area.left && box.top <= area.bottom
+                    && box.bottom >= area.top) {
+                found.add(box);
+            }
+        }
+        return found;
+    }
+
+    private static Box nearestByScan(List<Box> boxes, float x, float y) {
+        Box nearest = null;
+        float best = Float.MAX_VALUE;
+        for (Box box : boxes) {
+            float d = CENTER_DISTANCE.distance(box, x, y);
+            if (d < best) {
+                best = d;
+                nearest = box;
+            }
+        }
+        return nearest;
+    }
+
+    private static List<Integer> sorted(List<Box> boxes) {
+        IdentityHashMap<Box, Boolean> unique = new IdentityHashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        for (Box box : boxes) {
+            assertNull("Found twice", unique.put(box, Boolean.TRUE));
+            ids.add(System.identityHashCode(box));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static class Box {
+        final float left, top, right, bottom;
+
+        Box(float left, float top, float right, float bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package me.hammarstrom.paint.drawing;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link Stroke}, and how many bytes a point costs compared with the
+ * String coordinates it replaces.
+ */
+public class StrokeTest {
+
+    @Test
+    public void addPoint_keepsPointsAndBounds() {
+        Stroke stroke = new Stroke(7, 0xFFFFFF00, 3f);
+        assertTrue(stroke.isEmpty());
+
+        stroke.addPoint(0.5f, 0.5f);
+        stroke.addPoint(0.2f, 0.9f);
+        stroke.addPoint(0.7f, 0.1f);
+
+        assertEquals(3, stroke.getPointCount());
+        assertEquals(0.2f, stroke.getX(1), 0f);
+        assertEquals(0.1f, stroke.getY(2), 0f);
+        assertEquals(0.2f, stroke.getLeft(), 0f);
+        assertEquals(0.1f, stroke.getTop(), 0f);
+        assertEquals(0.7f, stroke.getRight(), 0f);
+        assertEquals(0.9f, stroke.getBottom(), 0f);
+        assertEquals(7, stroke.getId());
+        assertEquals(0xFFFFFF00, stroke.getColor());
+        assertEquals(3f, stroke.getWidth(), 0f);
+    }
+
+    @Test
+    public void addPoint_growsPastInitialCapacity() {
+        Stroke stroke = new Stroke(0, 0, 1f);
+        for (int i = 0; i < 1000; i++) {
+            stroke.addPoint(i, -i);
+        }
+        float[] out = new float[4];
+        stroke.getPoints(998, 2, out);
+
+        assertEquals(1000, stroke.getPointCount());
+        assertArrayEquals(new float[] {998, -998, 999, -999}, out, 0f);
+        assertEquals(-999f, stroke.getTop(), 0f);
+    }
+
+    @Test
+    public void rewind_resetsPointsAndBounds() {
+        Stroke stroke = new Stroke(0, 0, 1f);
+        stroke.addPoints(new float[] {0f, 0f, 1f, 1f}, 0, 2);
+        int generation = stroke.getGeneration();
+
+        stroke.rewind();
+        stroke.addPoint(0.5f, 0.6f);
+
+        assertNotEquals(generation, stroke.getGeneration());
+        assertEquals(1, stroke.getPointCount());
+        assertEquals(0.5f, stroke.getLeft(), 0f);
+        assertEquals(0.5f, stroke.getRight(), 0f);
+        assertEquals(0.6f, stroke.getBottom(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addPoints_rejectsBadRange() {
+        new Stroke(0, 0, 1f).addPoints(new float[4], 2, 2);
+    }
+
+    @Test
+    public void benchmark_bytesPerPoint() {
+        int points = 100000;
+        long stringBytes = allocated(new Runnable() {
+            @Override
+            public void run() {
+                // What a point used to cost: a String on send, a split and two Floats on receive
+                List<String> coords = new ArrayList<>();
+                float sum = 0;
+                for (int i = 0; i < 100000; i++) {
+                    coords.add(String.valueOf(i / 100000f) + "," + String.valueOf(1f - i / 100000f));
+                }
+                for (String coord : coords) {
+                    String[] xy = coord.split(",");
+                    sum += Float.valueOf(xy[0]) + Float.valueOf(xy[1]);
+                }
+                assertTrue(sum > 0);
+            }
+        });
+        long strokeBytes = allocated(new Runnable() {
+            @Override
+            public void run() {
+                Stroke stroke = new Stroke(0, 0, 1f);
+                float sum = 0;
+                for (int i = 0; i < 100000; i++) {
+                    stroke.addPoint(i / 100000f, 1f - i / 100000f);
+                }
+                for (int i = 0; i < stroke.getPointCount(); i++) {
+                    sum += stroke.getX(i) + stroke.getY(i);
+                }
+                assertTrue(sum > 0);
+            }
+        });
+        if (stringBytes < 0 || strokeBytes < 0) {
+            System.out.println("Allocation counters not available");
+            return;
+        }
+
+        System.out.println("Bytes per point: strings " + stringBytes / points
+                + ", stroke " + strokeBytes / points);
+        assertTrue(strokeBytes * 10 < stringBytes);
+    }
+
+    /**
+     * @return bytes allocated by the current thread while running, or -1 if unknown
+     */
+    private static long allocated(Runnable runnable) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            runnable.run();
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        runnable.run();
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+}
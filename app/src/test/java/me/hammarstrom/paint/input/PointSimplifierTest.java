@@ -0,0 +1,282 @@
+package me.hammarstrom.paint.input;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link PointSimplifier}, and a report of the points it keeps and how far
+ * the kept line strays from the input on synthetic touch traces, in pixels of a
+ * 1080x1920 screen sampled at 120 Hz.
+ */
+public class PointSimplifierTest {
+
+    private static final long SAMPLE_NANOS = 1000000000L / 120;
+    private static final float TOLERANCE = PointSimplifier.DEFAULT_TOLERANCE;
+
+    @Test
+    public void collinearPoints_areDropped() {
+        float[] trace = new float[PointSimplifier.MAX_WINDOW * 2];
+        for (int i = 0; i < PointSimplifier.MAX_WINDOW; i++) {
+            trace[i * 2] = 10f + i * 3f;
+            trace[i * 2 + 1] = 20f + i * 2f;
+        }
+
+        float[] kept = simplify(trace, TOLERANCE, Long.MAX_VALUE, false);
+
+        assertEquals(2, kept.length / 2);
+        assertEquals(10f, kept[0], 0f);
+        assertEquals(20f + (PointSimplifier.MAX_WINDOW - 1) * 2f, kept[3], 0f);
+    }
+
+    @Test
+    public void corner_isKept() {
+        float[] trace = new float[21 * 2];
+        for (int i = 0; i <= 10; i++) {
+            trace[i * 2] = i * 5f;
+            trace[i * 2 + 1] = 0f;
+            trace[(10 + i) * 2] = 50f;
+            trace[(10 + i) * 2 + 1] = i * 5f;
+        }
+
+        float[] kept = simplify(trace, TOLERANCE, Long.MAX_VALUE, false);
+
+        assertEquals(3, kept.length / 2);
+        assertEquals(50f, kept[2], 0f);
+        assertEquals(0f, kept[3], 0f);
+    }
+
+    @Test
+    public void subToleranceJitter_isDropped() {
+        Random random = new Random(3);
+        float[] trace = new float[200 * 2];
+        for (int i = 0; i < 200; i++) {
+            trace[i * 2] = 500f + (random.nextFloat() - 0.5f) * TOLERANCE;
+            trace[i * 2 + 1] = 800f + (random.nextFloat() - 0.5f) * TOLERANCE;
+        }
+
+        assertEquals(2, simplify(trace, TOLERANCE, Long.MAX_VALUE, false).length / 2);
+    }
+
+    @Test
+    public void heldPoints_areFlushedAfterHoldTime() {
+        // A slow straight drag, nothing bends so only the hold time lets points out
+        float[] trace = new float[120 * 2];
+        for (int i = 0; i < 120; i++) {
+            trace[i * 2] = 100f + i;
+            trace[i * 2 + 1] = 100f;
+        }
+        final long[] lastEmitted = {0};
+        final long[] now = {0};
+        final long[] longestGap = {0};
+        PointSimplifier simplifier = new PointSimplifier(TOLERANCE, PointSimplifier.DEFAULT_MAX_HOLD_NANOS,
+                new PointSimplifier.Sink() {
+                    @Override
+                    public void onPoint(float x, float y) {
+                        longestGap[0] = Math.max(longestGap[0], now[0] - lastEmitted[0]);
+                        lastEmitted[0] = now[0];
+                    }
+                });
+
+        simplifier.begin(trace[0], trace[1], 0);
+        for (int i = 1; i < 120; i++) {
+            now[0] = i * SAMPLE_NANOS;
+            simplifier.add(trace[i * 2], trace[i * 2 + 1], now[0]);
+            simplifier.flushIfDue(now[0]);
+        }
+
+        assertTrue(longestGap[0] <= PointSimplifier.DEFAULT_MAX_HOLD_NANOS + 2 * SAMPLE_NANOS);
+        assertTrue(simplifier.getKeptPoints() < 120 / 2);
+        assertTrue(simplifier.getFlushDelayNanos(now[0]) <= PointSimplifier.DEFAULT_MAX_HOLD_NANOS);
+    }
+
+    @Test
+    public void benchmark_compressionAndDeviation() {
+        String[] names = {"handwriting", "straight drag", "slow circle", "press and hold"};
+        float[][] traces = {handwriting(360, 5), drag(600, 6), circle(600, 7), hold(240, 8)};
+        for (int t = 0; t < traces.length; t++) {
+            float[] trace = traces[t];
+            for (float tolerance : new float[] {0.5f, 1f}) {
+                for (long hold : new long[] {16000000L, 32000000L, Long.MAX_VALUE}) {
+                    float[] kept = simplify(trace, tolerance, hold, true);
+                    float lineDeviation = maxDeviation(trace, kept);
+                    float curveDeviation = maxDeviation(trace, midpointCurve(kept));
+                    System.out.println(String.format("%s, tolerance %.1f px, hold %s: %d of %d points kept"
+                                    + " (%.1f%%), max deviation %.2f px as lines, %.2f px as curves",
+                            names[t], tolerance, hold == Long.MAX_VALUE ? "unbounded" : (hold / 1000000) + " ms",
+                            kept.length / 2, trace.length / 2, 100f * kept.length / trace.length,
+                            lineDeviation, curveDeviation));
+                    assertTrue(lineDeviation <= tolerance + 1e-3f);
+                    if (tolerance == PointSimplifier.DEFAULT_TOLERANCE
+                            && hold == PointSimplifier.DEFAULT_MAX_HOLD_NANOS) {
+                        assertTrue(kept.length < trace.length * 0.6f);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a trace through a simplifier, feeding one point per sample.
+     * @param flush true to call flushIfDue after every point, as the activity does
+     * @return the kept points, first and last included
+     */
+    private static float[] simplify(float[] trace, float tolerance, long maxHoldNanos, final boolean flush) {
+        final float[] kept = new float[trace.length];
+        final int[] count = {0};
+        PointSimplifier simplifier = new PointSimplifier(tolerance, maxHoldNanos,
+                new PointSimplifier.Sink() {
+                    @Override
+                    public void onPoint(float x, float y) {
+                        kept[count[0]++] = x;
+                        kept[count[0]++] = y;
+                    }
+                });
+        int points = trace.length / 2;
+        simplifier.begin(trace[0], trace[1], 0);
+        kept[count[0]++] = trace[0];
+        kept[count[0]++] = trace[1];
+        for (int i = 1; i < points - 1; i++) {
+            simplifier.add(trace[i * 2], trace[i * 2 + 1], i * SAMPLE_NANOS);
+            if (flush) {
+                simplifier.flushIfDue(i * SAMPLE_NANOS);
+            }
+        }
+        int last = points - 1;
+        simplifier.end(trace[last * 2], trace[last * 2 + 1], last * SAMPLE_NANOS);
+        kept[count[0]++] = trace[last * 2];
+        kept[count[0]++] = trace[last * 2 + 1];
+        assertEquals(points, simplifier.getInputPoints());
+        assertEquals(count[0] / 2, simplifier.getKeptPoints());
+        float[] result = new float[count[0]];
+        System.arraycopy(kept, 0, result, 0, count[0]);
+        return result;
+    }
+
+    /**
+     * @return the largest distance of a point of the trace from the polyline
+     */
+    private static float maxDeviation(float[] trace, float[] line) {
+        float max = 0f;
+        for (int i = 0; i < trace.length / 2; i++) {
+            float best = Float.MAX_VALUE;
+            for (int j = 0; j + 3 < line.length; j += 2) {
+                best = Math.min(best, PointSimplifier.segmentDistanceSquared(trace[i * 2], trace[i * 2 + 1],
+                        line[j], line[j + 1], line[j + 2], line[j + 3]));
+            }
+            if (line.length == 2) {
+                best = PointSimplifier.segmentDistanceSquared(trace[i * 2], trace[i * 2 + 1],
+                        line[0], line[1], line[0], line[1]);
+            }
+            max = Math.max(max, (float) Math.sqrt(best));
+        }
+        return max;
+    }
+
+    /**
+     * Sample the curve a smooth DrawingPath draws through the points: a line to the
+     * first midpoint, quadratic curves between midpoints with the points as control
+     * points, and a line from the last midpoint to the last point.
+     */
+    private static float[] midpointCurve(float[] points) {
+        int count = points.length / 2;
+        if (count < 3) {
+            return points;
+        }
+        int steps = 16;
+        float[] curve = new float[(2 + (count - 2) * steps + 1) * 2];
+        int n = 0;
+        curve[n++] = points[0];
+        curve[n++] = points[1];
+        for (int i = 1; i < count - 1; i++) {
+            float startX = (points[i * 2 - 2] + points[i * 2]) / 2f;
+            float startY = (points[i * 2 - 1] + points[i * 2 + 1]) / 2f;
+            float endX = (points[i * 2] + points[i * 2 + 2]) / 2f;
+            float endY = (points[i * 2 + 1] + points[i * 2 + 3]) / 2f;
+            for (int s = 0; s < steps; s++) {
+                float t = s / (float) steps;
+                float u = 1f - t;
+                curve[n++] = u * u * startX + 2 * u * t * points[i * 2] + t * t * endX;
+                curve[n++] = u * u * startY + 2 * u * t * points[i * 2 + 1] + t * t * endY;
+            }
+        }
+        curve[n++] = (points[count * 2 - 4] + points[count * 2 - 2]) / 2f;
+        curve[n++] = (points[count * 2 - 3] + points[count * 2 - 1]) / 2f;
+        curve[n++] = points[count * 2 - 2];
+        curve[n++] = points[count * 2 - 1];
+        float[] result = new float[n];
+        System.arraycopy(curve, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * A word in joined-up letters, loops of a few percent of the screen with hand tremor.
+     */
+    private static float[] handwriting(int points, long seed) {
+        Random random = new Random(seed);
+        float[] trace = new float[points * 2];
+        float letterRate = 4f + random.nextFloat() * 2f;
+        float letterWidth = 30f + random.nextFloat() * 20f;
+        float letterHeight = letterWidth * (1.5f + random.nextFloat());
+        float x = 60f;
+        float baseline = 300f + random.nextFloat() * 1000f;
+        float phase = 0f;
+        for (int i = 0; i < points; i++) {
+            float t = i / 120f;
+            phase += (float) (2 * Math.PI * letterRate / 120f) * (0.8f + random.nextFloat() * 0.4f);
+            float px = x + letterWidth * letterRate * t + letterWidth * 0.5f * (float) Math.cos(phase);
+            float py = baseline - letterHeight * 0.5f * (1f + (float) Math.sin(phase));
+            trace[i * 2] = px + (random.nextFloat() - 0.5f) * 0.6f;
+            trace[i * 2 + 1] = py + (random.nextFloat() - 0.5f) * 0.6f;
+        }
+        return trace;
+    }
+
+    /**
+     * A quick straight line across the screen, slightly curved by the wrist.
+     */
+    private static float[] drag(int points, long seed) {
+        Random random = new Random(seed);
+        float[] trace = new float[points * 2];
+        for (int i = 0; i < points; i++) {
+            float t = i / (float) points;
+            trace[i * 2] = 100f + 880f * t + (random.nextFloat() - 0.5f) * 0.6f;
+            trace[i * 2 + 1] = 400f + 1200f * t + 40f * (float) Math.sin(Math.PI * t)
+                    + (random.nextFloat() - 0.5f) * 0.6f;
+        }
+        return trace;
+    }
+
+    /**
+     * A small circle drawn slowly, one turn over the trace.
+     */
+    private static float[] circle(int points, long seed) {
+        Random random = new Random(seed);
+        float[] trace = new float[points * 2];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            trace[i * 2] = 540f + 150f * (float) Math.cos(angle) + (random.nextFloat() - 0.5f) * 0.6f;
+            trace[i * 2 + 1] = 960f + 150f * (float) Math.sin(angle) + (random.nextFloat() - 0.5f) * 0.6f;
+        }
+        return trace;
+    }
+
+    /**
+     * A finger resting on the screen, drifting by a pixel or two.
+     */
+    private static float[] hold(int points, long seed) {
+        Random random = new Random(seed);
+        float[] trace = new float[points * 2];
+        float x = 300f;
+        float y = 700f;
+        for (int i = 0; i < points; i++) {
+            x += (random.nextFloat() - 0.5f) * 0.1f;
+            y += (random.nextFloat() - 0.5f) * 0.1f;
+            trace[i * 2] = x + (random.nextFloat() - 0.5f) * 0.4f;
+            trace[i * 2 + 1] = y + (random.nextFloat() - 0.5f) * 0.4f;
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,92 @@
+package me.hammarstrom.paint.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link Histogram} precision against exact percentiles, and recording
+ * from several threads.
+ */
+public class HistogramTest {
+
+    @Test
+    public void buckets_coverValuesWithinPrecision() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int bucket = Histogram.bucketOf(value);
+            long highest = Histogram.highestValueOf(bucket);
+
+            assertTrue(bucket < Histogram.BUCKETS);
+            assertTrue(value <= highest);
+            assertTrue(bucket == 0 || Histogram.highestValueOf(bucket - 1) < value);
+            assertTrue((highest - value) <= value / Histogram.SUB_BUCKETS);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestValueOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentile_matchesExactWithinPrecision() {
+        Random random = new Random(2);
+        Histogram histogram = new Histogram();
+        long[] values = new long[50000];
+        for (int i = 0; i < values.length; i++) {
+            // Latencies around a millisecond with a long tail
+            values[i] = (long) (1000000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        for (double p : new double[] {1, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long estimate = snapshot.percentile(p);
+            assertTrue(p + ": " + estimate + " vs " + exact, estimate >= exact);
+            assertTrue(p + ": " + estimate + " vs " + exact, estimate - exact <= exact / Histogram.SUB_BUCKETS);
+        }
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+    }
+
+    @Test
+    public void record_fromSeveralThreads() throws Exception {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long value = t * 1000;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(value);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(100000L * (1000 + 2000 + 3000), snapshot.getSum());
+        assertEquals(3000, snapshot.getMax());
+        assertEquals(0, snapshot.percentile(25));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+
+        histogram.record(-5);
+
+        assertEquals(0, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+}
@@ -0,0 +1,299 @@
+package me.hammarstrom.paint.storage;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import me.hammarstrom.paint.drawing.Stroke;
+import me.hammarstrom.paint.metrics.MetricNames;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StrokeJournal} and {@link JournalReader}, and a report of how fast
+ * strokes are appended and how long a cold start takes to replay a large board.
+ */
+public class StrokeJournalTest {
+
+    private static final long MS = 1000000L;
+
+    /** Longest a cold start may take to replay 100k strokes **/
+    private static final long REPLAY_BUDGET_NANOS = 2000 * MS;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StrokeJournal> journals = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (StrokeJournal journal : journals) {
+            journal.stop();
+        }
+    }
+
+    @Test
+    public void appendedStrokes_areReplayed() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            appendNew(journal, board, i, random);
+        }
+        assertTrue(journal.awaitSynced(5000));
+        journal.stop();
+
+        ReplicatedBoard replayed = new ReplicatedBoard();
+        StrokeJournal restarted = new StrokeJournal(directory, replayed, StrokeJournal.DEFAULT_COMPACT_BYTES,
+                new MetricsRegistry());
+        journals.add(restarted);
+        assertEquals(100, restarted.open());
+        assertBoardsEqual(board, replayed);
+    }
+
+    @Test
+    public void deletes_areReplayedAndCompacted() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        Random random = new Random(7);
+        for (int i = 0; i < 20; i++) {
+            appendNew(journal, board, i, random);
+        }
+        for (int i = 0; i < 20; i += 4) {
+            journal.appendDelete(i, board.deleteStroke(i).getTimestamp());
+        }
+        // A delete of a stroke the board never had stays a tombstone
+        journal.appendDelete(100, board.deleteStroke(100).getTimestamp());
+        // The first deletes end up in the snapshot, the rest in the log
+        assertTrue(journal.awaitSynced(5000));
+        journal.compact();
+        long end = System.currentTimeMillis() + 5000;
+        while (journal.getCompactions() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        for (int i = 2; i < 20; i += 4) {
+            journal.appendDelete(i, board.deleteStroke(i).getTimestamp());
+        }
+        assertTrue(journal.awaitSynced(5000));
+        journal.stop();
+        assertEquals(1, journal.getCompactions());
+
+        ReplicatedBoard replayed = new ReplicatedBoard();
+        open(directory, replayed, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        assertEquals(10, replayed.size());
+        assertBoardsEqual(board, replayed);
+        for (int i = 0; i < 20; i += 2) {
+            assertTrue(replayed.isDeleted(i));
+        }
+        assertTrue(replayed.isDeleted(100));
+        // A stroke arriving after its delete stays deleted
+        assertFalse(replayed.add(stroke(4, random)));
+    }
+
+    @Test
+    public void tornRecord_isCutOff() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        Random random = new Random(2);
+        for (int i = 0; i < 10; i++) {
+            appendNew(journal, board, i, random);
+        }
+        journal.stop();
+
+        // A crash halfway through the last record, then a stroke appended after restart
+        File log = new File(directory, StrokeJournal.LOG_FILE);
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(file.length() - 20);
+        file.close();
+        ReplicatedBoard restarted = new ReplicatedBoard();
+        journal = open(directory, restarted, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        assertEquals(9, restarted.size());
+        appendNew(journal, restarted, 100, random);
+        journal.stop();
+
+        ReplicatedBoard replayed = new ReplicatedBoard();
+        JournalReader reader = new JournalReader();
+        reader.replay(log, replayed);
+        assertFalse(reader.isTruncated());
+        assertBoardsEqual(restarted, replayed);
+    }
+
+    @Test
+    public void corruptRecord_stopsReplay() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        Random random = new Random(3);
+        for (int i = 0; i < 10; i++) {
+            appendNew(journal, board, i, random);
+        }
+        journal.stop();
+
+        File log = new File(directory, StrokeJournal.LOG_FILE);
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        long middle = file.length() / 2;
+        file.seek(middle);
+        int value = file.read();
+        file.seek(middle);
+        file.write(value ^ 0xFF);
+        file.close();
+
+        ReplicatedBoard replayed = new ReplicatedBoard();
+        JournalReader reader = new JournalReader();
+        reader.replay(log, replayed);
+        assertTrue(reader.isTruncated());
+        assertTrue(replayed.size() > 0 && replayed.size() < 10);
+        for (Stroke stroke : replayed.getStrokes()) {
+            assertNotNull(board.get(stroke.getId()));
+        }
+    }
+
+    @Test
+    public void compaction_keepsEveryStrokeAndEmptiesLog() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, 64 * 1024);
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            appendNew(journal, board, i, random);
+        }
+        assertTrue(journal.awaitSynced(10000));
+        journal.stop();
+
+        assertTrue(journal.getCompactions() > 0);
+        assertTrue(new File(directory, StrokeJournal.LOG_FILE).length() < 64 * 1024 + 4096);
+        assertFalse(new File(directory, StrokeJournal.SNAPSHOT_FILE + ".tmp").exists());
+        ReplicatedBoard replayed = new ReplicatedBoard();
+        open(directory, replayed, 64 * 1024);
+        assertBoardsEqual(board, replayed);
+    }
+
+    @Test
+    public void benchmark_appendThroughput() throws Exception {
+        Random random = new Random(5);
+        List<Stroke> strokes = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            strokes.add(stroke(i, random));
+        }
+        for (int burst : new int[] {1, 16, 20000}) {
+            File directory = folder.newFolder();
+            ReplicatedBoard board = new ReplicatedBoard();
+            MetricsRegistry metrics = new MetricsRegistry();
+            StrokeJournal journal = new StrokeJournal(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES,
+                    metrics);
+            journals.add(journal);
+            journal.open();
+            journal.start();
+            int count = burst == 1 ? 500 : strokes.size();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                board.add(strokes.get(i));
+                journal.append(strokes.get(i));
+                if ((i + 1) % burst == 0) {
+                    assertTrue(journal.awaitSynced(10000));
+                }
+            }
+            assertTrue(journal.awaitSynced(30000));
+            long elapsed = System.nanoTime() - start;
+            journal.stop();
+            System.out.println(String.format("Journal, bursts of %d: %d strokes in %d ms (%.0f strokes/s),"
+                            + " %d syncs, %d compactions",
+                    burst, count, elapsed / MS, count * 1e9 / elapsed,
+                    metrics.snapshot().getHistogram(MetricNames.JOURNAL_SYNC_NANOS).getCount(),
+                    journal.getCompactions()));
+            assertEquals(0, journal.getWriteErrors());
+        }
+    }
+
+    @Test
+    public void benchmark_coldStartReplay_100kStrokes() throws Exception {
+        File directory = folder.newFolder();
+        ReplicatedBoard board = new ReplicatedBoard();
+        StrokeJournal journal = open(directory, board, StrokeJournal.DEFAULT_COMPACT_BYTES);
+        Random random = new Random(6);
+        for (int i = 0; i < 100000; i++) {
+            appendNew(journal, board, i, random);
+        }
+        assertTrue(journal.awaitSynced(60000));
+        journal.stop();
+        long bytes = new File(directory, StrokeJournal.LOG_FILE).length()
+                + new File(directory, StrokeJournal.SNAPSHOT_FILE).length();
+
+        long best = Long.MAX_VALUE;
+        ReplicatedBoard replayed = null;
+        for (int run = 0; run < 3; run++) {
+            replayed = new ReplicatedBoard();
+            StrokeJournal restarted = new StrokeJournal(directory, replayed, StrokeJournal.DEFAULT_COMPACT_BYTES,
+                    new MetricsRegistry());
+            long start = System.nanoTime();
+            restarted.open();
+            best = Math.min(best, System.nanoTime() - start);
+            restarted.start();
+            restarted.stop();
+        }
+        System.out.println(String.format("Cold start replay of %d strokes, %d kB: %d ms, budget %d ms",
+                replayed.size(), bytes / 1024, best / MS, REPLAY_BUDGET_NANOS / MS));
+        assertBoardsEqual(board, replayed);
+        assertTrue(best < REPLAY_BUDGET_NANOS);
+    }
+
+    private StrokeJournal open(File directory, ReplicatedBoard board, long compactBytes) throws IOException {
+        StrokeJournal journal = new StrokeJournal(directory, board, compactBytes, new MetricsRegistry());
+        journals.add(journal);
+        journal.open();
+        journal.start();
+        return journal;
+    }
+
+    private static void appendNew(StrokeJournal journal, ReplicatedBoard board, int id, Random random) {
+        Stroke stroke = stroke(id, random);
+        stroke.setTimestamp(board.nextTimestamp());
+        assertTrue(board.add(stroke));
+        journal.append(stroke);
+    }
+
+    private static void assertBoardsEqual(ReplicatedBoard expected, ReplicatedBoard actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Stroke stroke : expected.getStrokes()) {
+            Stroke replayed = actual.get(stroke.getId());
+            assertNotNull("Missing stroke " + stroke.getId(), replayed);
+            assertEquals(stroke.getTimestamp(), replayed.getTimestamp());
+            assertEquals(stroke.getColor(), replayed.getColor());
+            assertEquals(stroke.getWidth(), replayed.getWidth(), 0f);
+            assertEquals(stroke.getPointCount(), replayed.getPointCount());
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                assertEquals(stroke.getX(i), replayed.getX(i), 0f);
+                assertEquals(stroke.getY(i), replayed.getY(i), 0f);
+            }
+        }
+    }
+
+    /**
+     * A handwriting-like stroke of 8 to 64 points.
+     */
+    private static Stroke stroke(int id, Random random) {
+        Stroke stroke = new Stroke(id, 0xFF000000 | random.nextInt(0xFFFFFF), 1f + random.nextInt(8));
+        int points = 8 + random.nextInt(57);
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        for (int p = 0; p < points; p++) {
+            stroke.addPoint(x, y);
+            x = Math.max(0f, Math.min(1f, x + (random.nextFloat() - 0.5f) * 0.01f));
+            y = Math.max(0f, Math.min(1f, y + (random.nextFloat() - 0.5f) * 0.01f));
+        }
+        return stroke;
+    }
+}
@@ -0,0 +1,518 @@
+package me.hammarstrom.paint.sync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.ChunkPool;
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.SessionHub;
+import me.hammarstrom.paint.connections.SimulatedLink;
+import me.hammarstrom.paint.connections.SimulatedNetwork;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.Transport;
+import me.hammarstrom.paint.drawing.Stroke;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link VersionVector} and {@link AntiEntropy}: boards of 100k strokes
+ * that drifted apart while a link was down, and how many bytes it takes to bring
+ * them together again on a {@link SimulatedNetwork}.
+ */
+public class AntiEntropyTest {
+
+    private static final long MS = 1000000L;
+
+    private static final long LINK_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    /** Peers that drew the common board, and their strokes each **/
+    private static final int BOARD_PEERS = 4;
+    private static final int STROKES_PER_PEER = 25000;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(22);
+    private final StrokeCodec codec = new StrokeCodec();
+    private final List<Peer> peers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Peer peer : peers) {
+            peer.antiEntropy.stop();
+            peer.hub.removeAllPeers();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void versionVector_roundTrip() throws Exception {
+        Random random = new Random(1);
+        List<Stroke> all = new ArrayList<>();
+        List<Stroke> strokes = new ArrayList<>();
+        List<Integer> absent = new ArrayList<>();
+        for (int peer : new int[] {3, 70, 65535}) {
+            for (int counter = 1; counter <= 500; counter++) {
+                Stroke stroke = new Stroke(StrokeIds.make(peer, counter), 0, 1f);
+                all.add(stroke);
+                if (random.nextInt(10) == 0) {
+                    absent.add(stroke.getId());
+                } else {
+                    strokes.add(stroke);
+                }
+            }
+        }
+        VersionVector vector = VersionVector.of(strokes);
+        ByteBuffer buffer = ByteBuffer.allocate(vector.getEncodedSize());
+        assertEquals(vector.getEncodedSize(), vector.write(buffer, Integer.MAX_VALUE));
+        buffer.flip();
+        VersionVector read = VersionVector.read(buffer);
+
+        assertEquals(3, read.getPeerCount());
+        for (Stroke stroke : strokes) {
+            assertTrue(read.contains(stroke.getId()));
+        }
+        for (int id : absent) {
+            assertFalse(read.contains(id));
+        }
+        assertFalse(read.contains(StrokeIds.make(3, 501)));
+        assertFalse(read.contains(StrokeIds.make(4, 1)));
+        assertEquals(absent.size(), read.missing(all).size());
+    }
+
+    @Test
+    public void versionVector_overLimit_onlyClaimsLess() throws Exception {
+        List<Stroke> strokes = new ArrayList<>();
+        for (int peer = 1; peer <= 4; peer++) {
+            for (int counter = 1; counter <= 4000; counter++) {
+                // Every third stroke of every peer missing, far too many ranges
+                if (counter % 3 != 0) {
+                    strokes.add(new Stroke(StrokeIds.make(peer, counter), 0, 1f));
+                }
+            }
+        }
+        VersionVector vector = VersionVector.of(strokes);
+        int limit = StrokeCodec.MAX_MESSAGE_SIZE - AntiEntropy.SUMMARY_HEADER_SIZE;
+        assertTrue(vector.getEncodedSize() > limit);
+        ByteBuffer buffer = ByteBuffer.allocate(limit);
+        int written = vector.write(buffer, limit);
+        assertTrue(written <= limit);
+        buffer.flip();
+        VersionVector read = VersionVector.read(buffer);
+
+        List<Stroke> all = allStrokes(1, 2, 3, 4);
+        List<Stroke> claimed = new ArrayList<>();
+        for (Stroke stroke : all) {
+            if (read.contains(stroke.getId())) {
+                assertTrue(vector.contains(stroke.getId()));
+                claimed.add(stroke);
+            }
+        }
+        // The ranges that fit are kept, only the later strokes of each peer go unclaimed
+        assertTrue(claimed.size() > 2000);
+    }
+
+    @Test
+    public void versionVector_tooManyPeers_leavesOutFewestStrokes() throws Exception {
+        List<Stroke> strokes = new ArrayList<>();
+        for (int peer = 1; peer <= 1000; peer++) {
+            // Peer n drew n strokes, and peer 1 has a range beyond a gap
+            for (int counter = 1; counter <= peer; counter++) {
+                strokes.add(new Stroke(StrokeIds.make(peer, counter), 0, 1f));
+            }
+        }
+        strokes.add(new Stroke(StrokeIds.make(1, 3), 0, 1f));
+        VersionVector vector = VersionVector.of(strokes);
+        int limit = StrokeCodec.MAX_MESSAGE_SIZE - AntiEntropy.SUMMARY_HEADER_SIZE;
+        assertTrue(vector.getEncodedSize() > limit);
+        ByteBuffer buffer = ByteBuffer.allocate(limit);
+        int written = vector.write(buffer, limit);
+        assertEquals(buffer.position(), written);
+        buffer.flip();
+        VersionVector read = VersionVector.read(buffer);
+
+        assertEquals((limit - 2) / 6, read.getPeerCount());
+        int firstKept = 1000 - read.getPeerCount() + 1;
+        for (Stroke stroke : strokes) {
+            // Only claims less, and keeps the peers with the most strokes
+            assertEquals(StrokeIds.peer(stroke.getId()) >= firstKept, read.contains(stroke.getId()));
+        }
+    }
+
+    @Test(expected = java.io.StreamCorruptedException.class)
+    public void versionVector_truncated_throws() throws Exception {
+        List<Stroke> strokes = new ArrayList<>();
+        strokes.add(new Stroke(StrokeIds.make(1, 1), 0, 1f));
+        strokes.add(new Stroke(StrokeIds.make(1, 5), 0, 1f));
+        VersionVector vector = VersionVector.of(strokes);
+        ByteBuffer buffer = ByteBuffer.allocate(vector.getEncodedSize());
+        vector.write(buffer, Integer.MAX_VALUE);
+        VersionVector.read(ByteBuffer.wrap(buffer.array(), 0, buffer.capacity() - 1));
+    }
+
+    @Test
+    public void benchmark_resync_100kStrokes_drawnWhileDown() throws Exception {
+        Random random = new Random(2);
+        List<Stroke> common = commonBoard(random);
+        long full = fullSnapshotBytes(common);
+        for (int diverged : new int[] {10, 100, 1000}) {
+            ReplicatedBoard hubBoard = board(common);
+            ReplicatedBoard peerBoard = board(common);
+            // The peer drew on while the link was down, and a third peer kept drawing via the hub
+            draw(peerBoard, 1, STROKES_PER_PEER + 1, diverged, random);
+            draw(hubBoard, 3, STROKES_PER_PEER + 1, diverged, random);
+            assertResync("drawn while down", diverged, hubBoard, peerBoard, full);
+        }
+    }
+
+    @Test
+    public void benchmark_resync_100kStrokes_scatteredLosses() throws Exception {
+        Random random = new Random(3);
+        List<Stroke> common = commonBoard(random);
+        long full = fullSnapshotBytes(common);
+        for (int lost : new int[] {10, 100}) {
+            ReplicatedBoard hubBoard = board(common);
+            ReplicatedBoard peerBoard = new ReplicatedBoard();
+            // Strokes the peer never got, spread over the whole board
+            List<Stroke> kept = new ArrayList<>(common);
+            for (int i = 0; i < lost; i++) {
+                kept.remove(random.nextInt(kept.size()));
+            }
+            for (Stroke stroke : kept) {
+                peerBoard.add(stroke);
+            }
+            assertResync("lost", lost, hubBoard, peerBoard, full);
+        }
+    }
+
+    @Test
+    public void reconnect_strokesDrawnWhileDown_reachEveryPeer() throws Exception {
+        Random random = new Random(4);
+        Peer hub = new Peer("hub", new ReplicatedBoard(), true);
+        Peer a = new Peer("a", new ReplicatedBoard(), false);
+        Peer b = new Peer("b", new ReplicatedBoard(), false);
+        draw(hub.board, 5, 1, 200, random);
+        network.connect("hub", "a", link());
+        network.connect("hub", "b", link());
+        awaitEqual(hub, a);
+        awaitEqual(hub, b);
+
+        network.disconnect("hub", "a");
+        while (hub.hub.getPeerCount() > 1) {
+            Thread.sleep(1);
+        }
+        draw(a.board, 1, 1, 20, random);
+        // Drawn on the hub and on b, live to whoever is connected
+        for (Stroke stroke : draw(hub.board, 5, 201, 5, random)) {
+            b.board.add(stroke);
+            sendLive(hub.hub, stroke);
+        }
+        for (Stroke stroke : draw(b.board, 2, 1, 5, random)) {
+            hub.board.add(stroke);
+        }
+        network.connect("hub", "a", link());
+
+        awaitEqual(hub, a);
+        awaitEqual(hub, b);
+        assertEquals(230, b.board.size());
+        assertEquals(220, b.strokesReceived());
+        assertEquals(10, a.strokesReceived() - 200);
+        assertTrue(hub.antiEntropy.getSentSummaries() >= 4);
+    }
+
+    @Test
+    public void reconnect_strokesDeletedWhileDown_areDeletedEverywhere() throws Exception {
+        Random random = new Random(7);
+        Peer hub = new Peer("hub", new ReplicatedBoard(), true);
+        Peer a = new Peer("a", new ReplicatedBoard(), false);
+        List<Stroke> strokes = draw(hub.board, 5, 1, 50, random);
+        network.connect("hub", "a", link());
+        awaitEqual(hub, a);
+
+        network.disconnect("hub", "a");
+        while (hub.hub.getPeerCount() > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 5; i++) {
+            a.board.deleteStroke(strokes.get(i).getId());
+        }
+        // One deleted on both sides
+        for (int i = 4; i < 7; i++) {
+            hub.board.deleteStroke(strokes.get(i).getId());
+        }
+        network.connect("hub", "a", link());
+
+        awaitEqual(hub, a);
+        assertEquals(43, a.board.size());
+        for (int i = 0; i < 7; i++) {
+            assertTrue(hub.board.isDeleted(strokes.get(i).getId()));
+            assertTrue(a.board.isDeleted(strokes.get(i).getId()));
+        }
+        assertEquals(4, hub.deletesReceived());
+        assertEquals(2, a.deletesReceived());
+        assertEquals(0, hub.strokesReceived() + a.strokesReceived() - 50);
+    }
+
+    @Test
+    public void receivedStrokes_handledOnWorker() throws Exception {
+        Peer hub = new Peer("hub", new ReplicatedBoard(), true);
+        Peer a = new Peer("a", new ReplicatedBoard(), false);
+        draw(hub.board, 5, 1, 50, new Random(5));
+        network.connect("hub", "a", link());
+        awaitEqual(hub, a);
+
+        // Not on the thread the network delivers on
+        assertEquals(Collections.singleton("AntiEntropy"), a.receivingThreads());
+        assertEquals(0, a.antiEntropy.getQueueSize());
+    }
+
+    @Test
+    public void reconnect_boardOfManyPeers_summaryFits() throws Exception {
+        Random random = new Random(6);
+        Peer hub = new Peer("hub", new ReplicatedBoard(), true);
+        Peer a = new Peer("a", new ReplicatedBoard(), false);
+        for (int peer = 1; peer <= 1000; peer++) {
+            for (Stroke stroke : draw(hub.board, peer, 1, 1, random)) {
+                a.board.add(stroke);
+            }
+        }
+        draw(hub.board, 1, 2, 5, random);
+        network.connect("hub", "a", link());
+
+        awaitEqual(hub, a);
+        // Some peers were left out of the summaries, their strokes were sent again
+        assertTrue(a.strokesReceived() >= 5);
+        assertTrue(hub.antiEntropy.getSentSummaries() >= 1);
+    }
+
+    private void assertResync(String what, int diverged, ReplicatedBoard hubBoard, ReplicatedBoard peerBoard, long full)
+            throws Exception {
+        String suffix = "-" + what.hashCode() + "-" + diverged;
+        Peer hub = new Peer("hub" + suffix, hubBoard, true);
+        Peer peer = new Peer("peer" + suffix, peerBoard, false);
+        SimulatedLink link = link();
+        long start = System.nanoTime();
+        network.connect(hub.id, peer.id, link);
+        awaitEqual(hub, peer);
+        long elapsed = System.nanoTime() - start;
+        // Let the last pongs and chunks land before counting
+        Thread.sleep(50);
+
+        long summaryBytes = hub.antiEntropy.getSummaryBytes() + peer.antiEntropy.getSummaryBytes();
+        long missing = hub.antiEntropy.getMissingStrokes() + peer.antiEntropy.getMissingStrokes();
+        System.out.println(String.format("Resync of %d strokes with %d %s: %d missing strokes, %d ms,"
+                        + " %d bytes (%d of summaries, %.2f%% of a full snapshot of %d bytes)",
+                hubBoard.size(), diverged, what, missing, elapsed / MS, link.getBytes(), summaryBytes,
+                100.0 * link.getBytes() / full, full));
+        assertTrue(link.getBytes() < full / 20);
+        assertTrue(summaryBytes < StrokeCodec.MAX_MESSAGE_SIZE * 2);
+        assertTrue(missing < diverged * 3);
+        assertEquals(0, hub.antiEntropy.getReceiver().getDroppedSnapshots());
+        assertEquals(0, peer.antiEntropy.getReceiver().getDroppedSnapshots());
+        peers.remove(hub);
+        peers.remove(peer);
+        hub.antiEntropy.stop();
+        peer.antiEntropy.stop();
+        hub.hub.removeAllPeers();
+        peer.hub.removeAllPeers();
+    }
+
+    private void awaitEqual(Peer a, Peer b) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30000;
+        while (!sameStrokes(a.board, b.board) && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(a.id + " and " + b.id + " differ: " + a.board.size() + " and " + b.board.size()
+                + " strokes", sameStrokes(a.board, b.board));
+    }
+
+    private static boolean sameStrokes(ReplicatedBoard a, ReplicatedBoard b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Stroke stroke : a.getStrokes()) {
+            Stroke other = b.get(stroke.getId());
+            if (other == null || other.getPointCount() != stroke.getPointCount()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes a snapshot of the whole board takes, what a resync without summaries sends.
+     */
+    private long fullSnapshotBytes(List<Stroke> strokes) throws InterruptedException {
+        final long[] bytes = new long[1];
+        Transport counter = new Transport() {
+            @Override
+            public void sendReliable(String endpointId, byte[] payload) {
+                bytes[0] += payload.length;
+            }
+
+            @Override
+            public void sendUnreliable(String endpointId, byte[] payload) {
+            }
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+
+            @Override
+            public void disconnect(String endpointId) {
+            }
+        };
+        SnapshotSender sender = new SnapshotSender(counter, "peer", codec, strokes,
+                Collections.<BoardOp>emptyList(), 1);
+        sender.start();
+        long end = System.currentTimeMillis() + 30000;
+        while (!sender.isDone() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        sender.stop();
+        assertTrue(sender.isDone());
+        return bytes[0];
+    }
+
+    private static List<Stroke> commonBoard(Random random) {
+        ReplicatedBoard board = new ReplicatedBoard();
+        for (int peer = 1; peer <= BOARD_PEERS; peer++) {
+            draw(board, peer, 1, STROKES_PER_PEER, random);
+        }
+        return board.getStrokes();
+    }
+
+    private static ReplicatedBoard board(List<Stroke> strokes) {
+        ReplicatedBoard board = new ReplicatedBoard();
+        for (Stroke stroke : strokes) {
+            board.add(stroke);
+        }
+        return board;
+    }
+
+    /**
+     * Add strokes of a peer with counters from the given one on.
+     * @return the strokes added
+     */
+    private static List<Stroke> draw(ReplicatedBoard board, int peer, int firstCounter, int count, Random random) {
+        List<Stroke> strokes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Stroke stroke = SnapshotTest.stroke(StrokeIds.make(peer, firstCounter + i), random);
+            board.add(stroke);
+            strokes.add(stroke);
+        }
+        return strokes;
+    }
+
+    private static List<Stroke> allStrokes(int... peers) {
+        List<Stroke> strokes = new ArrayList<>();
+        for (int peer : peers) {
+            for (int counter = 1; counter <= 4000; counter++) {
+                strokes.add(new Stroke(StrokeIds.make(peer, counter), 0, 1f));
+            }
+        }
+        return strokes;
+    }
+
+    private void sendLive(SessionHub hub, Stroke stroke) throws IOException {
+        PathMessage message = new PathMessage(stroke.getId(), stroke.getColor(), stroke.getWidth());
+        for (int i = 0; i < stroke.getPointCount(); i++) {
+            message.addCoords(stroke.getX(i), stroke.getY(i));
+        }
+        message.setFlags(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST);
+        hub.broadcast(codec.toChunk(codec.encode(message), new ChunkPool(1, StrokeCodec.MAX_MESSAGE_SIZE)));
+    }
+
+    private static SimulatedLink link() {
+        return new SimulatedLink.Builder()
+                .setBandwidth(LINK_BYTES_PER_SECOND)
+                .setLatency(5, TimeUnit.MILLISECONDS)
+                .setJitter(2, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * A device in the session: live strokes are added to its board as they arrive,
+     * everything else goes to its anti-entropy.
+     */
+    private class Peer implements Transport.Listener, AntiEntropy.Listener {
+        final String id;
+        final ReplicatedBoard board;
+        final SessionHub hub;
+        final AntiEntropy antiEntropy;
+        private int mStrokesReceived;
+        private int mDeletesReceived;
+        private final Set<String> mReceivingThreads = new HashSet<>();
+
+        Peer(String id, ReplicatedBoard board, boolean relay) {
+            this.id = id;
+            this.board = board;
+            Transport transport = network.createEndpoint(id);
+            hub = new SessionHub(transport, this, codec, new ChunkPool(16, StrokeCodec.MAX_MESSAGE_SIZE), 64);
+            hub.setRelay(relay);
+            antiEntropy = new AntiEntropy(transport, codec, board, hub, this);
+            antiEntropy.start();
+            peers.add(this);
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            if (antiEntropy.onMessageReceived(endpointId, payload)
+                    || StrokeCodec.getType(payload) != StrokeCodec.TYPE_STROKE) {
+                return;
+            }
+            try {
+                PathMessage message = codec.decode(payload);
+                if (message.isDelete()) {
+                    board.apply(BoardOp.delete(message.getStrokeId(), message.getTimestamp()));
+                    return;
+                }
+                Stroke stroke = new Stroke(message.getStrokeId(), message.getColor(), message.getWidth());
+                stroke.addPoints(message.getCoords(), 0, message.getPointCount());
+                board.add(stroke);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public synchronized void onStrokeReceived(String endpointId, Stroke stroke) {
+            mStrokesReceived++;
+            mReceivingThreads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public synchronized void onStrokeDeleted(String endpointId, BoardOp delete) {
+            mDeletesReceived++;
+        }
+
+        @Override
+        public void onEndpointConnected(String endpointId) {
+            antiEntropy.onEndpointConnected(endpointId);
+        }
+
+        @Override
+        public void onEndpointDisconnected(String endpointId) {
+            antiEntropy.onEndpointDisconnected(endpointId);
+        }
+
+        synchronized int strokesReceived() {
+            return mStrokesReceived;
+        }
+
+        synchronized int deletesReceived() {
+            return mDeletesReceived;
+        }
+
+        synchronized Set<String> receivingThreads() {
+            return new HashSet<>(mReceivingThreads);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package me.hammarstrom.paint.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import me.hammarstrom.paint.drawing.Stroke;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ReplicatedBoard}: single operations in awkward orders, and peers
+ * drawing, appending and deleting at once with every operation delivered late, out
+ * of order and more than once.
+ */
+public class ReplicatedBoardTest {
+
+    @Test
+    public void appendsBeforeAdd_areApplied() {
+        ReplicatedBoard board = new ReplicatedBoard(new StrokeIdGenerator(new Random(1)));
+        int id = StrokeIds.make(7, 1);
+
+        assertFalse(board.apply(BoardOp.append(id, 3, 2, new float[] {0.3f, 0.3f})));
+        assertFalse(board.apply(BoardOp.append(id, 2, 0, new float[] {0.1f, 0.1f, 0.2f, 0.2f})));
+        assertNull(board.get(id));
+        assertTrue(board.apply(BoardOp.add(id, 1, 0xFFFF0000, 3f)));
+
+        Stroke stroke = board.get(id);
+        assertEquals(3, stroke.getPointCount());
+        assertEquals(0.3f, stroke.getX(2), 0f);
+        assertTrue(board.getTime() >= 3);
+    }
+
+    @Test
+    public void repeatedOps_changeNothing() {
+        ReplicatedBoard board = new ReplicatedBoard(new StrokeIdGenerator(new Random(2)));
+        BoardOp add = board.addStroke(0xFF00FF00, 2f);
+        BoardOp append = board.appendPoints(add.getStrokeId(), new float[] {0.1f, 0.2f, 0.3f, 0.4f}, 0, 2);
+
+        assertFalse(board.apply(add));
+        assertFalse(board.apply(append));
+        assertEquals(1, board.size());
+        assertEquals(2, board.get(add.getStrokeId()).getPointCount());
+    }
+
+    @Test
+    public void delete_winsOverLaterAddAndAppend() {
+        ReplicatedBoard board = new ReplicatedBoard(new StrokeIdGenerator(new Random(3)));
+        int id = StrokeIds.make(9, 4);
+
+        assertTrue(board.apply(BoardOp.delete(id, 5)));
+        assertFalse(board.apply(BoardOp.add(id, 1, 0, 1f)));
+        assertFalse(board.apply(BoardOp.append(id, 2, 0, new float[] {0.5f, 0.5f})));
+
+        assertEquals(0, board.size());
+        assertNull(board.get(id));
+        assertTrue(board.isDeleted(id));
+    }
+
+    @Test
+    public void order_followsAddTimestamps() {
+        ReplicatedBoard a = new ReplicatedBoard(new StrokeIdGenerator(new Random(4)));
+        ReplicatedBoard b = new ReplicatedBoard(new StrokeIdGenerator(new Random(5)));
+        BoardOp first = a.addStroke(0, 1f);
+        b.apply(first);
+        // Drawn after seeing the first, so on top of it everywhere
+        BoardOp second = b.addStroke(0, 1f);
+        a.apply(second);
+
+        assertTrue(second.getTimestamp() > first.getTimestamp());
+        for (ReplicatedBoard board : new ReplicatedBoard[] {a, b}) {
+            assertEquals(first.getStrokeId(), board.getStrokes().get(0).getId());
+            assertEquals(second.getStrokeId(), board.getStrokes().get(1).getId());
+        }
+    }
+
+    @Test
+    public void randomOps_5peers_converge() {
+        assertConverge(5, 5000, 11);
+    }
+
+    @Test
+    public void randomOps_16peers_converge() {
+        assertConverge(16, 20000, 12);
+    }
+
+    @Test
+    public void wholeStrokes_orderedByTimestamp_andDeletesKept() {
+        ReplicatedBoard board = new ReplicatedBoard();
+        Stroke later = new Stroke(StrokeIds.make(1, 1), 0, 1f);
+        later.setTimestamp(9);
+        Stroke earlier = new Stroke(StrokeIds.make(2, 1), 0, 1f);
+        earlier.setTimestamp(4);
+
+        assertTrue(board.add(later));
+        assertTrue(board.add(earlier));
+        assertFalse(board.add(earlier));
+        assertEquals(earlier, board.getStrokes().get(0));
+        assertTrue(board.nextTimestamp() > 9);
+
+        BoardOp delete = board.deleteStroke(later.getId());
+        assertFalse(board.add(later));
+        assertEquals(1, board.size());
+        assertEquals(2, board.getIds().length);
+        assertEquals(1, board.getDeletes().size());
+        assertEquals(delete.getTimestamp(), board.getDeletes().get(0).getTimestamp());
+    }
+
+    /**
+     * Let peers make random operations, delivering each to every other peer after a
+     * random delay, sometimes twice, then check every board is the same.
+     */
+    private static void assertConverge(int peerCount, int opCount, long seed) {
+        Random random = new Random(seed);
+        List<Peer> peers = new ArrayList<>();
+        for (int p = 0; p < peerCount; p++) {
+            peers.add(new Peer(new ReplicatedBoard(new StrokeIdGenerator(new Random(seed * 100 + p)))));
+        }
+        List<Delivery> inFlight = new ArrayList<>();
+        int delivered = 0;
+        for (int i = 0; i < opCount; i++) {
+            Peer peer = peers.get(random.nextInt(peerCount));
+            BoardOp op = peer.randomOp(random);
+            if (op != null) {
+                for (Peer other : peers) {
+                    if (other != peer) {
+                        inFlight.add(new Delivery(other, op));
+                        if (random.nextInt(10) == 0) {
+                            inFlight.add(new Delivery(other, op));
+                        }
+                    }
+                }
+            }
+            // Deliver a random part of what is in flight, in random order
+            int deliveries = random.nextInt(peerCount * 2);
+            for (int d = 0; d < deliveries && !inFlight.isEmpty(); d++) {
+                Delivery delivery = inFlight.remove(random.nextInt(inFlight.size()));
+                delivery.peer.board.apply(delivery.op);
+                delivered++;
+            }
+        }
+        Collections.shuffle(inFlight, random);
+        for (Delivery delivery : inFlight) {
+            delivery.peer.board.apply(delivery.op);
+            delivered++;
+        }
+
+        ReplicatedBoard reference = peers.get(0).board;
+        int points = 0;
+        for (Stroke stroke : reference.getStrokes()) {
+            points += stroke.getPointCount();
+        }
+        System.out.println(String.format("%d peers, %d ops, %d deliveries: %d strokes, %d points on every board",
+                peerCount, opCount, delivered, reference.size(), points));
+        assertTrue(reference.size() > 0);
+        for (Peer peer : peers) {
+            assertBoardsEqual(reference, peer.board);
+        }
+    }
+
+    private static void assertBoardsEqual(ReplicatedBoard expected, ReplicatedBoard actual) {
+        List<Stroke> expectedStrokes = expected.getStrokes();
+        List<Stroke> actualStrokes = actual.getStrokes();
+        assertEquals(expectedStrokes.size(), actualStrokes.size());
+        for (int i = 0; i < expectedStrokes.size(); i++) {
+            Stroke a = expectedStrokes.get(i);
+            Stroke b = actualStrokes.get(i);
+            assertEquals(a.getId(), b.getId());
+            assertEquals(a.getColor(), b.getColor());
+            assertEquals(a.getPointCount(), b.getPointCount());
+            for (int p = 0; p < a.getPointCount(); p++) {
+                assertEquals(a.getX(p), b.getX(p), 0f);
+                assertEquals(a.getY(p), b.getY(p), 0f);
+            }
+        }
+    }
+
+    /**
+     * A peer drawing up to a few strokes at once and deleting strokes it sees.
+     */
+    private static class Peer {
+        final ReplicatedBoard board;
+        final List<Integer> drawing = new ArrayList<>();
+
+        Peer(ReplicatedBoard board) {
+            this.board = board;
+        }
+
+        BoardOp randomOp(Random random) {
+            int action = random.nextInt(100);
+            if (action < 30 || drawing.isEmpty()) {
+                if (drawing.size() == 3) {
+                    drawing.remove(0);
+                }
+                BoardOp op = board.addStroke(random.nextInt(), 1f + random.nextInt(5));
+                drawing.add(op.getStrokeId());
+                return op;
+            }
+            if (action < 90) {
+                int id = drawing.get(random.nextInt(drawing.size()));
+                if (board.get(id) == null) {
+                    // Deleted by a peer meanwhile
+                    drawing.remove((Integer) id);
+                    return null;
+                }
+                int count = 1 + random.nextInt(8);
+                float[] coords = new float[count * 2];
+                for (int i = 0; i < coords.length; i++) {
+                    coords[i] = random.nextFloat();
+                }
+                return board.appendPoints(id, coords, 0, count);
+            }
+            List<Stroke> strokes = board.getStrokes();
+            if (strokes.isEmpty()) {
+                return null;
+            }
+            return board.deleteStroke(strokes.get(random.nextInt(strokes.size())).getId());
+        }
+    }
+
+    private static class Delivery {
+        final Peer peer;
+        final BoardOp op;
+
+        Delivery(Peer peer, BoardOp op) {
+            this.peer = peer;
+            this.op = op;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package me.hammarstrom.paint.sync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.ChunkPool;
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.SessionHub;
+import me.hammarstrom.paint.connections.SimulatedLink;
+import me.hammarstrom.paint.connections.SimulatedNetwork;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.Transport;
+import me.hammarstrom.paint.drawing.Stroke;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link SnapshotSender} and {@link SnapshotReceiver}: a peer joining a
+ * board that already has strokes on a {@link SimulatedNetwork}, and how long it takes
+ * to catch up.
+ */
+public class SnapshotTest {
+
+    private static final long MS = 1000000L;
+
+    /** About what a Wi-Fi link between two phones carries **/
+    private static final long LINK_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    private final SimulatedNetwork network = new SimulatedNetwork(19);
+    private final StrokeCodec codec = new StrokeCodec();
+    private final List<SnapshotSender> senders = new ArrayList<>();
+    private final List<SessionHub> hubs = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (SnapshotSender sender : senders) {
+            sender.stop();
+        }
+        for (SessionHub hub : hubs) {
+            hub.removeAllPeers();
+        }
+        network.shutdown();
+    }
+
+    @Test
+    public void benchmark_catchUp_1kStrokes() throws Exception {
+        assertCatchUp(1000);
+    }
+
+    @Test
+    public void benchmark_catchUp_10kStrokes() throws Exception {
+        assertCatchUp(10000);
+    }
+
+    @Test
+    public void benchmark_catchUp_100kStrokes() throws Exception {
+        assertCatchUp(100000);
+    }
+
+    @Test
+    public void liveStrokesDuringCatchUp_noGapsOrDuplicates() throws Exception {
+        ReplicatedBoard hubBoard = board(2000, 1);
+        Joiner joiner = new Joiner();
+        Transport hubTransport = network.createEndpoint("hub");
+        SessionHub hub = new SessionHub(hubTransport, new IgnoringListener(), codec,
+                new ChunkPool(16, StrokeCodec.MAX_MESSAGE_SIZE), 64);
+        hubs.add(hub);
+        network.createEndpoint("joiner").setListener(joiner);
+        network.connect("hub", "joiner", link());
+        joiner.awaitConnected();
+        while (hub.getSender("joiner") == null) {
+            Thread.sleep(1);
+        }
+
+        // A few strokes are committed right as the snapshot is taken, they go out live too
+        List<Stroke> snapshot = hubBoard.getStrokes();
+        SnapshotSender sender = new SnapshotSender(hubTransport, "joiner", codec, snapshot,
+                Collections.<BoardOp>emptyList(), 1);
+        senders.add(sender);
+        sender.start();
+        int overlap = 5;
+        for (int i = snapshot.size() - overlap; i < snapshot.size(); i++) {
+            sendLive(hub, snapshot.get(i));
+        }
+        Random random = new Random(2);
+        List<Stroke> live = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Stroke stroke = stroke(1000000 + i, random);
+            live.add(stroke);
+            hubBoard.add(stroke);
+            sendLive(hub, stroke);
+            Thread.sleep(2);
+        }
+
+        joiner.awaitComplete(10000);
+        long end = System.currentTimeMillis() + 5000;
+        while (joiner.board.size() < hubBoard.size() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertBoardsEqual(hubBoard, joiner.board);
+        assertEquals(overlap, joiner.receiver.getSkippedStrokes() + joiner.liveDuplicates());
+        assertEquals(snapshot.size() + live.size(), joiner.strokesSeen() - overlap);
+        assertEquals(0, joiner.receiver.getDroppedSnapshots());
+    }
+
+    @Test
+    public void missingChunk_dropsSnapshot() throws Exception {
+        List<byte[]> chunks = record(board(500, 3).getStrokes(), Collections.<BoardOp>emptyList());
+        assertTrue(chunks.size() > 2);
+
+        Joiner joiner = new Joiner();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i != 1) {
+                assertTrue(joiner.receiver.onMessageReceived("hub", chunks.get(i)));
+            }
+        }
+        assertEquals(1, joiner.receiver.getDroppedSnapshots());
+        assertEquals(0, joiner.completed);
+
+        // A new snapshot starts over
+        for (byte[] chunk : chunks) {
+            joiner.receiver.onMessageReceived("hub", chunk);
+        }
+        assertEquals(1, joiner.completed);
+        assertEquals(500, joiner.board.size());
+    }
+
+    @Test
+    public void deletes_reachJoiner() throws Exception {
+        ReplicatedBoard hubBoard = board(200, 4);
+        List<Stroke> strokes = hubBoard.getStrokes();
+        for (int i = 0; i < 20; i++) {
+            hubBoard.deleteStroke(strokes.get(i * 10).getId());
+        }
+        // The joiner has one of the deleted strokes already, and one delete
+        Joiner joiner = new Joiner();
+        joiner.board.add(strokes.get(0));
+        joiner.board.deleteStroke(strokes.get(10).getId());
+
+        List<byte[]> chunks = record(hubBoard.getStrokes(), hubBoard.getDeletes());
+        for (byte[] chunk : chunks) {
+            assertTrue(joiner.receiver.onMessageReceived("hub", chunk));
+        }
+
+        assertEquals(1, joiner.completed);
+        assertBoardsEqual(hubBoard, joiner.board);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(joiner.board.isDeleted(strokes.get(i * 10).getId()));
+        }
+        assertEquals(19, joiner.deletesSeen());
+    }
+
+    /**
+     * Send a snapshot and keep its chunks.
+     */
+    private List<byte[]> record(List<Stroke> strokes, List<BoardOp> deletes) throws InterruptedException {
+        final List<byte[]> chunks = new ArrayList<>();
+        Transport recorder = new Transport() {
+            @Override
+            public void sendReliable(String endpointId, byte[] payload) {
+                synchronized (chunks) {
+                    chunks.add(payload);
+                }
+            }
+
+            @Override
+            public void sendUnreliable(String endpointId, byte[] payload) {
+            }
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+
+            @Override
+            public void disconnect(String endpointId) {
+            }
+        };
+        SnapshotSender sender = new SnapshotSender(recorder, "joiner", codec, strokes, deletes, 7);
+        senders.add(sender);
+        sender.start();
+        long end = System.currentTimeMillis() + 5000;
+        while (!sender.isDone() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        sender.stop();
+        assertTrue(sender.isDone());
+        synchronized (chunks) {
+            return new ArrayList<>(chunks);
+        }
+    }
+
+    private void assertCatchUp(int strokes) throws Exception {
+        ReplicatedBoard hubBoard = board(strokes, strokes);
+        Joiner joiner = new Joiner();
+        Transport hubTransport = network.createEndpoint("hub");
+        hubTransport.setListener(new IgnoringListener());
+        network.createEndpoint("joiner").setListener(joiner);
+        SimulatedLink link = link();
+        network.connect("hub", "joiner", link);
+        joiner.awaitConnected();
+
+        long start = System.nanoTime();
+        SnapshotSender sender = new SnapshotSender(hubTransport, "joiner", codec, hubBoard.getStrokes(),
+                Collections.<BoardOp>emptyList(), 1);
+        senders.add(sender);
+        sender.start();
+        joiner.awaitComplete(120000);
+        long elapsed = System.nanoTime() - start;
+
+        long points = 0;
+        for (Stroke stroke : hubBoard.getStrokes()) {
+            points += stroke.getPointCount();
+        }
+        long encoded = encodedSize(hubBoard);
+        System.out.println(String.format("Catch-up with %d strokes, %d points: %d ms, %d chunks, %d bytes"
+                        + " (%.2f bytes/point, %.0f%% of the encoded strokes)",
+                strokes, points, elapsed / MS, sender.getSentChunks(), sender.getSentBytes(),
+                sender.getSentBytes() / (double) points, 100.0 * sender.getSentBytes() / encoded));
+        assertBoardsEqual(hubBoard, joiner.board);
+        assertEquals(strokes, joiner.receiver.getAddedStrokes());
+        assertTrue(sender.getSentBytes() < encoded);
+        assertEquals(sender.getSentBytes(), link.getBytes());
+    }
+
+    private long encodedSize(ReplicatedBoard board) {
+        long size = 0;
+        for (Stroke stroke : board.getStrokes()) {
+            PathMessage message = new PathMessage(stroke.getId(), stroke.getColor(), stroke.getWidth());
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                message.addCoords(stroke.getX(i), stroke.getY(i));
+            }
+            size += codec.encodedLength(message);
+        }
+        return size;
+    }
+
+    private void sendLive(SessionHub hub, Stroke stroke) {
+        PathMessage message = new PathMessage(stroke.getId(), stroke.getColor(), stroke.getWidth());
+        for (int i = 0; i < stroke.getPointCount(); i++) {
+            message.addCoords(stroke.getX(i), stroke.getY(i));
+        }
+        message.setFlags(PathMessage.FLAG_FIRST | PathMessage.FLAG_LAST);
+        try {
+            hub.broadcast(codec.toChunk(codec.encode(message), new ChunkPool(1, StrokeCodec.MAX_MESSAGE_SIZE)));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void assertBoardsEqual(ReplicatedBoard expected, ReplicatedBoard actual) {
+        float tolerance = 1f / codec.getGridResolution();
+        assertEquals(expected.size(), actual.size());
+        for (Stroke stroke : expected.getStrokes()) {
+            Stroke received = actual.get(stroke.getId());
+            assertNotNull("Missing stroke " + stroke.getId(), received);
+            assertEquals(stroke.getColor(), received.getColor());
+            assertEquals(stroke.getWidth(), received.getWidth(), 0f);
+            assertEquals(stroke.getPointCount(), received.getPointCount());
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                assertEquals(stroke.getX(i), received.getX(i), tolerance);
+                assertEquals(stroke.getY(i), received.getY(i), tolerance);
+            }
+        }
+    }
+
+    private static SimulatedLink link() {
+        return new SimulatedLink.Builder()
+                .setBandwidth(LINK_BYTES_PER_SECOND)
+                .setLatency(5, TimeUnit.MILLISECONDS)
+                .setJitter(2, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * A board of handwriting-like strokes, 8 to 64 points each.
+     */
+    static ReplicatedBoard board(int strokes, long seed) {
+        Random random = new Random(seed);
+        ReplicatedBoard board = new ReplicatedBoard();
+        for (int i = 0; i < strokes; i++) {
+            board.add(stroke(i, random));
+        }
+        return board;
+    }
+
+    static Stroke stroke(int id, Random random) {
+        int[] colors = {0xFFFFFF00, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF};
+        Stroke stroke = new Stroke(id, colors[random.nextInt(colors.length)], 3f);
+        int points = 8 + random.nextInt(57);
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        float dx = (random.nextFloat() - 0.5f) * 0.01f;
+        float dy = (random.nextFloat() - 0.5f) * 0.01f;
+        for (int p = 0; p < points; p++) {
+            stroke.addPoint(x, y);
+            dx += (random.nextFloat() - 0.5f) * 0.002f;
+            dy += (random.nextFloat() - 0.5f) * 0.002f;
+            x = Math.max(0f, Math.min(1f, x + dx));
+            y = Math.max(0f, Math.min(1f, y + dy));
+        }
+        return stroke;
+    }
+
+    /**
+     * The joining peer: snapshot chunks go to its receiver, live strokes are added to
+     * its board as they arrive.
+     */
+    private class Joiner implements Transport.Listener, SnapshotReceiver.Listener {
+        final ReplicatedBoard board = new ReplicatedBoard();
+        final SnapshotReceiver receiver = new SnapshotReceiver(codec, board, this);
+        private boolean mConnected;
+        private int completed;
+        private int mStrokesSeen;
+        private int mDeletesSeen;
+        private int mLiveDuplicates;
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            if (receiver.onMessageReceived(endpointId, payload)
+                    || StrokeCodec.getType(payload) != StrokeCodec.TYPE_STROKE) {
+                return;
+            }
+            PathMessage message;
+            try {
+                message = codec.decode(payload);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            Stroke stroke = new Stroke(message.getStrokeId(), message.getColor(), message.getWidth());
+            stroke.addPoints(message.getCoords(), 0, message.getPointCount());
+            synchronized (this) {
+                mStrokesSeen++;
+                if (!board.add(stroke)) {
+                    mLiveDuplicates++;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onSnapshotStroke(String endpointId, Stroke stroke) {
+            mStrokesSeen++;
+        }
+
+        @Override
+        public synchronized void onSnapshotDelete(String endpointId, BoardOp delete) {
+            mDeletesSeen++;
+        }
+
+        @Override
+        public synchronized void onSnapshotComplete(String endpointId, int strokes, int added) {
+            completed++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onEndpointConnected(String endpointId) {
+            mConnected = true;
+            notifyAll();
+        }
+
+        @Override
+        public void onEndpointDisconnected(String endpointId) {
+        }
+
+        synchronized int strokesSeen() {
+            return mStrokesSeen + (int) receiver.getSkippedStrokes();
+        }
+
+        synchronized int deletesSeen() {
+            return mDeletesSeen;
+        }
+
+        synchronized int liveDuplicates() {
+            return mLiveDuplicates;
+        }
+
+        synchronized void awaitConnected() throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (!mConnected && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertTrue(mConnected);
+        }
+
+        synchronized void awaitComplete(long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (completed == 0 && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(1, completed);
+        }
+    }
+
+    private static class IgnoringListener implements Transport.Listener {
+        @Override
+        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+        }
+
+        @Override
+        public void onEndpointConnected(String endpointId) {
+        }
+
+        @Override
+        public void onEndpointDisconnected(String endpointId) {
+        }
+    }
+}
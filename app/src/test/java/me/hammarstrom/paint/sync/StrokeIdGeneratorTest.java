@@ -0,0 +1,57 @@
+package me.hammarstrom.paint.sync;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StrokeIdGenerator}: carrying on from a saved state across runs,
+ * and never handing out the id of a stroke already on the board.
+ */
+public class StrokeIdGeneratorTest {
+
+    @Test
+    public void restored_carriesOnWithSamePeer() {
+        StrokeIdGenerator first = new StrokeIdGenerator(new Random(1));
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(first.next());
+        }
+        // A new run, with a different random source
+        StrokeIdGenerator second = new StrokeIdGenerator(new Random(2), first.getPeer(), first.getCounter());
+        for (int i = 0; i < 10; i++) {
+            int id = second.next();
+            assertEquals(first.getPeer(), StrokeIds.peer(id));
+            assertTrue(ids.add(id));
+        }
+        assertEquals(20, second.getCounter());
+    }
+
+    @Test
+    public void advancePast_skipsIdsOnBoard() {
+        StrokeIdGenerator generator = new StrokeIdGenerator(new Random(3), 42, 5);
+        // The saved counter was behind what the journal holds
+        generator.advancePast(StrokeIds.make(42, 9));
+        generator.advancePast(StrokeIds.make(42, 7));
+        generator.advancePast(StrokeIds.make(43, 100));
+        assertEquals(StrokeIds.make(42, 10), generator.next());
+    }
+
+    @Test
+    public void counterRunsOut_newPeer() {
+        StrokeIdGenerator generator = new StrokeIdGenerator(new Random(4), 42, StrokeIds.MAX_COUNTER - 1);
+        assertEquals(StrokeIds.make(42, StrokeIds.MAX_COUNTER), generator.next());
+        int id = generator.next();
+        assertEquals(1, StrokeIds.counter(id));
+        assertEquals(generator.getPeer(), StrokeIds.peer(id));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidState_throws() {
+        new StrokeIdGenerator(new Random(5), StrokeIds.MAX_PEER + 1, 0);
+    }
+}
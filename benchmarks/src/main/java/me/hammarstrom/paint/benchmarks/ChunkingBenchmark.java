@@ -0,0 +1,84 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.Chunk;
+import me.hammarstrom.paint.connections.ChunkPool;
+import me.hammarstrom.paint.connections.Clock;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.StrokeStreamer;
+import me.hammarstrom.paint.connections.Transport;
+
+/**
+ * Cutting a whole stroke into pooled messages of at most the 4 KB Nearby limit, as
+ * the streamer does while the stroke is drawn, and with live previews on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkingBenchmark {
+
+    @Param({"16", "128", "1000", "10000"})
+    public int points;
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final ChunkPool pool = new ChunkPool(8, StrokeCodec.MAX_MESSAGE_SIZE);
+    private float[] trace;
+    private StrokeStreamer reliable;
+    private StrokeStreamer previews;
+    private int segments;
+
+    @Setup
+    public void setUp() {
+        trace = HandwritingTrace.generate(points, 2);
+        StrokeStreamer.SegmentSink sink = new StrokeStreamer.SegmentSink() {
+            @Override
+            public void onSegment(Chunk segment) {
+                segments += segment.getLength();
+                segment.recycle();
+            }
+        };
+        // No time budget, so that only the size limit cuts segments
+        reliable = new StrokeStreamer(codec, pool, sink, Clock.SYSTEM, Long.MAX_VALUE,
+                StrokeCodec.MAX_MESSAGE_SIZE);
+        previews = new StrokeStreamer(codec, pool, sink, Clock.SYSTEM, Long.MAX_VALUE,
+                Transport.MAX_UNRELIABLE_MESSAGE_SIZE);
+        previews.enablePreviews(StrokeStreamer.DEFAULT_PREVIEW_REDUNDANCY);
+    }
+
+    @Benchmark
+    public int stream() {
+        return stream(reliable);
+    }
+
+    @Benchmark
+    public int streamWithPreviews() {
+        return stream(previews);
+    }
+
+    private int stream(StrokeStreamer streamer) {
+        segments = 0;
+        streamer.beginStroke(1, 0xFFFFFF00, 3f, 0L, trace[0], trace[1]);
+        int last = points - 1;
+        for (int i = 1; i < last; i++) {
+            streamer.addPoint(trace[i * 2], trace[i * 2 + 1]);
+        }
+        streamer.endStroke(trace[last * 2], trace[last * 2 + 1]);
+        return segments;
+    }
+}
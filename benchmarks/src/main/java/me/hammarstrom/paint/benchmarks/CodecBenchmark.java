@@ -0,0 +1,73 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+
+/**
+ * Encoding and decoding one stroke message, in each point encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    /** Points in the message, the longest fits one message in either encoding **/
+    @Param({"16", "128", "1000"})
+    public int points;
+
+    @Param({"fixed16", "delta"})
+    public String encoding;
+
+    private StrokeCodec codec;
+    private PathMessage message;
+    private byte[] encoded;
+    private final byte[] buffer = new byte[StrokeCodec.MAX_MESSAGE_SIZE];
+    private final PathMessage decoded = new PathMessage();
+
+    @Setup
+    public void setUp() {
+        codec = "fixed16".equals(encoding)
+                ? new StrokeCodec(StrokeCodec.ENCODING_FIXED16, StrokeCodec.DEFAULT_GRID_RESOLUTION)
+                : new StrokeCodec(StrokeCodec.ENCODING_DELTA_VARINT, StrokeCodec.DEFAULT_GRID_RESOLUTION);
+        float[] trace = HandwritingTrace.generate(points, 1);
+        message = new PathMessage(1, 0xFFFFFF00, 3f);
+        for (int i = 0; i < points; i++) {
+            message.addCoords(trace[i * 2], trace[i * 2 + 1]);
+        }
+        encoded = codec.encode(message);
+    }
+
+    @Benchmark
+    public int encode() {
+        return codec.encode(message, buffer, 0);
+    }
+
+    @Benchmark
+    public PathMessage decode() throws IOException {
+        codec.decode(encoded, 0, encoded.length, decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public PathMessage decodeAllocating() throws IOException {
+        return codec.decode(encoded);
+    }
+}
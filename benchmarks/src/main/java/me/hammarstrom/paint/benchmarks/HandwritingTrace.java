@@ -0,0 +1,56 @@
+package me.hammarstrom.paint.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic handwriting: the pen moves across the screen in loops, like joined-up
+ * letters, sampled at touch event rate with a little jitter. The same seed and length
+ * always give the same points, so runs can be compared.
+ */
+public final class HandwritingTrace {
+
+    /** Touch events per second on a typical device **/
+    private static final float SAMPLE_RATE = 120f;
+
+    private HandwritingTrace() {
+    }
+
+    /**
+     * @param points number of points
+     * @param seed seed of the random letter shapes
+     * @return interleaved normalized x, y coordinates
+     */
+    public static float[] generate(int points, long seed) {
+        Random random = new Random(seed);
+        float[] coords = new float[points * 2];
+        // About five letters a second, each a loop of a few percent of the screen
+        float letterRate = 4f + random.nextFloat() * 2f;
+        float letterWidth = 0.02f + random.nextFloat() * 0.02f;
+        float letterHeight = letterWidth * (1.5f + random.nextFloat());
+        float x = 0.05f + random.nextFloat() * 0.1f;
+        float baseline = 0.1f + random.nextFloat() * 0.8f;
+        float phase = 0f;
+        for (int i = 0; i < points; i++) {
+            float t = i / SAMPLE_RATE;
+            phase += (float) (2 * Math.PI * letterRate / SAMPLE_RATE) * (0.8f + random.nextFloat() * 0.4f);
+            float px = x + letterWidth * letterRate * t + letterWidth * 0.5f * (float) Math.cos(phase);
+            float py = baseline - letterHeight * 0.5f * (1f + (float) Math.sin(phase));
+            // Hand tremor and digitizer noise, well under a pixel to a few pixels
+            px += (random.nextFloat() - 0.5f) * 0.001f;
+            py += (random.nextFloat() - 0.5f) * 0.001f;
+            if (px > 0.95f) {
+                // Next line
+                x -= px - 0.05f;
+                baseline = baseline > 0.8f ? 0.1f : baseline + 0.08f;
+                px = 0.05f;
+            }
+            coords[i * 2] = clamp(px);
+            coords[i * 2 + 1] = clamp(py);
+        }
+        return coords;
+    }
+
+    private static float clamp(float value) {
+        return Math.min(1f, Math.max(0f, value));
+    }
+}
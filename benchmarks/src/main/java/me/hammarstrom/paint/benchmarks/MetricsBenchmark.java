@@ -0,0 +1,49 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.metrics.Counter;
+import me.hammarstrom.paint.metrics.Histogram;
+import me.hammarstrom.paint.metrics.MetricsRegistry;
+
+/**
+ * What recording a metric costs, with metrics on and with the disabled registry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+    private final Histogram histogram = new MetricsRegistry().histogram("h");
+    private final Histogram disabled = MetricsRegistry.DISABLED.histogram("h");
+    private final Counter counter = new MetricsRegistry().counter("c");
+    private long value;
+
+    @Benchmark
+    public void recordHistogram() {
+        histogram.record(value++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    public void recordDisabled() {
+        disabled.record(value++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    public void incrementCounter() {
+        counter.increment();
+    }
+}
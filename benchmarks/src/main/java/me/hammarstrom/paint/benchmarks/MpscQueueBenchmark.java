@@ -0,0 +1,81 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.drawing.MpscQueue;
+
+/**
+ * Two producers handing strokes to a render thread that draws frames, through the
+ * lock-free inbox the draw thread drains, against a synchronized list the render
+ * thread holds while drawing. Sampled, so the results include the producers' p99.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class MpscQueueBenchmark {
+
+    /** Work done drawing a frame, in Blackhole.consumeCPU tokens **/
+    @Param({"10000", "100000"})
+    public long frameTokens;
+
+    private final MpscQueue<Object> inbox = new MpscQueue<>();
+    private final List<Object> shared = Collections.synchronizedList(new ArrayList<Object>());
+    /** The render thread's own copy of the strokes **/
+    private final List<Object> drawn = new ArrayList<>();
+
+    @Benchmark
+    @Group("inbox")
+    @GroupThreads(2)
+    public void offerInbox() {
+        inbox.offer(new Object());
+    }
+
+    @Benchmark
+    @Group("inbox")
+    @GroupThreads(1)
+    public void drawInbox() {
+        Object stroke;
+        while ((stroke = inbox.poll()) != null) {
+            drawn.add(stroke);
+        }
+        drawn.clear();
+        Blackhole.consumeCPU(frameTokens);
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(2)
+    public void addLocked() {
+        shared.add(new Object());
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void drawLocked() {
+        synchronized (shared) {
+            shared.clear();
+            Blackhole.consumeCPU(frameTokens);
+        }
+    }
+}
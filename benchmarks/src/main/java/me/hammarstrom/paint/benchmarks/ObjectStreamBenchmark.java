@@ -0,0 +1,82 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+
+/**
+ * Encoding and decoding one stroke message with {@link StrokeCodec}, against the
+ * ObjectOutputStream of "x,y" strings it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ObjectStreamBenchmark {
+
+    @Param({"16", "100"})
+    public int points;
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final byte[] buffer = new byte[StrokeCodec.MAX_MESSAGE_SIZE];
+    private final PathMessage decoded = new PathMessage();
+    private PathMessage message;
+    private ArrayList<String> coords;
+
+    @Setup
+    public void setUp() {
+        float[] trace = HandwritingTrace.generate(points, 1);
+        message = new PathMessage(1, 0xFFFFFF00, 3f);
+        coords = new ArrayList<>();
+        for (int i = 0; i < points; i++) {
+            message.addCoords(trace[i * 2], trace[i * 2 + 1]);
+            coords.add(String.valueOf(trace[i * 2]) + "," + String.valueOf(trace[i * 2 + 1]));
+        }
+    }
+
+    @Benchmark
+    public PathMessage strokeCodec() throws IOException {
+        int length = codec.encode(message, buffer, 0);
+        codec.decode(buffer, 0, length, decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public float objectStream() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(coords);
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        @SuppressWarnings("unchecked")
+        List<String> read = (List<String>) ois.readObject();
+        float sum = 0;
+        for (String c : read) {
+            String[] cArr = c.split(",");
+            sum += Float.valueOf(cArr[0]) + Float.valueOf(cArr[1]);
+        }
+        return sum;
+    }
+}
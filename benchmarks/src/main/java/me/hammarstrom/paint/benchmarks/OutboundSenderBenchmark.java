@@ -0,0 +1,114 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import me.hammarstrom.paint.connections.Chunk;
+import me.hammarstrom.paint.connections.ChunkBuilder;
+import me.hammarstrom.paint.connections.ChunkPool;
+import me.hammarstrom.paint.connections.OutboundSender;
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.connections.Transport;
+
+/**
+ * How long a producer waits to queue a stroke segment for a link slower than it,
+ * under each of the {@link OutboundSender} policies. Sampled, so the results include
+ * the p99. Building the segment is part of every sample.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutboundSenderBenchmark {
+
+    /** Segments in a stroke before it ends and the next one starts **/
+    private static final int SEGMENTS_PER_STROKE = 100;
+    /** Points in a segment, about 16 ms of drawing **/
+    private static final int POINTS_PER_SEGMENT = 4;
+
+    @Param({"0", "1", "2"})
+    public int policy;
+
+    /** Time the link takes per message **/
+    @Param({"2000000"})
+    public long linkNanos;
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final ChunkPool pool = new ChunkPool(64, StrokeCodec.MAX_MESSAGE_SIZE);
+    private final ChunkBuilder builder = new ChunkBuilder(codec, pool, StrokeCodec.MAX_MESSAGE_SIZE);
+    private OutboundSender sender;
+    private float[] trace;
+    private int strokeId;
+    private int sequence;
+
+    @Setup
+    public void setUp() {
+        trace = HandwritingTrace.generate(SEGMENTS_PER_STROKE * POINTS_PER_SEGMENT, 5);
+        sender = new OutboundSender(new SlowTransport(linkNanos), "peer", codec, pool, 4, policy);
+        sender.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.stop();
+    }
+
+    @Benchmark
+    public boolean offerSegment() {
+        builder.begin(strokeId, sequence, 0xFF000000, 3f, 0L);
+        int first = sequence * POINTS_PER_SEGMENT;
+        for (int i = first; i < first + POINTS_PER_SEGMENT; i++) {
+            builder.append(trace[i * 2], trace[i * 2 + 1]);
+        }
+        int flags = sequence == 0 ? PathMessage.FLAG_FIRST : 0;
+        if (++sequence == SEGMENTS_PER_STROKE) {
+            flags |= PathMessage.FLAG_LAST;
+            sequence = 0;
+            strokeId++;
+        }
+        Chunk segment = builder.finish(flags);
+        return sender.offer(segment);
+    }
+
+    private static class SlowTransport implements Transport {
+        private final long mDelayNanos;
+
+        SlowTransport(long delayNanos) {
+            mDelayNanos = delayNanos;
+        }
+
+        @Override
+        public void sendReliable(String endpointId, byte[] payload) {
+            LockSupport.parkNanos(mDelayNanos);
+        }
+
+        @Override
+        public void sendUnreliable(String endpointId, byte[] payload) {
+            LockSupport.parkNanos(mDelayNanos);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void disconnect(String endpointId) {
+        }
+    }
+}
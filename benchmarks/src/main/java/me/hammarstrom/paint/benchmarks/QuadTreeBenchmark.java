@@ -0,0 +1,123 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.drawing.QuadTree;
+
+/**
+ * Finding the strokes in a dirty rect and the stroke nearest to a point with the
+ * {@link QuadTree}, against a linear scan, over boxes the size of handwriting strokes
+ * on a normalized screen with a few long ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuadTreeBenchmark {
+
+    private static final QuadTree.Distance<Box> BOX_DISTANCE = new QuadTree.Distance<Box>() {
+        @Override
+        public float distance(Box box, float x, float y) {
+            return box.distance(x, y);
+        }
+    };
+
+    @Param({"10000", "1000000"})
+    public int strokes;
+
+    private final List<Box> found = new ArrayList<>();
+    private final Random random = new Random(1);
+    private QuadTree<Box> tree;
+    private Box[] boxes;
+
+    @Setup
+    public void setUp() {
+        tree = new QuadTree<>(0, 0, 1, 1);
+        boxes = new Box[strokes];
+        for (int i = 0; i < strokes; i++) {
+            boxes[i] = randomBox(random.nextInt(100) == 0 ? 0.5f : 0.02f);
+            tree.put(boxes[i], boxes[i].left, boxes[i].top, boxes[i].right, boxes[i].bottom);
+        }
+    }
+
+    @Benchmark
+    public int queryIndex() {
+        Box area = randomBox(0.02f);
+        found.clear();
+        return tree.query(area.left, area.top, area.right, area.bottom, found);
+    }
+
+    @Benchmark
+    public int queryScan() {
+        Box area = randomBox(0.02f);
+        found.clear();
+        for (Box box : boxes) {
+            if (box.left <= area.right && box.right >= area.left && box.top <= area.bottom
+                    && box.bottom >= area.top) {
+                found.add(box);
+            }
+        }
+        return found.size();
+    }
+
+    @Benchmark
+    public Box nearestIndex() {
+        return tree.nearest(random.nextFloat(), random.nextFloat(), 1f, BOX_DISTANCE);
+    }
+
+    @Benchmark
+    public Box nearestScan() {
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        Box nearest = null;
+        float best = 1f;
+        for (Box box : boxes) {
+            float d = box.distance(x, y);
+            if (d <= best) {
+                best = d;
+                nearest = box;
+            }
+        }
+        return nearest;
+    }
+
+    private Box randomBox(float maxSize) {
+        float x = random.nextFloat();
+        float y = random.nextFloat();
+        return new Box(x, y, x + random.nextFloat() * maxSize, y + random.nextFloat() * maxSize);
+    }
+
+    private static class Box {
+        final float left, top, right, bottom;
+
+        Box(float left, float top, float right, float bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        float distance(float x, float y) {
+            float dx = Math.max(0f, Math.max(left - x, x - right));
+            float dy = Math.max(0f, Math.max(top - y, y - bottom));
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+}
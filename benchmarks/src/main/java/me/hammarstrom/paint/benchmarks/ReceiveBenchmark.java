@@ -0,0 +1,83 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.connections.PathMessage;
+import me.hammarstrom.paint.connections.StrokeCodec;
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * A received message from bytes to the stroke model, against decoding into a new
+ * message and appending point by point, and against parsing the String coordinates
+ * the app used to send.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+
+    @Param({"16", "128", "1000"})
+    public int points;
+
+    private final StrokeCodec codec = new StrokeCodec();
+    private final PathMessage message = new PathMessage();
+    private final Stroke stroke = new Stroke(1, 0xFFFFFF00, 3f);
+    private byte[] encoded;
+    private String[] strings;
+
+    @Setup
+    public void setUp() {
+        float[] trace = HandwritingTrace.generate(points, 3);
+        PathMessage sent = new PathMessage(1, 0xFFFFFF00, 3f);
+        strings = new String[points];
+        for (int i = 0; i < points; i++) {
+            sent.addCoords(trace[i * 2], trace[i * 2 + 1]);
+            strings[i] = String.valueOf(trace[i * 2]) + "," + String.valueOf(trace[i * 2 + 1]);
+        }
+        encoded = codec.encode(sent);
+    }
+
+    @Benchmark
+    public Stroke decodeIntoStroke() throws IOException {
+        stroke.rewind();
+        codec.decode(encoded, 0, encoded.length, message);
+        stroke.addPoints(message.getCoords(), 0, message.getPointCount());
+        return stroke;
+    }
+
+    @Benchmark
+    public Stroke decodePerMessage() throws IOException {
+        stroke.rewind();
+        PathMessage decoded = codec.decode(encoded);
+        for (int i = 0; i < decoded.getPointCount(); i++) {
+            stroke.addPoint(decoded.getX(i), decoded.getY(i));
+        }
+        return stroke;
+    }
+
+    @Benchmark
+    public Stroke parseStrings() {
+        stroke.rewind();
+        for (String coord : strings) {
+            String[] xy = coord.split(",");
+            stroke.addPoint(Float.valueOf(xy[0]), Float.valueOf(xy[1]));
+        }
+        return stroke;
+    }
+}
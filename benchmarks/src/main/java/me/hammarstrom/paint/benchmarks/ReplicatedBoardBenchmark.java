@@ -0,0 +1,65 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.sync.BoardOp;
+import me.hammarstrom.paint.sync.ReplicatedBoard;
+import me.hammarstrom.paint.sync.StrokeIdGenerator;
+
+/**
+ * Merging the operations of a whole board onto an empty {@link ReplicatedBoard} in
+ * random order, an add and an append per stroke with some appends before their add,
+ * as a peer that was away for the whole session gets them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplicatedBoardBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int strokes;
+
+    private List<BoardOp> ops;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(strokes);
+        ReplicatedBoard source = new ReplicatedBoard(new StrokeIdGenerator(random));
+        float[] points = HandwritingTrace.generate(8, 1);
+        ops = new ArrayList<>();
+        for (int i = 0; i < strokes; i++) {
+            BoardOp add = source.addStroke(0xFF000000, 3f);
+            ops.add(add);
+            ops.add(source.appendPoints(add.getStrokeId(), points, 0, 8));
+        }
+        Collections.shuffle(ops, random);
+    }
+
+    @Benchmark
+    public int mergeShuffled() {
+        ReplicatedBoard replica = new ReplicatedBoard();
+        for (int i = 0; i < ops.size(); i++) {
+            replica.apply(ops.get(i));
+        }
+        return replica.size();
+    }
+}
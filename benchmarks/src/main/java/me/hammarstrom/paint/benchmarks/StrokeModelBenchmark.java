@@ -0,0 +1,56 @@
+package me.hammarstrom.paint.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import me.hammarstrom.paint.drawing.Stroke;
+
+/**
+ * Appending a stroke's points to the stroke model, one at a time as touch events
+ * arrive and in bulk as received messages do, into a new stroke each time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StrokeModelBenchmark {
+
+    @Param({"16", "128", "1000", "10000"})
+    public int points;
+
+    private float[] trace;
+
+    @Setup
+    public void setUp() {
+        trace = HandwritingTrace.generate(points, 4);
+    }
+
+    @Benchmark
+    public Stroke addPoint() {
+        Stroke stroke = new Stroke(1, 0xFFFFFF00, 3f);
+        for (int i = 0; i < points; i++) {
+            stroke.addPoint(trace[i * 2], trace[i * 2 + 1]);
+        }
+        return stroke;
+    }
+
+    @Benchmark
+    public Stroke addPoints() {
+        Stroke stroke = new Stroke(1, 0xFFFFFF00, 3f);
+        stroke.addPoints(trace, 0, points);
+        return stroke;
+    }
+}